@@ -2,23 +2,21 @@ package wifi.px504.android.sebastienbourguet.fr.wifitagfinder;
 
 import android.Manifest;
 import android.app.AlertDialog;
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.IBinder;
 import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.text.Html;
-import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
@@ -34,18 +32,19 @@ import android.widget.Toast;
 import com.jjoe64.graphview.GraphView;
 import com.jjoe64.graphview.GridLabelRenderer;
 import com.jjoe64.graphview.series.DataPoint;
+import com.jjoe64.graphview.series.DataPointInterface;
 import com.jjoe64.graphview.series.LineGraphSeries;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.Location;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanSnapshot;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.render.FrameCoalescer;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.AccessPointLabels;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
 
 import static java.lang.String.format;
 
@@ -56,16 +55,19 @@ import static java.lang.String.format;
  * Application
  */
 public class MainActivity extends AppCompatActivity {
-    private static final int PERIOD = 4_000; // Average time between two scans
     private static final int MAX_LEVEL = 20; // Max value to evaluate signal force received
-    private static final int TIME_DISPLAYED = 30_000; // Time displayed in historical graph (in ms)
-    private static final int NB_DISPLAYED_POINTS = TIME_DISPLAYED/PERIOD;
+    private static final long[] TIME_DISPLAYED = ScanService.TIME_DISPLAYED; // Zoom levels of historical graph (in ms)
+    private static final int NB_DISPLAYED_POINTS = ScanService.NB_DISPLAYED_POINTS; // Max points in historical graph, whatever the zoom
     // WIFI useful constants
     private static final int BAND_2GHZ = 1;
     private static final int BAND_5GHZ = 2;
-    private static final Integer[] CHANNELS_2GHZ = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
-    private static final Integer[] CHANNELS_5GHZ = {36, 40, 44, 48, 52, 56, 60, 64, 100, 104, 108, 112, 116, 120, 124, 128, 132, 136, 140};
     private static final String[] WIDTHS = {"20 MHz", "40 MHz", "80 MHz", "160 MHz", "Other"};
+    // DISPLAY PARTS, updated at most once per frame
+    private static final int PART_SELECTOR = 1;
+    private static final int PART_CHANNELS = 2;
+    private static final int PART_LEVEL = 4;
+    private static final int PART_DETAILS = 8;
+    private static final int PART_SNAPSHOT = PART_SELECTOR | PART_CHANNELS | PART_LEVEL | PART_DETAILS;
     // PERMISSIONS
     private static final String[] REQUIRED_PERMISSIONS =  {Manifest.permission.ACCESS_WIFI_STATE, Manifest.permission.CHANGE_WIFI_STATE, Manifest.permission.ACCESS_COARSE_LOCATION, Manifest.permission.READ_EXTERNAL_STORAGE, Manifest.permission.WRITE_EXTERNAL_STORAGE};
     private static final int ACCESS_WIFI = 0x1234; // User defined
@@ -84,30 +86,65 @@ public class MainActivity extends AppCompatActivity {
     private Chronometer chronometer;
 
     // GRAPH
-    private LineGraphSeries<DataPoint> channelSeries;
-    private LineGraphSeries<DataPoint> levelSeries;
-    private DataPoint points[];
+    private LineGraphSeries<GraphPoint> channelSeries;
+    private LineGraphSeries<GraphPoint> levelSeries;
+    private final GraphPoint[] points2GHz = newPoints(WifiChannels.CHANNELS_2GHZ); // Channel graph points, one array by band
+    private final GraphPoint[] points5GHz = newPoints(WifiChannels.CHANNELS_5GHZ);
+    private GraphPoint points[];
+    private final GraphPoint[][] levelPoints = new GraphPoint[NB_DISPLAYED_POINTS + 1][]; // By size, sharing same points
+    private int zoom = 0; // Index in TIME_DISPLAYED
+    // FRAMES
+    private final FrameCoalescer coalescer = new FrameCoalescer();
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            int parts = coalescer.doFrame(frameTimeNanos);
+            if (parts != 0) {
+                render(parts);
+            }
+            if (coalescer.isFrameRequested()) {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    };
     // SPINNER
-    private ArrayAdapter<String> adapter;
+    private ArrayAdapter<AccessPointItem> adapter;
+    private AccessPointItem[] items = new AccessPointItem[64]; // Spinner items, by scan index slot
+    private int[] renderedIn = new int[64]; // Last render where slot was in scan, by slot
+    private int renders;
+    private AccessPointItem selectedItem;
 
-    // Wi-Fi
-    private WifiManager wifi;
-    private WifiReceiver wifiReceiver;
+    // SCAN SERVICE
     private int selectedBand = BAND_2GHZ;
     private boolean wifiEnabled = false;
-    private String selectedBSSID = "";
-    private long timeStart;
+    private boolean bound = false; // Service bound, to be unbound when leaving
+    private ScanService service; // Bound service, null while not connected
+    private ScanSnapshot snapshot; // Last received snapshot, rendered on next frame
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder binder) {
+            service = ((ScanService.LocalBinder) binder).getService();
+            coalescer.setMetrics(service.getMetrics(), ScanService.STAGE_FRAME, ScanService.COUNTER_FRAMES, ScanService.COUNTER_DROPPED_FRAMES);
+            service.setListener(new ScanService.SnapshotListener() {
+                @Override
+                public void onSnapshot(ScanSnapshot snapshot) {
+                    MainActivity.this.snapshot = snapshot;
+                    invalidate(PART_SNAPSHOT);
+                }
+            });
+        }
 
-    // FILE
-    private SimpleDateFormat fileFormat;
-    private SimpleDateFormat simpleFormat;
-    private File file;
-    private boolean fileOpened;
-    private OutputStream outputStream;
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            coalescer.setMetrics(null, 0, 0, 0);
+            service = null;
+        }
+    };
+    private long timeStart;
 
     /**
      * Method called when app is launched
-     * Init Wi-Fi, check if permissions are granted, and prepare UI.
+     * Check if permissions are granted, prepare UI and start scanning service.
      * @param savedInstanceState param not used
      */
     @Override
@@ -115,8 +152,6 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        initWifi();
-
         makeUI();
 
         wifiEnabled = checkPermissions(); // Check if permissions are granted
@@ -124,27 +159,48 @@ public class MainActivity extends AppCompatActivity {
             getPermission();
             wifiEnabled = checkPermissions();
         }
-        if (wifiEnabled) { // Permissions granted launch scanning
-            fileOpened = initFile();
-            wifi.startScan();
+        if (wifiEnabled) { // Permissions granted launch scanning, if not already running
+            startScanning();
         }
         else { // Permission not granted, functionality not working
             Toast.makeText(this, "Permissions are not granted, scan not launched", Toast.LENGTH_LONG);
         }
     }
 
+    /**
+     * Scanning goes on while the activity is recreated or in background, it stops when the user leaves it
+     */
     @Override
     protected void onDestroy() {
-        try {
-            Log.i("FILE", "Closing file stream");
-            outputStream.close();
-            fileOpened = false;
-        } catch (IOException e) {
-            e.printStackTrace();
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        coalescer.cancel();
+        if (bound) {
+            if (service != null) {
+                service.setListener(null);
+                service = null;
+            }
+            unbindService(connection);
+            bound = false;
+            if (isFinishing()) {
+                stopService(new Intent(this, ScanService.class));
+            }
         }
         super.onDestroy();
     }
 
+    /**
+     * Start the scanning service and bind to it, once
+     * Called at launch or when the last missing permission is granted.
+     */
+    private void startScanning() {
+        if (bound) {
+            return;
+        }
+        Intent intent = new Intent(this, ScanService.class);
+        ContextCompat.startForegroundService(this, intent);
+        bound = bindService(intent, connection, BIND_AUTO_CREATE);
+    }
+
     /**
      * Init UI
      * Prepare all displayed elements
@@ -164,24 +220,34 @@ public class MainActivity extends AppCompatActivity {
         this.chronometer = findViewById(R.id.chronometer);
 
         /* Adapter use to fill and display information in the spinner */
-        this.adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<String>());
+        this.adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<AccessPointItem>());
+        this.adapter.setNotifyOnChange(false); // Notified once per scan, see updateSelector
         this.selector.setAdapter(this.adapter);
         this.selector.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                String[] s = ((String) parent.getSelectedItem()).split("[()]"); // Keep BSSID information, contained between '()'
-                selectedBSSID = s[1];
+                AccessPointItem item = (AccessPointItem) parent.getItemAtPosition(position);
+                if (selectedItem != null && selectedItem != item && selectedItem.slot < 0) {
+                    adapter.remove(selectedItem); // Out of range, kept only while it was selected
+                    adapter.notifyDataSetChanged();
+                }
+                selectedItem = item;
+                if (service != null) {
+                    service.select(item.mac); // Snapshot with its history follows
+                }
             }
 
             @Override
             public void onNothingSelected(AdapterView<?> parent) {
-                selectedBSSID = "";
+                selectedItem = null;
+                if (service != null) {
+                    service.select(MacAddress.INVALID);
+                }
             }
         });
 
         /* Init graph */
         this.levelSeries = new LineGraphSeries<>();
-        this.levelSeries.setAnimated(true);
         this.levelSeries.setDrawBackground(true);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             this.levelSeries.setColor(getColor(R.color.spartanCrimson));
@@ -190,6 +256,11 @@ public class MainActivity extends AppCompatActivity {
         this.channelGraph.getGridLabelRenderer().setGridStyle(GridLabelRenderer.GridStyle.VERTICAL);
         this.levelGraph.getGridLabelRenderer().setGridStyle(GridLabelRenderer.GridStyle.NONE);
         this.levelGraph.addSeries(this.levelSeries);
+        this.channelSeries = new LineGraphSeries<>(); // Not animated: an animation redraws on every frame
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            this.channelSeries.setColor(getColor(R.color.spartanCrimson));
+        }
+        this.channelGraph.addSeries(this.channelSeries);
         initChannelGraph(this.selectedBand);
 
         this.channelGraph.getGridLabelRenderer().setHighlightZeroLines(true);
@@ -198,6 +269,22 @@ public class MainActivity extends AppCompatActivity {
         this.channelGraph.getViewport().setMaxY(1);
 
         this.levelGraph.getGridLabelRenderer().setNumVerticalLabels(4);
+        this.levelGraph.getViewport().setXAxisBoundsManual(true);
+        this.levelGraph.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) { // Zoom out, back to shortest time after longest one
+                zoom = (zoom + 1) % TIME_DISPLAYED.length;
+                Toast.makeText(MainActivity.this, format("History: %d s", TIME_DISPLAYED[zoom] / 1_000), Toast.LENGTH_SHORT).show();
+                invalidate(PART_LEVEL);
+            }
+        });
+        GraphPoint[] all = new GraphPoint[NB_DISPLAYED_POINTS];
+        for (int i = 0; i < NB_DISPLAYED_POINTS; i++) {
+            all[i] = new GraphPoint();
+        }
+        for (int size = 0; size <= NB_DISPLAYED_POINTS; size++) {
+            levelPoints[size] = Arrays.copyOf(all, size);
+        }
 
         /* AXIS LEGENDS - NOT USED, TOO BIG FOR A SMALL SCREEN */
 //        this.channelGraph.getGridLabelRenderer().setVerticalAxisTitle("Signal level in dB");
@@ -214,118 +301,139 @@ public class MainActivity extends AppCompatActivity {
         animation.setRepeatCount(Animation.INFINITE);
         animation.setRepeatMode(Animation.REVERSE);
         activityIndicator.startAnimation(animation);
+        activityIndicator.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (service != null) {
+                    File metricsFile = service.toggleMetrics();
+                    Toast.makeText(MainActivity.this, (service.getMetrics().isEnabled() ? "Metrics started: " : "Metrics stopped: ") + metricsFile.getName(), Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            }
+        });
 
         this.timeStart = System.currentTimeMillis();
     }
 
     /**
      * Prepare series used in Channel graph
-     * Set length of Collection with number of channel of WiFi Band
+     * Points of both bands are allocated once, switching band only swaps them.
      * @param band selected WiFi band
      */
     private void initChannelGraph(int band) {
         switch (band) {
             case BAND_2GHZ:
-                points = new DataPoint[CHANNELS_2GHZ.length];
-                for (int i = 0; i < CHANNELS_2GHZ.length; i++) {
-                    points[i] = new DataPoint(CHANNELS_2GHZ[i], 0);
-                }
+                points = points2GHz;
                 break;
             case BAND_5GHZ:
-                points = new DataPoint[CHANNELS_5GHZ.length];
-                for (int i = 0; i < CHANNELS_5GHZ.length; i++) {
-                    points[i] = new DataPoint(CHANNELS_5GHZ[i], 0);
-                }
+                points = points5GHz;
                 break;
             default:
                 return;
         }
-        this.channelSeries = new LineGraphSeries<>(points);
-        this.channelSeries.setAnimated(true);
         this.channelGraph.getViewport().setXAxisBoundsManual(true);
-        this.channelGraph.getViewport().setMinX(this.channelSeries.getLowestValueX());
-        this.channelGraph.getViewport().setMaxX(this.channelSeries.getHighestValueX());
-        this.channelGraph.addSeries(this.channelSeries);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            this.channelSeries.setColor(getColor(R.color.spartanCrimson));
+        this.channelGraph.getViewport().setMinX(points[0].x);
+        this.channelGraph.getViewport().setMaxX(points[points.length - 1].x);
+        updateChannelGraph();
+    }
+
+    /**
+     * Flag parts of the display as changed, they are updated on next frame
+     * Snapshots received between two frames are merged: only the last one is rendered.
+     * @param parts bit mask of PART_ constants
+     */
+    private void invalidate(int parts) {
+        if (coalescer.invalidate(parts)) {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
         }
     }
 
     /**
-     * Prepare receiver for WiFi SCAN Finished action
-     * Retrieve WiFi manager.
+     * Update changed parts of the display from last snapshot, once per frame
+     * @param parts bit mask of PART_ constants
      */
-    private void initWifi() {
-        this.wifiReceiver = new WifiReceiver();
-        registerReceiver(this.wifiReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
-        this.wifi = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+    private void render(int parts) {
+        if (snapshot == null || service == null) {
+            return;
+        }
+        long start = service.getMetrics().start();
+        if ((parts & PART_SELECTOR) != 0) {
+            updateSelector();
+        }
+        if ((parts & PART_CHANNELS) != 0) {
+            updateChannelGraph();
+        }
+        if ((parts & PART_LEVEL) != 0) {
+            updateLevelGraph();
+        }
+        if ((parts & PART_DETAILS) != 0) {
+            if (snapshot.getSelectedIndex() >= 0) {
+                updateUi(snapshot.getSelectedIndex());
+            }
+            updateLocation();
+        }
+        service.getMetrics().stop(ScanService.STAGE_UI, start);
     }
 
     /**
-     * Update displayed infomartion with selected Scan
-     * @param ac Scan displayed
+     * Display level received on each channel of selected band, from every access point of last scan
      */
-    private void updateUi(ScanResult ac) {
-        if (ac == null) return;
+    private void updateChannelGraph() {
+        if (snapshot == null) {
+            return;
+        }
+        for (GraphPoint point : points) {
+            point.y = Math.max(-100, snapshot.getOverlapLevel((int) point.x));
+        }
+        this.channelSeries.resetData(points);
+    }
+
+    /**
+     * Display location found in radio map, if any, as action bar subtitle
+     */
+    private void updateLocation() {
+        Location location = snapshot.getLocation();
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(location == null ? null : format("%s (%.0f m, %.0f m)", location.getLabel(), location.getX(), location.getY()));
+        }
+    }
+
+    /**
+     * Update displayed infomartion with selected access point
+     * @param i index of access point in last snapshot
+     */
+    private void updateUi(int i) {
         chronometer.stop();
-        int channel = convertFrequencyToChannel(ac.frequency);
-        this.name.setText(format("%s (%s)", ac.SSID, ac.BSSID));
-        this.frequency.setText(Html.fromHtml(format("<b>CH %d</b> - F:%d <i>(width: %s)</i>", channel, ac.frequency, WIDTHS[ac.channelWidth])));
-        this.security.setText(ac.capabilities);
-        this.level.setProgress(WifiManager.calculateSignalLevel(ac.level, MAX_LEVEL));
-        this.labLevel.setText(format("%d dB", ac.level));
-        if(ac.capabilities.contains("WPA") || ac.capabilities.contains("WPA2") || ac.capabilities.contains("WEP")) {
+        int frequency = snapshot.getFrequency(i);
+        int channel = WifiChannels.frequencyToChannel(frequency);
+        String capabilities = snapshot.getCapabilities(i);
+        this.name.setText(format("%s (%s)", snapshot.getSsid(i), snapshot.getBssid(i)));
+        this.frequency.setText(Html.fromHtml(format("<b>CH %d</b> - F:%d <i>(width: %s)</i> - %d%% busy", channel, frequency, WIDTHS[snapshot.getChannelWidth(i)], Math.round(100 * snapshot.getCongestion(channel)))));
+        this.security.setText(capabilities);
+        if (Float.isNaN(snapshot.getSelectedLevel())) { // Not measured since selection: raw level, bar and distance unchanged
+            this.labLevel.setText(format("%d dB ~-- m", snapshot.getLevel(i)));
+        } else {
+            int smoothedLevel = Math.round(snapshot.getSelectedLevel()); // Raw level jumps by 10 dB from one scan to the next
+            this.level.setProgress(WifiManager.calculateSignalLevel(smoothedLevel, MAX_LEVEL));
+            this.labLevel.setText(format("%d dB ~%.1f m", smoothedLevel, snapshot.getSelectedDistance()));
+        }
+        if(capabilities.contains("WPA") || capabilities.contains("WPA2") || capabilities.contains("WEP")) {
             this.securityIcon.setImageResource(android.R.drawable.ic_secure);
         } else {
             this.securityIcon.setImageResource(android.R.drawable.ic_partial_secure);
         }
-        this.levelSeries.appendData(new DataPoint((double)((System.currentTimeMillis()-this.timeStart)/1_000), ac.level), false, NB_DISPLAYED_POINTS);
-//        this.levelSeries.appendData(new DataPoint(lastIndex, ac.level), false, NB_DISPLAYED_POINTS);
-        if (ac.frequency > 4_000 && selectedBand == BAND_2GHZ) { // You need to change conf to handle and display 5GHz
+        if (frequency > 4_000 && selectedBand == BAND_2GHZ) { // You need to change conf to handle and display 5GHz
             selectedBand = BAND_5GHZ;
             initChannelGraph(selectedBand);
         }
-        else if (ac.frequency < 4_000 && selectedBand == BAND_5GHZ) { // You need to change conf to handle and display 2.4GHz
+        else if (frequency < 4_000 && selectedBand == BAND_5GHZ) { // You need to change conf to handle and display 2.4GHz
             selectedBand = BAND_2GHZ;
             initChannelGraph(selectedBand);
         }
-        int index = indexOf(selectedBand == BAND_2GHZ ? CHANNELS_2GHZ : CHANNELS_5GHZ, channel);
-        points[index] = new DataPoint(channel, ac.level);
-        this.channelSeries.resetData(points);
-        String separator = getString(R.string.separator);
-        String line = format("%s(%s)%s%s%s%d%s%d%s%d\n\r", ac.SSID, ac.BSSID, separator, simpleFormat.format(new Date(System.currentTimeMillis())), separator, ac.level, separator, channel, separator, ac.frequency);
-        if (fileOpened) {
-            try {
-                this.outputStream.write(line.getBytes());
-            } catch (IOException e) {
-                Log.e("APP_FileSave", "Error when trying to write in a file");
-            }
-        }
         chronometer.setBase(SystemClock.elapsedRealtime());
         chronometer.start();
     }
 
-    /**
-     * Create and prepare file used to save received data
-     * @return False if file creation failed
-     */
-    private boolean initFile() {
-        Log.i("APP_File", "App folder path = "+getFilesDir().getAbsolutePath());
-        fileFormat = new SimpleDateFormat(getString(R.string.FILE_NAME_PATTERN));
-        simpleFormat = new SimpleDateFormat(getString(R.string.DATE_FORMAT));
-        String fileName = fileFormat.format(new Date(System.currentTimeMillis()));
-        File path = null;
-        path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-        file = new File(path, fileName);
-        try {
-            outputStream = new FileOutputStream(file);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
-        return true;
-    }
-
     /**
      * Check if need permission are GRANTED
      * @return True if needed permissions are granted
@@ -390,9 +498,11 @@ public class MainActivity extends AppCompatActivity {
             case READ_EXTERNAL: {
                 // If request is cancelled, the result arrays are empty.
                 if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                    // permission was granted, yay! Do the
-                    // contacts-related task you need to do.
-                    this.wifiEnabled = true;
+                    // permission was granted, launch scanning once all of them are
+                    this.wifiEnabled = checkPermissions();
+                    if (this.wifiEnabled) {
+                        startScanning();
+                    }
                 } else {
                     // permission denied, boo! Disable the
                     // functionality that depends on this permission.
@@ -405,63 +515,141 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    protected class WifiReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context c, Intent intent) {
-            wifi.startScan();
-            List<ScanResult> results = wifi.getScanResults();
-
-            if (results.size() != adapter.getCount()) {
-                adapter.clear();
-                for (ScanResult sc : results) {
-                    adapter.add(sc.SSID + " (" + sc.BSSID + ")");
+    /**
+     * Apply differences between last rendered scan and this one to the spinner
+     * Items are kept by scan index slot: snapshots skipped by a busy UI are caught up at once.
+     * The selected access point is kept even if out of range, to keep following it.
+     */
+    private void updateSelector() {
+        renders++;
+        boolean changed = false;
+        for (int i = 0; i < snapshot.size(); i++) {
+            int slot = snapshot.getSlot(i);
+            if (slot >= items.length) {
+                items = Arrays.copyOf(items, Math.max(slot + 1, items.length * 2));
+                renderedIn = Arrays.copyOf(renderedIn, items.length);
+            }
+            renderedIn[slot] = renders;
+            long mac = snapshot.getMac(i);
+            AccessPointItem item = items[slot];
+            if (item != null && item.mac == mac) {
+                if (!item.ssid.equals(snapshot.getSsid(i))) {
+                    item.setSsid(snapshot.getSsid(i));
+                    changed = true;
                 }
-                adapter.notifyDataSetChanged();
+                continue;
+            }
+            if (item != null) { // Slot reused by another access point
+                removeItem(item);
             }
-            if (!selectedBSSID.isEmpty()) {
-                updateUi(findAP(results, selectedBSSID));
+            if (selectedItem != null && selectedItem.mac == mac) {
+                item = selectedItem; // Back in range, already in spinner
+            } else {
+                item = new AccessPointItem(mac, snapshot.getSsid(i), snapshot.getBssid(i));
+                adapter.add(item);
             }
+            item.slot = slot;
+            items[slot] = item;
+            changed = true;
+        }
+        for (int slot = 0; slot < items.length; slot++) {
+            if (items[slot] != null && renderedIn[slot] != renders) {
+                removeItem(items[slot]);
+                items[slot] = null;
+                changed = true;
+            }
+        }
+        if (changed) {
+            adapter.notifyDataSetChanged();
+        }
+        if (selectedItem == null && snapshot.getSelectedIndex() >= 0) { // Activity recreated, selection kept by service
+            selector.setSelection(adapter.getPosition(items[snapshot.getSlot(snapshot.getSelectedIndex())]));
+        }
+    }
+
+    private void removeItem(AccessPointItem item) {
+        item.slot = -1;
+        if (item != selectedItem) {
+            adapter.remove(item);
         }
     }
 
     /**
-     * Find @{@link ScanResult} in given @{@link List} with corresponding BSSID name
-     * @param results @{@link List} of @{@link ScanResult} where to find element
-     * @param bssid BSSID name of wanted @{@link ScanResult}
-     * @return Corresponding @{@link ScanResult}
+     * Display history of selected access point over the zoomed time
+     * History is downsampled by the scanning service, points are reused from one call to the next.
      */
-    private ScanResult findAP(List<ScanResult> results, String bssid) {
-        for (ScanResult r : results) {
-            if (r.BSSID.equals(bssid)) {
-                return r;
-            }
+    private void updateLevelGraph() {
+        if (snapshot == null || snapshot.getSelectedMac() == MacAddress.INVALID) {
+            return;
+        }
+        long now = snapshot.getTimeMillis();
+        long from = now - TIME_DISPLAYED[zoom];
+        GraphPoint[] displayed = levelPoints[Math.min(snapshot.getHistorySize(zoom), NB_DISPLAYED_POINTS)]; // Never more points to GraphView
+        for (int i = 0; i < displayed.length; i++) {
+            displayed[i].x = (snapshot.getHistoryTime(zoom, i) - timeStart) / 1_000d;
+            displayed[i].y = snapshot.getHistoryMean(zoom, i);
+        }
+        levelGraph.getViewport().setMinX((from - timeStart) / 1_000d);
+        levelGraph.getViewport().setMaxX((now - timeStart) / 1_000d);
+        levelSeries.resetData(displayed);
+    }
+
+    /**
+     * Graph point, updated in place instead of allocating a @{@link DataPoint} per sample
+     */
+    private static class GraphPoint implements DataPointInterface {
+        double x;
+        double y;
+
+        @Override
+        public double getX() {
+            return x;
+        }
+
+        @Override
+        public double getY() {
+            return y;
         }
-        return null;
     }
 
     /**
-     * Return channel number for given frequency
-     * @param freq frequency of signal
-     * @return corresponding channel
+     * @param channels channel numbers
+     * @return one graph point per channel, at level 0
      */
-    private static int convertFrequencyToChannel(int freq) {
-        int resp=0;
-        if (freq >= 2412 && freq <= 2484) {
-            resp=  (freq - 2412) / 5 + 1;
-        } else if (freq >= 5170 && freq <= 5825) {
-            resp= (freq - 5170) / 5 + 34;
-        }
-        return resp;
+    private static GraphPoint[] newPoints(int[] channels) {
+        GraphPoint[] points = new GraphPoint[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            points[i] = new GraphPoint();
+            points[i].x = channels[i];
+        }
+        return points;
     }
 
     /**
-     * Find index of element in given @{@link java.util.Collection}
-     * @param arr {@link java.util.Collection} Collection where to find element
-     * @param val {@link Object} Element to find
-     * @param <T> Type of element to find
-     * @return index of given element (-1 if element not find)
+     * Access point displayed in spinner
+     * Keep BSSID as packed MAC address, label is only built when SSID changes.
      */
-    private static <T> int indexOf(T[] arr, T val) {
-        return Arrays.asList(arr).indexOf(val);
+    private static class AccessPointItem {
+        final long mac;
+        final String bssid;
+        String ssid;
+        int slot = -1; // Scan index slot, -1 while out of range
+        private String label;
+
+        AccessPointItem(long mac, String ssid, String bssid) {
+            this.mac = mac;
+            this.bssid = bssid;
+            setSsid(ssid);
+        }
+
+        void setSsid(String ssid) {
+            this.ssid = ssid;
+            this.label = AccessPointLabels.format(ssid, bssid);
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,488 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.Alert;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.AnomalyDetector;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.FingerprintIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.FingerprintLocator;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.RadioMap;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryWriter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.RollingHistoryOutput;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics.Metrics;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics.MetricsSnapshot;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanEngine;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanPipeline;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanSnapshot;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.AdaptiveScanScheduler;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.ScanScheduler;
+
+import static java.lang.String.format;
+
+/**
+ * Foreground service scanning Wi-Fi on its own thread
+ *
+ * Scan requests, scan results, pipeline processing and history recording all run on the
+ * "ScanEngine" handler thread, which owns the {@link ScanEngine}. The main thread only receives
+ * immutable {@link ScanSnapshot}s: at most one delivery is pending, a slow UI skips snapshots
+ * instead of queuing them. Capture goes on while the screen is off or the activity is recreated,
+ * until the service is stopped (activity finished or notification action). Every access point
+ * of every scan is checked for rogue access points, alerts are notified from the main thread.
+ */
+public class ScanService extends Service {
+    private static final int PERIOD = 4_000; // Average time between two scans
+    private static final int MIN_PERIOD = 1_000; // Time between two scans while selected signal changes
+    private static final int MAX_PERIOD = 4 * PERIOD; // Time between two scans while selected signal is stable
+    private static final float LEVEL_THRESHOLD = 3; // Level variation (dB) considered as a move
+    public static final long[] TIME_DISPLAYED = {30_000, 5 * 60_000, 60 * 60_000, 6 * 60 * 60_000}; // Zoom levels of historical graph (in ms)
+    public static final int NB_DISPLAYED_POINTS = 120; // Max points in historical graph, whatever the zoom
+    // METRICS
+    public static final int STAGE_SCAN = 0; // From scan request to results broadcast
+    public static final int STAGE_RECEIVER = 1; // Whole results processing in receiver
+    public static final int STAGE_UI = 2; // Display update of a frame, in main thread
+    public static final int STAGE_WRITE = 3; // History write, in writer thread
+    public static final int STAGE_FRAME = 4; // From vsync of a rendered frame to next vsync
+    private static final String[] STAGES = {"scan", "receiver", "ui", "write", "frame"};
+    private static final int COUNTER_SCANS = 0;
+    private static final int COUNTER_ACCESS_POINTS = 1;
+    public static final int COUNTER_FRAMES = 2;
+    public static final int COUNTER_DROPPED_FRAMES = 3;
+    private static final String[] COUNTERS = {"scans", "access points", "frames", "dropped frames"};
+    private static final long METRICS_PERIOD = 10_000; // Time between two snapshots dumps
+    // SERVICE
+    private static final String ACTION_STOP = "wifi.px504.android.sebastienbourguet.fr.wifitagfinder.STOP";
+    private static final String CHANNEL_ID = "scan";
+    private static final int NOTIFICATION_ID = 1;
+    private static final String ALERT_CHANNEL_ID = "alerts";
+    private static final int ALERT_NOTIFICATION_ID = 2; // Last alert replaces the previous one
+
+    /**
+     * Receiver of snapshots, called on main thread
+     */
+    public interface SnapshotListener {
+        void onSnapshot(ScanSnapshot snapshot);
+    }
+
+    /**
+     * Binder of the activity, in the same process
+     */
+    public class LocalBinder extends Binder {
+        public ScanService getService() {
+            return ScanService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread scanThread;
+    private Handler scanHandler;
+    private PowerManager.WakeLock wakeLock;
+
+    // Wi-Fi, used on scan thread only
+    private WifiManager wifi;
+    private WifiReceiver wifiReceiver;
+    private volatile ScanEngine engine;
+    private final ScanBatch scanBatch = new ScanBatch(); // Reused for every scan
+    private final ScanScheduler scanScheduler = new AdaptiveScanScheduler(new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    }, MIN_PERIOD, MAX_PERIOD, LEVEL_THRESHOLD);
+    private final Runnable scanTask = new Runnable() {
+        @Override
+        public void run() {
+            long start = metrics.start();
+            if (scanScheduler.onTimer()) {
+                if (wifi.startScan()) {
+                    scanStart = start;
+                } else {
+                    scanScheduler.onScanFailed();
+                }
+            }
+            scheduleScan();
+        }
+    };
+
+    // SNAPSHOTS
+    private SnapshotListener listener; // Main thread only
+    private final AtomicBoolean deliveryPending = new AtomicBoolean();
+    private final Runnable deliverTask = new Runnable() {
+        @Override
+        public void run() {
+            deliveryPending.set(false);
+            ScanEngine current = engine;
+            if (listener != null && current != null) {
+                listener.onSnapshot(current.getSnapshot()); // Latest one, older ones are skipped
+            }
+        }
+    };
+
+    // METRICS
+    private final Metrics metrics = new Metrics(STAGES, COUNTERS); // Disabled until a long click on activity indicator
+    private long scanStart = Metrics.NOT_STARTED; // Start of pending scan request
+    private volatile File metricsFile;
+    private final Runnable metricsTask = new Runnable() {
+        @Override
+        public void run() {
+            dumpMetrics();
+            scanHandler.postDelayed(this, METRICS_PERIOD);
+        }
+    };
+
+    // FINGERPRINT, used on scan thread only
+    private FingerprintIndex fingerprintIndex; // Null without radio map
+
+    // FILE
+    private RollingHistoryOutput historyOutput;
+    private HistoryWriter historyWriter;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        this.wifi = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+        PowerManager power = (PowerManager) getSystemService(POWER_SERVICE);
+        this.wakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "WifiTagFinder:scan"); // Scans go on with screen off
+        this.wakeLock.acquire();
+        this.scanThread = new HandlerThread("ScanEngine", Process.THREAD_PRIORITY_BACKGROUND);
+        this.scanThread.start();
+        this.scanHandler = new Handler(this.scanThread.getLooper());
+        this.scanHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                initEngine();
+            }
+        });
+        startForeground(NOTIFICATION_ID, buildNotification());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return this.binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        this.mainHandler.removeCallbacks(this.deliverTask);
+        this.listener = null;
+        this.scanHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeEngine();
+            }
+        });
+        this.scanThread.quitSafely(); // Closing is the last task
+        stopForeground(true);
+        if (this.wakeLock.isHeld()) {
+            this.wakeLock.release();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Set or remove the snapshot listener, call on main thread
+     * The last snapshot, if any, is delivered at once.
+     * @param listener listener, null to remove it
+     */
+    public void setListener(SnapshotListener listener) {
+        this.listener = listener;
+        ScanEngine current = this.engine;
+        if (listener != null && current != null && current.getSnapshot() != null) {
+            listener.onSnapshot(current.getSnapshot());
+        }
+    }
+
+    /**
+     * Select followed access point, a snapshot with its history follows
+     * @param mac packed BSSID
+     */
+    public void select(final long mac) {
+        this.scanHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (engine != null) {
+                    engine.select(mac, System.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Start or stop metrics recording, call on main thread
+     * While enabled, a snapshot is appended to a text file next to the history every METRICS_PERIOD.
+     * @return metrics file
+     */
+    public File toggleMetrics() {
+        if (this.metrics.isEnabled()) {
+            this.metrics.setEnabled(false);
+            this.scanHandler.removeCallbacks(this.metricsTask);
+            this.scanHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dumpMetrics(); // Last values
+                }
+            });
+        } else {
+            this.metrics.reset();
+            String fileName = new SimpleDateFormat("'metrics_'yyMMdd_HHmmss'.txt'").format(new Date(System.currentTimeMillis()));
+            this.metricsFile = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), fileName);
+            this.scanHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scanStart = Metrics.NOT_STARTED;
+                }
+            });
+            this.metrics.setEnabled(true);
+            this.scanHandler.postDelayed(this.metricsTask, METRICS_PERIOD);
+        }
+        return this.metricsFile;
+    }
+
+    /**
+     * Create history, engine and receiver, on scan thread
+     */
+    private void initEngine() {
+        initFile();
+        ScanEngine created = new ScanEngine(new ScanPipeline(), this.scanScheduler, this.historyWriter, TIME_DISPLAYED, NB_DISPLAYED_POINTS);
+        created.setListener(new ScanEngine.Listener() {
+            @Override
+            public void onSnapshot(ScanSnapshot snapshot) {
+                if (deliveryPending.compareAndSet(false, true)) {
+                    mainHandler.post(deliverTask);
+                }
+            }
+        });
+        initRadioMap(created);
+        initDetector(created);
+        this.engine = created;
+        this.wifiReceiver = new WifiReceiver();
+        registerReceiver(this.wifiReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION), null, this.scanHandler);
+        scheduleScan();
+    }
+
+    /**
+     * Locate the device if a radio map was built from survey captures (see FingerprintMain)
+     * @param engine engine locating each scan
+     */
+    private void initRadioMap(ScanEngine engine) {
+        File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), getString(R.string.RADIO_MAP_NAME));
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            RadioMap map = RadioMap.read(file);
+            this.fingerprintIndex = new FingerprintIndex(map);
+            engine.setLocator(new FingerprintLocator(this.fingerprintIndex, FingerprintLocator.DEFAULT_K));
+            Log.i("FINGERPRINT", format("Radio map: %d reference points, %d access points", map.size(), map.getDimensions()));
+        } catch (IOException e) {
+            Log.e("FINGERPRINT", "Error when reading radio map", e);
+        }
+    }
+
+    /**
+     * Check scans for evil twins, level jumps and channel hops, alerts are logged and notified
+     * @param engine engine checking each scan
+     */
+    private void initDetector(ScanEngine engine) {
+        AnomalyDetector detector = new AnomalyDetector();
+        detector.setListener(new AnomalyDetector.Listener() {
+            @Override
+            public void onAlert(final Alert alert) {
+                Log.w("ANOMALY", alert.toString());
+                mainHandler.post(new Runnable() { // Notification manager calls stay out of the scan loop
+                    @Override
+                    public void run() {
+                        notifyAlert(alert);
+                    }
+                });
+            }
+        });
+        engine.setDetector(detector);
+    }
+
+    /**
+     * Stop scanning and close history, on scan thread
+     */
+    private void closeEngine() {
+        this.scanHandler.removeCallbacks(this.scanTask);
+        this.scanHandler.removeCallbacks(this.metricsTask);
+        if (this.wifiReceiver != null) {
+            unregisterReceiver(this.wifiReceiver);
+            this.wifiReceiver = null;
+        }
+        Log.i("SCAN", this.scanScheduler.getStats().toString());
+        if (this.fingerprintIndex != null) {
+            this.fingerprintIndex.close();
+            this.fingerprintIndex = null;
+        }
+        if (this.metrics.isEnabled()) {
+            dumpMetrics();
+            this.metrics.setEnabled(false);
+        }
+        if (this.historyWriter != null) {
+            try {
+                Log.i("FILE", "Closing file stream");
+                this.historyWriter.close(); // Write pending rows before closing
+                Log.i("FILE", format("%d rows written, %d dropped, %d segments, %d deleted, compression %.2f", this.historyWriter.getWrittenRows(), this.historyWriter.getDroppedRows(),
+                        this.historyOutput.getSegments(), this.historyOutput.getDeletedSegments(), this.historyOutput.getCompressionRatio()));
+            } catch (IOException e) {
+                Log.e("APP_FileSave", "Error when trying to write in a file", e);
+            }
+            this.historyWriter = null;
+        }
+    }
+
+    /**
+     * Create and prepare files used to save received data
+     * History is split in HISTO_*.csv segments, gzipped once closed and listed in a manifest.
+     * Scans are still processed and displayed if files can't be created.
+     */
+    private void initFile() {
+        File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        File manifest = new File(path, getString(R.string.MANIFEST_NAME));
+        try {
+            this.historyOutput = new RollingHistoryOutput(manifest, getString(R.string.FILE_NAME_PATTERN), RollingHistoryOutput.DEFAULT_SEGMENT_BYTES, RollingHistoryOutput.DEFAULT_SEGMENT_DURATION, RollingHistoryOutput.DEFAULT_DISK_BUDGET);
+            byte separator = (byte) getString(R.string.separator).charAt(0);
+            CsvRowEncoder encoder = new CsvRowEncoder(separator, TimeZone.getDefault(), HistoryWriter.DEFAULT_FLUSH_BYTES);
+            this.historyWriter = new HistoryWriter(this.historyOutput, encoder, HistoryWriter.DEFAULT_CAPACITY, HistoryWriter.DEFAULT_FLUSH_BYTES, HistoryWriter.DEFAULT_FLUSH_INTERVAL);
+            this.historyWriter.setMetrics(this.metrics, STAGE_WRITE);
+        } catch (IOException e) {
+            Log.e("APP_File", "Error when trying to create history", e);
+        }
+    }
+
+    /**
+     * Wait for next scan, as decided by scan scheduler
+     */
+    private void scheduleScan() {
+        this.scanHandler.removeCallbacks(this.scanTask);
+        this.scanHandler.postDelayed(this.scanTask, this.scanScheduler.nextDelay());
+    }
+
+    /**
+     * Append a snapshot of metrics to metrics file and log, on scan thread
+     */
+    private void dumpMetrics() {
+        MetricsSnapshot snapshot = this.metrics.snapshot(System.currentTimeMillis());
+        Log.i("METRICS", snapshot.toString());
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(this.metricsFile, true);
+            writer.write(snapshot.toString());
+        } catch (IOException e) {
+            Log.e("METRICS", "Error when trying to write metrics", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e("METRICS", "Error when closing metrics file", e);
+                }
+            }
+        }
+    }
+
+    private void notifyAlert(Alert alert) {
+        NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(new NotificationChannel(ALERT_CHANNEL_ID, getString(R.string.ALERT_CHANNEL), NotificationManager.IMPORTANCE_DEFAULT));
+        }
+        PendingIntent open = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        manager.notify(ALERT_NOTIFICATION_ID, new NotificationCompat.Builder(this, ALERT_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_warning)
+                .setContentTitle(Alert.typeName(alert.getType()) + ": " + alert.getSsid())
+                .setContentText(alert.getBssid() + ", " + alert.getDetail())
+                .setWhen(alert.getTimeMillis())
+                .setContentIntent(open)
+                .setAutoCancel(true)
+                .build());
+    }
+
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, getString(R.string.NOTIFICATION_CHANNEL), NotificationManager.IMPORTANCE_LOW);
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).createNotificationChannel(channel);
+        }
+        PendingIntent open = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        PendingIntent stop = PendingIntent.getService(this, 0, new Intent(this, ScanService.class).setAction(ACTION_STOP), 0);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.NOTIFICATION_TEXT))
+                .setContentIntent(open)
+                .addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(R.string.NOTIFICATION_STOP), stop)
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Scan results receiver, registered on scan thread
+     */
+    protected class WifiReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            long start = metrics.start();
+            metrics.stop(STAGE_SCAN, scanStart); // Results of another application are not counted
+            scanStart = Metrics.NOT_STARTED;
+            List<ScanResult> results = wifi.getScanResults();
+
+            scanBatch.clear(System.currentTimeMillis());
+            for (ScanResult sc : results) {
+                scanBatch.add(sc.SSID, sc.BSSID, sc.capabilities, sc.level, sc.frequency, sc.channelWidth);
+            }
+            engine.onResults(scanBatch); // Processing, history and snapshot for main thread
+            scheduleScan();
+
+            metrics.stop(STAGE_RECEIVER, start);
+            metrics.increment(COUNTER_SCANS);
+            metrics.add(COUNTER_ACCESS_POINTS, results.size());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics.CaptureAnalytics;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Per access point and per channel statistics of 8 captures of 200 access points, from 1 to 8
+ * aggregating threads. Captures stay in the page cache, so this measures parsing and aggregation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalyticsBenchmark {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final int CAPTURES = 8;
+    private static final int SCANS = 5_000;
+    private static final int AP_COUNT = 200;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private File directory;
+    private List<File> captures;
+    private CaptureAnalytics analytics;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("analytics").toFile();
+        this.captures = new ArrayList<>();
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 64 * 1_024);
+        for (int c = 0; c < CAPTURES; c++) {
+            File capture = new File(this.directory, "HISTO_" + c + ".csv");
+            OutputStream out = new FileOutputStream(capture);
+            for (ScanBatch batch : ScanGenerator.generate(SCANS, AP_COUNT, 50, c)) {
+                encoder.encode(batch);
+                if (encoder.size() > 32 * 1_024) {
+                    encoder.writeTo(out);
+                }
+            }
+            encoder.writeTo(out);
+            out.close();
+            this.captures.add(capture);
+        }
+        this.analytics = new CaptureAnalytics(this.threads, 4 * 1_024 * 1_024, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File capture : this.captures) {
+            capture.delete();
+        }
+        this.directory.delete();
+    }
+
+    @Benchmark
+    public long aggregate() throws IOException {
+        return this.analytics.run(this.captures).getRows();
+    }
+}
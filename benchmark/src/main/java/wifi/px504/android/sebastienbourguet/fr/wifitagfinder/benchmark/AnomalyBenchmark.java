@@ -0,0 +1,74 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.AnomalyDetector;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Anomaly detection of one scan while walking through a dense deployment:
+ * 20 access points lost and 20 found on each scan, so the detector keeps evicting.
+ * The scan is filled within the measure, its time must go on for the alert cooldowns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnomalyBenchmark {
+    private static final int SCANS = 64;
+
+    @Param({"100", "2000"})
+    public int apCount;
+
+    private ScanBatch batch;
+    private String[] ssids;
+    private String[] bssids;
+    private int[] levels;
+    private int scan;
+    private AnomalyDetector detector;
+
+    @Setup
+    public void setUp() {
+        int population = this.apCount + SCANS * 20;
+        this.ssids = new String[population];
+        this.bssids = new String[population];
+        for (int ap = 0; ap < population; ap++) {
+            this.ssids[ap] = "Net-" + ap / 8;
+            this.bssids[ap] = ScanGenerator.bssid(ap);
+        }
+        this.levels = new int[this.apCount];
+        Random random = new Random(11);
+        for (int i = 0; i < this.levels.length; i++) {
+            this.levels[i] = -60 - random.nextInt(10);
+        }
+        this.batch = new ScanBatch(this.apCount);
+        this.detector = new AnomalyDetector();
+    }
+
+    @Benchmark
+    public int process() {
+        int s = this.scan++;
+        int first = s % SCANS * 20; // Walk back to the start once the population is crossed
+        this.batch.clear(1_511_568_000_000L + s * 1_000L);
+        for (int i = 0; i < this.apCount; i++) {
+            int ap = first + i;
+            this.batch.add(this.ssids[ap], this.bssids[ap], "[WPA2-PSK-CCMP][ESS]", this.levels[i], 2412 + 5 * (ap % 11), 0);
+        }
+        return this.detector.process(this.batch);
+    }
+}
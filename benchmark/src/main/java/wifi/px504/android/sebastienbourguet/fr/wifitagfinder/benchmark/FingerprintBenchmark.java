@@ -0,0 +1,134 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.FingerprintIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.RadioMap;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.RadioMapBuilder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * k-NN search of a live fingerprint in a radio map of a 400 x 250 m building with 300 access
+ * points, through the inverted lists index or by a brute force pass over dense fingerprints.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class FingerprintBenchmark {
+    private static final float WIDTH = 400;
+    private static final float HEIGHT = 250;
+    private static final int AP_COUNT = 300;
+    private static final int QUERIES = 256;
+    private static final int K = 4;
+
+    @Param({"10000", "100000"})
+    public int points;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private RadioMap map;
+    private FingerprintIndex index;
+    private float[][] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        float[] apX = new float[AP_COUNT];
+        float[] apY = new float[AP_COUNT];
+        String[] bssids = new String[AP_COUNT];
+        for (int ap = 0; ap < AP_COUNT; ap++) {
+            apX[ap] = random.nextFloat() * WIDTH;
+            apY[ap] = random.nextFloat() * HEIGHT;
+            bssids[ap] = ScanGenerator.bssid(ap);
+        }
+        RadioMapBuilder builder = new RadioMapBuilder();
+        ScanBatch batch = new ScanBatch(AP_COUNT);
+        while (builder.size() < this.points) {
+            float x = random.nextFloat() * WIDTH;
+            float y = random.nextFloat() * HEIGHT;
+            builder.add("room-" + (int) (x / 10) + "-" + (int) (y / 10), x, y, scan(batch, apX, apY, bssids, x, y, random));
+        }
+        this.map = builder.build();
+        this.index = new FingerprintIndex(this.map, this.threads);
+        this.queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            scan(batch, apX, apY, bssids, random.nextFloat() * WIDTH, random.nextFloat() * HEIGHT, random);
+            this.queries[q] = new float[this.map.getDimensions()];
+            Arrays.fill(this.queries[q], RadioMap.NO_SIGNAL);
+            for (int i = 0; i < batch.size(); i++) {
+                int dimension = this.map.getVocabulary().indexOf(MacAddress.pack(batch.getBssid(i)));
+                if (dimension >= 0) {
+                    this.queries[q][dimension] = batch.getLevel(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Log-distance path loss with wall attenuation and 4 dB shadowing, heard above -90 dBm
+     */
+    private static ScanBatch scan(ScanBatch batch, float[] apX, float[] apY, String[] bssids, float x, float y, Random random) {
+        batch.clear(0);
+        for (int ap = 0; ap < bssids.length; ap++) {
+            double distance = Math.max(1, Math.hypot(x - apX[ap], y - apY[ap]));
+            int level = (int) Math.round(-30 - 35 * Math.log10(distance) - 0.3 * distance + 4 * random.nextGaussian());
+            if (level > -90) {
+                batch.add("AP-" + ap, bssids[ap], "[ESS]", level, 2437, 0);
+            }
+        }
+        return batch;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.index.close();
+    }
+
+    @Benchmark
+    public int indexedSearch() {
+        float[] query = this.queries[this.next++ & (QUERIES - 1)];
+        return this.index.search(query, K).getPoint(0);
+    }
+
+    @Benchmark
+    public int bruteForce() {
+        float[] query = this.queries[this.next++ & (QUERIES - 1)];
+        int dimensions = this.map.getDimensions();
+        int nearest = -1;
+        double best = Double.MAX_VALUE;
+        for (int p = 0; p < this.map.size(); p++) {
+            double sum = 0;
+            for (int d = 0; d < dimensions && sum < best; d++) {
+                double delta = this.map.getLevel(p, d) - query[d];
+                sum += delta * delta;
+            }
+            if (sum < best) {
+                best = sum;
+                nearest = p;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,142 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.IndexedHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Five minutes of one access point out of a capture, read by a full scan or through the sidecar index,
+ * and the one full scan building that index. The whole capture of one access point is also queried,
+ * only pruned by the posting list of the access point.
+ *
+ * Captures go up to about a day of scans, 9 M rows. A dense capture sees the same 100 access points
+ * in every scan, so every block holds every access point. A sparse capture is recorded on a walk:
+ * 100 access points around, one of them replaced by a new one every 10 scans, so each one is only
+ * found in the blocks of about 17 minutes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryQueryBenchmark {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long T0 = 1_511_568_000_000L;
+    private static final int AP_COUNT = 100;
+    private static final int PATTERN_SCANS = 1_000; // Generated scans, repeated to fill the capture
+    private static final int WALK_SCANS = 10; // Scans between two access points replaced on a walk
+
+    @Param({"1000", "10000", "100000"})
+    public int scans;
+
+    @Param({"dense", "sparse"})
+    public String workload;
+
+    private File capture;
+    private IndexedHistoryReader reader;
+    private String bssid;
+    private long from;
+    private long to;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        boolean sparse = this.workload.equals("sparse");
+        ScanBatch[] pattern = ScanGenerator.generate(PATTERN_SCANS, AP_COUNT, 50, 42);
+        String[] bssids = new String[AP_COUNT + (sparse ? this.scans / WALK_SCANS : 0)];
+        for (int ap = 0; ap < bssids.length; ap++) {
+            bssids[ap] = ScanGenerator.bssid(ap);
+        }
+        this.capture = File.createTempFile("HISTO_", ".csv");
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 64 * 1_024);
+        OutputStream out = new FileOutputStream(this.capture);
+        for (int s = 0; s < this.scans; s++) {
+            ScanBatch batch = pattern[s % PATTERN_SCANS];
+            int walked = sparse ? s / WALK_SCANS : 0;
+            for (int i = 0; i < batch.size(); i++) {
+                int ap = (int) batch.getMac(i) + walked; // Generated BSSIDs end with the access point number
+                encoder.encode(batch.getSsid(i), bssids[ap], T0 + s * 1_000L, batch.getLevel(i), batch.getFrequency(i), batch.getChannelWidth(i), batch.getCapabilities(i));
+            }
+            if (encoder.size() > 32 * 1_024) {
+                encoder.writeTo(out);
+            }
+        }
+        encoder.writeTo(out);
+        out.close();
+        this.reader = new IndexedHistoryReader(this.capture, HistoryIndex.build(this.capture, CsvRowEncoder.DEFAULT_SEPARATOR, UTC), CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        this.bssid = bssids[AP_COUNT / 2 + (sparse ? this.scans / 2 / WALK_SCANS : 0)]; // Around in the middle of the capture
+        this.from = T0 + this.scans * 500L; // Middle of the capture, scans are one second apart
+        this.to = this.from + 5 * 60_000;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.reader.close();
+        this.capture.delete();
+        HistoryIndex.sidecar(this.capture).delete();
+    }
+
+    @Benchmark
+    public int buildIndex() throws IOException {
+        return HistoryIndex.build(this.capture, CsvRowEncoder.DEFAULT_SEPARATOR, UTC).getBlockCount();
+    }
+
+    @Benchmark
+    public int fullScan() throws IOException {
+        CsvHistoryReader in = new CsvHistoryReader(new BufferedInputStream(new FileInputStream(this.capture), 64 * 1_024), CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        HistoryRecord record = new HistoryRecord();
+        int rows = 0;
+        while (in.next(record)) {
+            if (record.timeMillis >= this.from && record.timeMillis < this.to && this.bssid.equals(record.bssid)) {
+                rows++;
+            }
+        }
+        in.close();
+        return rows;
+    }
+
+    @Benchmark
+    public int indexedQuery() throws IOException {
+        return count(this.reader.query(this.bssid, this.from, this.to));
+    }
+
+    @Benchmark
+    public int indexedQueryWholeCapture() throws IOException {
+        return count(this.reader.query(this.bssid, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    private static int count(IndexedHistoryReader.Query query) throws IOException {
+        HistoryRecord record = new HistoryRecord();
+        int rows = 0;
+        while (query.next(record)) {
+            rows++;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,114 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryWriter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+import static java.lang.String.format;
+
+/**
+ * Cost of recording one whole scan in the history file, one operation is one scan.
+ *
+ * The legacy benchmark is the first version of MainActivity: String.format and an unbuffered
+ * write per row. The history writer queues the scan, a background thread encodes and writes
+ * batches; a full queue is waited for, so the measure is the sustained rate.
+ * Files are recreated on each iteration to keep them small.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryWriteBenchmark {
+    private static final int SCANS = 16;
+
+    @Param({"1", "10", "100", "1000"})
+    public int apCount;
+
+    private ScanBatch[] scans;
+    private int next;
+    private SimpleDateFormat legacyFormat;
+    private Charset utf8;
+    private File legacyFile;
+    private OutputStream legacyOut;
+    private File file;
+    private HistoryWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.scans = ScanGenerator.generate(SCANS, this.apCount, 50, 42);
+        this.legacyFormat = new SimpleDateFormat("yyMMddHHmmss");
+        this.utf8 = Charset.forName("UTF-8");
+    }
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        this.legacyFile = File.createTempFile("HISTO_legacy", ".csv");
+        this.legacyOut = new FileOutputStream(this.legacyFile);
+        this.file = File.createTempFile("HISTO_", ".csv");
+        this.writer = new HistoryWriter(new FileOutputStream(this.file), new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, TimeZone.getDefault(), 64 * 1_024),
+                64 * 1_024, HistoryWriter.DEFAULT_FLUSH_BYTES, HistoryWriter.DEFAULT_FLUSH_INTERVAL);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        this.legacyOut.close();
+        this.writer.close();
+        this.legacyFile.delete();
+        this.file.delete();
+    }
+
+    private ScanBatch nextScan() {
+        ScanBatch batch = this.scans[this.next];
+        this.next = (this.next + 1) % SCANS;
+        return batch;
+    }
+
+    @Benchmark
+    public int legacyPerRowWrite() throws IOException {
+        ScanBatch batch = nextScan();
+        for (int i = 0; i < batch.size(); i++) {
+            int frequency = batch.getFrequency(i);
+            String line = format("%s(%s)%s%s%s%d%s%d%s%d\n\r", batch.getSsid(i), batch.getBssid(i), ";",
+                    this.legacyFormat.format(new Date(batch.getTimeMillis())), ";", batch.getLevel(i), ";",
+                    WifiChannels.frequencyToChannel(frequency), ";", frequency);
+            this.legacyOut.write(line.getBytes(this.utf8));
+        }
+        return batch.size();
+    }
+
+    @Benchmark
+    public int historyWriter() {
+        ScanBatch batch = nextScan();
+        while (!this.writer.append(batch)) {
+            Thread.yield();
+        }
+        return batch.size();
+    }
+}
@@ -0,0 +1,76 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.EmaFilter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.KalmanFilter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.LevelFilter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.MedianFilter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.PathLossModel;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.ProximityEstimator;
+
+/**
+ * Filtered level and distance of one sample, samples spread on 300 access points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LevelFilterBenchmark {
+    private static final int IDS = 300;
+
+    @Param({"ema", "kalman", "median5", "median15"})
+    public String filter;
+
+    private ProximityEstimator estimator;
+    private int[] levels;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        LevelFilter levelFilter;
+        switch (this.filter) {
+            case "ema":
+                levelFilter = new EmaFilter(IDS, 0.3f);
+                break;
+            case "kalman":
+                levelFilter = new KalmanFilter(IDS, 0.5f, 16);
+                break;
+            case "median5":
+                levelFilter = new MedianFilter(IDS, 5);
+                break;
+            case "median15":
+                levelFilter = new MedianFilter(IDS, 15);
+                break;
+            default:
+                throw new IllegalArgumentException(this.filter);
+        }
+        this.estimator = new ProximityEstimator(levelFilter, new PathLossModel());
+        this.levels = new int[4_096];
+        Random random = new Random(2);
+        for (int i = 0; i < this.levels.length; i++) {
+            this.levels[i] = -30 - random.nextInt(60);
+        }
+    }
+
+    @Benchmark
+    public float update() {
+        int i = this.next++;
+        return this.estimator.update(i % IDS, this.levels[i & 4_095], 2437);
+    }
+}
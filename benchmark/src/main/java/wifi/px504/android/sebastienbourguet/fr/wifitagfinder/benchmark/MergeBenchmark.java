@@ -0,0 +1,95 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.merge.CaptureMerger;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.merge.DeviceCapture;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Merge of the captures of 1 or 8 devices, one hour of 60 access points each, from 1 to 8 parsing threads.
+ * A single capture is parsed by chunks on every thread as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final int SCANS = 3_600;
+    private static final int AP_COUNT = 60;
+
+    @Param({"1", "8"})
+    public int devices;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private File directory;
+    private List<DeviceCapture> captures;
+    private File merged;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("merge").toFile();
+        this.captures = new ArrayList<>();
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 64 * 1_024);
+        for (int d = 0; d < this.devices; d++) {
+            File capture = new File(this.directory, "HISTO_device" + d + ".csv");
+            OutputStream out = new FileOutputStream(capture);
+            for (ScanBatch batch : ScanGenerator.generate(SCANS, AP_COUNT, 50, d)) {
+                encoder.encode(batch);
+                if (encoder.size() > 32 * 1_024) {
+                    encoder.writeTo(out);
+                }
+            }
+            encoder.writeTo(out);
+            out.close();
+            this.captures.add(new DeviceCapture("device" + d, Collections.singletonList(capture), 0, UTC));
+        }
+        this.merged = new File(this.directory, "merged.csv");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (DeviceCapture capture : this.captures) {
+            for (File file : capture.getFiles()) {
+                file.delete();
+            }
+        }
+        this.merged.delete();
+        this.directory.delete();
+    }
+
+    @Benchmark
+    public long merge() throws IOException {
+        CaptureMerger merger = new CaptureMerger(this.captures, this.directory, CaptureMerger.DEFAULT_MEMORY_RECORDS, this.threads, CsvRowEncoder.DEFAULT_SEPARATOR);
+        return merger.merge(this.merged, UTC);
+    }
+}
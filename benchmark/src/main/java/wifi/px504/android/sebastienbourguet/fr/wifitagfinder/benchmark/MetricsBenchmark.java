@@ -0,0 +1,44 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics.Metrics;
+
+/**
+ * Cost of a start / stop pair around a stage, metrics enabled or not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    @Param({"false", "true"})
+    public boolean enabled;
+
+    private Metrics metrics;
+
+    @Setup
+    public void setUp() {
+        this.metrics = new Metrics(new String[]{"stage"}, new String[0]);
+        this.metrics.setEnabled(this.enabled);
+    }
+
+    @Benchmark
+    public void startStop() {
+        this.metrics.stop(0, this.metrics.start());
+    }
+}
@@ -0,0 +1,67 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanPipeline;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.CsvScanSource;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.ReplayEngine;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+
+/**
+ * Replay of an in-memory capture of 2000 scans of 150 access points through the pipeline,
+ * as fast as possible: CSV parsing, grouping in scans and processing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private byte[] capture;
+
+    @Setup
+    public void setUp() {
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 1_024 * 1_024);
+        for (ScanBatch batch : ScanGenerator.generate(2_000, 150, 50, 42)) {
+            encoder.encode(batch);
+        }
+        this.capture = encoder.toByteArray();
+    }
+
+    @Benchmark
+    public long replay() throws IOException, InterruptedException {
+        final ScanPipeline pipeline = new ScanPipeline();
+        pipeline.select(MacAddress.pack(ScanGenerator.bssid(3)));
+        CsvScanSource source = new CsvScanSource(Collections.<InputStream>singletonList(new ByteArrayInputStream(this.capture)), CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        ReplayEngine engine = new ReplayEngine(source, ReplayEngine.AS_FAST_AS_POSSIBLE, Clock.SYSTEM);
+        engine.run(new ReplayEngine.Listener() {
+            @Override
+            public void onScan(ScanBatch batch) {
+                pipeline.process(batch);
+            }
+        });
+        return engine.getRecords();
+    }
+}
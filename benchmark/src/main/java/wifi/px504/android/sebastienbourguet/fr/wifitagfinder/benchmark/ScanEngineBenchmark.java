@@ -0,0 +1,92 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanEngine;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanPipeline;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanSnapshot;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.FixedRateScanScheduler;
+
+/**
+ * Both sides of the scan service: processing of a scan up to its published snapshot on the
+ * scan thread, and the frame update reading a snapshot on the UI thread, within the frame budget.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanEngineBenchmark {
+    private static final int SCANS = 16;
+
+    @Param({"100", "500"})
+    public int apCount;
+
+    private ScanBatch[] scans;
+    private int next;
+    private ScanEngine engine;
+    private long[] itemMacs;
+    private double[] points;
+
+    @Setup
+    public void setUp() {
+        this.scans = ScanGenerator.generate(SCANS, this.apCount, 50, 42);
+        this.engine = new ScanEngine(new ScanPipeline(), new FixedRateScanScheduler(Clock.SYSTEM, 1_000), null, new long[]{30_000, 5 * 60_000}, 120);
+        this.engine.onResults(this.scans[0]);
+        this.engine.select(MacAddress.pack(ScanGenerator.bssid(7)), this.scans[0].getTimeMillis());
+        this.itemMacs = new long[1_024];
+        this.points = new double[WifiChannels.CHANNELS_2GHZ.length + WifiChannels.CHANNELS_5GHZ.length];
+    }
+
+    @Benchmark
+    public int onResults() {
+        ScanBatch batch = this.scans[this.next];
+        this.next = (this.next + 1) % SCANS;
+        this.engine.onResults(batch);
+        return this.engine.getSnapshot().size();
+    }
+
+    /**
+     * What MainActivity does on a frame: spinner items, channel graph points and level graph
+     */
+    @Benchmark
+    public long renderSnapshot() {
+        ScanSnapshot snapshot = this.engine.getSnapshot();
+        long checksum = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            int slot = snapshot.getSlot(i);
+            if (this.itemMacs[slot] != snapshot.getMac(i)) {
+                this.itemMacs[slot] = snapshot.getMac(i);
+                checksum += snapshot.getSsid(i).length();
+            }
+        }
+        int p = 0;
+        for (int channel : WifiChannels.CHANNELS_2GHZ) {
+            this.points[p++] = Math.max(-100, snapshot.getOverlapLevel(channel));
+        }
+        for (int channel : WifiChannels.CHANNELS_5GHZ) {
+            this.points[p++] = Math.max(-100, snapshot.getOverlapLevel(channel));
+        }
+        for (int i = 0; i < snapshot.getHistorySize(0); i++) {
+            checksum += (long) snapshot.getHistoryMean(0, i);
+        }
+        return checksum + (long) this.points[0];
+    }
+}
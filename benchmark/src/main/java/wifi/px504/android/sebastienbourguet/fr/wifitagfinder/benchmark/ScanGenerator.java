@@ -0,0 +1,81 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import java.util.Random;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+/**
+ * Synthetic scans of a fixed population of access points
+ *
+ * Each scan sees about 90 % of the population, in a random order, and every level moves
+ * by a few dB from one scan to the next, as on a dense floor.
+ */
+public final class ScanGenerator {
+    private static final String[] CAPABILITIES = {"[ESS]", "[WPA2-PSK-CCMP][ESS]", "[WPA-PSK-TKIP+CCMP][WPA2-PSK-TKIP+CCMP][ESS]", "[WPA2-EAP-CCMP][ESS]"};
+
+    private ScanGenerator() {
+    }
+
+    /**
+     * @param scans number of scans
+     * @param apCount number of access points around
+     * @param band5GHzPercent part of access points on 5 GHz (0 to 100)
+     * @param seed random seed
+     * @return generated scans, one second apart
+     */
+    public static ScanBatch[] generate(int scans, int apCount, int band5GHzPercent, long seed) {
+        Random random = new Random(seed);
+        String[] ssids = new String[apCount];
+        String[] bssids = new String[apCount];
+        String[] capabilities = new String[apCount];
+        int[] frequencies = new int[apCount];
+        int[] widths = new int[apCount];
+        int[] levels = new int[apCount];
+        for (int ap = 0; ap < apCount; ap++) {
+            ssids[ap] = "AP-" + random.nextInt(apCount);
+            bssids[ap] = bssid(ap);
+            capabilities[ap] = CAPABILITIES[random.nextInt(CAPABILITIES.length)];
+            if (random.nextInt(100) < band5GHzPercent) {
+                int channel = WifiChannels.CHANNELS_5GHZ[random.nextInt(WifiChannels.CHANNELS_5GHZ.length)];
+                frequencies[ap] = WifiChannels.channelToFrequency(channel);
+                widths[ap] = random.nextInt(4);
+            } else {
+                int channel = WifiChannels.CHANNELS_2GHZ[random.nextInt(WifiChannels.CHANNELS_2GHZ.length)];
+                frequencies[ap] = WifiChannels.channelToFrequency(channel);
+                widths[ap] = random.nextInt(2);
+            }
+            levels[ap] = -30 - random.nextInt(65);
+        }
+        int[] order = new int[apCount];
+        for (int ap = 0; ap < apCount; ap++) {
+            order[ap] = ap;
+        }
+        ScanBatch[] batches = new ScanBatch[scans];
+        for (int s = 0; s < scans; s++) {
+            for (int i = apCount - 1; i > 0; i--) { // Shuffle
+                int j = random.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+            batches[s] = new ScanBatch(apCount);
+            batches[s].clear(1_511_568_000_000L + s * 1_000L);
+            for (int ap : order) {
+                levels[ap] = Math.max(-95, Math.min(-30, levels[ap] + random.nextInt(7) - 3));
+                if (random.nextInt(10) != 0) {
+                    batches[s].add(ssids[ap], bssids[ap], capabilities[ap], levels[ap], frequencies[ap], widths[ap]);
+                }
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * @param ap access point number
+     * @return BSSID of access point
+     */
+    public static String bssid(int ap) {
+        return String.format("02:00:%02x:%02x:%02x:%02x", ap >> 24 & 0xFF, ap >> 16 & 0xFF, ap >> 8 & 0xFF, ap & 0xFF);
+    }
+}
@@ -0,0 +1,254 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel.ChannelOccupancy;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanPipeline;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.AccessPointLabels;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+import static java.lang.String.format;
+
+/**
+ * Per-scan cost of what <code>WifiReceiver.onReceive</code> does, one operation is one whole scan.
+ *
+ * The <code>legacy*</code> benchmarks are copies of the first version of MainActivity
+ * (boxed channel tables, linear findAP, String.format CSV rows, spinner rebuild), kept as baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanProcessingBenchmark {
+    private static final int SCANS = 16;
+    private static final Integer[] LEGACY_CHANNELS_2GHZ = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final Integer[] LEGACY_CHANNELS_5GHZ = {36, 40, 44, 48, 52, 56, 60, 64, 100, 104, 108, 112, 116, 120, 124, 128, 132, 136, 140};
+    private static final int[] CHANNEL_POSITIONS = new int[200]; // Position in channel graph, by channel
+
+    static {
+        Arrays.fill(CHANNEL_POSITIONS, -1);
+        for (int i = 0; i < WifiChannels.CHANNELS_2GHZ.length; i++) {
+            CHANNEL_POSITIONS[WifiChannels.CHANNELS_2GHZ[i]] = i;
+        }
+        for (int i = 0; i < WifiChannels.CHANNELS_5GHZ.length; i++) {
+            CHANNEL_POSITIONS[WifiChannels.CHANNELS_5GHZ[i]] = i;
+        }
+    }
+
+    @Param({"10", "100", "1000"})
+    public int apCount;
+
+    @Param({"0", "50", "100"})
+    public int band5GHzPercent;
+
+    private ScanBatch[] scans;
+    private int next;
+    private String selectedBssid;
+    private long selectedMac;
+    private ScanIndex index;
+    private ChannelOccupancy occupancy;
+    private ScanPipeline pipeline;
+    private CsvRowEncoder encoder;
+    private SimpleDateFormat legacyFormat;
+    private ByteArrayOutputStream legacyOut;
+    private List<String> legacyAdapter;
+    private List<String> adapter;
+
+    @Setup
+    public void setUp() {
+        this.scans = ScanGenerator.generate(SCANS, this.apCount, this.band5GHzPercent, 42);
+        this.selectedBssid = ScanGenerator.bssid(this.apCount - 1);
+        this.selectedMac = MacAddress.pack(this.selectedBssid);
+        this.index = new ScanIndex();
+        this.index.update(this.scans[0]);
+        this.occupancy = new ChannelOccupancy();
+        this.pipeline = new ScanPipeline();
+        this.pipeline.select(this.selectedMac);
+        this.encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, TimeZone.getDefault(), 64 * 1_024);
+        this.legacyFormat = new SimpleDateFormat("yyMMddHHmmss");
+        this.legacyOut = new ByteArrayOutputStream(64 * 1_024);
+        this.legacyAdapter = new ArrayList<>();
+        this.adapter = new ArrayList<>();
+    }
+
+    private ScanBatch nextScan() {
+        ScanBatch batch = this.scans[this.next];
+        this.next = (this.next + 1) % SCANS;
+        return batch;
+    }
+
+    private static int legacyConvertFrequencyToChannel(int freq) {
+        int resp = 0;
+        if (freq >= 2412 && freq <= 2484) {
+            resp = (freq - 2412) / 5 + 1;
+        } else if (freq >= 5170 && freq <= 5825) {
+            resp = (freq - 5170) / 5 + 34;
+        }
+        return resp;
+    }
+
+    private static <T> int legacyIndexOf(T[] arr, T val) {
+        return Arrays.asList(arr).indexOf(val);
+    }
+
+    @Benchmark
+    public int legacyChannelPositions() {
+        ScanBatch batch = nextScan();
+        int sum = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int freq = batch.getFrequency(i);
+            int channel = legacyConvertFrequencyToChannel(freq);
+            sum += legacyIndexOf(freq < 4_000 ? LEGACY_CHANNELS_2GHZ : LEGACY_CHANNELS_5GHZ, channel);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int channelPositions() {
+        ScanBatch batch = nextScan();
+        int[] frequencies = batch.frequencies();
+        int sum = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            sum += CHANNEL_POSITIONS[WifiChannels.frequencyToChannel(frequencies[i])];
+        }
+        return sum;
+    }
+
+    /**
+     * Channel graph values: occupancy and overlapping power of every channel
+     */
+    @Benchmark
+    public int channelOccupancy() {
+        this.occupancy.update(nextScan());
+        return this.occupancy.size();
+    }
+
+    @Benchmark
+    public int legacyFindAP() {
+        ScanBatch batch = nextScan();
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getBssid(i).equals(this.selectedBssid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int findAP() {
+        int slot = this.index.find(this.selectedMac);
+        return slot < 0 ? -1 : this.index.getPosition(slot);
+    }
+
+    @Benchmark
+    public int scanIndexUpdate() {
+        this.index.update(nextScan());
+        return this.index.getAddedCount() + this.index.getRemovedCount();
+    }
+
+    @Benchmark
+    public int legacyCsvRows() {
+        ScanBatch batch = nextScan();
+        this.legacyOut.reset();
+        Charset utf8 = Charset.forName("UTF-8");
+        for (int i = 0; i < batch.size(); i++) {
+            int frequency = batch.getFrequency(i);
+            String line = format("%s(%s)%s%s%s%d%s%d%s%d\n\r", batch.getSsid(i), batch.getBssid(i), ";",
+                    this.legacyFormat.format(new Date(batch.getTimeMillis())), ";", batch.getLevel(i), ";",
+                    legacyConvertFrequencyToChannel(frequency), ";", frequency);
+            byte[] bytes = line.getBytes(utf8);
+            this.legacyOut.write(bytes, 0, bytes.length);
+        }
+        return this.legacyOut.size();
+    }
+
+    /**
+     * Same 6 columns as the legacy rows
+     */
+    @Benchmark
+    public int csvRows() {
+        ScanBatch batch = nextScan();
+        this.encoder.reset();
+        for (int i = 0; i < batch.size(); i++) {
+            int frequency = batch.getFrequency(i);
+            this.encoder.encode(batch.getSsid(i), batch.getBssid(i), batch.getTimeMillis(), batch.getLevel(i), WifiChannels.frequencyToChannel(frequency), frequency);
+        }
+        return this.encoder.size();
+    }
+
+    /**
+     * Full scan rows, with channel width and capabilities, as written by the history writer
+     */
+    @Benchmark
+    public int fullScanCsvRows() {
+        this.encoder.reset();
+        this.encoder.encode(nextScan());
+        return this.encoder.size();
+    }
+
+    /**
+     * Spinner labels rebuilt when the number of access points changes, BSSID parsed back on selection
+     */
+    @Benchmark
+    public void legacySpinner(Blackhole blackhole) {
+        ScanBatch batch = nextScan();
+        if (batch.size() != this.legacyAdapter.size()) {
+            this.legacyAdapter.clear();
+            for (int i = 0; i < batch.size(); i++) {
+                this.legacyAdapter.add(batch.getSsid(i) + " (" + batch.getBssid(i) + ")");
+            }
+        }
+        blackhole.consume(this.legacyAdapter.get(this.legacyAdapter.size() - 1).split("[()]")[1]);
+    }
+
+    /**
+     * Spinner labels built for added access points only
+     */
+    @Benchmark
+    public void spinner(Blackhole blackhole) {
+        this.index.update(nextScan());
+        for (int i = 0; i < this.index.getAddedCount(); i++) {
+            int slot = this.index.getAdded(i);
+            this.adapter.add(AccessPointLabels.format(this.index.getSsid(slot), this.index.getBssid(slot)));
+        }
+        if (this.adapter.size() > 4 * this.apCount) {
+            this.adapter.clear();
+        }
+        blackhole.consume(this.adapter);
+    }
+
+    /**
+     * Whole live processing: index, channel occupancy, histories and proximity
+     */
+    @Benchmark
+    public int pipeline() {
+        return this.pipeline.process(nextScan());
+    }
+}
@@ -0,0 +1,97 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking.LevelHistory;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking.TagTracker;
+
+/**
+ * Tag tracking in dense scans, and the level history behind each graph.
+ *
+ * The tracker follows 300 tags in scans of 5000 access points, one operation is one scan.
+ * The level history holds 24 hours at one sample per second, downsampled to 200 points
+ * over the last 30 s, the last hour and the whole day.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackingBenchmark {
+    private static final int SCANS = 16;
+    private static final int AP_COUNT = 5_000;
+    private static final int TAGS = 300;
+    private static final int CAPACITY = 24 * 3_600;
+    private static final int POINTS = 200;
+
+    private ScanBatch[] scans;
+    private int next;
+    private TagTracker tracker;
+    private LevelHistory appended;
+    private long time;
+    private LevelHistory day;
+    private long end;
+    private LevelHistory.Buckets buckets;
+
+    @Setup
+    public void setUp() {
+        this.scans = ScanGenerator.generate(SCANS, AP_COUNT, 50, 42);
+        this.tracker = new TagTracker(TAGS, 512);
+        for (int t = 0; t < TAGS; t++) {
+            this.tracker.track(ScanGenerator.bssid(t * 13));
+        }
+        this.appended = new LevelHistory(CAPACITY);
+        this.day = new LevelHistory(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            this.day.append(1_511_568_000_000L + i * 1_000L, -40 - i % 50);
+        }
+        this.end = this.day.getTime(CAPACITY - 1) + 1;
+        this.buckets = new LevelHistory.Buckets(POINTS);
+    }
+
+    @Benchmark
+    public int tagTrackerUpdate() {
+        ScanBatch batch = this.scans[this.next];
+        this.next = (this.next + 1) % SCANS;
+        return this.tracker.update(batch);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int levelHistoryAppend() {
+        this.time += 1_000;
+        this.appended.append(this.time, -40 - (int) (this.time % 50));
+        return this.appended.size();
+    }
+
+    @Benchmark
+    public int downsampleLast30s() {
+        this.day.downsample(this.end - 30_000, this.end, this.buckets);
+        return this.buckets.size();
+    }
+
+    @Benchmark
+    public int downsampleLastHour() {
+        this.day.downsample(this.end - 3_600_000, this.end, this.buckets);
+        return this.buckets.size();
+    }
+
+    @Benchmark
+    public int downsampleDay() {
+        this.day.downsample(this.end - 24 * 3_600_000L, this.end, this.buckets);
+        return this.buckets.size();
+    }
+}
@@ -0,0 +1,161 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+
+/**
+ * Statistics of one access point over a part of the captures, mergeable with the statistics
+ * of the following parts.
+ *
+ * Rows are expected in time order, as written by the app. Channel changes are counted between
+ * consecutive rows, and at the boundary of two merged parts.
+ */
+public class AccessPointAggregate {
+    private final long mac;
+    private final String bssid;
+    private String ssid;
+    private long rows;
+    private long firstTime;
+    private long lastTime;
+    private int firstChannel;
+    private int lastChannel;
+    private int channelChanges;
+    private final LevelHistogram levels = new LevelHistogram();
+    private final MinuteSet minutes = new MinuteSet();
+    private final long[] hours = new long[24]; // Rows by local hour of day
+
+    AccessPointAggregate(long mac, String bssid) {
+        this.mac = mac;
+        this.bssid = bssid;
+    }
+
+    /**
+     * @param record row of this access point, after previous rows
+     * @param hour local hour of day of row
+     */
+    void add(HistoryRecord record, int hour) {
+        if (this.rows == 0) {
+            this.firstTime = record.timeMillis;
+            this.firstChannel = record.channel;
+        } else if (record.channel != this.lastChannel) {
+            this.channelChanges++;
+        }
+        this.rows++;
+        this.lastTime = record.timeMillis;
+        this.lastChannel = record.channel;
+        if (record.ssid.length() > 0) {
+            this.ssid = record.ssid;
+        }
+        this.levels.add(record.level);
+        this.minutes.add(record.timeMillis);
+        this.hours[hour]++;
+    }
+
+    /**
+     * Add the statistics of the same access point over another part of the captures
+     * @param other statistics, unchanged; of a following part, or of a preceding part if it starts earlier
+     */
+    void merge(AccessPointAggregate other) {
+        if (other.rows == 0) {
+            return;
+        }
+        if (this.rows == 0) {
+            this.firstTime = other.firstTime;
+            this.firstChannel = other.firstChannel;
+            this.lastTime = other.lastTime;
+            this.lastChannel = other.lastChannel;
+            this.ssid = other.ssid;
+        } else if (other.firstTime < this.firstTime) { // Other part is before this one
+            this.channelChanges += other.lastChannel != this.firstChannel ? 1 : 0;
+            this.firstTime = other.firstTime;
+            this.firstChannel = other.firstChannel;
+        } else {
+            this.channelChanges += this.lastChannel != other.firstChannel ? 1 : 0;
+            this.lastTime = other.lastTime;
+            this.lastChannel = other.lastChannel;
+            if (other.ssid != null) {
+                this.ssid = other.ssid;
+            }
+        }
+        this.rows += other.rows;
+        this.channelChanges += other.channelChanges;
+        this.levels.merge(other.levels);
+        this.minutes.merge(other.minutes);
+        for (int h = 0; h < this.hours.length; h++) {
+            this.hours[h] += other.hours[h];
+        }
+    }
+
+    public long getMac() {
+        return this.mac;
+    }
+
+    public String getBssid() {
+        return this.bssid;
+    }
+
+    /**
+     * @return last network name, null if hidden
+     */
+    public String getSsid() {
+        return this.ssid;
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    public long getFirstTime() {
+        return this.firstTime;
+    }
+
+    public long getLastTime() {
+        return this.lastTime;
+    }
+
+    /**
+     * @return last channel heard
+     */
+    public int getChannel() {
+        return this.lastChannel;
+    }
+
+    public int getChannelChanges() {
+        return this.channelChanges;
+    }
+
+    public LevelHistogram getLevels() {
+        return this.levels;
+    }
+
+    /**
+     * @return minutes when access point was heard
+     */
+    public MinuteSet getMinutes() {
+        return this.minutes;
+    }
+
+    /**
+     * @param hour local hour of day
+     * @return number of rows of access point at this hour, any day
+     */
+    public long getRowsAt(int hour) {
+        return this.hours[hour];
+    }
+
+    /**
+     * @return local hour of day with the most rows
+     */
+    public int getBusiestHour() {
+        return busiest(this.hours);
+    }
+
+    static int busiest(long[] hours) {
+        int busiest = 0;
+        for (int h = 1; h < hours.length; h++) {
+            if (hours[h] > hours[busiest]) {
+                busiest = h;
+            }
+        }
+        return busiest;
+    }
+}
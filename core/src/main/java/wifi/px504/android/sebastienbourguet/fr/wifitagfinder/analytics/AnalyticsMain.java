@@ -0,0 +1,96 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+
+import static java.lang.String.format;
+
+/**
+ * Print per access point and per channel reports of weeks of captures
+ *
+ * Usage: <code>AnalyticsMain [-threads n] [-split MB] [-separator c] [-timezone id] [-top n]
+ * directory|capture...</code>
+ *
+ * Directories are replaced by their <code>HISTO_*.csv</code> captures, compressed or not.
+ * Access points are listed by decreasing number of rows, <code>-top</code> first only.
+ */
+public final class AnalyticsMain {
+    private static final String USAGE = "Usage: AnalyticsMain [-threads n] [-split MB] [-separator c] [-timezone id] [-top n] directory|capture...";
+
+    private AnalyticsMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long splitBytes = CaptureAnalytics.DEFAULT_SPLIT_BYTES;
+        byte separator = CsvRowEncoder.DEFAULT_SEPARATOR;
+        TimeZone timeZone = TimeZone.getDefault();
+        int top = 50;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-split") && i + 1 < args.length) {
+                splitBytes = Long.parseLong(args[++i]) * 1_024 * 1_024;
+            } else if (args[i].equals("-separator") && i + 1 < args.length) {
+                separator = (byte) args[++i].charAt(0);
+            } else if (args[i].equals("-timezone") && i + 1 < args.length) {
+                timeZone = TimeZone.getTimeZone(args[++i]);
+            } else if (args[i].equals("-top") && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if (new File(args[i]).isDirectory()) {
+                files.addAll(CaptureAnalytics.listCaptures(new File(args[i])));
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        CaptureAnalytics analytics = new CaptureAnalytics(threads, splitBytes, separator, timeZone);
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        long start = System.currentTimeMillis();
+        CaptureAggregate aggregate = analytics.run(files);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println(format("%d captures, %d splits on %d threads: %d rows (%d malformed lines), %d minutes in %d ms, %.1f MB/s",
+                files.size(), analytics.getSplits(), threads, aggregate.getRows(), aggregate.getMalformedLines(),
+                aggregate.getMinutes().size(), elapsed, bytes / 1_048.576 / elapsed));
+
+        List<AccessPointAggregate> accessPoints = new ArrayList<>(aggregate.getAccessPoints());
+        Collections.sort(accessPoints, new Comparator<AccessPointAggregate>() {
+            @Override
+            public int compare(AccessPointAggregate a, AccessPointAggregate b) {
+                return Long.compare(b.getRows(), a.getRows());
+            }
+        });
+        System.out.println();
+        System.out.println("BSSID             SSID                      rows  uptime  p10  p50  p90  channel changes  busiest hour");
+        for (AccessPointAggregate accessPoint : accessPoints.subList(0, Math.min(top, accessPoints.size()))) {
+            LevelHistogram levels = accessPoint.getLevels();
+            System.out.println(format("%s %-20.20s %9d %6.1f%% %4d %4d %4d %8d %7d  %02d:00",
+                    accessPoint.getBssid(), accessPoint.getSsid() == null ? "" : accessPoint.getSsid(), accessPoint.getRows(),
+                    100 * aggregate.getUptime(accessPoint), levels.getQuantile(0.1), levels.getQuantile(0.5), levels.getQuantile(0.9),
+                    accessPoint.getChannel(), accessPoint.getChannelChanges(), accessPoint.getBusiestHour()));
+        }
+
+        System.out.println();
+        System.out.println("channel       rows  p10  p50  p90  busiest hour");
+        for (ChannelAggregate channel : aggregate.getChannels()) {
+            LevelHistogram levels = channel.getLevels();
+            System.out.println(format("%7d %10d %4d %4d %4d  %02d:00", channel.getChannel(), channel.getRows(),
+                    levels.getQuantile(0.1), levels.getQuantile(0.5), levels.getQuantile(0.9), channel.getBusiestHour()));
+        }
+    }
+}
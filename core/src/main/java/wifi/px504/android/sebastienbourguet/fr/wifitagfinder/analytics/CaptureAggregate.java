@@ -0,0 +1,168 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel.ChannelOccupancy;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+
+/**
+ * Per access point and per channel statistics of a part of the captures.
+ *
+ * Each split of the captures is aggregated on its own, then aggregates are merged two by two
+ * in capture order. Access points are found by packed MAC address in a primitive map, rows of
+ * malformed addresses are counted and skipped.
+ */
+public class CaptureAggregate {
+    private static final long HOUR = 3_600_000L;
+
+    private final TimeZone timeZone;
+    private final LongIntHashMap indexes = new LongIntHashMap(256, -1); // Packed MAC -> index
+    private final List<AccessPointAggregate> accessPoints = new ArrayList<>();
+    private final ChannelAggregate[] channels = new ChannelAggregate[ChannelOccupancy.MAX_CHANNEL + 1];
+    private final MinuteSet minutes = new MinuteSet();
+    private long rows;
+    private long malformedLines;
+    private long offsetFrom = Long.MAX_VALUE; // Hour where cached time zone offset applies
+    private long offset;
+
+    /**
+     * @param timeZone time zone of hours of day
+     */
+    public CaptureAggregate(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * @param record row, after the previous rows of its access point
+     */
+    public void add(HistoryRecord record) {
+        long mac = MacAddress.pack(record.bssid);
+        if (mac == MacAddress.INVALID) {
+            this.malformedLines++;
+            return;
+        }
+        int hour = hourOfDay(record.timeMillis);
+        int index = this.indexes.get(mac);
+        if (index < 0) {
+            index = this.accessPoints.size();
+            this.accessPoints.add(new AccessPointAggregate(mac, record.bssid));
+            this.indexes.put(mac, index);
+        }
+        this.accessPoints.get(index).add(record, hour);
+        if (record.channel > 0 && record.channel < this.channels.length) {
+            if (this.channels[record.channel] == null) {
+                this.channels[record.channel] = new ChannelAggregate(record.channel);
+            }
+            this.channels[record.channel].add(record, hour);
+        }
+        this.minutes.add(record.timeMillis);
+        this.rows++;
+    }
+
+    /**
+     * Time zone offsets only change on hour boundaries, looked up once per hour of captures
+     */
+    private int hourOfDay(long timeMillis) {
+        long hourStart = timeMillis - ((timeMillis % HOUR) + HOUR) % HOUR;
+        if (hourStart != this.offsetFrom) {
+            this.offsetFrom = hourStart;
+            this.offset = this.timeZone.getOffset(timeMillis);
+        }
+        long local = (timeMillis + this.offset) / HOUR % 24;
+        return (int) (local < 0 ? local + 24 : local);
+    }
+
+    /**
+     * Add lines of a split which couldn't be parsed
+     * @param lines number of lines
+     */
+    public void addMalformedLines(long lines) {
+        this.malformedLines += lines;
+    }
+
+    /**
+     * Add the statistics of another part of the captures
+     * @param other aggregate of the following part, unchanged
+     */
+    public void merge(CaptureAggregate other) {
+        for (AccessPointAggregate added : other.accessPoints) {
+            int index = this.indexes.get(added.getMac());
+            if (index < 0) {
+                index = this.accessPoints.size();
+                this.accessPoints.add(new AccessPointAggregate(added.getMac(), added.getBssid()));
+                this.indexes.put(added.getMac(), index);
+            }
+            this.accessPoints.get(index).merge(added);
+        }
+        for (int c = 0; c < this.channels.length; c++) {
+            if (other.channels[c] != null) {
+                if (this.channels[c] == null) {
+                    this.channels[c] = new ChannelAggregate(c);
+                }
+                this.channels[c].merge(other.channels[c]);
+            }
+        }
+        this.minutes.merge(other.minutes);
+        this.rows += other.rows;
+        this.malformedLines += other.malformedLines;
+    }
+
+    /**
+     * @return access points in order of first appearance
+     */
+    public List<AccessPointAggregate> getAccessPoints() {
+        return this.accessPoints;
+    }
+
+    /**
+     * @param bssid MAC address
+     * @return statistics of access point, null if never heard
+     */
+    public AccessPointAggregate getAccessPoint(String bssid) {
+        int index = this.indexes.get(MacAddress.pack(bssid));
+        return index < 0 ? null : this.accessPoints.get(index);
+    }
+
+    /**
+     * @return channels heard, by increasing channel number
+     */
+    public List<ChannelAggregate> getChannels() {
+        List<ChannelAggregate> heard = new ArrayList<>();
+        for (ChannelAggregate channel : this.channels) {
+            if (channel != null) {
+                heard.add(channel);
+            }
+        }
+        return heard;
+    }
+
+    /**
+     * @return minutes covered by captures, with at least one row
+     */
+    public MinuteSet getMinutes() {
+        return this.minutes;
+    }
+
+    /**
+     * @param accessPoint access point of this aggregate
+     * @return part of captured minutes when access point was heard, between 0 and 1
+     */
+    public double getUptime(AccessPointAggregate accessPoint) {
+        return this.minutes.size() == 0 ? 0 : accessPoint.getMinutes().size() / (double) this.minutes.size();
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    /**
+     * @return number of lines skipped, unparsable or with malformed address
+     */
+    public long getMalformedLines() {
+        return this.malformedLines;
+    }
+}
@@ -0,0 +1,306 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.SegmentManifest;
+
+/**
+ * Batch statistics of a set of captures, computed in parallel.
+ *
+ * Captures are cut in splits: a compressed capture is one split, a plain capture is cut in
+ * byte ranges of about <code>splitBytes</code>, each ending after a line end. Splits are
+ * aggregated by a fork-join pool, each into its own {@link CaptureAggregate}, and aggregates
+ * are merged two by two in capture order. Nothing is shared between splits, so throughput
+ * grows with the number of threads until the disk is the limit.
+ */
+public class CaptureAnalytics {
+    public static final long DEFAULT_SPLIT_BYTES = 16 * 1_024 * 1_024;
+    private static final String CAPTURE_PREFIX = "HISTO_";
+
+    private final int threads;
+    private final long splitBytes;
+    private final byte separator;
+    private final TimeZone timeZone;
+    private int splits;
+
+    /**
+     * Part of a capture, whole file if compressed
+     */
+    static final class Split {
+        final File file;
+        final long start;
+        final long end;
+
+        Split(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * @param threads number of aggregating threads
+     * @param splitBytes size of splits of plain captures
+     * @param separator field separator of captures
+     * @param timeZone time zone of the device which recorded the captures
+     */
+    public CaptureAnalytics(int threads, long splitBytes, byte separator, TimeZone timeZone) {
+        this.threads = threads;
+        this.splitBytes = splitBytes;
+        this.separator = separator;
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * @param directory directory of captures
+     * @return <code>HISTO_*.csv</code> captures of directory, compressed or not, by name
+     */
+    public static List<File> listCaptures(File directory) {
+        List<File> captures = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(CAPTURE_PREFIX) && (name.endsWith(".csv") || name.endsWith(".csv" + SegmentManifest.GZIP_SUFFIX))) {
+                    captures.add(file);
+                }
+            }
+        }
+        return captures;
+    }
+
+    /**
+     * Aggregate captures
+     * @param files captures, in time order
+     * @return statistics of all captures
+     * @throws IOException if a capture can't be read
+     */
+    public CaptureAggregate run(List<File> files) throws IOException {
+        List<Split> splits = split(files, this.splitBytes);
+        this.splits = splits.size();
+        if (splits.isEmpty()) {
+            return new CaptureAggregate(this.timeZone);
+        }
+        ForkJoinPool pool = new ForkJoinPool(this.threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                };
+                thread.setName("CaptureAnalytics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, null, false);
+        try {
+            return pool.invoke(new SplitTask(splits, 0, splits.size()));
+        } catch (SplitFailure e) {
+            Throwable cause = e; // Fork-join may wrap exceptions thrown by other threads
+            while (!(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw (IOException) cause;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return number of splits of last run
+     */
+    public int getSplits() {
+        return this.splits;
+    }
+
+    /**
+     * Cut captures in splits
+     * @param files captures
+     * @param splitBytes size of splits of plain captures
+     * @return splits, in capture order
+     * @throws IOException if a capture can't be read
+     */
+    static List<Split> split(List<File> files, long splitBytes) throws IOException {
+        List<Split> splits = new ArrayList<>();
+        for (File file : files) {
+            long length = file.length();
+            if (file.getName().endsWith(SegmentManifest.GZIP_SUFFIX) || length <= splitBytes) {
+                splits.add(new Split(file, 0, -1));
+                continue;
+            }
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                long start = 0;
+                while (start < length) {
+                    long end = start + splitBytes >= length ? length : lineEnd(in, start + splitBytes, length);
+                    splits.add(new Split(file, start, end));
+                    start = end;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * @return position after the first line end at or after position, length if none
+     */
+    private static long lineEnd(RandomAccessFile in, long position, long length) throws IOException {
+        byte[] buffer = new byte[4_096];
+        in.seek(position);
+        while (position < length) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return length;
+    }
+
+    CaptureAggregate aggregate(Split split) throws IOException {
+        InputStream in;
+        if (split.end < 0) {
+            in = new FileInputStream(split.file);
+            if (split.file.getName().endsWith(SegmentManifest.GZIP_SUFFIX)) {
+                in = new GZIPInputStream(in, 64 * 1_024);
+            }
+        } else {
+            FileInputStream file = new FileInputStream(split.file);
+            file.getChannel().position(split.start);
+            in = new RangeInputStream(file, split.end - split.start);
+        }
+        CsvHistoryReader reader = new CsvHistoryReader(new BufferedInputStream(in, 64 * 1_024), this.separator, this.timeZone);
+        CaptureAggregate aggregate = new CaptureAggregate(this.timeZone);
+        try {
+            HistoryRecord record = new HistoryRecord();
+            while (reader.next(record)) {
+                aggregate.add(record);
+            }
+            aggregate.addMalformedLines(reader.getMalformedLines());
+        } finally {
+            reader.close();
+        }
+        return aggregate;
+    }
+
+    /**
+     * Aggregate of a range of splits: halves aggregated in parallel, then merged
+     */
+    private class SplitTask extends RecursiveTask<CaptureAggregate> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Split> splits;
+        private final int from;
+        private final int to;
+
+        SplitTask(List<Split> splits, int from, int to) {
+            this.splits = splits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CaptureAggregate compute() {
+            if (this.to - this.from == 1) {
+                try {
+                    return aggregate(this.splits.get(this.from));
+                } catch (IOException e) {
+                    throw new SplitFailure(e);
+                }
+            }
+            int middle = (this.from + this.to) >>> 1;
+            SplitTask left = new SplitTask(this.splits, this.from, middle);
+            left.fork();
+            CaptureAggregate right = new SplitTask(this.splits, middle, this.to).compute();
+            CaptureAggregate merged = left.join();
+            merged.merge(right);
+            return merged;
+        }
+    }
+
+    /**
+     * IOException of a split, carried through the fork-join pool
+     */
+    private static class SplitFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SplitFailure(IOException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * First bytes of a stream
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                this.remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, this.remaining));
+            if (read > 0) {
+                this.remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+
+/**
+ * Statistics of one channel over a part of the captures, mergeable in any order
+ */
+public class ChannelAggregate {
+    private final int channel;
+    private long rows;
+    private final LevelHistogram levels = new LevelHistogram();
+    private final long[] hours = new long[24]; // Rows by local hour of day
+
+    ChannelAggregate(int channel) {
+        this.channel = channel;
+    }
+
+    void add(HistoryRecord record, int hour) {
+        this.rows++;
+        this.levels.add(record.level);
+        this.hours[hour]++;
+    }
+
+    void merge(ChannelAggregate other) {
+        this.rows += other.rows;
+        this.levels.merge(other.levels);
+        for (int h = 0; h < this.hours.length; h++) {
+            this.hours[h] += other.hours[h];
+        }
+    }
+
+    public int getChannel() {
+        return this.channel;
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    public LevelHistogram getLevels() {
+        return this.levels;
+    }
+
+    /**
+     * @param hour local hour of day
+     * @return number of rows on channel at this hour, any day
+     */
+    public long getRowsAt(int hour) {
+        return this.hours[hour];
+    }
+
+    /**
+     * @return local hour of day with the most rows
+     */
+    public int getBusiestHour() {
+        return AccessPointAggregate.busiest(this.hours);
+    }
+}
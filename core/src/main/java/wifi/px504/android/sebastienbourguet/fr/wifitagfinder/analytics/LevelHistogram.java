@@ -0,0 +1,65 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+/**
+ * Mergeable quantile sketch of signal levels.
+ *
+ * Levels are whole dBm between {@link #MIN_LEVEL} and 0, so one counter per level holds the
+ * exact distribution in a fixed size: quantiles are exact, and merging two sketches is adding
+ * their counters, in any order. Levels out of range are clamped.
+ */
+public class LevelHistogram {
+    public static final int MIN_LEVEL = -127;
+
+    private final long[] counts = new long[-MIN_LEVEL + 1]; // By -level
+    private long count;
+    private long sum;
+
+    /**
+     * @param level level (in dBm)
+     */
+    public void add(int level) {
+        int clamped = Math.max(MIN_LEVEL, Math.min(0, level));
+        this.counts[-clamped]++;
+        this.count++;
+        this.sum += clamped;
+    }
+
+    /**
+     * Add every level of another sketch
+     * @param other sketch, unchanged
+     */
+    public void merge(LevelHistogram other) {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.sum += other.sum;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return mean level (in dBm), NaN if empty
+     */
+    public double getMean() {
+        return this.count == 0 ? Double.NaN : this.sum / (double) this.count;
+    }
+
+    /**
+     * @param quantile between 0 and 1, 0.5 for median
+     * @return level below or at which lie this part of levels (in dBm), {@link #MIN_LEVEL} if empty
+     */
+    public int getQuantile(double quantile) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * this.count));
+        long seen = 0;
+        for (int i = this.counts.length - 1; i >= 0; i--) { // From weakest level
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return -i;
+            }
+        }
+        return MIN_LEVEL;
+    }
+}
@@ -0,0 +1,81 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+
+/**
+ * Set of minutes (UTC, since epoch) where something was seen, mergeable by union.
+ *
+ * One bitmap of 1440 bits per day seen, so weeks of captures of an access point seen all
+ * the time take a few kilobytes.
+ */
+public class MinuteSet {
+    private static final long DAY = 86_400_000L;
+    private static final long MINUTE = 60_000L;
+    private static final int WORDS = 1_440 / 64 + 1;
+
+    private final LongIntHashMap pageIndexes = new LongIntHashMap(16, -1); // Day -> page
+    private long[] days = new long[16];
+    private long[][] pages = new long[16][];
+    private int pageCount;
+    private long size;
+    private long lastDay = Long.MIN_VALUE; // Cache of last page used, consecutive rows share it
+    private long[] lastPage;
+
+    /**
+     * @param timeMillis time (in ms since epoch)
+     */
+    public void add(long timeMillis) {
+        long day = timeMillis >= 0 ? timeMillis / DAY : (timeMillis + 1) / DAY - 1;
+        int minute = (int) ((timeMillis - day * DAY) / MINUTE);
+        long[] page = page(day);
+        long bit = 1L << minute;
+        if ((page[minute >>> 6] & bit) == 0) {
+            page[minute >>> 6] |= bit;
+            this.size++;
+        }
+    }
+
+    /**
+     * Add every minute of another set
+     * @param other set, unchanged
+     */
+    public void merge(MinuteSet other) {
+        for (int p = 0; p < other.pageCount; p++) {
+            long[] page = page(other.days[p]);
+            long[] added = other.pages[p];
+            for (int w = 0; w < WORDS; w++) {
+                this.size += Long.bitCount(added[w] & ~page[w]);
+                page[w] |= added[w];
+            }
+        }
+    }
+
+    /**
+     * @return number of minutes in set
+     */
+    public long size() {
+        return this.size;
+    }
+
+    private long[] page(long day) {
+        if (day == this.lastDay) {
+            return this.lastPage;
+        }
+        int index = this.pageIndexes.get(day);
+        if (index < 0) {
+            index = this.pageCount++;
+            if (index == this.pages.length) {
+                this.pages = Arrays.copyOf(this.pages, index * 2);
+                this.days = Arrays.copyOf(this.days, index * 2);
+            }
+            this.pages[index] = new long[WORDS];
+            this.days[index] = day;
+            this.pageIndexes.put(day, index);
+        }
+        this.lastDay = day;
+        this.lastPage = this.pages[index];
+        return this.lastPage;
+    }
+}
@@ -0,0 +1,81 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly;
+
+/**
+ * Suspicious change of an access point found by {@link AnomalyDetector}
+ */
+public final class Alert {
+    public static final int NEW_BSSID = 0; // Known network advertised by an unknown access point
+    public static final int SECURITY_DOWNGRADE = 1; // Network advertised with weaker security than before
+    public static final int LEVEL_JUMP = 2; // Sudden level change of an access point
+    public static final int CHANNEL_HOP = 3; // Access point moved to another channel
+    static final int TYPES = 4;
+    private static final String[] TYPE_NAMES = {"new BSSID", "security downgrade", "level jump", "channel hop"};
+
+    private final int type;
+    private final long timeMillis;
+    private final String ssid;
+    private final String bssid;
+    private final int level;
+    private final int channel;
+    private final String detail;
+
+    /**
+     * @param type alert type, one of the constants of this class
+     * @param timeMillis scan time (in ms since epoch)
+     * @param ssid network name
+     * @param bssid access point MAC address
+     * @param level level of access point in scan (in dBm)
+     * @param channel channel of access point in scan
+     * @param detail what changed, for display
+     */
+    public Alert(int type, long timeMillis, String ssid, String bssid, int level, int channel, String detail) {
+        this.type = type;
+        this.timeMillis = timeMillis;
+        this.ssid = ssid;
+        this.bssid = bssid;
+        this.level = level;
+        this.channel = channel;
+        this.detail = detail;
+    }
+
+    public int getType() {
+        return this.type;
+    }
+
+    public long getTimeMillis() {
+        return this.timeMillis;
+    }
+
+    public String getSsid() {
+        return this.ssid;
+    }
+
+    public String getBssid() {
+        return this.bssid;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    public int getChannel() {
+        return this.channel;
+    }
+
+    public String getDetail() {
+        return this.detail;
+    }
+
+    /**
+     * @param type alert type
+     * @return type name, for display
+     */
+    public static String typeName(int type) {
+        return TYPE_NAMES[type];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s (%s) %d dBm channel %d, %s", TYPE_NAMES[this.type], this.ssid, this.bssid, this.level, this.channel, this.detail);
+    }
+}
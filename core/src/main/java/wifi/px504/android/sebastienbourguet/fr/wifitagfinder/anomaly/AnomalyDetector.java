@@ -0,0 +1,296 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+/**
+ * Streaming detection of rogue access points and anomalies over every access point of every
+ * scan, in a memory fixed at construction.
+ *
+ * <ul>
+ * <li>Evil twins: an established network (SSID) advertised by a BSSID never seen with it, or
+ * with weaker security than the best seen for it (open or WEP instead of WPA2...). Networks
+ * with more than {@link #MAX_TRUSTED_BSSIDS} distinct BSSIDs are large deployments where new
+ * access points are expected, only downgrades are reported for them.</li>
+ * <li>Level jumps: a level far from the smoothed level of the access point.</li>
+ * <li>Channel hops: an access point heard on another channel.</li>
+ * </ul>
+ *
+ * Per access point and per network states are kept for the most recently heard ones only
+ * ({@link LruSlots}). Distinct BSSIDs by network are counted by small HyperLogLog estimators.
+ * A Count-Min sketch counts how many times each (network, BSSID) pair got a state, so an access
+ * point evicted from its state and heard again isn't mistaken for a new one. The sketch is
+ * halved once it holds a quarter of its width, before unknown pairs start to look known: pairs
+ * seen on a single visit are then forgotten first. An alert is raised at most once per access
+ * point, type and cooldown period.
+ *
+ * The detector is confined to the scanning thread; listeners should hand alerts over to other
+ * threads rather than notify users themselves.
+ */
+public class AnomalyDetector {
+    public static final int DEFAULT_MAX_ACCESS_POINTS = 4_096;
+    public static final int DEFAULT_MAX_NETWORKS = 1_024;
+    public static final int DEFAULT_LEVEL_JUMP = 20; // dB
+    public static final long DEFAULT_COOLDOWN = 10 * 60_000; // ms
+    static final int ESTABLISHED_SCANS = 5; // Scans with a network before its new BSSIDs are suspicious
+    static final int MAX_TRUSTED_BSSIDS = 4;
+    static final int UNKNOWN_SECURITY = -1; // Legacy rows without capabilities
+    private static final String[] SECURITY_NAMES = {"open", "WEP", "WPA", "WPA2", "WPA3"};
+    private static final int HLL_PRECISION = 6; // 64 bytes by network
+    private static final int SKETCH_WIDTH = 32_768; // 512 KB with 4 rows
+    private static final int SKETCH_DEPTH = 4;
+    private static final float LEVEL_SMOOTHING = 0.3f;
+    private static final int MIN_LEVEL_SAMPLES = 3;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    /**
+     * Receiver of alerts, called on the scanning thread
+     */
+    public interface Listener {
+        void onAlert(Alert alert);
+    }
+
+    private final int levelJump;
+    private final long cooldown;
+    private Listener listener;
+    // ACCESS POINTS, by slot
+    private final LruSlots accessPoints;
+    private final long[] networkKeys; // Network of last row, 0 for none
+    private final int[] channels;
+    private final float[] levels; // Smoothed level
+    private final int[] samples;
+    private final long[] lastAlerts; // By slot, then alert type
+    // NETWORKS, by slot
+    private final LruSlots networks;
+    private final int[] networkScans;
+    private final long[] lastScans; // Time of last scan counted
+    private final int[] securities; // Best security seen, UNKNOWN_SECURITY before
+    private final HyperLogLog bssids;
+    private final CountMinSketch pairs; // States given to (network, BSSID) pairs
+    // STATS
+    private final long[] alertCounts = new long[Alert.TYPES];
+    private long scans;
+
+    public AnomalyDetector() {
+        this(DEFAULT_MAX_ACCESS_POINTS, DEFAULT_MAX_NETWORKS, DEFAULT_LEVEL_JUMP, DEFAULT_COOLDOWN);
+    }
+
+    /**
+     * @param maxAccessPoints number of access points with a state
+     * @param maxNetworks number of networks with a state
+     * @param levelJump level difference from smoothed level raising an alert (in dB)
+     * @param cooldown minimum time between two alerts of the same type for an access point (in ms)
+     */
+    public AnomalyDetector(int maxAccessPoints, int maxNetworks, int levelJump, long cooldown) {
+        this.levelJump = levelJump;
+        this.cooldown = cooldown;
+        this.accessPoints = new LruSlots(maxAccessPoints);
+        this.networkKeys = new long[maxAccessPoints];
+        this.channels = new int[maxAccessPoints];
+        this.levels = new float[maxAccessPoints];
+        this.samples = new int[maxAccessPoints];
+        this.lastAlerts = new long[maxAccessPoints * Alert.TYPES];
+        this.networks = new LruSlots(maxNetworks);
+        this.networkScans = new int[maxNetworks];
+        this.lastScans = new long[maxNetworks];
+        this.securities = new int[maxNetworks];
+        this.bssids = new HyperLogLog(maxNetworks, HLL_PRECISION);
+        this.pairs = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Check every access point of a scan
+     * @param batch scan
+     * @return number of alerts raised
+     */
+    public int process(ScanBatch batch) {
+        this.scans++;
+        long time = batch.getTimeMillis();
+        int raised = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            long mac = batch.getMac(i);
+            if (mac == MacAddress.INVALID) {
+                continue;
+            }
+            int level = batch.getLevel(i);
+            int channel = WifiChannels.frequencyToChannel(batch.getFrequency(i));
+            int slot = this.accessPoints.get(mac);
+            if (slot < 0) {
+                slot = this.accessPoints.add(mac);
+                this.networkKeys[slot] = 0;
+                this.channels[slot] = channel;
+                this.levels[slot] = level;
+                this.samples[slot] = 1;
+                for (int t = 0; t < Alert.TYPES; t++) {
+                    this.lastAlerts[slot * Alert.TYPES + t] = NEVER;
+                }
+            } else {
+                if (channel != 0 && channel != this.channels[slot]) {
+                    // Unknown channel (0) until a frequency gives one, that's not a hop
+                    if (this.channels[slot] != 0 && isDue(slot, Alert.CHANNEL_HOP, time)) {
+                        alert(slot, Alert.CHANNEL_HOP, batch, i, channel, "channel " + this.channels[slot] + " to " + channel);
+                        raised++;
+                    }
+                    this.channels[slot] = channel;
+                }
+                float smoothed = this.levels[slot];
+                if (this.samples[slot] >= MIN_LEVEL_SAMPLES && Math.abs(level - smoothed) >= this.levelJump && isDue(slot, Alert.LEVEL_JUMP, time)) {
+                    alert(slot, Alert.LEVEL_JUMP, batch, i, channel, String.format("%.0f dBm to %d dBm", smoothed, level));
+                    raised++;
+                }
+                this.levels[slot] = smoothed + LEVEL_SMOOTHING * (level - smoothed);
+                this.samples[slot]++;
+            }
+            String ssid = batch.getSsid(i);
+            if (ssid != null && ssid.length() > 0) { // Hidden networks can't be impersonated by name
+                raised += checkNetwork(slot, mac, ssid, time, batch, i, channel);
+            }
+        }
+        return raised;
+    }
+
+    private int checkNetwork(int slot, long mac, String ssid, long time, ScanBatch batch, int i, int channel) {
+        long key = hash(ssid);
+        int network = this.networks.get(key);
+        if (network < 0) {
+            network = this.networks.add(key);
+            this.networkScans[network] = 0;
+            this.lastScans[network] = NEVER;
+            this.securities[network] = UNKNOWN_SECURITY;
+            this.bssids.clear(network);
+        }
+        if (this.lastScans[network] != time) {
+            this.lastScans[network] = time;
+            this.networkScans[network]++;
+        }
+        int raised = 0;
+        if (this.networkKeys[slot] != key) { // Access point just got a state, or changed network
+            this.networkKeys[slot] = key;
+            long pair = key ^ mac * 0x9E3779B97F4A7C15L;
+            if (this.pairs.estimate(pair) == 0) {
+                long distinct = this.bssids.estimate(network);
+                if (this.networkScans[network] > ESTABLISHED_SCANS && distinct <= MAX_TRUSTED_BSSIDS && isDue(slot, Alert.NEW_BSSID, time)) {
+                    alert(slot, Alert.NEW_BSSID, batch, i, channel, "network known with " + distinct + " access points");
+                    raised++;
+                }
+                this.bssids.add(network, HyperLogLog.mix(mac));
+            }
+            this.pairs.add(pair, 1);
+            if (this.pairs.getTotal() >= this.pairs.getWidth() / 4) {
+                this.pairs.halve();
+            }
+        }
+        int security = security(batch.getCapabilities(i));
+        int best = this.securities[network];
+        if (security != UNKNOWN_SECURITY) {
+            if (security < best) {
+                if (isDue(slot, Alert.SECURITY_DOWNGRADE, time)) {
+                    alert(slot, Alert.SECURITY_DOWNGRADE, batch, i, channel, SECURITY_NAMES[security] + " instead of " + SECURITY_NAMES[best]);
+                    raised++;
+                }
+            } else {
+                this.securities[network] = security;
+            }
+        }
+        return raised;
+    }
+
+    /**
+     * @return False if an alert of this type was raised for access point less than cooldown ago
+     */
+    private boolean isDue(int slot, int type, long time) {
+        long last = this.lastAlerts[slot * Alert.TYPES + type];
+        return last == NEVER || time - last >= this.cooldown;
+    }
+
+    /**
+     * Raise an alert, only called once {@link #isDue(int, int, long)} so details are built for raised alerts only
+     */
+    private void alert(int slot, int type, ScanBatch batch, int i, int channel, String detail) {
+        long time = batch.getTimeMillis();
+        this.lastAlerts[slot * Alert.TYPES + type] = time;
+        this.alertCounts[type]++;
+        if (this.listener != null) {
+            this.listener.onAlert(new Alert(type, time, batch.getSsid(i), batch.getBssid(i), batch.getLevel(i), channel, detail));
+        }
+    }
+
+    /**
+     * @param capabilities security capabilities of a scan result, as "[WPA2-PSK-CCMP][ESS]"
+     * @return security rank, 0 for open to 4 for WPA3, {@link #UNKNOWN_SECURITY} if null
+     */
+    static int security(String capabilities) {
+        if (capabilities == null) {
+            return UNKNOWN_SECURITY;
+        } else if (capabilities.contains("SAE") || capabilities.contains("WPA3")) {
+            return 4;
+        } else if (capabilities.contains("WPA2") || capabilities.contains("RSN")) {
+            return 3;
+        } else if (capabilities.contains("WPA")) {
+            return 2;
+        } else if (capabilities.contains("WEP")) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * 64 bits FNV-1a hash of a network name
+     */
+    private static long hash(String ssid) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < ssid.length(); i++) {
+            hash ^= ssid.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash == Long.MIN_VALUE || hash == 0 ? 1 : hash; // Reserved key of LongIntHashMap, and no network
+    }
+
+    public long getScans() {
+        return this.scans;
+    }
+
+    /**
+     * @param type alert type
+     * @return number of alerts of this type raised
+     */
+    public long getAlertCount(int type) {
+        return this.alertCounts[type];
+    }
+
+    /**
+     * @return number of access points with a state, at most maxAccessPoints
+     */
+    public int getTrackedAccessPoints() {
+        return this.accessPoints.size();
+    }
+
+    /**
+     * @return number of networks with a state, at most maxNetworks
+     */
+    public int getTrackedNetworks() {
+        return this.networks.size();
+    }
+
+    /**
+     * @return number of access points whose state was dropped to make room
+     */
+    public long getEvictedAccessPoints() {
+        return this.accessPoints.getEvictions();
+    }
+
+    /**
+     * @param ssid network name
+     * @return estimated number of distinct BSSIDs of network, 0 if network has no state
+     */
+    public long getDistinctBssids(String ssid) {
+        long key = hash(ssid);
+        int network = this.networks.get(key);
+        return network < 0 ? 0 : this.bssids.estimate(network);
+    }
+}
@@ -0,0 +1,86 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly;
+
+/**
+ * Count-Min sketch of occurrence counts of long keys, in a fixed size.
+ *
+ * Estimates are never below the true count, and above it by at most
+ * <code>e / width</code> of the total count with probability <code>1 - exp(-depth)</code>.
+ * Counters saturate instead of overflowing. {@link #halve()} ages counts, so that a sketch
+ * fed forever keeps telling recent keys from unknown ones.
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int mask;
+    private final int[] counters; // By row, then column
+    private long total;
+
+    /**
+     * @param width counters by row, rounded up to a power of 2
+     * @param depth number of rows
+     */
+    public CountMinSketch(int width, int depth) {
+        int columns = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        this.depth = depth;
+        this.mask = columns - 1;
+        this.counters = new int[depth * columns];
+    }
+
+    /**
+     * @param key key
+     * @param count occurrences to add, positive
+     */
+    public void add(long key, int count) {
+        long hash = HyperLogLog.mix(key);
+        for (int row = 0, offset = 0; row < this.depth; row++, offset += this.mask + 1) {
+            int i = offset + column(hash, row);
+            this.counters[i] = (int) Math.min(Integer.MAX_VALUE, (long) this.counters[i] + count);
+        }
+        this.total += count;
+    }
+
+    /**
+     * @param key key
+     * @return estimated occurrences of key, at least the true count
+     */
+    public int estimate(long key) {
+        long hash = HyperLogLog.mix(key);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0, offset = 0; row < this.depth; row++, offset += this.mask + 1) {
+            estimate = Math.min(estimate, this.counters[offset + column(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Divide every count by 2, keys added once are forgotten
+     */
+    public void halve() {
+        this.total = 0;
+        for (int i = 0; i < this.counters.length; i++) {
+            this.counters[i] >>>= 1;
+            this.total += this.counters[i];
+        }
+        this.total /= this.depth;
+    }
+
+    /**
+     * @return sum of counts, halved with them
+     */
+    public long getTotal() {
+        return this.total;
+    }
+
+    /**
+     * @return number of counters by row
+     */
+    public int getWidth() {
+        return this.mask + 1;
+    }
+
+    /**
+     * Row hashes from two halves of one hash (Kirsch-Mitzenmacher)
+     */
+    private int column(long hash, int row) {
+        return ((int) hash + row * (int) (hash >>> 32)) & this.mask;
+    }
+}
@@ -0,0 +1,82 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog estimators of distinct counts, several in one array of registers.
+ *
+ * Each estimator has 2^precision one-byte registers: relative error about
+ * 1.04 / sqrt(2^precision), 13% with 64 registers, whatever the number of distinct keys.
+ * Small counts use linear counting, exact enough for the few access points of a network.
+ */
+public class HyperLogLog {
+    private final int precision;
+    private final int registers;
+    private final byte[] values; // By estimator, then register
+    private final double alpha;
+
+    /**
+     * @param estimators number of estimators
+     * @param precision log2 of number of registers by estimator, 4 to 16
+     */
+    public HyperLogLog(int estimators, int precision) {
+        this.precision = precision;
+        this.registers = 1 << precision;
+        this.values = new byte[estimators * this.registers];
+        this.alpha = this.registers == 16 ? 0.673 : this.registers == 32 ? 0.697 : this.registers == 64 ? 0.709 : 0.7213 / (1 + 1.079 / this.registers);
+    }
+
+    /**
+     * @param estimator estimator index
+     * @param hash well mixed 64 bits hash of key (see {@link #mix(long)})
+     */
+    public void add(int estimator, long hash) {
+        int register = (int) (hash >>> (64 - this.precision));
+        int rank = Long.numberOfLeadingZeros((hash << this.precision) | (1L << (this.precision - 1))) + 1;
+        int i = estimator * this.registers + register;
+        if (rank > this.values[i]) {
+            this.values[i] = (byte) rank;
+        }
+    }
+
+    /**
+     * @param estimator estimator index
+     * @return estimated number of distinct keys added
+     */
+    public long estimate(int estimator) {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = estimator * this.registers, end = i + this.registers; i < end; i++) {
+            sum += 1.0 / (1L << this.values[i]);
+            if (this.values[i] == 0) {
+                zeros++;
+            }
+        }
+        double estimate = this.alpha * this.registers * this.registers / sum;
+        if (estimate <= 2.5 * this.registers && zeros > 0) {
+            estimate = this.registers * Math.log(this.registers / (double) zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @param estimator estimator index, emptied
+     */
+    public void clear(int estimator) {
+        Arrays.fill(this.values, estimator * this.registers, (estimator + 1) * this.registers, (byte) 0);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads keys such as MAC addresses over all 64 bits
+     * @param key key
+     * @return hash of key
+     */
+    public static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,106 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+
+/**
+ * Bounded table of long keys to slots 0 to capacity - 1, in least recently used order.
+ *
+ * Callers keep their per key state in arrays indexed by slot. Once full, adding a key evicts
+ * the least recently used one and hands its slot over, so state memory never grows.
+ */
+class LruSlots {
+    private static final int NONE = -1;
+
+    private final LongIntHashMap slots; // Key -> slot
+    private final long[] keys; // By slot
+    private final int[] previous; // By slot, more recently used slot
+    private final int[] next; // By slot, less recently used slot
+    private int head = NONE; // Most recently used
+    private int tail = NONE; // Least recently used
+    private int size;
+    private long evictions;
+
+    LruSlots(int capacity) {
+        this.slots = new LongIntHashMap(capacity, NONE);
+        this.keys = new long[capacity];
+        this.previous = new int[capacity];
+        this.next = new int[capacity];
+    }
+
+    /**
+     * Find a key and mark it as most recently used
+     * @param key key
+     * @return slot of key, -1 if absent
+     */
+    int get(long key) {
+        int slot = this.slots.get(key);
+        if (slot != NONE && slot != this.head) {
+            unlink(slot);
+            linkFirst(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Add an absent key as most recently used, evicting the least recently used key if full
+     * @param key key, absent
+     * @return slot of key, state to initialize
+     */
+    int add(long key) {
+        int slot;
+        if (this.size < this.keys.length) {
+            slot = this.size++;
+        } else {
+            slot = this.tail;
+            unlink(slot);
+            this.slots.remove(this.keys[slot]);
+            this.evictions++;
+        }
+        this.keys[slot] = key;
+        this.slots.put(key, slot);
+        linkFirst(slot);
+        return slot;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    int capacity() {
+        return this.keys.length;
+    }
+
+    /**
+     * @return number of keys evicted to make room
+     */
+    long getEvictions() {
+        return this.evictions;
+    }
+
+    private void unlink(int slot) {
+        int before = this.previous[slot];
+        int after = this.next[slot];
+        if (before == NONE) {
+            this.head = after;
+        } else {
+            this.next[before] = after;
+        }
+        if (after == NONE) {
+            this.tail = before;
+        } else {
+            this.previous[after] = before;
+        }
+    }
+
+    private void linkFirst(int slot) {
+        this.previous[slot] = NONE;
+        this.next[slot] = this.head;
+        if (this.head != NONE) {
+            this.previous[this.head] = slot;
+        }
+        this.head = slot;
+        if (this.tail == NONE) {
+            this.tail = slot;
+        }
+    }
+}
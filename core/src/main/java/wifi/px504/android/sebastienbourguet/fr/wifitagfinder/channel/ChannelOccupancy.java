@@ -0,0 +1,249 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel;
+
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+/**
+ * Channel utilisation of a whole scan, for 2.4 GHz and 5 GHz at the same time.
+ *
+ * Statistics are kept in primitive arrays indexed by channel number:
+ * <ul>
+ *     <li>count, max and sum of linear power (mW) of access points using the channel as primary channel</li>
+ *     <li>overlap count and overlap power of access points whose signal covers part of the channel.
+ *     On 2.4 GHz a 22 MHz wide signal leaks on the 4 channels around it, the power is weighted by
+ *     the fraction of the channel covered. On 5 GHz a 40/80/160 MHz access point covers its whole
+ *     bonding group.</li>
+ *     <li>a congestion score between 0 and 1</li>
+ * </ul>
+ * The secondary channel position is not part of the scan, 2.4 GHz 40 MHz access points are
+ * assumed above their primary channel up to channel 7 and below it after.
+ */
+public class ChannelOccupancy {
+    public static final int MAX_CHANNEL = 196;
+    /**
+     * Level of an empty channel (in dBm)
+     */
+    public static final int NO_SIGNAL = -127;
+    /**
+     * OFDM carrier sense threshold of a 20 MHz channel (in dBm): a transmitter heard above this
+     * level makes the channel busy.
+     */
+    public static final int CCA_LEVEL = -82;
+
+    private static final double CCA_POWER = Math.pow(10, CCA_LEVEL / 10d);
+    private static final double[] POWERS = new double[-NO_SIGNAL + 1]; // By -level
+    private static final int WIDTH_2GHZ = 22; // Spectral width of a 20 MHz channel on 2.4 GHz (in MHz)
+
+    static {
+        for (int i = 0; i < POWERS.length; i++) {
+            POWERS[i] = Math.pow(10, -i / 10d);
+        }
+    }
+
+    private final int[] count = new int[MAX_CHANNEL + 1];
+    private final double[] maxPower = new double[MAX_CHANNEL + 1];
+    private final double[] sumPower = new double[MAX_CHANNEL + 1];
+    private final int[] overlapCount = new int[MAX_CHANNEL + 1];
+    private final double[] overlapPower = new double[MAX_CHANNEL + 1];
+    private final double[] load = new double[MAX_CHANNEL + 1]; // Access points heard above CCA level
+    private int accessPoints;
+
+    /**
+     * Replace statistics with the ones of given scan
+     * @param batch scan
+     */
+    public void update(ScanBatch batch) {
+        clear();
+        int[] levels = batch.levels();
+        int[] frequencies = batch.frequencies();
+        int[] widths = batch.channelWidths();
+        for (int i = 0; i < batch.size(); i++) {
+            add(levels[i], frequencies[i], widths[i]);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(this.count, 0);
+        Arrays.fill(this.maxPower, 0);
+        Arrays.fill(this.sumPower, 0);
+        Arrays.fill(this.overlapCount, 0);
+        Arrays.fill(this.overlapPower, 0);
+        Arrays.fill(this.load, 0);
+        this.accessPoints = 0;
+    }
+
+    /**
+     * Add one access point
+     * @param level level in dBm
+     * @param frequency primary channel frequency (in MHz)
+     * @param channelWidth channel width code, see {@link WifiChannels}
+     * @return False if frequency is not a known channel
+     */
+    public boolean add(int level, int frequency, int channelWidth) {
+        int channel = WifiChannels.frequencyToChannel(frequency);
+        if (channel <= 0 || channel > MAX_CHANNEL) {
+            return false;
+        }
+        double power = toMilliwatts(level);
+        this.count[channel]++;
+        this.sumPower[channel] += power;
+        if (power > this.maxPower[channel]) {
+            this.maxPower[channel] = power;
+        }
+        if (frequency < 5_000) {
+            overlap2GHz(channel, frequency, power, channelWidth);
+        } else {
+            overlap5GHz(channel, power, channelWidth);
+        }
+        this.accessPoints++;
+        return true;
+    }
+
+    private void overlap2GHz(int channel, int frequency, double power, int channelWidth) {
+        int center = frequency;
+        int width = WIDTH_2GHZ;
+        if (channelWidth != WifiChannels.WIDTH_20MHZ) { // Only 40 MHz exists on 2.4 GHz
+            center = channel <= 7 ? frequency + 10 : frequency - 10;
+            width = 40;
+        }
+        int low = center - width / 2;
+        int high = center + width / 2;
+        for (int ch = 1; ch <= 14; ch++) {
+            int f = WifiChannels.channelToFrequency(ch);
+            int covered = Math.min(high, f + WIDTH_2GHZ / 2) - Math.max(low, f - WIDTH_2GHZ / 2);
+            if (covered > 0) {
+                addOverlap(ch, power * covered / WIDTH_2GHZ);
+            }
+        }
+    }
+
+    private void overlap5GHz(int channel, double power, int channelWidth) {
+        int span; // Bonding group width, in channel numbers
+        switch (channelWidth) {
+            case WifiChannels.WIDTH_40MHZ:
+                span = 8;
+                break;
+            case WifiChannels.WIDTH_80MHZ:
+            case WifiChannels.WIDTH_80MHZ_PLUS_80MHZ: // Second segment is unknown
+                span = 16;
+                break;
+            case WifiChannels.WIDTH_160MHZ:
+                span = 32;
+                break;
+            default:
+                span = 4;
+        }
+        int offset = channel >= 149 ? 149 : 36; // Groups are aligned on 36 (UNII-1 to 2e) and 149 (UNII-3)
+        int first = channel < offset ? channel : offset + (channel - offset) / span * span;
+        for (int ch = first; ch < first + span && ch <= MAX_CHANNEL; ch += 4) {
+            addOverlap(ch, power);
+        }
+    }
+
+    private void addOverlap(int channel, double power) {
+        this.overlapCount[channel]++;
+        this.overlapPower[channel] += power;
+        this.load[channel] += Math.min(1, power / CCA_POWER);
+    }
+
+    /**
+     * @return number of access points added since last clear
+     */
+    public int size() {
+        return this.accessPoints;
+    }
+
+    /**
+     * @param channel channel number
+     * @return number of access points using this channel as primary channel
+     */
+    public int getCount(int channel) {
+        return this.count[channel];
+    }
+
+    /**
+     * @param channel channel number
+     * @return number of access points covering part of this channel (primary included)
+     */
+    public int getOverlapCount(int channel) {
+        return this.overlapCount[channel];
+    }
+
+    /**
+     * @param channel channel number
+     * @return power of strongest access point using this channel as primary channel (in mW)
+     */
+    public double getMaxPower(int channel) {
+        return this.maxPower[channel];
+    }
+
+    /**
+     * @param channel channel number
+     * @return power of access points using this channel as primary channel (in mW)
+     */
+    public double getSumPower(int channel) {
+        return this.sumPower[channel];
+    }
+
+    /**
+     * @param channel channel number
+     * @return power received on this channel from every access point covering it (in mW)
+     */
+    public double getOverlapPower(int channel) {
+        return this.overlapPower[channel];
+    }
+
+    /**
+     * @param channel channel number
+     * @return level of strongest access point using this channel (in dBm), {@link #NO_SIGNAL} if none
+     */
+    public int getMaxLevel(int channel) {
+        return toDbm(this.maxPower[channel]);
+    }
+
+    /**
+     * @param channel channel number
+     * @return level received on this channel from every access point covering it (in dBm),
+     * {@link #NO_SIGNAL} if none
+     */
+    public int getOverlapLevel(int channel) {
+        return toDbm(this.overlapPower[channel]);
+    }
+
+    /**
+     * Congestion score of a channel
+     * Each access point covering the channel counts for its power relative to the carrier sense
+     * threshold (1 when heard above it), the score is load / (load + 1): 0 for a free channel,
+     * 0.5 for one strong access point, closer to 1 with each new one.
+     * @param channel channel number
+     * @return score between 0 and 1
+     */
+    public float getCongestion(int channel) {
+        double l = this.load[channel];
+        return (float) (l / (l + 1));
+    }
+
+    /**
+     * @param level level in dBm
+     * @return power in mW
+     */
+    public static double toMilliwatts(int level) {
+        if (level <= 0 && level >= NO_SIGNAL) {
+            return POWERS[-level];
+        }
+        return Math.pow(10, level / 10d);
+    }
+
+    /**
+     * @param power power in mW
+     * @return level in dBm, rounded, {@link #NO_SIGNAL} for a lower power
+     */
+    public static int toDbm(double power) {
+        if (power <= 0) {
+            return NO_SIGNAL;
+        }
+        return Math.max(NO_SIGNAL, (int) Math.round(10 * Math.log10(power)));
+    }
+}
@@ -0,0 +1,47 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter;
+
+import java.util.Arrays;
+
+/**
+ * Exponential moving average: value += alpha * (level - value)
+ */
+public class EmaFilter implements LevelFilter {
+    private final float alpha;
+    private final float[] values;
+
+    /**
+     * @param size number of access points
+     * @param alpha weight of last sample, between 0 (frozen) and 1 (raw level)
+     */
+    public EmaFilter(int size, float alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in ]0, 1]");
+        }
+        this.alpha = alpha;
+        this.values = new float[size];
+        Arrays.fill(this.values, Float.NaN);
+    }
+
+    @Override
+    public float update(int id, float level) {
+        float value = this.values[id];
+        value = value != value ? level : value + this.alpha * (level - value); // First sample if NaN
+        this.values[id] = value;
+        return value;
+    }
+
+    @Override
+    public float getValue(int id) {
+        return this.values[id];
+    }
+
+    @Override
+    public void reset(int id) {
+        this.values[id] = Float.NaN;
+    }
+
+    @Override
+    public int size() {
+        return this.values.length;
+    }
+}
@@ -0,0 +1,70 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter;
+
+import java.util.Arrays;
+
+/**
+ * One dimension Kalman filter, the level is modelled as a random walk
+ * observed with a gaussian noise.
+ */
+public class KalmanFilter implements LevelFilter {
+    private final float processNoise;
+    private final float measurementNoise;
+    private final float[] values;
+    private final float[] errors; // Estimate variance
+
+    /**
+     * @param size number of access points
+     * @param processNoise variance of level change between two samples (dB^2), higher follows moves faster
+     * @param measurementNoise variance of a measure (dB^2), higher smooths more
+     */
+    public KalmanFilter(int size, float processNoise, float measurementNoise) {
+        if (processNoise <= 0 || measurementNoise <= 0) {
+            throw new IllegalArgumentException("Noises must be positive");
+        }
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+        this.values = new float[size];
+        this.errors = new float[size];
+        Arrays.fill(this.values, Float.NaN);
+    }
+
+    @Override
+    public float update(int id, float level) {
+        float value = this.values[id];
+        if (value != value) { // First sample
+            this.values[id] = level;
+            this.errors[id] = this.measurementNoise;
+            return level;
+        }
+        float error = this.errors[id] + this.processNoise; // Predict
+        float gain = error / (error + this.measurementNoise);
+        value += gain * (level - value);
+        this.values[id] = value;
+        this.errors[id] = (1 - gain) * error;
+        return value;
+    }
+
+    @Override
+    public float getValue(int id) {
+        return this.values[id];
+    }
+
+    /**
+     * @param id access point id
+     * @return variance of filtered level (dB^2)
+     */
+    public float getError(int id) {
+        return this.errors[id];
+    }
+
+    @Override
+    public void reset(int id) {
+        this.values[id] = Float.NaN;
+        this.errors[id] = 0;
+    }
+
+    @Override
+    public int size() {
+        return this.values.length;
+    }
+}
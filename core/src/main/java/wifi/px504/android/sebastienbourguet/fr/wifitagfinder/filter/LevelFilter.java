@@ -0,0 +1,35 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter;
+
+/**
+ * Streaming filter of signal levels, for several access points at once
+ *
+ * Each access point has an id between 0 and size() - 1 (the tag id of a
+ * TagTracker for instance) and its own filter state. Updating a state is O(1)
+ * and allocates nothing.
+ */
+public interface LevelFilter {
+    /**
+     * Add a sample
+     * @param id access point id
+     * @param level raw level in dBm
+     * @return filtered level in dBm
+     */
+    float update(int id, float level);
+
+    /**
+     * @param id access point id
+     * @return last filtered level in dBm, NaN if no sample since reset
+     */
+    float getValue(int id);
+
+    /**
+     * Forget past samples of an access point
+     * @param id access point id
+     */
+    void reset(int id);
+
+    /**
+     * @return number of access points
+     */
+    int size();
+}
@@ -0,0 +1,92 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter;
+
+import java.util.Arrays;
+
+/**
+ * Median of the last N samples, insensitive to short fades
+ *
+ * Each access point keeps its last samples in a ring and in a sorted copy, a new
+ * sample replaces the oldest one in the sorted copy by shifting at most N values.
+ */
+public class MedianFilter implements LevelFilter {
+    private final int window;
+    private final float[] samples; // Rings, access point i uses [i * window, (i + 1) * window)
+    private final float[] sorted;
+    private final int[] head;
+    private final int[] count;
+    private final float[] values;
+
+    /**
+     * @param size number of access points
+     * @param window number of samples of the median
+     */
+    public MedianFilter(int size, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.window = window;
+        this.samples = new float[size * window];
+        this.sorted = new float[size * window];
+        this.head = new int[size];
+        this.count = new int[size];
+        this.values = new float[size];
+        Arrays.fill(this.values, Float.NaN);
+    }
+
+    @Override
+    public float update(int id, float level) {
+        if (level != level) { // NaN would break sorted copy
+            return this.values[id];
+        }
+        int base = id * this.window;
+        int n = this.count[id];
+        int pos; // Free position in sorted copy
+        if (n == this.window) { // Remove oldest sample
+            float oldest = this.samples[base + this.head[id]];
+            pos = base;
+            while (this.sorted[pos] != oldest) {
+                pos++;
+            }
+        } else {
+            pos = base + n;
+            this.count[id] = ++n;
+        }
+        this.samples[base + this.head[id]] = level;
+        this.head[id] = this.head[id] + 1 == this.window ? 0 : this.head[id] + 1;
+        // Move free position to the place of the new sample
+        while (pos > base && this.sorted[pos - 1] > level) {
+            this.sorted[pos] = this.sorted[pos - 1];
+            pos--;
+        }
+        while (pos < base + n - 1 && this.sorted[pos + 1] < level) {
+            this.sorted[pos] = this.sorted[pos + 1];
+            pos++;
+        }
+        this.sorted[pos] = level;
+        int middle = base + n / 2;
+        float value = n % 2 == 1 ? this.sorted[middle] : (this.sorted[middle - 1] + this.sorted[middle]) / 2;
+        this.values[id] = value;
+        return value;
+    }
+
+    public int getWindow() {
+        return this.window;
+    }
+
+    @Override
+    public float getValue(int id) {
+        return this.values[id];
+    }
+
+    @Override
+    public void reset(int id) {
+        this.head[id] = 0;
+        this.count[id] = 0;
+        this.values[id] = Float.NaN;
+    }
+
+    @Override
+    public int size() {
+        return this.values.length;
+    }
+}
@@ -0,0 +1,92 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter;
+
+/**
+ * Log-distance path loss model: level = reference - 10 * exponent * log10(distance)
+ *
+ * The reference level (at 1 m) and the exponent are calibrated by band. Inside a band the
+ * reference follows the free space loss difference between the calibration frequency and the
+ * sample frequency (20 * log10(f / f0)).
+ */
+public class PathLossModel {
+    public static final int BAND_2GHZ = 0;
+    public static final int BAND_5GHZ = 1;
+    /**
+     * Typical level of a 2.4 GHz access point at 1 m (in dBm)
+     */
+    public static final float DEFAULT_REFERENCE_2GHZ = -40;
+    /**
+     * Indoor path loss exponent (2 in free space)
+     */
+    public static final float DEFAULT_EXPONENT = 2.7f;
+
+    private final float[] reference = new float[2];
+    private final float[] exponent = new float[2];
+    private final int[] frequency = new int[2]; // Calibration frequency
+
+    public PathLossModel() {
+        calibrate(2437, DEFAULT_REFERENCE_2GHZ, DEFAULT_EXPONENT);
+        calibrate(5500, DEFAULT_REFERENCE_2GHZ - freeSpaceDifference(5500, 2437), DEFAULT_EXPONENT);
+    }
+
+    /**
+     * @param frequency frequency in MHz
+     * @return band of frequency
+     */
+    public static int bandOf(int frequency) {
+        return frequency < 4_000 ? BAND_2GHZ : BAND_5GHZ;
+    }
+
+    private static float freeSpaceDifference(int frequency, int reference) {
+        return (float) (20 * Math.log10(frequency / (double) reference));
+    }
+
+    /**
+     * Set model of a band
+     * @param frequency calibration frequency (in MHz), also gives the band
+     * @param reference level at 1 m (in dBm)
+     * @param exponent path loss exponent
+     */
+    public void calibrate(int frequency, float reference, float exponent) {
+        if (exponent <= 0) {
+            throw new IllegalArgumentException("exponent must be positive");
+        }
+        int band = bandOf(frequency);
+        this.reference[band] = reference;
+        this.exponent[band] = exponent;
+        this.frequency[band] = frequency;
+    }
+
+    /**
+     * Set reference level of a band from a level measured at a known distance, exponent is kept
+     * @param frequency frequency of the access point (in MHz)
+     * @param level measured level (in dBm)
+     * @param distance distance of the access point (in m)
+     */
+    public void calibrateAt(int frequency, float level, float distance) {
+        int band = bandOf(frequency);
+        calibrate(frequency, level + (float) (10 * this.exponent[band] * Math.log10(distance)), this.exponent[band]);
+    }
+
+    /**
+     * @param frequency frequency in MHz
+     * @return level at 1 m (in dBm)
+     */
+    public float getReference(int frequency) {
+        int band = bandOf(frequency);
+        return this.reference[band] - freeSpaceDifference(frequency, this.frequency[band]);
+    }
+
+    public float getExponent(int frequency) {
+        return this.exponent[bandOf(frequency)];
+    }
+
+    /**
+     * @param level level in dBm
+     * @param frequency frequency in MHz
+     * @return estimated distance of the access point (in m)
+     */
+    public float distance(float level, int frequency) {
+        int band = bandOf(frequency);
+        return (float) Math.pow(10, (getReference(frequency) - level) / (10 * this.exponent[band]));
+    }
+}
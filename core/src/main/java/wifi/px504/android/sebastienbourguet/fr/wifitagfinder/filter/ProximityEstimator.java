@@ -0,0 +1,61 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter;
+
+/**
+ * Filtered level and distance of several access points: a {@link LevelFilter}
+ * followed by a {@link PathLossModel}.
+ */
+public class ProximityEstimator {
+    private final LevelFilter filter;
+    private final PathLossModel model;
+    private final float[] distances;
+
+    /**
+     * @param filter level filter, its size gives the number of access points
+     * @param model path loss model
+     */
+    public ProximityEstimator(LevelFilter filter, PathLossModel model) {
+        this.filter = filter;
+        this.model = model;
+        this.distances = new float[filter.size()];
+    }
+
+    /**
+     * Add a sample
+     * @param id access point id
+     * @param level raw level in dBm
+     * @param frequency frequency in MHz
+     * @return estimated distance (in m)
+     */
+    public float update(int id, int level, int frequency) {
+        float distance = this.model.distance(this.filter.update(id, level), frequency);
+        this.distances[id] = distance;
+        return distance;
+    }
+
+    /**
+     * @return filtered level in dBm, NaN if no sample
+     */
+    public float getLevel(int id) {
+        return this.filter.getValue(id);
+    }
+
+    /**
+     * @return last estimated distance (in m)
+     */
+    public float getDistance(int id) {
+        return this.distances[id];
+    }
+
+    public void reset(int id) {
+        this.filter.reset(id);
+        this.distances[id] = 0;
+    }
+
+    public LevelFilter getFilter() {
+        return this.filter;
+    }
+
+    public PathLossModel getModel() {
+        return this.model;
+    }
+}
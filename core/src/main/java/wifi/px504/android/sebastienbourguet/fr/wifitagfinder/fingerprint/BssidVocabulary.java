@@ -0,0 +1,56 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+
+/**
+ * Interned BSSIDs of a radio map: each access point gets a dense index, its dimension in
+ * fingerprint vectors, in order of first appearance.
+ */
+public class BssidVocabulary {
+    private final LongIntHashMap indexes = new LongIntHashMap(256, -1);
+    private long[] macs = new long[256];
+    private int size;
+
+    /**
+     * @param mac packed BSSID
+     * @return index of access point, added if new
+     */
+    public int intern(long mac) {
+        int index = this.indexes.get(mac);
+        if (index < 0) {
+            index = this.size++;
+            if (index == this.macs.length) {
+                this.macs = Arrays.copyOf(this.macs, index * 2);
+            }
+            this.macs[index] = mac;
+            this.indexes.put(mac, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param mac packed BSSID
+     * @return index of access point, -1 if unknown
+     */
+    public int indexOf(long mac) {
+        return mac == MacAddress.INVALID ? -1 : this.indexes.get(mac);
+    }
+
+    /**
+     * @param index index of access point
+     * @return packed BSSID
+     */
+    public long getMac(int index) {
+        return this.macs[index];
+    }
+
+    /**
+     * @return number of access points, dimension of fingerprint vectors
+     */
+    public int size() {
+        return this.size;
+    }
+}
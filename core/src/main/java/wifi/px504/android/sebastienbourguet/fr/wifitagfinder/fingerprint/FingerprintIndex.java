@@ -0,0 +1,351 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Exact k-nearest-neighbour search of fingerprints in a {@link RadioMap}, Euclidean distance
+ * over dense level vectors.
+ *
+ * With levels taken above {@link RadioMap#NO_SIGNAL} (0 when not heard), the squared distance is
+ * <code>|q|^2 + |r|^2 - 2 q.r</code>, and the dot product only involves access points heard by both.
+ * Reference points are indexed by per access point inverted lists (points hearing it, with their
+ * level) and sorted by squared norm. A search walks the lists of the access points of the query
+ * only, giving the exact distance of every point sharing one of them. Other points are at
+ * <code>|q|^2 + |r|^2</code>: they are taken by increasing norm until they can't beat the k nearest.
+ * The cost follows the number of points near the query, not the size of the map.
+ *
+ * Points are split in shards of contiguous points, each with its own lists, searched in parallel
+ * by a pool of threads; the calling thread searches the first shard. Searches are serialized:
+ * shards keep their accumulators from one search to the next.
+ */
+public class FingerprintIndex implements Closeable {
+    private final RadioMap map;
+    private final Shard[] shards;
+    private final ExecutorService pool; // Null with a single shard
+    private final Future<?>[] futures;
+    // Query as sparse vector, levels above NO_SIGNAL
+    private final int[] queryDimensions;
+    private final double[] queryValues;
+    private int queryCount;
+    private double queryNorm;
+
+    /**
+     * Nearest reference points of a search, nearest first
+     */
+    public static final class Neighbours {
+        private final int[] points;
+        private final float[] distances;
+
+        Neighbours(int[] points, float[] distances) {
+            this.points = points;
+            this.distances = distances;
+        }
+
+        public int size() {
+            return this.points.length;
+        }
+
+        /**
+         * @param i neighbour rank, 0 for nearest
+         * @return reference point index in radio map
+         */
+        public int getPoint(int i) {
+            return this.points[i];
+        }
+
+        /**
+         * @param i neighbour rank, 0 for nearest
+         * @return Euclidean distance between fingerprints (in dB)
+         */
+        public float getDistance(int i) {
+            return this.distances[i];
+        }
+    }
+
+    public FingerprintIndex(RadioMap map) {
+        this(map, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param map radio map
+     * @param threads number of shards searched in parallel, at least 1
+     */
+    public FingerprintIndex(RadioMap map, int threads) {
+        this.map = map;
+        int shardCount = Math.max(1, Math.min(threads, map.size() / 1_024 + 1)); // No thread for small maps
+        this.shards = new Shard[shardCount];
+        for (int s = 0; s < shardCount; s++) {
+            this.shards[s] = new Shard(map, (int) ((long) map.size() * s / shardCount), (int) ((long) map.size() * (s + 1) / shardCount));
+        }
+        this.futures = new Future<?>[shardCount];
+        this.pool = shardCount == 1 ? null : Executors.newFixedThreadPool(shardCount - 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FingerprintSearch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.queryDimensions = new int[map.getDimensions()];
+        this.queryValues = new double[map.getDimensions()];
+    }
+
+    public RadioMap getMap() {
+        return this.map;
+    }
+
+    /**
+     * @return number of shards searched in parallel
+     */
+    public int getShards() {
+        return this.shards.length;
+    }
+
+    /**
+     * Find nearest reference points of a fingerprint
+     * @param query level of each access point of the vocabulary (in dBm), {@link RadioMap#NO_SIGNAL} if not heard
+     * @param k number of neighbours
+     * @return k nearest reference points, fewer if the map is smaller
+     */
+    public synchronized Neighbours search(float[] query, final int k) {
+        this.queryCount = 0;
+        this.queryNorm = 0;
+        for (int d = 0; d < this.queryDimensions.length; d++) {
+            double value = query[d] - RadioMap.NO_SIGNAL;
+            if (value > 0) {
+                this.queryDimensions[this.queryCount] = d;
+                this.queryValues[this.queryCount] = value;
+                this.queryCount++;
+                this.queryNorm += value * value;
+            }
+        }
+        for (int s = 1; s < this.shards.length; s++) {
+            final Shard shard = this.shards[s];
+            this.futures[s] = this.pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    shard.search(queryDimensions, queryValues, queryCount, queryNorm, k);
+                    return null;
+                }
+            });
+        }
+        this.shards[0].search(this.queryDimensions, this.queryValues, this.queryCount, this.queryNorm, k);
+        TopK nearest = new TopK(k);
+        for (int s = 0; s < this.shards.length; s++) {
+            if (s > 0) {
+                await(this.futures[s]);
+            }
+            TopK candidates = this.shards[s].nearest;
+            for (int i = 0; i < candidates.size; i++) {
+                nearest.offer(candidates.points[i], candidates.distances[i]);
+            }
+        }
+        return nearest.toNeighbours();
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Search interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Search failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stop search threads
+     */
+    @Override
+    public void close() {
+        if (this.pool != null) {
+            this.pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Contiguous reference points with their inverted lists
+     */
+    private static class Shard {
+        private final int from;
+        private final int[] listStarts; // By dimension, start in lists, then end of last list
+        private final int[] listPoints; // Point index in shard
+        private final float[] listValues; // Level above NO_SIGNAL
+        private final double[] norms; // By point, squared norm of levels above NO_SIGNAL
+        private final int[] byNorm; // Points by increasing norm
+        private final double[] dots; // By point, dot product with query, back to 0 after each search
+        private final int[] touched; // Points with a dot product, in first touch order
+        TopK nearest;
+
+        Shard(RadioMap map, int from, int to) {
+            this.from = from;
+            int dimensions = map.getDimensions();
+            float[] levels = map.levels();
+            int size = to - from;
+            this.listStarts = new int[dimensions + 1];
+            this.norms = new double[size];
+            this.dots = new double[size];
+            this.touched = new int[size];
+            for (int p = 0; p < size; p++) { // Count list lengths
+                for (int i = (from + p) * dimensions, d = 0; d < dimensions; i++, d++) {
+                    if (levels[i] > RadioMap.NO_SIGNAL) {
+                        this.listStarts[d + 1]++;
+                    }
+                }
+            }
+            for (int d = 0; d < dimensions; d++) {
+                this.listStarts[d + 1] += this.listStarts[d];
+            }
+            this.listPoints = new int[this.listStarts[dimensions]];
+            this.listValues = new float[this.listStarts[dimensions]];
+            int[] ends = this.listStarts.clone();
+            for (int p = 0; p < size; p++) {
+                double norm = 0;
+                for (int i = (from + p) * dimensions, d = 0; d < dimensions; i++, d++) {
+                    float value = levels[i] - RadioMap.NO_SIGNAL;
+                    if (value > 0) {
+                        this.listPoints[ends[d]] = p;
+                        this.listValues[ends[d]] = value;
+                        ends[d]++;
+                        norm += value * value;
+                    }
+                }
+                this.norms[p] = norm;
+            }
+            this.byNorm = sortByNorm(this.norms);
+        }
+
+        private static int[] sortByNorm(final double[] norms) {
+            Integer[] order = new Integer[norms.length];
+            for (int p = 0; p < norms.length; p++) {
+                order[p] = p;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(norms[a], norms[b]);
+                }
+            });
+            int[] byNorm = new int[norms.length];
+            for (int i = 0; i < byNorm.length; i++) {
+                byNorm[i] = order[i];
+            }
+            return byNorm;
+        }
+
+        void search(int[] queryDimensions, double[] queryValues, int queryCount, double queryNorm, int k) {
+            double[] dots = this.dots;
+            int touchedCount = 0;
+            for (int q = 0; q < queryCount; q++) {
+                int d = queryDimensions[q];
+                double value = queryValues[q];
+                for (int e = this.listStarts[d], end = this.listStarts[d + 1]; e < end; e++) {
+                    int p = this.listPoints[e];
+                    if (dots[p] == 0) { // Levels are positive, so is any product
+                        this.touched[touchedCount++] = p;
+                    }
+                    dots[p] += value * this.listValues[e];
+                }
+            }
+            TopK nearest = new TopK(k);
+            for (int t = 0; t < touchedCount; t++) {
+                int p = this.touched[t];
+                nearest.offer(this.from + p, queryNorm + this.norms[p] - 2 * dots[p]);
+            }
+            for (int p : this.byNorm) { // Points sharing no access point with the query
+                double distance = queryNorm + this.norms[p];
+                if (nearest.size == k && distance >= nearest.distances[0]) {
+                    break;
+                }
+                if (dots[p] == 0) {
+                    nearest.offer(this.from + p, distance);
+                }
+            }
+            for (int t = 0; t < touchedCount; t++) {
+                dots[this.touched[t]] = 0;
+            }
+            this.nearest = nearest;
+        }
+    }
+
+    /**
+     * Bounded max-heap of the k smallest squared distances
+     */
+    private static class TopK {
+        final int[] points;
+        final double[] distances;
+        int size;
+
+        TopK(int k) {
+            this.points = new int[k];
+            this.distances = new double[k];
+        }
+
+        void offer(int point, double distance) {
+            if (this.size < this.points.length) {
+                int i = this.size++;
+                while (i > 0) { // Sift up
+                    int parent = (i - 1) / 2;
+                    if (this.distances[parent] >= distance) {
+                        break;
+                    }
+                    this.points[i] = this.points[parent];
+                    this.distances[i] = this.distances[parent];
+                    i = parent;
+                }
+                this.points[i] = point;
+                this.distances[i] = distance;
+            } else if (this.size > 0 && distance < this.distances[0]) {
+                siftDown(point, distance, this.size);
+            }
+        }
+
+        /**
+         * Put a point at the root of the first size entries and restore heap order
+         */
+        private void siftDown(int point, double distance, int size) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && this.distances[child + 1] > this.distances[child]) {
+                    child++;
+                }
+                if (this.distances[child] <= distance) {
+                    break;
+                }
+                this.points[i] = this.points[child];
+                this.distances[i] = this.distances[child];
+                i = child;
+            }
+            this.points[i] = point;
+            this.distances[i] = distance;
+        }
+
+        /**
+         * @return neighbours sorted by distance, heap emptied
+         */
+        Neighbours toNeighbours() {
+            int[] points = new int[this.size];
+            float[] distances = new float[this.size];
+            for (int i = this.size - 1; i >= 0; i--) { // Farthest first out of the heap
+                points[i] = this.points[0];
+                distances[i] = (float) Math.sqrt(Math.max(0, this.distances[0]));
+                siftDown(this.points[i], this.distances[i], i);
+            }
+            this.size = 0;
+            return new Neighbours(points, distances);
+        }
+    }
+}
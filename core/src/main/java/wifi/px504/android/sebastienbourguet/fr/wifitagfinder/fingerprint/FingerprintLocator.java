@@ -0,0 +1,82 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Locate the device from a live scan: weighted k-nearest-neighbours in a radio map.
+ *
+ * The scan is turned into a fingerprint over the radio map vocabulary, access points unknown to
+ * the map are ignored. The position is the mean of the neighbours positions weighted by the
+ * inverse of their distance, the label the one with the largest total weight.
+ * Not thread safe: the fingerprint buffer is reused from one scan to the next.
+ */
+public class FingerprintLocator {
+    public static final int DEFAULT_K = 4;
+
+    private final FingerprintIndex index;
+    private final int k;
+    private final float[] query;
+    private final double[] labelWeights;
+
+    /**
+     * @param index index of radio map
+     * @param k number of neighbours
+     */
+    public FingerprintLocator(FingerprintIndex index, int k) {
+        this.index = index;
+        this.k = k;
+        this.query = new float[index.getMap().getDimensions()];
+        this.labelWeights = new double[index.getMap().getLabelCount()];
+    }
+
+    public FingerprintIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @param scan live scan
+     * @return estimated location, null if no access point of the scan is in radio map
+     */
+    public Location locate(ScanBatch scan) {
+        RadioMap map = this.index.getMap();
+        Arrays.fill(this.query, RadioMap.NO_SIGNAL);
+        int matched = 0;
+        for (int i = 0; i < scan.size(); i++) {
+            int dimension = map.getVocabulary().indexOf(scan.getMac(i));
+            if (dimension >= 0) {
+                float level = Math.max(RadioMap.NO_SIGNAL, Math.min(0, scan.getLevel(i)));
+                if (this.query[dimension] == RadioMap.NO_SIGNAL) {
+                    matched++;
+                }
+                this.query[dimension] = Math.max(this.query[dimension], level);
+            }
+        }
+        if (matched == 0) {
+            return null;
+        }
+        FingerprintIndex.Neighbours neighbours = this.index.search(this.query, this.k);
+        if (neighbours.size() == 0) {
+            return null;
+        }
+        double x = 0;
+        double y = 0;
+        double total = 0;
+        Arrays.fill(this.labelWeights, 0);
+        int best = map.getLabelIndex(neighbours.getPoint(0));
+        for (int n = 0; n < neighbours.size(); n++) {
+            int point = neighbours.getPoint(n);
+            double weight = 1 / (neighbours.getDistance(n) + 1d); // + 1 dB: an exact match doesn't take all the weight
+            x += weight * map.getX(point);
+            y += weight * map.getY(point);
+            total += weight;
+            int label = map.getLabelIndex(point);
+            this.labelWeights[label] += weight;
+            if (this.labelWeights[label] > this.labelWeights[best]) {
+                best = label;
+            }
+        }
+        return new Location((float) (x / total), (float) (y / total), map.getLabelName(best), neighbours.size(), neighbours.getDistance(0), matched);
+    }
+}
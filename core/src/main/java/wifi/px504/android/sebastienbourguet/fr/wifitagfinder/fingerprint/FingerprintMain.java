@@ -0,0 +1,132 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.CsvScanSource;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+import static java.lang.String.format;
+
+/**
+ * Build a radio map from survey captures, or locate the scans of a capture in a radio map
+ *
+ * Usage:
+ * <pre>
+ * FingerprintMain build -o map [-separator c] [-timezone id] (-point label x y capture...)...
+ * FingerprintMain locate -map map [-k n] [-threads n] [-separator c] [-timezone id] capture...
+ * </pre>
+ * Each survey capture is recorded standing at the position of the preceding <code>-point</code>.
+ */
+public final class FingerprintMain {
+    private static final String USAGE = "Usage: FingerprintMain build -o map [-separator c] [-timezone id] (-point label x y capture...)...\n"
+            + "       FingerprintMain locate -map map [-k n] [-threads n] [-separator c] [-timezone id] capture...";
+
+    private FingerprintMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            usage();
+        }
+        byte separator = CsvRowEncoder.DEFAULT_SEPARATOR;
+        TimeZone timeZone = TimeZone.getDefault();
+        File output = null;
+        File mapFile = null;
+        int k = FingerprintLocator.DEFAULT_K;
+        int threads = Runtime.getRuntime().availableProcessors();
+        RadioMapBuilder builder = new RadioMapBuilder();
+        String label = null;
+        float x = 0;
+        float y = 0;
+        List<File> files = new ArrayList<>();
+        boolean build = args[0].equals("build");
+        if (!build && !args[0].equals("locate")) {
+            usage();
+        }
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                output = new File(args[++i]);
+            } else if (args[i].equals("-map") && i + 1 < args.length) {
+                mapFile = new File(args[++i]);
+            } else if (args[i].equals("-k") && i + 1 < args.length) {
+                k = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-separator") && i + 1 < args.length) {
+                separator = (byte) args[++i].charAt(0);
+            } else if (args[i].equals("-timezone") && i + 1 < args.length) {
+                timeZone = TimeZone.getTimeZone(args[++i]);
+            } else if (args[i].equals("-point") && i + 3 < args.length) {
+                label = args[++i];
+                x = Float.parseFloat(args[++i]);
+                y = Float.parseFloat(args[++i]);
+            } else if (build) {
+                if (label == null) {
+                    usage();
+                }
+                CsvScanSource source = CsvScanSource.open(Collections.singletonList(new File(args[i])), separator, timeZone);
+                try {
+                    int added = builder.addSurvey(label, x, y, source);
+                    System.out.println(format("%s: %d reference points at %s (%.1f, %.1f)", args[i], added, label, x, y));
+                } finally {
+                    source.close();
+                }
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+
+        if (build) {
+            if (output == null || builder.size() == 0) {
+                usage();
+            }
+            RadioMap map = builder.build();
+            map.write(output);
+            System.out.println(format("Radio map %s: %d reference points, %d locations, %d access points",
+                    output, map.size(), map.getLabelCount(), map.getDimensions()));
+        } else {
+            if (mapFile == null || files.isEmpty()) {
+                usage();
+            }
+            locate(RadioMap.read(mapFile), k, threads, files, separator, timeZone);
+        }
+    }
+
+    private static void locate(RadioMap map, int k, int threads, List<File> files, byte separator, TimeZone timeZone) throws IOException {
+        FingerprintIndex index = new FingerprintIndex(map, threads);
+        FingerprintLocator locator = new FingerprintLocator(index, k);
+        CsvScanSource source = CsvScanSource.open(files, separator, timeZone);
+        ScanBatch batch = new ScanBatch();
+        int scans = 0;
+        int located = 0;
+        long elapsed = 0;
+        try {
+            while (source.next(batch)) {
+                scans++;
+                long start = System.nanoTime();
+                Location location = locator.locate(batch);
+                elapsed += System.nanoTime() - start;
+                if (location != null) {
+                    located++;
+                    System.out.println(format("%tT %s", batch.getTimeMillis(), location));
+                }
+            }
+        } finally {
+            source.close();
+            index.close();
+        }
+        System.out.println(format("Located %d of %d scans in a map of %d reference points, %d shards: %.1f us per scan",
+                located, scans, map.size(), index.getShards(), scans == 0 ? 0 : elapsed / 1e3 / scans));
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+}
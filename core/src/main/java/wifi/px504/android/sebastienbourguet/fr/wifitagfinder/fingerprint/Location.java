@@ -0,0 +1,62 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+/**
+ * Position estimated from a live scan by {@link FingerprintLocator}
+ */
+public final class Location {
+    private final float x;
+    private final float y;
+    private final String label;
+    private final int neighbours;
+    private final float distance;
+    private final int matchedAccessPoints;
+
+    /**
+     * @param x estimated position (in m)
+     * @param y estimated position (in m)
+     * @param label location label voted by neighbours
+     * @param neighbours number of reference points used
+     * @param distance fingerprint distance of nearest reference point (in dB)
+     * @param matchedAccessPoints access points of the scan found in radio map
+     */
+    public Location(float x, float y, String label, int neighbours, float distance, int matchedAccessPoints) {
+        this.x = x;
+        this.y = y;
+        this.label = label;
+        this.neighbours = neighbours;
+        this.distance = distance;
+        this.matchedAccessPoints = matchedAccessPoints;
+    }
+
+    public float getX() {
+        return this.x;
+    }
+
+    public float getY() {
+        return this.y;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+
+    public int getNeighbours() {
+        return this.neighbours;
+    }
+
+    /**
+     * @return fingerprint distance of nearest reference point (in dB), large when the place wasn't surveyed
+     */
+    public float getDistance() {
+        return this.distance;
+    }
+
+    public int getMatchedAccessPoints() {
+        return this.matchedAccessPoints;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%.1f, %.1f) d=%.1f dB, %d access points", this.label, this.x, this.y, this.distance, this.matchedAccessPoints);
+    }
+}
@@ -0,0 +1,221 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Radio map of a surveyed place: reference points, each with its position, location label and
+ * fingerprint, the level of every access point of the vocabulary heard there.
+ *
+ * Fingerprints are dense float vectors, one dimension per access point, stored one after the
+ * other in a single array; access points not heard have level {@link #NO_SIGNAL}. Built by
+ * {@link RadioMapBuilder}, saved and loaded in a small binary format:
+ * <pre>
+ * File      = magic(int) version(byte) dimensions(int) mac(long)* labelCount(int) label(UTF)*
+ *             points(int) Point*
+ * Point     = x(float) y(float) labelIndex(int) level(float)*  (dimensions levels)
+ * </pre>
+ */
+public class RadioMap {
+    public static final float NO_SIGNAL = -100; // Level of access points not heard (in dBm), floor of heard levels
+    static final int MAGIC = 0x524D4150; // "RMAP"
+    static final byte VERSION = 1;
+
+    private final BssidVocabulary vocabulary;
+    private final int dimensions;
+    private final float[] levels; // By point, then dimension
+    private final float[] xs;
+    private final float[] ys;
+    private final int[] labelIndexes;
+    private final String[] labels;
+
+    RadioMap(BssidVocabulary vocabulary, float[] levels, float[] xs, float[] ys, int[] labelIndexes, String[] labels) {
+        this.vocabulary = vocabulary;
+        this.dimensions = vocabulary.size();
+        this.levels = levels;
+        this.xs = xs;
+        this.ys = ys;
+        this.labelIndexes = labelIndexes;
+        this.labels = labels;
+    }
+
+    public BssidVocabulary getVocabulary() {
+        return this.vocabulary;
+    }
+
+    /**
+     * @return number of access points, dimension of fingerprints
+     */
+    public int getDimensions() {
+        return this.dimensions;
+    }
+
+    /**
+     * @return number of reference points
+     */
+    public int size() {
+        return this.xs.length;
+    }
+
+    /**
+     * @param point reference point index
+     * @param dimension access point index in vocabulary
+     * @return level of access point at reference point (in dBm), {@link #NO_SIGNAL} if not heard
+     */
+    public float getLevel(int point, int dimension) {
+        return this.levels[point * this.dimensions + dimension];
+    }
+
+    /**
+     * @return fingerprints of every reference point, point after point; not to be modified
+     */
+    float[] levels() {
+        return this.levels;
+    }
+
+    public float getX(int point) {
+        return this.xs[point];
+    }
+
+    public float getY(int point) {
+        return this.ys[point];
+    }
+
+    /**
+     * @param point reference point index
+     * @return location label of reference point
+     */
+    public String getLabel(int point) {
+        return this.labels[this.labelIndexes[point]];
+    }
+
+    /**
+     * @param point reference point index
+     * @return index of point location label, labels are numbered from 0 in order of appearance
+     */
+    public int getLabelIndex(int point) {
+        return this.labelIndexes[point];
+    }
+
+    /**
+     * @param labelIndex label index
+     * @return location label
+     */
+    public String getLabelName(int labelIndex) {
+        return this.labels[labelIndex];
+    }
+
+    /**
+     * @return number of distinct location labels
+     */
+    public int getLabelCount() {
+        return this.labels.length;
+    }
+
+    /**
+     * @param file radio map file, overwritten
+     * @throws IOException if write failed
+     */
+    public void write(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param out destination, flushed but not closed
+     * @throws IOException if write failed
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1_024));
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(this.dimensions);
+        for (int d = 0; d < this.dimensions; d++) {
+            data.writeLong(this.vocabulary.getMac(d));
+        }
+        data.writeInt(this.labels.length);
+        for (String label : this.labels) {
+            data.writeUTF(label);
+        }
+        data.writeInt(size());
+        for (int p = 0; p < size(); p++) {
+            data.writeFloat(this.xs[p]);
+            data.writeFloat(this.ys[p]);
+            data.writeInt(this.labelIndexes[p]);
+            for (int i = p * this.dimensions, end = i + this.dimensions; i < end; i++) {
+                data.writeFloat(this.levels[i]);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * @param file radio map file
+     * @return radio map
+     * @throws IOException if file can't be read or isn't a radio map
+     */
+    public static RadioMap read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param in radio map stream, not closed
+     * @return radio map
+     * @throws IOException if stream failed or isn't a radio map
+     */
+    public static RadioMap read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64 * 1_024));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a radio map");
+        }
+        byte version = data.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported radio map version " + version);
+        }
+        BssidVocabulary vocabulary = new BssidVocabulary();
+        int dimensions = data.readInt();
+        for (int d = 0; d < dimensions; d++) {
+            if (vocabulary.intern(data.readLong()) != d) {
+                throw new IOException("Damaged radio map: duplicate access point");
+            }
+        }
+        String[] labels = new String[data.readInt()];
+        for (int l = 0; l < labels.length; l++) {
+            labels[l] = data.readUTF();
+        }
+        int points = data.readInt();
+        float[] xs = new float[points];
+        float[] ys = new float[points];
+        int[] labelIndexes = new int[points];
+        float[] levels = new float[points * dimensions];
+        for (int p = 0; p < points; p++) {
+            xs[p] = data.readFloat();
+            ys[p] = data.readFloat();
+            labelIndexes[p] = data.readInt();
+            if (labelIndexes[p] < 0 || labelIndexes[p] >= labels.length) {
+                throw new IOException("Damaged radio map: label " + labelIndexes[p]);
+            }
+            for (int i = p * dimensions, end = i + dimensions; i < end; i++) {
+                levels[i] = data.readFloat();
+            }
+        }
+        return new RadioMap(vocabulary, levels, xs, ys, labelIndexes, labels);
+    }
+}
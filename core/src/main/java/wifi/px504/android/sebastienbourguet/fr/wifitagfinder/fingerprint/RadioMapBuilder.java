@@ -0,0 +1,145 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.ScanSource;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Build a {@link RadioMap} from labelled survey captures: each scan recorded at a surveyed
+ * position becomes a reference point.
+ *
+ * The vocabulary grows while scans are added, so fingerprints are kept sparse (access point
+ * index and level) until {@link #build()} lays them out as dense vectors.
+ */
+public class RadioMapBuilder {
+    private final BssidVocabulary vocabulary = new BssidVocabulary();
+    private final HashMap<String, Integer> labelIndexes = new HashMap<>();
+    private final List<String> labels = new ArrayList<>();
+    private int[] starts = new int[1_024 + 1]; // By point, start of its entries, then end of last point
+    private float[] xs = new float[1_024];
+    private float[] ys = new float[1_024];
+    private int[] pointLabels = new int[1_024];
+    private int[] dimensions = new int[16 * 1_024]; // Sparse entries of every point
+    private float[] levels = new float[16 * 1_024];
+    private int[] seenIn = new int[256]; // By dimension, point number + 1 of last scan holding it
+    private int[] seenEntry = new int[256]; // By dimension, its entry in that scan
+    private int points;
+    private int entries;
+
+    /**
+     * Add a reference point
+     * @param label location label, such as a room name
+     * @param x position of survey (in m)
+     * @param y position of survey (in m)
+     * @param scan scan recorded at this position
+     * @return index of reference point, -1 if scan holds no valid access point
+     */
+    public int add(String label, float x, float y, ScanBatch scan) {
+        int start = this.entries;
+        for (int i = 0; i < scan.size(); i++) {
+            long mac = scan.getMac(i);
+            if (mac == MacAddress.INVALID) {
+                continue;
+            }
+            int dimension = this.vocabulary.intern(mac);
+            float level = Math.max(RadioMap.NO_SIGNAL, Math.min(0, scan.getLevel(i)));
+            if (dimension == this.seenIn.length) {
+                this.seenIn = Arrays.copyOf(this.seenIn, dimension * 2);
+                this.seenEntry = Arrays.copyOf(this.seenEntry, dimension * 2);
+            }
+            if (this.seenIn[dimension] == this.points + 1) { // Same BSSID twice in a scan, keep strongest
+                int entry = this.seenEntry[dimension];
+                this.levels[entry] = Math.max(this.levels[entry], level);
+                continue;
+            }
+            this.seenIn[dimension] = this.points + 1;
+            this.seenEntry[dimension] = this.entries;
+            if (this.entries == this.dimensions.length) {
+                this.dimensions = Arrays.copyOf(this.dimensions, this.entries * 2);
+                this.levels = Arrays.copyOf(this.levels, this.entries * 2);
+            }
+            this.dimensions[this.entries] = dimension;
+            this.levels[this.entries] = level;
+            this.entries++;
+        }
+        if (this.entries == start) {
+            return -1;
+        }
+        int point = this.points++;
+        if (point == this.xs.length) {
+            this.xs = Arrays.copyOf(this.xs, point * 2);
+            this.ys = Arrays.copyOf(this.ys, point * 2);
+            this.pointLabels = Arrays.copyOf(this.pointLabels, point * 2);
+            this.starts = Arrays.copyOf(this.starts, point * 2 + 1);
+        }
+        this.xs[point] = x;
+        this.ys[point] = y;
+        this.pointLabels[point] = labelIndex(label);
+        this.starts[point] = start;
+        this.starts[point + 1] = this.entries;
+        return point;
+    }
+
+    /**
+     * Add every scan of a survey capture recorded at one position
+     * @param label location label
+     * @param x position of survey (in m)
+     * @param y position of survey (in m)
+     * @param source survey capture, read to its end but not closed
+     * @return number of reference points added
+     * @throws IOException if reading failed
+     */
+    public int addSurvey(String label, float x, float y, ScanSource source) throws IOException {
+        ScanBatch batch = new ScanBatch();
+        int added = 0;
+        while (source.next(batch)) {
+            if (add(label, x, y, batch) >= 0) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return number of reference points added so far
+     */
+    public int size() {
+        return this.points;
+    }
+
+    /**
+     * @return radio map of the points added so far, with dense fingerprints
+     */
+    public RadioMap build() {
+        int dimensions = this.vocabulary.size();
+        float[] dense = new float[this.points * dimensions];
+        Arrays.fill(dense, RadioMap.NO_SIGNAL);
+        for (int p = 0; p < this.points; p++) {
+            for (int e = this.starts[p]; e < this.starts[p + 1]; e++) {
+                dense[p * dimensions + this.dimensions[e]] = this.levels[e];
+            }
+        }
+        BssidVocabulary vocabulary = new BssidVocabulary(); // Copy, the builder can go on
+        for (int d = 0; d < dimensions; d++) {
+            vocabulary.intern(this.vocabulary.getMac(d));
+        }
+        return new RadioMap(vocabulary, dense, Arrays.copyOf(this.xs, this.points), Arrays.copyOf(this.ys, this.points),
+                Arrays.copyOf(this.pointLabels, this.points), this.labels.toArray(new String[this.labels.size()]));
+    }
+
+    private int labelIndex(String label) {
+        Integer index = this.labelIndexes.get(label);
+        if (index == null) {
+            index = this.labels.size();
+            this.labels.add(label);
+            this.labelIndexes.put(label, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,350 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+/**
+ * Read a capture written by {@link BinaryLogWriter}.
+ *
+ * The file is memory mapped, records are decoded in place from the mapping when asked,
+ * nothing is copied. Opening the file walks the section headers once to load the dictionary
+ * and locate record blocks, then any record can be reached in O(log(blocks)).
+ * Files are limited to 2 GB (one mapping), split longer captures.
+ */
+public class BinaryLogReader implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final long creationTime;
+
+    // Dictionary
+    private String[] bssids = new String[256];
+    private String[] ssids = new String[256];
+    private String[] capabilities = new String[256];
+    private int dictionarySize;
+
+    // Record blocks
+    private long[] blockFirstRecord = new long[64];
+    private int[] blockPosition = new int[64]; // Position of first record in map
+    private long[] blockTime = new long[64];
+    private byte[] blockLevel = new byte[64];
+    private int blockCount;
+    private long recordCount;
+
+    /**
+     * @param path binary capture
+     * @throws IOException if file can't be read or is not a binary capture
+     */
+    public BinaryLogReader(File path) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = this.file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Capture larger than 2 GB: " + path);
+            }
+            this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (this.map.limit() < BinaryLogWriter.HEADER_SIZE || this.map.getInt(0) != BinaryLogWriter.MAGIC) {
+                throw new IOException("Not a binary capture: " + path);
+            }
+            if (this.map.getShort(4) != BinaryLogWriter.VERSION || this.map.getShort(6) != BinaryLogWriter.RECORD_SIZE) {
+                throw new IOException("Unsupported binary capture version: " + path);
+            }
+            this.creationTime = this.map.getLong(8);
+            loadSections();
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    private void loadSections() {
+        int limit = this.map.limit();
+        int pos = BinaryLogWriter.HEADER_SIZE;
+        while (pos + 5 <= limit) {
+            byte type = this.map.get(pos);
+            int count = this.map.getInt(pos + 1);
+            if (type == BinaryLogWriter.DICTIONARY) {
+                int next = loadDictionary(pos + 5, count, limit);
+                if (next < 0) {
+                    break; // Truncated section
+                }
+                pos = next;
+            } else if (type == BinaryLogWriter.RECORDS) {
+                int first = pos + BinaryLogWriter.RECORDS_HEADER_SIZE;
+                if (count <= 0 || first + (long) count * BinaryLogWriter.RECORD_SIZE > limit) {
+                    break; // Truncated section
+                }
+                addBlock(first, this.map.getLong(pos + 5), this.map.get(pos + 13), count);
+                pos = first + count * BinaryLogWriter.RECORD_SIZE;
+            } else {
+                break; // Unknown data, stop here
+            }
+        }
+    }
+
+    /**
+     * @return position after dictionary section, -1 if truncated
+     */
+    private int loadDictionary(int pos, int count, int limit) {
+        String[] entry = new String[3];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < 3; j++) {
+                if (pos + 2 > limit) {
+                    return -1;
+                }
+                short length = this.map.getShort(pos);
+                pos += 2;
+                if (length < 0) {
+                    entry[j] = null;
+                } else {
+                    if (pos + length > limit) {
+                        return -1;
+                    }
+                    byte[] bytes = new byte[length];
+                    for (int k = 0; k < length; k++) {
+                        bytes[k] = this.map.get(pos + k);
+                    }
+                    entry[j] = new String(bytes, UTF8);
+                    pos += length;
+                }
+            }
+            if (this.dictionarySize == this.bssids.length) {
+                this.bssids = grow(this.bssids);
+                this.ssids = grow(this.ssids);
+                this.capabilities = grow(this.capabilities);
+            }
+            this.bssids[this.dictionarySize] = entry[0];
+            this.ssids[this.dictionarySize] = entry[1];
+            this.capabilities[this.dictionarySize] = entry[2];
+            this.dictionarySize++;
+        }
+        return pos;
+    }
+
+    private void addBlock(int position, long time, byte level, int count) {
+        if (this.blockCount == this.blockPosition.length) {
+            int size = this.blockCount * 2;
+            long[] first = new long[size];
+            int[] positions = new int[size];
+            long[] times = new long[size];
+            byte[] levels = new byte[size];
+            System.arraycopy(this.blockFirstRecord, 0, first, 0, this.blockCount);
+            System.arraycopy(this.blockPosition, 0, positions, 0, this.blockCount);
+            System.arraycopy(this.blockTime, 0, times, 0, this.blockCount);
+            System.arraycopy(this.blockLevel, 0, levels, 0, this.blockCount);
+            this.blockFirstRecord = first;
+            this.blockPosition = positions;
+            this.blockTime = times;
+            this.blockLevel = levels;
+        }
+        this.blockFirstRecord[this.blockCount] = this.recordCount;
+        this.blockPosition[this.blockCount] = position;
+        this.blockTime[this.blockCount] = time;
+        this.blockLevel[this.blockCount] = level;
+        this.blockCount++;
+        this.recordCount += count;
+    }
+
+    private static String[] grow(String[] arr) {
+        String[] copy = new String[arr.length * 2];
+        System.arraycopy(arr, 0, copy, 0, arr.length);
+        return copy;
+    }
+
+    public long getRecordCount() {
+        return this.recordCount;
+    }
+
+    public long getCreationTime() {
+        return this.creationTime;
+    }
+
+    public int getDictionarySize() {
+        return this.dictionarySize;
+    }
+
+    public String getBssid(int apId) {
+        return this.bssids[apId];
+    }
+
+    public String getSsid(int apId) {
+        return this.ssids[apId];
+    }
+
+    public String getCapabilities(int apId) {
+        return this.capabilities[apId];
+    }
+
+    /**
+     * @return a new cursor placed before the first record
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Random access to one record
+     * @param index record index
+     * @param record record to fill
+     */
+    public void read(long index, HistoryRecord record) {
+        Cursor cursor = new Cursor();
+        cursor.seek(index);
+        cursor.next();
+        cursor.read(record);
+    }
+
+    /**
+     * Find first record at or after given time, records being written in time order
+     * @param timeMillis searched time (epoch, in ms)
+     * @return record index, getRecordCount() if all records are older
+     */
+    public long indexOfTime(long timeMillis) {
+        int low = 0;
+        int high = this.blockCount - 1;
+        while (low < high) { // Last block starting before searched time
+            int mid = (low + high + 1) >>> 1;
+            if (this.blockTime[mid] < timeMillis) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        Cursor cursor = new Cursor();
+        if (this.blockCount > 0) {
+            cursor.seek(this.blockFirstRecord[low]);
+        }
+        while (cursor.next()) {
+            if (cursor.getTimeMillis() >= timeMillis) {
+                return cursor.getIndex();
+            }
+        }
+        return this.recordCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close(); // Mapping is released by the GC
+    }
+
+    private int blockOf(long index) {
+        int low = 0;
+        int high = this.blockCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (this.blockFirstRecord[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sequential reader over records, values are decoded from the mapping on each get.
+     */
+    public class Cursor {
+        private long index = -1;
+        private int block;
+        private long blockEnd; // Index of first record of next block
+        private int position = -1; // Position of current record in map
+
+        /**
+         * Move to next record
+         * @return False when all records have been read
+         */
+        public boolean next() {
+            if (this.index + 1 >= recordCount) {
+                this.index = recordCount;
+                return false;
+            }
+            this.index++;
+            if (this.position < 0 || this.index >= this.blockEnd) {
+                locate();
+            } else {
+                this.position += BinaryLogWriter.RECORD_SIZE;
+            }
+            return true;
+        }
+
+        /**
+         * Place cursor just before given record, next() then moves to it
+         * @param index record index
+         */
+        public void seek(long index) {
+            if (index < 0 || index >= recordCount) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+            }
+            this.index = index - 1;
+            this.position = -1;
+        }
+
+        private void locate() {
+            this.block = blockOf(this.index);
+            this.blockEnd = this.block + 1 < blockCount ? blockFirstRecord[this.block + 1] : recordCount;
+            this.position = blockPosition[this.block] + (int) (this.index - blockFirstRecord[this.block]) * BinaryLogWriter.RECORD_SIZE;
+        }
+
+        public long getIndex() {
+            return this.index;
+        }
+
+        public long getTimeMillis() {
+            return blockTime[this.block] + map.getInt(this.position);
+        }
+
+        public int getApId() {
+            return map.getInt(this.position + 4);
+        }
+
+        public int getFrequency() {
+            return map.getShort(this.position + 8) & 0xFFFF;
+        }
+
+        public int getLevel() {
+            return blockLevel[this.block] + map.get(this.position + 10);
+        }
+
+        public int getChannelWidth() {
+            return map.get(this.position + 11);
+        }
+
+        public String getBssid() {
+            return bssids[getApId()];
+        }
+
+        public String getSsid() {
+            return ssids[getApId()];
+        }
+
+        public String getCapabilities() {
+            return capabilities[getApId()];
+        }
+
+        /**
+         * Copy current record values
+         * @param record record to fill
+         */
+        public void read(HistoryRecord record) {
+            int apId = getApId();
+            record.timeMillis = getTimeMillis();
+            record.bssid = bssids[apId];
+            record.ssid = ssids[apId];
+            record.capabilities = capabilities[apId];
+            record.level = getLevel();
+            record.frequency = getFrequency();
+            record.channel = WifiChannels.frequencyToChannel(record.frequency);
+            record.channelWidth = getChannelWidth();
+            record.device = null;
+        }
+    }
+}
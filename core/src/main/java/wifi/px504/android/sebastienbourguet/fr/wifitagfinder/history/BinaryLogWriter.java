@@ -0,0 +1,229 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Write captures in the compact binary log format, read back by {@link BinaryLogReader}.
+ *
+ * <pre>
+ * File       = Header Section*
+ * Header     = magic(int) version(short) recordSize(short) creationTime(long)
+ * Section    = Dictionary | Records
+ * Dictionary = 'D' count(int) Entry*                 (entries numbered in order of appearance)
+ * Entry      = bssid ssid capabilities               (each: length(short, -1 for null) UTF-8 bytes)
+ * Records    = 'R' count(int) baseTime(long) baseLevel(byte) Record*
+ * Record     = timeOffset(int) apId(int) frequency(short) levelDelta(byte) channelWidth(byte)
+ * </pre>
+ * Records are fixed width: time is stored in ms relative to the block base time, level relative
+ * to the block base level, and the access point as an id in the dictionary of
+ * (BSSID, SSID, capabilities) seen so far. A dictionary section is always written before the
+ * first block using its entries, so a file cut by a crash is still readable up to its last block.
+ */
+public class BinaryLogWriter implements Closeable {
+    static final int MAGIC = 0x57544642; // "WTFB"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 12;
+    static final int RECORDS_HEADER_SIZE = 14;
+    static final byte DICTIONARY = 'D';
+    static final byte RECORDS = 'R';
+    public static final int BLOCK_RECORDS = 256;
+    private static final int MAX_STRING_BYTES = 8 * 1_024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final ByteBuffer block = ByteBuffer.allocate(RECORDS_HEADER_SIZE + BLOCK_RECORDS * RECORD_SIZE);
+    private int blockCount;
+    private long blockTime;
+    private int blockLevel;
+    private long recordCount;
+
+    // Dictionary: BSSID -> chain of (SSID, capabilities) variants
+    private final HashMap<String, Entry> dictionary = new HashMap<>();
+    private int dictionarySize;
+    private final ByteBuffer pending = ByteBuffer.allocate(64 * 1_024); // New entries not written yet
+    private int pendingCount;
+
+    private static class Entry {
+        final String ssid;
+        final String capabilities;
+        final int id;
+        Entry next;
+
+        Entry(String ssid, String capabilities, int id) {
+            this.ssid = ssid;
+            this.capabilities = capabilities;
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param out destination stream, closed with the writer
+     * @param creationTime capture creation time (epoch, in ms)
+     * @throws IOException if header can't be written
+     */
+    public BinaryLogWriter(OutputStream out, long creationTime) throws IOException {
+        this.out = out;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putLong(creationTime);
+        out.write(header.array());
+    }
+
+    /**
+     * Append one access point
+     * @param ssid network name
+     * @param bssid access point MAC address
+     * @param capabilities security capabilities (null if unknown)
+     * @param timeMillis scan time (epoch, in ms)
+     * @param level signal level in dB
+     * @param frequency frequency in MHz
+     * @param channelWidth channel width code (-1 if unknown)
+     * @throws IOException if stream failed
+     */
+    public void write(String ssid, String bssid, String capabilities, long timeMillis, int level, int frequency, int channelWidth) throws IOException {
+        long offset = timeMillis - this.blockTime;
+        int delta = level - this.blockLevel;
+        if (this.blockCount > 0 && (offset < 0 || offset > Integer.MAX_VALUE || delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE)) {
+            writeBlock(); // Values don't fit relative to this block, start a new one
+        }
+        if (this.blockCount == 0) {
+            this.blockTime = timeMillis;
+            this.blockLevel = Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, level));
+            this.block.position(RECORDS_HEADER_SIZE);
+            offset = 0;
+            delta = level - this.blockLevel;
+        }
+        int id = idOf(bssid, ssid, capabilities);
+        this.block.putInt((int) offset);
+        this.block.putInt(id);
+        this.block.putShort((short) frequency);
+        this.block.put((byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, delta)));
+        this.block.put((byte) channelWidth);
+        this.recordCount++;
+        if (++this.blockCount == BLOCK_RECORDS) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Append every access point of a scan
+     * @param batch scan to write
+     * @throws IOException if stream failed
+     */
+    public void write(ScanBatch batch) throws IOException {
+        long time = batch.getTimeMillis();
+        for (int i = 0; i < batch.size(); i++) {
+            write(batch.getSsid(i), batch.getBssid(i), batch.getCapabilities(i), time, batch.getLevel(i), batch.getFrequency(i), batch.getChannelWidth(i));
+        }
+    }
+
+    /**
+     * Write current block (even if not full) and flush stream
+     * @throws IOException if stream failed
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            this.out.close();
+        }
+    }
+
+    public long getRecordCount() {
+        return this.recordCount;
+    }
+
+    public int getDictionarySize() {
+        return this.dictionarySize;
+    }
+
+    private int idOf(String bssid, String ssid, String capabilities) throws IOException {
+        Entry first = this.dictionary.get(bssid);
+        for (Entry e = first; e != null; e = e.next) {
+            if (same(e.ssid, ssid) && same(e.capabilities, capabilities)) {
+                return e.id;
+            }
+        }
+        byte[] b = bytes(bssid);
+        byte[] s = bytes(ssid);
+        byte[] c = bytes(capabilities);
+        Entry entry = new Entry(ssid, capabilities, this.dictionarySize++);
+        entry.next = first;
+        this.dictionary.put(bssid, entry);
+        int size = 6 + length(b) + length(s) + length(c);
+        if (this.pending.remaining() < size) {
+            writeDictionary(); // Ids already given stay valid, entries are read in order
+        }
+        putString(this.pending, b);
+        putString(this.pending, s);
+        putString(this.pending, c);
+        this.pendingCount++;
+        return entry.id;
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static byte[] bytes(String s) {
+        if (s == null) {
+            return null;
+        }
+        byte[] b = s.getBytes(UTF8);
+        if (b.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String too long for binary log");
+        }
+        return b;
+    }
+
+    private static int length(byte[] b) {
+        return b == null ? 0 : b.length;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] b) {
+        if (b == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) b.length);
+            buffer.put(b);
+        }
+    }
+
+    private void writeDictionary() throws IOException {
+        if (this.pendingCount == 0) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.put(DICTIONARY).putInt(this.pendingCount);
+        this.out.write(header.array());
+        this.out.write(this.pending.array(), 0, this.pending.position());
+        this.pending.clear();
+        this.pendingCount = 0;
+    }
+
+    private void writeBlock() throws IOException {
+        writeDictionary();
+        if (this.blockCount == 0) {
+            return;
+        }
+        int size = this.block.position();
+        this.block.position(0);
+        this.block.put(RECORDS).putInt(this.blockCount).putLong(this.blockTime).put((byte) this.blockLevel);
+        this.out.write(this.block.array(), 0, size);
+        this.block.clear();
+        this.blockCount = 0;
+    }
+}
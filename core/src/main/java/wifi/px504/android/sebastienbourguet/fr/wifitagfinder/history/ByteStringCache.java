@@ -0,0 +1,57 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.nio.charset.Charset;
+
+/**
+ * Small fixed size cache turning UTF-8 byte ranges into Strings.
+ *
+ * Captures repeat the same SSID, BSSID and capabilities on every scan, so most lookups
+ * hit and no String is created. On collision the previous entry is replaced.
+ */
+class ByteStringCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[][] keys;
+    private final String[] values;
+    private final int mask;
+
+    /**
+     * @param capacity number of entries, rounded up to a power of two
+     */
+    ByteStringCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.keys = new byte[size][];
+        this.values = new String[size];
+        this.mask = size - 1;
+    }
+
+    String get(byte[] buf, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & this.mask;
+        byte[] key = this.keys[slot];
+        if (key != null && equals(key, buf, from, to)) {
+            return this.values[slot];
+        }
+        key = new byte[to - from];
+        System.arraycopy(buf, from, key, 0, key.length);
+        String value = new String(key, UTF8);
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        return value;
+    }
+
+    private static boolean equals(byte[] key, byte[] buf, int from, int to) {
+        if (key.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buf[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
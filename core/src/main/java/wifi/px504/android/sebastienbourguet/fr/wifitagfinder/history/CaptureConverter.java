@@ -0,0 +1,138 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TimeZone;
+
+/**
+ * Convert captures between the CSV layout (<code>HISTO_*.csv</code>) and the binary log format.
+ *
+ * Legacy rows (without width and capabilities) stay legacy rows after a round trip.
+ * CSV timestamps have a one second resolution, binary to CSV truncates milliseconds.
+ */
+public final class CaptureConverter {
+    private static final int CHUNK = 64 * 1_024;
+
+    private CaptureConverter() {
+    }
+
+    /**
+     * Convert a CSV capture to binary
+     * @param csv CSV capture
+     * @param bin binary capture to create
+     * @param timeZone time zone of the device which recorded the capture
+     * @return number of converted records
+     * @throws IOException if a file can't be read or written
+     */
+    public static long csvToBinary(File csv, File bin, TimeZone timeZone) throws IOException {
+        InputStream in = new FileInputStream(csv);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(bin), CHUNK);
+            try {
+                return csvToBinary(in, out, csv.lastModified(), timeZone);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Convert a CSV capture stream to binary, streams are not closed
+     * @param csv CSV capture stream
+     * @param bin destination stream
+     * @param creationTime creation time stored in the binary header
+     * @param timeZone time zone of the device which recorded the capture
+     * @return number of converted records
+     * @throws IOException if a stream failed
+     */
+    public static long csvToBinary(InputStream csv, OutputStream bin, long creationTime, TimeZone timeZone) throws IOException {
+        CsvHistoryReader reader = new CsvHistoryReader(csv, CsvRowEncoder.DEFAULT_SEPARATOR, timeZone);
+        BinaryLogWriter writer = new BinaryLogWriter(bin, creationTime);
+        HistoryRecord record = new HistoryRecord();
+        while (reader.next(record)) {
+            writer.write(record.ssid, record.bssid, record.capabilities, record.timeMillis, record.level, record.frequency, record.channelWidth);
+        }
+        writer.flush();
+        return writer.getRecordCount();
+    }
+
+    /**
+     * Convert a binary capture to CSV
+     * @param bin binary capture
+     * @param csv CSV capture to create
+     * @param timeZone time zone used to print timestamps
+     * @return number of converted records
+     * @throws IOException if a file can't be read or written
+     */
+    public static long binaryToCsv(File bin, File csv, TimeZone timeZone) throws IOException {
+        OutputStream out = new FileOutputStream(csv);
+        try {
+            return binaryToCsv(bin, out, timeZone);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Convert a binary capture to CSV, stream is not closed
+     * @param bin binary capture
+     * @param csv destination stream
+     * @param timeZone time zone used to print timestamps
+     * @return number of converted records
+     * @throws IOException if file can't be read or stream failed
+     */
+    public static long binaryToCsv(File bin, OutputStream csv, TimeZone timeZone) throws IOException {
+        BinaryLogReader reader = new BinaryLogReader(bin);
+        try {
+            CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, timeZone, CHUNK + 1_024);
+            HistoryRecord record = new HistoryRecord();
+            BinaryLogReader.Cursor cursor = reader.cursor();
+            while (cursor.next()) {
+                cursor.read(record);
+                if (record.isFullScan()) {
+                    encoder.encode(record.ssid, record.bssid, record.timeMillis, record.level, record.frequency, record.channelWidth, record.capabilities);
+                } else {
+                    encoder.encode(record.ssid, record.bssid, record.timeMillis, record.level, record.channel, record.frequency);
+                }
+                if (encoder.size() >= CHUNK) {
+                    encoder.writeTo(csv);
+                }
+            }
+            encoder.writeTo(csv);
+            csv.flush();
+            return reader.getRecordCount();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param file capture file
+     * @return True if file starts like a binary capture
+     * @throws IOException if file can't be read
+     */
+    public static boolean isBinary(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b < 0) {
+                    return false;
+                }
+                magic = (magic << 8) | b;
+            }
+            return magic == BinaryLogWriter.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Streaming reader of <code>HISTO_*.csv</code> captures, legacy, full scan and merged rows.
+ *
+ * Rows are parsed straight from a byte buffer into a reused {@link HistoryRecord},
+ * only one buffer is kept in memory whatever the size of the capture.
+ * Lines which can't be parsed are skipped and counted.
+ */
+public class CsvHistoryReader implements Closeable {
+    private static final int TIMESTAMP_LENGTH = 12; // yyMMddHHmmss
+
+    private final InputStream in;
+    private final byte separator;
+    private final Calendar calendar;
+    private final ByteStringCache strings = new ByteStringCache(4_096);
+    private byte[] buffer = new byte[64 * 1_024];
+    private int start; // Start of unread data in buffer
+    private int end; // End of valid data in buffer
+    private long bufferOffset; // Position in stream of buffer[0]
+    private boolean eof;
+    private long lineOffset = -1;
+    private int lineFrom; // Bounds in buffer of the last line read, line end excluded
+    private int lineTo;
+    private long malformedLines;
+    private long cachedStamp = -1;
+    private long cachedMillis;
+
+    public CsvHistoryReader(InputStream in) {
+        this(in, CsvRowEncoder.DEFAULT_SEPARATOR, TimeZone.getDefault());
+    }
+
+    /**
+     * @param in capture stream, closed with the reader
+     * @param separator field separator
+     * @param timeZone time zone of the device which recorded the capture
+     */
+    public CsvHistoryReader(InputStream in, byte separator, TimeZone timeZone) {
+        this.in = in;
+        this.separator = separator;
+        this.calendar = Calendar.getInstance(timeZone);
+    }
+
+    /**
+     * Read next valid row
+     * @param record record filled with row values
+     * @return False at end of stream
+     * @throws IOException if stream failed
+     */
+    public boolean next(HistoryRecord record) throws IOException {
+        while (nextLine()) {
+            if (parse(this.buffer, this.lineFrom, this.lineTo, record)) {
+                return true;
+            }
+            this.malformedLines++;
+        }
+        return false;
+    }
+
+    /**
+     * Read only the time of next row, much cheaper than {@link #next(HistoryRecord)}.
+     * Rows whose other fields are malformed are not skipped.
+     * @return time of next row (in ms), Long.MIN_VALUE at end of stream
+     * @throws IOException if stream failed
+     */
+    public long nextTime() throws IOException {
+        while (nextLine()) {
+            int close = findTimestamp(this.buffer, this.lineFrom, this.lineTo);
+            if (close >= 0) {
+                return parseTimestamp(this.buffer, close + 2);
+            }
+            this.malformedLines++;
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Move to next non empty line, its bounds are kept in lineFrom and lineTo
+     * @return False at end of stream
+     */
+    private boolean nextLine() throws IOException {
+        while (true) {
+            int newLine = findNewLine();
+            if (newLine < 0) {
+                return false;
+            }
+            int from = this.start;
+            int to = newLine;
+            this.lineOffset = this.bufferOffset + from;
+            this.start = newLine + 1;
+            // Rows end with "\n\r": '\r' is found at the beginning of the next line
+            if (from < to && this.buffer[from] == '\r') {
+                from++;
+            }
+            if (to > from && this.buffer[to - 1] == '\r') {
+                to--;
+            }
+            if (from < to) { // Not an empty line
+                this.lineFrom = from;
+                this.lineTo = to;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return position in stream (in bytes) of the last line read
+     */
+    public long getLineOffset() {
+        return this.lineOffset;
+    }
+
+    /**
+     * @return position in stream (in bytes) of the next line to read
+     */
+    public long getPosition() {
+        return this.bufferOffset + this.start;
+    }
+
+    public long getMalformedLines() {
+        return this.malformedLines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    /**
+     * Find end of next line, reading stream if needed
+     * @return index of '\n' (or end of data for last line), -1 at end of stream
+     */
+    private int findNewLine() throws IOException {
+        int scanFrom = this.start;
+        while (true) {
+            for (int i = scanFrom; i < this.end; i++) {
+                if (this.buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            if (this.eof) {
+                if (this.start < this.end) { // Last line without line end
+                    this.buffer = ensureRoom(this.buffer, this.end + 1);
+                    this.buffer[this.end] = '\n';
+                    return this.end++;
+                }
+                return -1;
+            }
+            scanFrom = this.end - this.start;
+            fill();
+        }
+    }
+
+    private byte[] ensureRoom(byte[] buf, int size) {
+        if (size <= buf.length) {
+            return buf;
+        }
+        byte[] bigger = new byte[Math.max(buf.length * 2, size)];
+        System.arraycopy(buf, 0, bigger, 0, buf.length);
+        return bigger;
+    }
+
+    /**
+     * Move unread data at beginning of buffer and read more data
+     */
+    private void fill() throws IOException {
+        int remaining = this.end - this.start;
+        if (this.start > 0) {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, remaining);
+            this.bufferOffset += this.start;
+            this.start = 0;
+            this.end = remaining;
+        }
+        if (this.end == this.buffer.length) { // Line longer than buffer
+            this.buffer = ensureRoom(this.buffer, this.buffer.length * 2);
+        }
+        int n = this.in.read(this.buffer, this.end, this.buffer.length - this.end);
+        if (n < 0) {
+            this.eof = true;
+        } else {
+            this.end += n;
+        }
+    }
+
+    private boolean parse(byte[] buf, int from, int to, HistoryRecord record) {
+        byte sep = this.separator;
+        int close = findTimestamp(buf, from, to);
+        if (close < 0) {
+            return false;
+        }
+        int open = -1;
+        for (int i = close - 1; i >= from; i--) {
+            if (buf[i] == '(') {
+                open = i;
+                break;
+            }
+        }
+        if (open < 0) {
+            return false;
+        }
+        record.ssid = this.strings.get(buf, from, open);
+        record.bssid = this.strings.get(buf, open + 1, close);
+        record.timeMillis = parseTimestamp(buf, close + 2);
+
+        int pos = close + TIMESTAMP_LENGTH + 3;
+        int fieldEnd = indexOf(buf, pos, to, sep);
+        if (fieldEnd < 0) {
+            return false;
+        }
+        record.level = parseInt(buf, pos, fieldEnd);
+        pos = fieldEnd + 1;
+        fieldEnd = indexOf(buf, pos, to, sep);
+        if (fieldEnd < 0) {
+            return false;
+        }
+        record.channel = parseInt(buf, pos, fieldEnd);
+        pos = fieldEnd + 1;
+        fieldEnd = indexOf(buf, pos, to, sep);
+        if (fieldEnd < 0) { // Legacy row
+            record.frequency = parseInt(buf, pos, to);
+            record.channelWidth = HistoryRecord.UNKNOWN_WIDTH;
+            record.capabilities = null;
+            record.device = null;
+            return record.frequency != Integer.MIN_VALUE && record.level != Integer.MIN_VALUE;
+        }
+        record.frequency = parseInt(buf, pos, fieldEnd);
+        pos = fieldEnd + 1;
+        fieldEnd = indexOf(buf, pos, to, sep);
+        if (fieldEnd < 0) {
+            return false;
+        }
+        record.channelWidth = parseInt(buf, pos, fieldEnd);
+        pos = fieldEnd + 1;
+        fieldEnd = indexOf(buf, pos, to, sep);
+        if (fieldEnd < 0) {
+            record.capabilities = this.strings.get(buf, pos, to);
+            record.device = null;
+        } else { // Merged capture, legacy rows have a -1 width and no capabilities
+            record.capabilities = record.channelWidth == HistoryRecord.UNKNOWN_WIDTH ? null : this.strings.get(buf, pos, fieldEnd);
+            record.device = this.strings.get(buf, fieldEnd + 1, to);
+        }
+        return record.frequency != Integer.MIN_VALUE && record.level != Integer.MIN_VALUE
+                && (record.channelWidth >= 0 || record.channelWidth == HistoryRecord.UNKNOWN_WIDTH && record.device != null);
+    }
+
+    /**
+     * Locate ")<sep>yyMMddHHmmss<sep>", SSID may contain any character before
+     * @return index of ')', -1 if not found
+     */
+    private int findTimestamp(byte[] buf, int from, int to) {
+        byte sep = this.separator;
+        for (int i = from; i + TIMESTAMP_LENGTH + 2 < to; i++) {
+            if (buf[i] == ')' && buf[i + 1] == sep && buf[i + TIMESTAMP_LENGTH + 2] == sep && isDigits(buf, i + 2, i + 2 + TIMESTAMP_LENGTH)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDigits(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return parsed value, Integer.MIN_VALUE if malformed
+     */
+    private static int parseInt(byte[] buf, int from, int to) {
+        if (from >= to) {
+            return Integer.MIN_VALUE;
+        }
+        boolean negative = buf[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to) {
+            return Integer.MIN_VALUE;
+        }
+        int value = 0;
+        for (; i < to; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private long parseTimestamp(byte[] buf, int from) {
+        long stamp = 0;
+        for (int i = from; i < from + TIMESTAMP_LENGTH; i++) {
+            stamp = stamp * 10 + (buf[i] - '0');
+        }
+        if (stamp != this.cachedStamp) {
+            this.calendar.clear();
+            this.calendar.set(2000 + twoDigits(buf, from), twoDigits(buf, from + 2) - 1, twoDigits(buf, from + 4),
+                    twoDigits(buf, from + 6), twoDigits(buf, from + 8), twoDigits(buf, from + 10));
+            this.cachedMillis = this.calendar.getTimeInMillis();
+            this.cachedStamp = stamp;
+        }
+        return this.cachedMillis;
+    }
+
+    private static int twoDigits(byte[] buf, int from) {
+        return (buf[from] - '0') * 10 + (buf[from + 1] - '0');
+    }
+}
@@ -0,0 +1,258 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+/**
+ * Encode history rows directly into a reusable byte buffer.
+ *
+ * Produce exactly the same bytes as the historical
+ * <code>format("%s(%s)%s%s%s%d%s%d%s%d\n\r", ...)</code> line, but without creating
+ * any {@link String}, {@link java.util.Date} or formatter per row.
+ * The <code>yyMMddHHmmss</code> timestamp is computed once per second and then copied.
+ *
+ * Full scan rows ({@link #encode(ScanBatch)}) add two columns at the end of the historical
+ * ones: channel width code and capabilities, so readers of the first six columns still work.
+ * Rows of captures merged from several devices ({@link #encode(HistoryRecord, String)}) add
+ * the device id as a ninth column.
+ *
+ * Not thread safe: one encoder per writing thread.
+ */
+public class CsvRowEncoder {
+    public static final byte DEFAULT_SEPARATOR = ';';
+    static final byte[] LINE_END = {'\n', '\r'}; // Kept as is for compatibility with existing captures
+    private static final int TIMESTAMP_LENGTH = 12; // yyMMddHHmmss
+
+    private final byte separator;
+    private final Calendar calendar;
+    private final byte[] timestamp = new byte[TIMESTAMP_LENGTH];
+    private long timestampSecond = Long.MIN_VALUE;
+    private byte[] buffer;
+    private int size;
+
+    public CsvRowEncoder() {
+        this(DEFAULT_SEPARATOR, TimeZone.getDefault(), 8 * 1024);
+    }
+
+    /**
+     * @param separator field separator (ASCII)
+     * @param timeZone time zone used to print timestamps
+     * @param initialCapacity initial buffer size in bytes, the buffer grows when needed
+     */
+    public CsvRowEncoder(byte separator, TimeZone timeZone, int initialCapacity) {
+        this.separator = separator;
+        this.calendar = Calendar.getInstance(timeZone);
+        this.buffer = new byte[Math.max(initialCapacity, 64)];
+    }
+
+    /**
+     * Append one row to the buffer
+     * @param ssid network name
+     * @param bssid access point MAC address
+     * @param timeMillis scan time (epoch, in ms)
+     * @param level signal level in dB
+     * @param channel channel number
+     * @param frequency frequency in MHz
+     */
+    public void encode(String ssid, String bssid, long timeMillis, int level, int channel, int frequency) {
+        putRow(ssid, bssid, timeMillis, level, channel, frequency);
+        putByte(LINE_END[0]);
+        putByte(LINE_END[1]);
+    }
+
+    /**
+     * Append one full scan row to the buffer
+     * @param ssid network name
+     * @param bssid access point MAC address
+     * @param timeMillis scan time (epoch, in ms)
+     * @param level signal level in dB
+     * @param frequency frequency in MHz
+     * @param channelWidth channel width code
+     * @param capabilities security capabilities
+     */
+    public void encode(String ssid, String bssid, long timeMillis, int level, int frequency, int channelWidth, String capabilities) {
+        putRow(ssid, bssid, timeMillis, level, WifiChannels.frequencyToChannel(frequency), frequency);
+        putByte(this.separator);
+        putInt(channelWidth);
+        putByte(this.separator);
+        putString(capabilities);
+        putByte(LINE_END[0]);
+        putByte(LINE_END[1]);
+    }
+
+    /**
+     * Append every access point of a scan, one row each
+     * @param batch scan to encode
+     */
+    public void encode(ScanBatch batch) {
+        long time = batch.getTimeMillis();
+        for (int i = 0; i < batch.size(); i++) {
+            encode(batch.getSsid(i), batch.getBssid(i), time, batch.getLevel(i), batch.getFrequency(i), batch.getChannelWidth(i), batch.getCapabilities(i));
+        }
+    }
+
+    /**
+     * Append one row of a merged capture: full scan columns and the id of the recording device.
+     * Legacy records keep their channel, with a -1 width and empty capabilities.
+     * @param record row values
+     * @param device device id (no separator nor line end)
+     */
+    public void encode(HistoryRecord record, String device) {
+        putRow(record.ssid, record.bssid, record.timeMillis, record.level, record.channel, record.frequency);
+        putByte(this.separator);
+        putInt(record.channelWidth);
+        putByte(this.separator);
+        putString(record.capabilities == null ? "" : record.capabilities);
+        putByte(this.separator);
+        putString(device);
+        putByte(LINE_END[0]);
+        putByte(LINE_END[1]);
+    }
+
+    private void putRow(String ssid, String bssid, long timeMillis, int level, int channel, int frequency) {
+        putString(ssid);
+        putByte((byte) '(');
+        putString(bssid);
+        putByte((byte) ')');
+        putByte(this.separator);
+        putTimestamp(timeMillis);
+        putByte(this.separator);
+        putInt(level);
+        putByte(this.separator);
+        putInt(channel);
+        putByte(this.separator);
+        putInt(frequency);
+    }
+
+    /**
+     * @return number of bytes waiting in the buffer
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Write buffered bytes to given stream and reset the buffer
+     * @param out destination stream
+     * @throws IOException if stream failed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (this.size > 0) {
+            out.write(this.buffer, 0, this.size);
+        }
+        this.size = 0;
+    }
+
+    /**
+     * Drop buffered bytes
+     */
+    public void reset() {
+        this.size = 0;
+    }
+
+    /**
+     * @return a copy of buffered bytes (used by tests)
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[this.size];
+        System.arraycopy(this.buffer, 0, copy, 0, this.size);
+        return copy;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (this.size + extra > this.buffer.length) {
+            byte[] bigger = new byte[Math.max(this.buffer.length * 2, this.size + extra)];
+            System.arraycopy(this.buffer, 0, bigger, 0, this.size);
+            this.buffer = bigger;
+        }
+    }
+
+    private void putByte(byte b) {
+        ensureCapacity(1);
+        this.buffer[this.size++] = b;
+    }
+
+    /**
+     * Write string as UTF-8 (SSID may contain any character)
+     */
+    private void putString(String s) {
+        if (s == null) {
+            s = "null"; // Same output as String.format
+        }
+        int length = s.length();
+        ensureCapacity(length * 3);
+        byte[] buf = this.buffer;
+        int pos = this.size;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buf[pos++] = '?'; // Malformed surrogate, same replacement as String.getBytes()
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.size = pos;
+    }
+
+    private void putInt(int value) {
+        ensureCapacity(11);
+        if (value == Integer.MIN_VALUE) {
+            putString("-2147483648");
+            return;
+        }
+        if (value < 0) {
+            this.buffer[this.size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int pos = this.size + digits;
+        this.size = pos;
+        do {
+            this.buffer[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+    }
+
+    private void putTimestamp(long timeMillis) {
+        long second = timeMillis >= 0 ? timeMillis / 1_000L : (timeMillis - 999L) / 1_000L;
+        if (second != this.timestampSecond) {
+            this.calendar.setTimeInMillis(timeMillis);
+            put2Digits(this.calendar.get(Calendar.YEAR) % 100, 0);
+            put2Digits(this.calendar.get(Calendar.MONTH) + 1, 2);
+            put2Digits(this.calendar.get(Calendar.DAY_OF_MONTH), 4);
+            put2Digits(this.calendar.get(Calendar.HOUR_OF_DAY), 6);
+            put2Digits(this.calendar.get(Calendar.MINUTE), 8);
+            put2Digits(this.calendar.get(Calendar.SECOND), 10);
+            this.timestampSecond = second;
+        }
+        ensureCapacity(TIMESTAMP_LENGTH);
+        System.arraycopy(this.timestamp, 0, this.buffer, this.size, TIMESTAMP_LENGTH);
+        this.size += TIMESTAMP_LENGTH;
+    }
+
+    private void put2Digits(int value, int offset) {
+        this.timestamp[offset] = (byte) ('0' + value / 10);
+        this.timestamp[offset + 1] = (byte) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,15 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.IOException;
+
+/**
+ * History stream told about each batch of rows before {@link HistoryWriter} writes it
+ */
+public interface HistoryBatchListener {
+    /**
+     * Announce rows about to be written, the next write holds exactly these rows
+     * @param batch time range and access points of the rows, reused after the write
+     * @throws IOException if the stream can't take the batch, its rows are then dropped
+     */
+    void startBatch(HistoryBlock batch) throws IOException;
+}
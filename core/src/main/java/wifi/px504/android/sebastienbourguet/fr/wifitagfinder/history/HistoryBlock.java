@@ -0,0 +1,78 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+
+/**
+ * Time range and access points of rows written together, filled by {@link HistoryWriter}
+ * while encoding and given to {@link HistoryBatchListener#startBatch} before the write.
+ * Mutable and reused from one write to the next.
+ *
+ * CSV rows only keep whole seconds, and readers filter on the parsed second: the time range
+ * covers whole seconds, first time floored and last time raised to the last millisecond of its
+ * second, so that blocks and segments are found by any query matching one of their rows.
+ */
+public class HistoryBlock {
+    private long firstTime;
+    private long lastTime;
+    private int rows;
+    private long[] macs = new long[256]; // One per row, duplicates included
+
+    /**
+     * @param timeMillis row time (in ms since epoch)
+     * @param bssid row access point
+     */
+    public void add(long timeMillis, String bssid) {
+        add(timeMillis, MacAddress.pack(bssid));
+    }
+
+    /**
+     * @param timeMillis row time (in ms since epoch)
+     * @param mac row packed access point address
+     */
+    public void add(long timeMillis, long mac) {
+        long second = timeMillis - ((timeMillis % 1_000) + 1_000) % 1_000;
+        if (this.rows == 0) {
+            this.firstTime = second;
+            this.lastTime = second + 999;
+        } else {
+            this.firstTime = Math.min(this.firstTime, second);
+            this.lastTime = Math.max(this.lastTime, second + 999);
+        }
+        if (this.rows == this.macs.length) {
+            this.macs = Arrays.copyOf(this.macs, this.rows * 2);
+        }
+        this.macs[this.rows++] = mac;
+    }
+
+    public void clear() {
+        this.rows = 0;
+    }
+
+    public int getRows() {
+        return this.rows;
+    }
+
+    /**
+     * @return time of first row, floored to the second (in ms since epoch)
+     */
+    public long getFirstTime() {
+        return this.firstTime;
+    }
+
+    /**
+     * @return time of last row, raised to the last millisecond of its second (in ms since epoch)
+     */
+    public long getLastTime() {
+        return this.lastTime;
+    }
+
+    /**
+     * @param row row index
+     * @return packed address of row access point
+     */
+    public long getMac(int row) {
+        return this.macs[row];
+    }
+}
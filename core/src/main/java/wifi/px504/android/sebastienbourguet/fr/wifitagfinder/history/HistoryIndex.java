@@ -0,0 +1,371 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+
+/**
+ * Sparse index of a CSV capture, loaded from the sidecar written by {@link HistoryIndexWriter}.
+ *
+ * Blocks are kept in primitive arrays, with one posting list per access point: the ascending ids
+ * of the blocks holding it. A running max of block last times and a running min (from the end)
+ * of block first times give the blocks of a time range by binary search, even when the clock of
+ * the device went back in time.
+ */
+public class HistoryIndex {
+    public static final String SUFFIX = ".idx";
+
+    private final boolean gzipMembers;
+    private int blockCount;
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private long[] firstTimes = new long[64];
+    private long[] lastTimes = new long[64];
+    private int[] rows = new int[64];
+    private long[] maxLastTimes; // max(lastTimes[0..b])
+    private long[] minFirstTimes; // min(firstTimes[b..])
+    private final LongIntHashMap ids = new LongIntHashMap(1_024, -1);
+    private long[] macs = new long[64]; // By id
+    private int[][] postings = new int[64][];
+    private int[] postingSizes = new int[64];
+
+    private HistoryIndex(boolean gzipMembers) {
+        this.gzipMembers = gzipMembers;
+    }
+
+    /**
+     * @param capture capture file
+     * @return sidecar index file of capture
+     */
+    public static File sidecar(File capture) {
+        return new File(capture.getPath() + SUFFIX);
+    }
+
+    /**
+     * @param file sidecar file
+     * @return index, up to its last complete block
+     * @throws IOException if file can't be read or isn't an index
+     */
+    public static HistoryIndex load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param in sidecar stream, not closed
+     * @return index, up to its last complete block
+     * @throws IOException if stream failed or isn't an index
+     */
+    public static HistoryIndex load(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 16 * 1_024));
+        if (data.readInt() != HistoryIndexWriter.MAGIC) {
+            throw new IOException("Not a history index");
+        }
+        int version = data.readByte();
+        if (version != HistoryIndexWriter.VERSION) {
+            throw new IOException("Unsupported history index version " + version);
+        }
+        HistoryIndex index = new HistoryIndex((data.readByte() & HistoryIndexWriter.FLAG_GZIP_MEMBERS) != 0);
+        int[] blockIds = new int[256];
+        try {
+            while (true) {
+                int type = data.read();
+                if (type == HistoryIndexWriter.ADDRESS) {
+                    index.addAddress(data.readLong());
+                } else if (type == HistoryIndexWriter.BLOCK) {
+                    long offset = data.readLong();
+                    int length = data.readInt();
+                    long firstTime = data.readLong();
+                    long lastTime = data.readLong();
+                    int blockRows = data.readInt();
+                    int count = data.readInt();
+                    if (count < 0 || count > index.ids.size()) {
+                        throw new IOException("Damaged history index");
+                    }
+                    if (count > blockIds.length) {
+                        blockIds = new int[count];
+                    }
+                    for (int i = 0; i < count; i++) {
+                        blockIds[i] = readVarint(data);
+                        if (blockIds[i] >= index.ids.size()) {
+                            throw new IOException("Damaged history index");
+                        }
+                    }
+                    index.addBlock(offset, length, firstTime, lastTime, blockRows, blockIds, count);
+                } else {
+                    break; // End of file, or garbage left by a crash
+                }
+            }
+        } catch (EOFException e) {
+            // Last entry cut by a crash, ignored
+        }
+        index.computeTimeBounds();
+        return index;
+    }
+
+    /**
+     * Index an existing capture (one full scan), and write its sidecar
+     * @param capture uncompressed CSV capture
+     * @param separator field separator
+     * @param timeZone time zone of the device which recorded the capture
+     * @return index of capture
+     * @throws IOException if capture can't be read or sidecar written
+     */
+    public static HistoryIndex build(File capture, byte separator, TimeZone timeZone) throws IOException {
+        File sidecar = sidecar(capture);
+        CsvHistoryReader reader = new CsvHistoryReader(new FileInputStream(capture), separator, timeZone);
+        try {
+            HistoryIndexWriter writer = new HistoryIndexWriter(new FileOutputStream(sidecar));
+            HistoryBlock batch = new HistoryBlock();
+            HistoryRecord record = new HistoryRecord();
+            long batchOffset = 0;
+            long batchTime = Long.MIN_VALUE;
+            try {
+                while (reader.next(record)) {
+                    if (record.timeMillis != batchTime && batch.getRows() > 0) { // One batch per timestamp
+                        writer.add(batchOffset, batch);
+                        batch.clear();
+                        batchOffset = reader.getLineOffset();
+                    }
+                    batchTime = record.timeMillis;
+                    batch.add(record.timeMillis, record.bssid);
+                }
+                writer.add(batchOffset, batch);
+            } finally {
+                writer.finish(capture.length());
+            }
+        } finally {
+            reader.close();
+        }
+        return load(sidecar);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Damaged history index");
+    }
+
+    private void addAddress(long mac) {
+        if (this.ids.containsKey(mac)) {
+            return; // Already known, written twice
+        }
+        int id = this.ids.size();
+        this.ids.put(mac, id);
+        if (id == this.macs.length) {
+            this.macs = Arrays.copyOf(this.macs, id * 2);
+            this.postings = Arrays.copyOf(this.postings, id * 2);
+            this.postingSizes = Arrays.copyOf(this.postingSizes, id * 2);
+        }
+        this.macs[id] = mac;
+        this.postings[id] = new int[8];
+    }
+
+    private void addBlock(long offset, int length, long firstTime, long lastTime, int blockRows, int[] blockIds, int count) {
+        int b = this.blockCount;
+        if (b == this.offsets.length) {
+            this.offsets = Arrays.copyOf(this.offsets, b * 2);
+            this.lengths = Arrays.copyOf(this.lengths, b * 2);
+            this.firstTimes = Arrays.copyOf(this.firstTimes, b * 2);
+            this.lastTimes = Arrays.copyOf(this.lastTimes, b * 2);
+            this.rows = Arrays.copyOf(this.rows, b * 2);
+        }
+        this.offsets[b] = offset;
+        this.lengths[b] = length;
+        this.firstTimes[b] = firstTime;
+        this.lastTimes[b] = lastTime;
+        this.rows[b] = blockRows;
+        for (int i = 0; i < count; i++) {
+            int id = blockIds[i];
+            int size = this.postingSizes[id];
+            if (size == this.postings[id].length) {
+                this.postings[id] = Arrays.copyOf(this.postings[id], size * 2);
+            }
+            this.postings[id][size] = b;
+            this.postingSizes[id] = size + 1;
+        }
+        this.blockCount++;
+    }
+
+    private void computeTimeBounds() {
+        int n = this.blockCount;
+        this.maxLastTimes = new long[n];
+        this.minFirstTimes = new long[n];
+        for (int b = 0; b < n; b++) {
+            this.maxLastTimes[b] = b == 0 ? this.lastTimes[0] : Math.max(this.maxLastTimes[b - 1], this.lastTimes[b]);
+        }
+        for (int b = n - 1; b >= 0; b--) {
+            this.minFirstTimes[b] = b == n - 1 ? this.firstTimes[b] : Math.min(this.minFirstTimes[b + 1], this.firstTimes[b]);
+        }
+    }
+
+    /**
+     * Blocks which may hold rows of an access point in a time range
+     * @param bssid access point, null for every access point
+     * @param from range start (in ms since epoch, included)
+     * @param to range end (in ms since epoch, excluded)
+     * @return ascending block numbers
+     */
+    public int[] find(String bssid, long from, long to) {
+        if (bssid == null) {
+            return find(null, 0, from, to);
+        }
+        int id = this.ids.get(MacAddress.pack(bssid));
+        if (id < 0) {
+            return new int[0];
+        }
+        return find(this.postings[id], this.postingSizes[id], from, to);
+    }
+
+    /**
+     * @param posting ascending block numbers, null for all blocks
+     * @param size number of blocks in posting
+     */
+    private int[] find(int[] posting, int size, long from, long to) {
+        if (posting == null) {
+            size = this.blockCount;
+        }
+        // First block which may end after from: maxLastTimes is ascending
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int block = posting == null ? middle : posting[middle];
+            if (this.maxLastTimes[block] < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int[] found = new int[Math.min(size - low, 64)];
+        int count = 0;
+        for (int i = low; i < size; i++) {
+            int block = posting == null ? i : posting[i];
+            if (this.minFirstTimes[block] >= to) {
+                break; // Every following block starts after range
+            }
+            if (this.firstTimes[block] < to && this.lastTimes[block] >= from) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = block;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Write this index with new block positions, used when the capture is compressed
+     * @param out destination stream, not closed
+     * @param newOffsets position of each block
+     * @param newLengths length of each block
+     * @param gzipMembers True if each block is a gzip member
+     * @throws IOException if stream failed
+     */
+    void writeTo(OutputStream out, long[] newOffsets, int[] newLengths, boolean gzipMembers) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 8 * 1_024));
+        data.writeInt(HistoryIndexWriter.MAGIC);
+        data.writeByte(HistoryIndexWriter.VERSION);
+        data.writeByte(gzipMembers ? HistoryIndexWriter.FLAG_GZIP_MEMBERS : 0);
+        int nbIds = this.ids.size();
+        for (int id = 0; id < nbIds; id++) {
+            data.writeByte(HistoryIndexWriter.ADDRESS);
+            data.writeLong(this.macs[id]);
+        }
+        // Rebuild ids of each block from posting lists
+        int[][] blockIds = new int[this.blockCount][];
+        int[] blockIdCounts = new int[this.blockCount];
+        for (int id = 0; id < nbIds; id++) {
+            for (int i = 0; i < this.postingSizes[id]; i++) {
+                int block = this.postings[id][i];
+                if (blockIds[block] == null) {
+                    blockIds[block] = new int[8];
+                } else if (blockIdCounts[block] == blockIds[block].length) {
+                    blockIds[block] = Arrays.copyOf(blockIds[block], blockIdCounts[block] * 2);
+                }
+                blockIds[block][blockIdCounts[block]++] = id;
+            }
+        }
+        for (int b = 0; b < this.blockCount; b++) {
+            HistoryIndexWriter.writeBlock(data, newOffsets[b], newLengths[b], this.firstTimes[b], this.lastTimes[b], this.rows[b],
+                    blockIds[b] == null ? new int[0] : blockIds[b], blockIdCounts[b]);
+        }
+        data.flush();
+    }
+
+    /**
+     * @return True if capture is gzipped, each block being a separate gzip member
+     */
+    public boolean isGzipMembers() {
+        return this.gzipMembers;
+    }
+
+    public int getBlockCount() {
+        return this.blockCount;
+    }
+
+    /**
+     * @return number of access points indexed
+     */
+    public int getAccessPointCount() {
+        return this.ids.size();
+    }
+
+    /**
+     * @param block block number
+     * @return position of block in capture file
+     */
+    public long getOffset(int block) {
+        return this.offsets[block];
+    }
+
+    /**
+     * @param block block number
+     * @return size of block in capture file
+     */
+    public int getLength(int block) {
+        return this.lengths[block];
+    }
+
+    public long getFirstTime(int block) {
+        return this.firstTimes[block];
+    }
+
+    public long getLastTime(int block) {
+        return this.lastTimes[block];
+    }
+
+    public int getRows(int block) {
+        return this.rows[block];
+    }
+
+    /**
+     * @return end of last indexed block, rows after it are not indexed yet
+     */
+    public long getEnd() {
+        return this.blockCount == 0 ? 0 : this.offsets[this.blockCount - 1] + this.lengths[this.blockCount - 1];
+    }
+}
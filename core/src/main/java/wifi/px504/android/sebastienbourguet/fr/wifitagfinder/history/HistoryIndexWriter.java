@@ -0,0 +1,164 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+
+/**
+ * Write the sparse index of a CSV capture, incrementally, while the capture is written.
+ *
+ * The capture is cut in blocks of about <code>checkpointBytes</code> or <code>checkpointMillis</code>
+ * of rows, starting on a row boundary. Each block is indexed by its byte range, time range and
+ * the ids of the access points it holds, read back by {@link HistoryIndex}:
+ * <pre>
+ * File    = Header Entry*
+ * Header  = magic(int) version(byte) flags(byte)
+ * Entry   = Address | Block
+ * Address = 'A' mac(long)                                 (ids numbered in order of appearance)
+ * Block   = 'B' offset(long) length(int) firstTime(long) lastTime(long) rows(int) count(int) apId(varint)*
+ * </pre>
+ * An address is always written before the first block using it, and the stream is flushed after
+ * each block, so the index of a capture cut by a crash is still readable up to its last block.
+ */
+public class HistoryIndexWriter {
+    static final int MAGIC = 0x48494458; // "HIDX"
+    static final byte VERSION = 1;
+    static final byte FLAG_GZIP_MEMBERS = 1; // Each block is a separate gzip member of a compressed capture
+    static final byte ADDRESS = 'A';
+    static final byte BLOCK = 'B';
+    public static final int DEFAULT_CHECKPOINT_BYTES = 64 * 1_024;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 5 * 60_000; // in ms
+
+    private final DataOutputStream out;
+    private final int checkpointBytes;
+    private final long checkpointMillis;
+    private final LongIntHashMap ids = new LongIntHashMap(1_024, -1); // Packed MAC address -> id
+    private int[] lastBlocks = new int[1_024]; // By id: last block holding the access point
+    private int[] blockIds = new int[256]; // Ids of current block
+    private int blockIdCount;
+    private long blockOffset = -1; // -1 when no block is open
+    private long blockFirstTime;
+    private long blockLastTime;
+    private int blockRows;
+    private int blocks;
+
+    public HistoryIndexWriter(OutputStream out) throws IOException {
+        this(out, DEFAULT_CHECKPOINT_BYTES, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param out sidecar stream, closed by {@link #finish(long)}
+     * @param checkpointBytes block size starting a new block
+     * @param checkpointMillis block time span starting a new block (in ms)
+     * @throws IOException if header can't be written
+     */
+    public HistoryIndexWriter(OutputStream out, int checkpointBytes, long checkpointMillis) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 8 * 1_024));
+        this.checkpointBytes = checkpointBytes;
+        this.checkpointMillis = checkpointMillis;
+        Arrays.fill(this.lastBlocks, -1);
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeByte(0);
+        this.out.flush();
+    }
+
+    /**
+     * Index rows about to be written at given position of the capture
+     * @param offset position of the rows in the capture, rows of previous call end there
+     * @param batch rows
+     * @throws IOException if index can't be written
+     */
+    public void add(long offset, HistoryBlock batch) throws IOException {
+        if (batch.getRows() == 0) {
+            return;
+        }
+        if (this.blockOffset >= 0 && (offset - this.blockOffset >= this.checkpointBytes
+                || batch.getLastTime() - this.blockFirstTime >= this.checkpointMillis)) {
+            writeBlock(offset);
+        }
+        if (this.blockOffset < 0) {
+            this.blockOffset = offset;
+            this.blockFirstTime = batch.getFirstTime();
+            this.blockLastTime = batch.getLastTime();
+        } else {
+            this.blockFirstTime = Math.min(this.blockFirstTime, batch.getFirstTime());
+            this.blockLastTime = Math.max(this.blockLastTime, batch.getLastTime());
+        }
+        this.blockRows += batch.getRows();
+        for (int row = 0; row < batch.getRows(); row++) {
+            long mac = batch.getMac(row);
+            int id = this.ids.get(mac);
+            if (id < 0) {
+                id = this.ids.size();
+                this.ids.put(mac, id);
+                if (id == this.lastBlocks.length) {
+                    this.lastBlocks = Arrays.copyOf(this.lastBlocks, id * 2);
+                    Arrays.fill(this.lastBlocks, id, id * 2, -1);
+                }
+                this.out.writeByte(ADDRESS);
+                this.out.writeLong(mac);
+            }
+            if (this.lastBlocks[id] != this.blocks) {
+                this.lastBlocks[id] = this.blocks;
+                if (this.blockIdCount == this.blockIds.length) {
+                    this.blockIds = Arrays.copyOf(this.blockIds, this.blockIdCount * 2);
+                }
+                this.blockIds[this.blockIdCount++] = id;
+            }
+        }
+    }
+
+    /**
+     * Index last block and close sidecar stream
+     * @param endOffset capture size, end of last block
+     * @throws IOException if index can't be written
+     */
+    public void finish(long endOffset) throws IOException {
+        try {
+            if (this.blockOffset >= 0 && endOffset > this.blockOffset) {
+                writeBlock(endOffset);
+            }
+        } finally {
+            this.out.close();
+        }
+    }
+
+    /**
+     * @return number of blocks written
+     */
+    public int getBlocks() {
+        return this.blocks;
+    }
+
+    private void writeBlock(long endOffset) throws IOException {
+        writeBlock(this.out, this.blockOffset, (int) (endOffset - this.blockOffset), this.blockFirstTime, this.blockLastTime, this.blockRows, this.blockIds, this.blockIdCount);
+        this.out.flush();
+        this.blocks++;
+        this.blockOffset = -1;
+        this.blockRows = 0;
+        this.blockIdCount = 0;
+    }
+
+    static void writeBlock(DataOutputStream out, long offset, int length, long firstTime, long lastTime, int rows, int[] ids, int count) throws IOException {
+        out.writeByte(BLOCK);
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.writeLong(firstTime);
+        out.writeLong(lastTime);
+        out.writeInt(rows);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            int value = ids[i];
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+}
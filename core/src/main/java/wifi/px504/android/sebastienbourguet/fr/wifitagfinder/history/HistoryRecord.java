@@ -0,0 +1,44 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+/**
+ * One access point seen by one scan, as read back from a capture.
+ *
+ * Instances are mutable and reused by readers: copy the values you need to keep.
+ */
+public class HistoryRecord {
+    public static final int UNKNOWN_WIDTH = -1; // Legacy rows don't have channel width
+
+    public long timeMillis;
+    public String ssid;
+    public String bssid;
+    public String capabilities; // null for legacy rows
+    public int level;
+    public int channel;
+    public int frequency;
+    public int channelWidth = UNKNOWN_WIDTH;
+    public String device; // Recording device of merged captures, null otherwise
+
+    /**
+     * @return True if record has the full scan columns (width and capabilities)
+     */
+    public boolean isFullScan() {
+        return this.channelWidth != UNKNOWN_WIDTH;
+    }
+
+    public void copyFrom(HistoryRecord other) {
+        this.timeMillis = other.timeMillis;
+        this.ssid = other.ssid;
+        this.bssid = other.bssid;
+        this.capabilities = other.capabilities;
+        this.level = other.level;
+        this.channel = other.channel;
+        this.frequency = other.frequency;
+        this.channelWidth = other.channelWidth;
+        this.device = other.device;
+    }
+
+    @Override
+    public String toString() {
+        return ssid + "(" + bssid + ")@" + timeMillis + " " + level + "dB F:" + frequency;
+    }
+}
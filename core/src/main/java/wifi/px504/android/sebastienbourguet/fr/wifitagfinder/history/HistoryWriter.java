@@ -0,0 +1,319 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics.Metrics;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Write scan history rows to a stream from a dedicated background thread.
+ *
+ * Whole scans are pushed by the caller (UI thread) in a bounded queue of preallocated row slots,
+ * copied column by column with {@link System#arraycopy}. The writer thread encodes them with a
+ * {@link CsvRowEncoder} and writes to the stream by batches, when the buffer reaches
+ * <code>flushBytes</code> or after <code>flushIntervalMs</code>. A batch always ends on a scan
+ * boundary, so a scan is never split between two writes.
+ * When the queue is full scans are dropped (and counted) instead of blocking the caller.
+ * When the stream is a {@link HistoryBatchListener}, such as {@link RollingHistoryOutput}, the time
+ * range and access points of each batch are announced before writing it, so segments are rotated
+ * on scan boundaries and indexed.
+ */
+public class HistoryWriter implements Closeable {
+    public static final int DEFAULT_CAPACITY = 4_096; // Rows waiting to be written
+    public static final int DEFAULT_FLUSH_BYTES = 16 * 1_024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 2_000; // in ms
+
+    private final OutputStream out;
+    private final HistoryBatchListener batchListener; // The stream itself, null if it doesn't listen
+    private final CsvRowEncoder encoder;
+    private final int flushBytes;
+    private final long flushIntervalNanos;
+
+    // Queue of rows, stored column by column to avoid an object per row
+    private final String[] ssids;
+    private final String[] bssids;
+    private final long[] macs;
+    private final String[] capabilities;
+    private final long[] times;
+    private final int[] levels;
+    private final int[] frequencies;
+    private final int[] channelWidths;
+    private final boolean[] scanEnds; // True on last row of each scan
+    private int head; // Next slot to read
+    private int count; // Number of slots waiting
+    private final HistoryBlock block = new HistoryBlock(); // Rows encoded but not written yet, only used by writer thread
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // Statistics
+    private volatile long writtenRows;
+    private volatile long droppedRows;
+    private volatile long droppedScans;
+    private volatile long writes;
+    private volatile IOException lastError;
+    private volatile Metrics metrics;
+    private volatile int writeStage;
+
+    public HistoryWriter(OutputStream out) {
+        this(out, new CsvRowEncoder(), DEFAULT_CAPACITY, DEFAULT_FLUSH_BYTES, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @param out destination stream, closed with the writer
+     * @param encoder encoder used to format rows, only used by writer thread
+     * @param capacity max number of rows waiting in queue
+     * @param flushBytes size of buffered data triggering a write
+     * @param flushIntervalMs max time (in ms) data can stay in buffer
+     */
+    public HistoryWriter(OutputStream out, CsvRowEncoder encoder, int capacity, int flushBytes, long flushIntervalMs) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.out = out;
+        this.batchListener = out instanceof HistoryBatchListener ? (HistoryBatchListener) out : null;
+        this.encoder = encoder;
+        this.flushBytes = flushBytes;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.ssids = new String[capacity];
+        this.bssids = new String[capacity];
+        this.macs = new long[capacity];
+        this.capabilities = new String[capacity];
+        this.times = new long[capacity];
+        this.levels = new int[capacity];
+        this.frequencies = new int[capacity];
+        this.channelWidths = new int[capacity];
+        this.scanEnds = new boolean[capacity];
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "HistoryWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue every access point of a scan, never blocks.
+     * The batch can be reused by the caller as soon as this method returns.
+     * @param batch scan to write
+     * @return False if scan was dropped (not enough room in queue or writer closed)
+     */
+    public boolean append(ScanBatch batch) {
+        int n = batch.size();
+        if (n == 0) {
+            return true;
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int capacity = this.ssids.length;
+            if (this.closed || this.count + n > capacity) {
+                this.droppedRows += n;
+                this.droppedScans++;
+                return false;
+            }
+            int tail = (this.head + this.count) % capacity;
+            int first = Math.min(n, capacity - tail); // Copy in two parts when wrapping
+            copy(batch, 0, tail, first);
+            copy(batch, first, 0, n - first);
+            Arrays.fill(this.times, tail, tail + first, batch.getTimeMillis());
+            Arrays.fill(this.times, 0, n - first, batch.getTimeMillis());
+            this.scanEnds[(tail + n - 1) % capacity] = true;
+            boolean wasEmpty = this.count == 0;
+            this.count += n;
+            if (wasEmpty) {
+                this.notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void copy(ScanBatch batch, int from, int to, int length) {
+        if (length <= 0) {
+            return;
+        }
+        System.arraycopy(batch.ssids(), from, this.ssids, to, length);
+        System.arraycopy(batch.bssids(), from, this.bssids, to, length);
+        System.arraycopy(batch.macs(), from, this.macs, to, length);
+        System.arraycopy(batch.capabilities(), from, this.capabilities, to, length);
+        System.arraycopy(batch.levels(), from, this.levels, to, length);
+        System.arraycopy(batch.frequencies(), from, this.frequencies, to, length);
+        System.arraycopy(batch.channelWidths(), from, this.channelWidths, to, length);
+    }
+
+    /**
+     * Record duration of each write (stream write and flush) in a metrics stage
+     * @param metrics metrics updated by writer thread, null to stop recording
+     * @param stage stage index in metrics
+     */
+    public void setMetrics(Metrics metrics, int stage) {
+        this.writeStage = stage;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Stop writer thread, write every queued row and close the stream
+     * @throws IOException if last write or close failed
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.notEmpty.signal();
+        } finally {
+            this.lock.unlock();
+        }
+        boolean interrupted = false;
+        while (this.thread.isAlive()) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            this.lastError = e;
+        }
+        if (this.lastError != null) {
+            throw this.lastError;
+        }
+    }
+
+    /**
+     * @return number of rows handed to the stream
+     */
+    public long getWrittenRows() {
+        return this.writtenRows;
+    }
+
+    /**
+     * @return number of rows lost, either not queued or lost by a failed write
+     */
+    public long getDroppedRows() {
+        return this.droppedRows;
+    }
+
+    public long getDroppedScans() {
+        return this.droppedScans;
+    }
+
+    /**
+     * @return number of write calls made on the stream
+     */
+    public long getWrites() {
+        return this.writes;
+    }
+
+    /**
+     * @return last error met by writer thread, null if none
+     */
+    public IOException getLastError() {
+        return this.lastError;
+    }
+
+    private void writeLoop() {
+        long lastFlush = System.nanoTime();
+        boolean done = false;
+        while (!done) {
+            this.lock.lock();
+            try {
+                long wait = this.flushIntervalNanos - (System.nanoTime() - lastFlush);
+                while (this.count == 0 && !this.closed && (this.encoder.size() == 0 || wait > 0)) {
+                    if (this.encoder.size() == 0) {
+                        this.notEmpty.await(); // Nothing to flush, sleep until next scan
+                    } else {
+                        wait = this.notEmpty.awaitNanos(wait);
+                    }
+                }
+                drain();
+                done = this.closed && this.count == 0;
+            } catch (InterruptedException e) {
+                this.closed = true; // Interrupted, end as if closed
+            } finally {
+                this.lock.unlock();
+            }
+            long now = System.nanoTime();
+            if (done || this.encoder.size() >= this.flushBytes || now - lastFlush >= this.flushIntervalNanos) {
+                flush();
+                lastFlush = now;
+            }
+        }
+    }
+
+    /**
+     * Encode queued rows until buffer is full and a scan is complete, called with lock held.
+     * Encoding is cheap compared to the write, so lock is not released in between.
+     */
+    private void drain() {
+        int capacity = this.ssids.length;
+        boolean scanEnd = true;
+        while (this.count > 0 && (!scanEnd || this.encoder.size() < this.flushBytes)) {
+            int slot = this.head;
+            this.block.add(this.times[slot], this.macs[slot]);
+            this.encoder.encode(this.ssids[slot], this.bssids[slot], this.times[slot], this.levels[slot], this.frequencies[slot], this.channelWidths[slot], this.capabilities[slot]);
+            scanEnd = this.scanEnds[slot];
+            this.ssids[slot] = null;
+            this.bssids[slot] = null;
+            this.capabilities[slot] = null;
+            this.scanEnds[slot] = false;
+            this.head = (slot + 1) % capacity;
+            this.count--;
+        }
+    }
+
+    private void flush() {
+        if (this.encoder.size() == 0) {
+            return;
+        }
+        Metrics metrics = this.metrics;
+        long start = metrics == null ? Metrics.NOT_STARTED : metrics.start();
+        int rows = this.block.getRows();
+        boolean written = false;
+        try {
+            if (this.batchListener != null) {
+                this.batchListener.startBatch(this.block);
+            }
+            this.encoder.writeTo(this.out);
+            this.writtenRows += rows;
+            written = true;
+            this.out.flush();
+            this.writes++;
+            if (metrics != null) {
+                metrics.stop(this.writeStage, start);
+            }
+        } catch (IOException e) {
+            this.encoder.reset(); // Data is lost, don't retry forever
+            this.lastError = e;
+            if (!written) {
+                this.lock.lock(); // Also counted by append
+                try {
+                    this.droppedRows += rows;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        }
+        this.block.clear();
+    }
+}
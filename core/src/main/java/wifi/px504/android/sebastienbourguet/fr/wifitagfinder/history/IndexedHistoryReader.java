@@ -0,0 +1,171 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+
+/**
+ * Rows of one access point in a time range, read from a capture through its {@link HistoryIndex}.
+ *
+ * Only the blocks listed by the index are read, each with one seek. Blocks of a gzipped segment are
+ * separate gzip members, uncompressed on their own. Rows of a capture still being written which are
+ * after the last indexed block are always read.
+ * <pre>
+ *     IndexedHistoryReader.Query query = reader.query(bssid, from, to);
+ *     while (query.next(record)) {
+ *         ...
+ *     }
+ * </pre>
+ */
+public class IndexedHistoryReader implements Closeable {
+    private final RandomAccessFile file;
+    private final HistoryIndex index;
+    private final byte separator;
+    private final TimeZone timeZone;
+    private byte[] buffer = new byte[HistoryIndexWriter.DEFAULT_CHECKPOINT_BYTES];
+    private long blocksRead;
+    private long bytesRead;
+
+    /**
+     * @param capture capture file
+     * @param index index of capture
+     * @param separator field separator
+     * @param timeZone time zone of the device which recorded the capture
+     * @throws IOException if capture can't be opened
+     */
+    public IndexedHistoryReader(File capture, HistoryIndex index, byte separator, TimeZone timeZone) throws IOException {
+        this.file = new RandomAccessFile(capture, "r");
+        this.index = index;
+        this.separator = separator;
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Open a capture with its sidecar index, written with the default separator in this time zone
+     * @param capture capture file
+     * @return reader of capture
+     * @throws IOException if capture or index can't be read
+     */
+    public static IndexedHistoryReader open(File capture) throws IOException {
+        return new IndexedHistoryReader(capture, HistoryIndex.load(HistoryIndex.sidecar(capture)), CsvRowEncoder.DEFAULT_SEPARATOR, TimeZone.getDefault());
+    }
+
+    /**
+     * @param bssid access point, null for every access point
+     * @param from range start (in ms since epoch, included)
+     * @param to range end (in ms since epoch, excluded)
+     * @return rows of access point in range, in capture order
+     * @throws IOException if capture size can't be read
+     */
+    public Query query(String bssid, long from, long to) throws IOException {
+        return new Query(bssid, from, to);
+    }
+
+    public HistoryIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return number of blocks read since creation
+     */
+    public long getBlocksRead() {
+        return this.blocksRead;
+    }
+
+    /**
+     * @return number of bytes read from capture since creation
+     */
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    private InputStream readBlock(long offset, int length) throws IOException {
+        if (length > this.buffer.length) {
+            this.buffer = new byte[length];
+        }
+        this.file.seek(offset);
+        this.file.readFully(this.buffer, 0, length);
+        this.blocksRead++;
+        this.bytesRead += length;
+        InputStream in = new ByteArrayInputStream(this.buffer, 0, length);
+        return this.index.isGzipMembers() ? new GZIPInputStream(in) : in;
+    }
+
+    /**
+     * Cursor over the rows of a query
+     */
+    public class Query {
+        private final long mac;
+        private final long from;
+        private final long to;
+        private final int[] blocks;
+        private int nextBlock;
+        private final long tail; // Size of rows after last indexed block
+        private boolean tailRead;
+        private CsvHistoryReader reader;
+
+        private Query(String bssid, long from, long to) throws IOException {
+            this.mac = bssid == null ? MacAddress.INVALID : MacAddress.pack(bssid);
+            this.from = from;
+            this.to = to;
+            this.blocks = index.find(bssid, from, to);
+            this.tail = index.isGzipMembers() ? 0 : file.length() - index.getEnd();
+            this.tailRead = this.tail <= 0;
+        }
+
+        /**
+         * Read next row of query
+         * @param record record filled with row values
+         * @return False after last row
+         * @throws IOException if capture can't be read
+         */
+        public boolean next(HistoryRecord record) throws IOException {
+            while (true) {
+                if (this.reader == null && !openNext()) {
+                    return false;
+                }
+                while (this.reader.next(record)) {
+                    if (record.timeMillis >= this.from && record.timeMillis < this.to
+                            && (this.mac == MacAddress.INVALID || MacAddress.pack(record.bssid) == this.mac)) {
+                        return true;
+                    }
+                }
+                this.reader = null;
+            }
+        }
+
+        /**
+         * @return number of blocks the index selected
+         */
+        public int getBlockCount() {
+            return this.blocks.length;
+        }
+
+        private boolean openNext() throws IOException {
+            InputStream in;
+            if (this.nextBlock < this.blocks.length) {
+                int block = this.blocks[this.nextBlock++];
+                in = readBlock(index.getOffset(block), index.getLength(block));
+            } else if (!this.tailRead) {
+                this.tailRead = true;
+                in = readBlock(index.getEnd(), (int) this.tail);
+            } else {
+                return false;
+            }
+            this.reader = new CsvHistoryReader(in, separator, timeZone);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * History stream split into size and time capped segment files, compressed once closed.
+ *
+ * A new segment is started when the current one reaches <code>maxSegmentBytes</code> or spans
+ * <code>maxSegmentMillis</code> of rows. Rotation only happens in {@link #startBatch}, so with a
+ * {@link HistoryWriter} a scan is never split between two segments. Closed segments are gzipped
+ * by a background thread, then the oldest segments are deleted while the whole capture is above
+ * <code>diskBudget</code>. Every change is recorded in a {@link SegmentManifest} next to the
+ * segments, so readers find the segments of a time range without opening them.
+ *
+ * Each segment has a {@link HistoryIndex} sidecar (<code>name.idx</code>), written with the
+ * segment. Compression writes each indexed block as a separate gzip member and rewrites the
+ * sidecar with the compressed positions, so {@link IndexedHistoryReader} still reads only the
+ * blocks it needs. Sidecars (about 1% of the data) don't count in the disk budget.
+ *
+ * Writing methods are called by a single thread, the manifest is shared with the compression
+ * thread and guarded by its monitor.
+ */
+public class RollingHistoryOutput extends OutputStream implements HistoryBatchListener {
+    public static final long DEFAULT_SEGMENT_BYTES = 4 * 1_024 * 1_024;
+    public static final long DEFAULT_SEGMENT_DURATION = 60 * 60_000; // 1 hour, in ms
+    public static final long DEFAULT_DISK_BUDGET = 64 * 1_024 * 1_024;
+    private static final int CHUNK = 64 * 1_024;
+
+    private final File manifestFile;
+    private final SegmentManifest manifest;
+    private final SimpleDateFormat nameFormat;
+    private final long maxSegmentBytes;
+    private final long maxSegmentMillis;
+    private final long diskBudget;
+    private final ExecutorService compressor;
+    private OutputStream current;
+    private SegmentManifest.Segment currentSegment;
+    private HistoryIndexWriter currentIndex;
+    private SegmentManifest.Segment compressing; // Segment read by compression thread, guarded by manifest lock
+    private boolean closed;
+
+    // Statistics, updated under manifest lock
+    private long segments;
+    private long deletedSegments;
+    private long rawBytes; // Size of compressed segments before compression
+    private long compressedBytes;
+    private volatile IOException lastError;
+
+    /**
+     * Segments of a previous capture listed in the manifest are kept (and compressed if needed),
+     * they count in the disk budget.
+     * @param manifestFile manifest file, segments are written in the same directory
+     * @param namePattern {@link SimpleDateFormat} pattern of segment names, applied to time of first row
+     * @param maxSegmentBytes size starting a new segment
+     * @param maxSegmentMillis time span starting a new segment (in ms)
+     * @param diskBudget max size of all segments, oldest segments are deleted above
+     * @throws IOException if existing manifest can't be read
+     */
+    public RollingHistoryOutput(File manifestFile, String namePattern, long maxSegmentBytes, long maxSegmentMillis, long diskBudget) throws IOException {
+        this.manifestFile = manifestFile;
+        this.manifest = SegmentManifest.load(manifestFile);
+        this.nameFormat = new SimpleDateFormat(namePattern);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.diskBudget = diskBudget;
+        this.compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HistoryCompressor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < this.manifest.size(); i++) {
+            SegmentManifest.Segment segment = this.manifest.get(i);
+            segment.bytes = this.manifest.getFile(segment).length();
+            if (!segment.isCompressed()) { // Left by a capture which didn't end properly
+                compressLater(segment, true);
+            }
+        }
+    }
+
+    /**
+     * Announce rows about to be written, start a new segment if current one is full
+     * @param batch time range and access points of the rows
+     * @throws IOException if a segment can't be closed or created, or index written
+     */
+    @Override
+    public void startBatch(HistoryBlock batch) throws IOException {
+        if (batch.getRows() == 0) {
+            return;
+        }
+        if (this.current != null && (this.currentSegment.bytes >= this.maxSegmentBytes
+                || batch.getLastTime() - this.currentSegment.firstTime >= this.maxSegmentMillis)) {
+            closeSegment();
+        }
+        if (this.current == null) {
+            openSegment(batch.getFirstTime());
+        }
+        this.currentIndex.add(this.currentSegment.bytes, batch);
+        synchronized (this.manifest) {
+            SegmentManifest.Segment segment = this.currentSegment;
+            if (segment.rows == 0) {
+                segment.firstTime = batch.getFirstTime();
+                segment.lastTime = batch.getLastTime();
+            } else {
+                segment.firstTime = Math.min(segment.firstTime, batch.getFirstTime());
+                segment.lastTime = Math.max(segment.lastTime, batch.getLastTime());
+            }
+            segment.rows += batch.getRows();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (this.current == null) { // Rows without time range, segment named after current time
+            openSegment(System.currentTimeMillis());
+        }
+        this.current.write(b, off, len);
+        synchronized (this.manifest) {
+            this.currentSegment.bytes += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.current != null) {
+            this.current.flush();
+        }
+    }
+
+    /**
+     * Close current segment, wait for compression of closed segments and save manifest
+     * @throws IOException if last segment or manifest can't be written, or a compression failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            closeSegment();
+        } finally {
+            this.compressor.shutdown();
+            boolean interrupted = false;
+            while (!this.compressor.isTerminated()) {
+                try {
+                    this.compressor.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this.manifest) {
+            this.manifest.save(this.manifestFile);
+        }
+        if (this.lastError != null) {
+            throw this.lastError;
+        }
+    }
+
+    private void openSegment(long timeMillis) throws IOException {
+        String base = this.nameFormat.format(new Date(timeMillis));
+        String name = base;
+        int dot = base.lastIndexOf('.');
+        for (int i = 1; new File(this.manifest.getDirectory(), name).exists() || new File(this.manifest.getDirectory(), name + SegmentManifest.GZIP_SUFFIX).exists(); i++) {
+            name = dot < 0 ? base + "_" + i : base.substring(0, dot) + "_" + i + base.substring(dot); // Two segments started in the same second
+        }
+        synchronized (this.manifest) {
+            SegmentManifest.Segment segment = this.manifest.add(name, timeMillis);
+            this.current = new FileOutputStream(this.manifest.getFile(segment));
+            this.currentIndex = new HistoryIndexWriter(new FileOutputStream(HistoryIndex.sidecar(this.manifest.getFile(segment))));
+            this.currentSegment = segment;
+            this.segments++;
+            enforceBudget();
+            this.manifest.save(this.manifestFile);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (this.current == null) {
+            return;
+        }
+        SegmentManifest.Segment segment = this.currentSegment;
+        try {
+            this.current.close();
+            this.currentIndex.finish(segment.bytes);
+        } finally {
+            this.current = null;
+            this.currentIndex = null;
+            synchronized (this.manifest) {
+                this.currentSegment = null;
+                this.manifest.save(this.manifestFile);
+            }
+        }
+        compressLater(segment, false);
+    }
+
+    /**
+     * @param segment closed segment
+     * @param recover True to index rows first, time range and rows count in manifest are the ones of the first batch
+     */
+    private void compressLater(final SegmentManifest.Segment segment, final boolean recover) {
+        this.compressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (manifest) {
+                    if (manifest.indexOf(segment.name) < 0) {
+                        return; // Deleted to stay in budget
+                    }
+                    compressing = segment; // Kept on disk by enforceBudget until done
+                }
+                try {
+                    beforeCompress(segment);
+                    if (recover) {
+                        recover(segment);
+                    }
+                    compress(segment);
+                } finally {
+                    synchronized (manifest) {
+                        compressing = null;
+                        if (manifest.indexOf(segment.name) < 0) { // Removed from manifest to stay in budget meanwhile
+                            manifest.getFile(segment).delete();
+                            HistoryIndex.sidecar(manifest.getFile(segment)).delete();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by compression thread before reading a segment, overridden by tests to pause it
+     * @param segment segment about to be compressed
+     */
+    void beforeCompress(SegmentManifest.Segment segment) {
+    }
+
+    /**
+     * Record an error of the compression thread, unless its segment was meanwhile removed to stay in budget
+     */
+    private void fail(SegmentManifest.Segment segment, IOException e) {
+        synchronized (this.manifest) {
+            if (this.manifest.indexOf(segment.name) >= 0) {
+                this.lastError = e;
+            }
+        }
+    }
+
+    /**
+     * Index again a segment written by a capture which didn't end properly, and read its time range and rows count
+     */
+    private void recover(SegmentManifest.Segment segment) {
+        HistoryIndex index;
+        try {
+            index = HistoryIndex.build(this.manifest.getFile(segment), CsvRowEncoder.DEFAULT_SEPARATOR, this.nameFormat.getTimeZone());
+        } catch (IOException e) {
+            fail(segment, e);
+            return;
+        }
+        if (index.getBlockCount() == 0) {
+            return;
+        }
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        long rows = 0;
+        for (int b = 0; b < index.getBlockCount(); b++) {
+            first = Math.min(first, index.getFirstTime(b));
+            last = Math.max(last, index.getLastTime(b));
+            rows += index.getRows(b);
+        }
+        synchronized (this.manifest) {
+            segment.firstTime = first;
+            segment.lastTime = last; // Already raised to the end of its second, as in HistoryBlock
+            segment.rows = rows;
+        }
+    }
+
+    /**
+     * Gzip a closed segment and replace it in manifest, called by compression thread
+     */
+    private void compress(SegmentManifest.Segment segment) {
+        File source;
+        synchronized (this.manifest) {
+            source = this.manifest.getFile(segment);
+        }
+        File target = new File(source.getPath() + SegmentManifest.GZIP_SUFFIX);
+        File tmp = new File(target.getPath() + ".tmp");
+        File sourceIndex = HistoryIndex.sidecar(source);
+        File targetIndex = HistoryIndex.sidecar(target);
+        File tmpIndex = new File(targetIndex.getPath() + ".tmp");
+        try {
+            HistoryIndex index = sourceIndex.exists() ? HistoryIndex.load(sourceIndex) : null;
+            int blocks = index == null ? 0 : index.getBlockCount();
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            InputStream in = new FileInputStream(source);
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    byte[] buffer = new byte[CHUNK];
+                    long position = 0;
+                    for (int b = 0; b < blocks; b++) {
+                        if (index.getOffset(b) != position) {
+                            throw new IOException("Index of " + source.getName() + " doesn't match its rows");
+                        }
+                        offsets[b] = out.getChannel().position();
+                        copyMember(in, out, index.getLength(b), buffer);
+                        lengths[b] = (int) (out.getChannel().position() - offsets[b]);
+                        position += index.getLength(b);
+                    }
+                    if (source.length() > position) { // Rows not indexed
+                        copyMember(in, out, source.length() - position, buffer);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (index != null) {
+                OutputStream out = new FileOutputStream(tmpIndex);
+                try {
+                    index.writeTo(out, offsets, lengths, true);
+                } finally {
+                    out.close();
+                }
+            }
+            synchronized (this.manifest) {
+                if (this.manifest.indexOf(segment.name) < 0 || !tmp.renameTo(target)) {
+                    tmp.delete();
+                    tmpIndex.delete();
+                    return;
+                }
+                source.delete();
+                sourceIndex.delete();
+                tmpIndex.renameTo(targetIndex);
+                this.rawBytes += segment.bytes;
+                segment.name = target.getName();
+                segment.bytes = target.length();
+                this.compressedBytes += segment.bytes;
+                enforceBudget();
+                this.manifest.save(this.manifestFile);
+            }
+        } catch (IOException e) {
+            tmp.delete(); // Segment is kept uncompressed
+            tmpIndex.delete();
+            fail(segment, e);
+        }
+    }
+
+    /**
+     * Compress the next bytes of a stream as one gzip member
+     */
+    private static void copyMember(InputStream in, OutputStream out, long length, byte[] buffer) throws IOException {
+        MemberOutputStream member = new MemberOutputStream(out, buffer.length);
+        try {
+            while (length > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                member.write(buffer, 0, n);
+                length -= n;
+            }
+        } finally {
+            member.end();
+        }
+    }
+
+    /**
+     * Gzip member written on a stream which stays open
+     */
+    private static class MemberOutputStream extends GZIPOutputStream {
+        MemberOutputStream(OutputStream out, int size) throws IOException {
+            super(out, size);
+        }
+
+        /**
+         * Write gzip trailer and release the deflater, without closing the underlying stream
+         */
+        void end() throws IOException {
+            try {
+                finish();
+            } finally {
+                this.def.end();
+            }
+        }
+    }
+
+    /**
+     * Delete oldest segments while above disk budget, never the current one. The segment being
+     * compressed is only removed from manifest, compression thread deletes it once done.
+     * Called with manifest lock held.
+     */
+    private void enforceBudget() {
+        while (this.manifest.size() > 1 && this.manifest.getTotalBytes() > this.diskBudget) {
+            SegmentManifest.Segment oldest = this.manifest.get(0);
+            if (oldest == this.currentSegment) {
+                return;
+            }
+            this.manifest.remove(0);
+            if (oldest != this.compressing) {
+                this.manifest.getFile(oldest).delete();
+                HistoryIndex.sidecar(this.manifest.getFile(oldest)).delete();
+            }
+            this.deletedSegments++;
+        }
+    }
+
+    /**
+     * @return manifest shared with the compression thread, synchronize on it to read it
+     */
+    public SegmentManifest getManifest() {
+        return this.manifest;
+    }
+
+    /**
+     * @return number of segments created by this stream
+     */
+    public long getSegments() {
+        synchronized (this.manifest) {
+            return this.segments;
+        }
+    }
+
+    /**
+     * @return number of segments deleted to stay in disk budget
+     */
+    public long getDeletedSegments() {
+        synchronized (this.manifest) {
+            return this.deletedSegments;
+        }
+    }
+
+    /**
+     * @return compressed size divided by original size of compressed segments, 1 if none yet
+     */
+    public double getCompressionRatio() {
+        synchronized (this.manifest) {
+            return this.rawBytes == 0 ? 1 : this.compressedBytes / (double) this.rawBytes;
+        }
+    }
+
+    /**
+     * @return last error met by compression thread, null if none
+     */
+    public IOException getLastError() {
+        return this.lastError;
+    }
+}
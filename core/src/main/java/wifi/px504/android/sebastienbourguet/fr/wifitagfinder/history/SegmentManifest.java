@@ -0,0 +1,250 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * List of history segments of a rolling capture, with the time range of each one.
+ *
+ * Stored as a small text file next to the segments, one line per segment in time order:
+ * <code>name;first time;last time;rows;bytes</code> (times in ms since epoch, bytes on disk).
+ * Compressed segments end with {@link #GZIP_SUFFIX}. The file is replaced atomically (written
+ * aside then renamed), so a reader never sees a partial manifest.
+ */
+public class SegmentManifest {
+    public static final String GZIP_SUFFIX = ".gz";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char SEPARATOR = ';';
+    private static final String HEADER = "# name;first;last;rows;bytes";
+
+    /**
+     * One history file
+     */
+    public static class Segment {
+        String name;
+        long firstTime;
+        long lastTime;
+        long rows;
+        long bytes;
+
+        Segment(String name, long firstTime) {
+            this.name = name;
+            this.firstTime = firstTime;
+            this.lastTime = firstTime;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return time of first row (in ms since epoch)
+         */
+        public long getFirstTime() {
+            return this.firstTime;
+        }
+
+        /**
+         * @return time of last row (in ms since epoch)
+         */
+        public long getLastTime() {
+            return this.lastTime;
+        }
+
+        public long getRows() {
+            return this.rows;
+        }
+
+        /**
+         * @return size on disk (in bytes)
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        public boolean isCompressed() {
+            return this.name.endsWith(GZIP_SUFFIX);
+        }
+
+        /**
+         * @param from range start (in ms since epoch, included)
+         * @param to range end (in ms since epoch, excluded)
+         * @return True if segment may hold rows in this range
+         */
+        public boolean overlaps(long from, long to) {
+            return this.firstTime < to && this.lastTime >= from;
+        }
+    }
+
+    private final File directory;
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * @param directory directory of segments
+     */
+    public SegmentManifest(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Read a manifest file, segments missing on disk are skipped
+     * @param file manifest file, segments are in the same directory
+     * @return manifest, empty if file doesn't exist
+     * @throws IOException if file can't be read
+     */
+    public static SegmentManifest load(File file) throws IOException {
+        SegmentManifest manifest = new SegmentManifest(file.getAbsoluteFile().getParentFile());
+        if (!file.exists()) {
+            return manifest;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] fields = line.split(String.valueOf(SEPARATOR));
+                if (fields.length < 5 || !new File(manifest.directory, fields[0]).exists()) {
+                    continue;
+                }
+                try {
+                    Segment segment = new Segment(fields[0], Long.parseLong(fields[1]));
+                    segment.lastTime = Long.parseLong(fields[2]);
+                    segment.rows = Long.parseLong(fields[3]);
+                    segment.bytes = Long.parseLong(fields[4]);
+                    manifest.segments.add(segment);
+                } catch (NumberFormatException e) {
+                    // Damaged line, segment is ignored
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Replace manifest file
+     * @param file manifest file
+     * @throws IOException if file can't be written
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Segment segment : this.segments) {
+                writer.write(segment.name + SEPARATOR + segment.firstTime + SEPARATOR + segment.lastTime
+                        + SEPARATOR + segment.rows + SEPARATOR + segment.bytes + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete(); // Some file systems don't replace on rename
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't replace " + file);
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    public int size() {
+        return this.segments.size();
+    }
+
+    /**
+     * @param index segment index, in time order
+     * @return segment
+     */
+    public Segment get(int index) {
+        return this.segments.get(index);
+    }
+
+    /**
+     * @param name segment file name
+     * @return index of segment, -1 if unknown
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < this.segments.size(); i++) {
+            if (this.segments.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    Segment add(String name, long firstTime) {
+        Segment segment = new Segment(name, firstTime);
+        this.segments.add(segment);
+        return segment;
+    }
+
+    Segment remove(int index) {
+        return this.segments.remove(index);
+    }
+
+    /**
+     * @return size of every segment (in bytes)
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : this.segments) {
+            total += segment.bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @param from range start (in ms since epoch, included)
+     * @param to range end (in ms since epoch, excluded)
+     * @return segments which may hold rows in this range, in time order
+     */
+    public List<Segment> find(long from, long to) {
+        List<Segment> found = new ArrayList<>();
+        for (Segment segment : this.segments) {
+            if (segment.overlaps(from, to)) {
+                found.add(segment);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param segment segment of this manifest
+     * @return file of segment
+     */
+    public File getFile(Segment segment) {
+        return new File(this.directory, segment.name);
+    }
+
+    /**
+     * @param segment segment of this manifest
+     * @return uncompressed CSV content of segment
+     * @throws IOException if file can't be opened
+     */
+    public InputStream open(Segment segment) throws IOException {
+        InputStream in = new FileInputStream(getFile(segment));
+        if (segment.isCompressed()) {
+            return new GZIPInputStream(in, 64 * 1_024);
+        }
+        return new BufferedInputStream(in, 64 * 1_024);
+    }
+}
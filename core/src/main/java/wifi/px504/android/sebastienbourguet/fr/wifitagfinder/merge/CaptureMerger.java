@@ -0,0 +1,585 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.merge;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.BinaryLogReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.BinaryLogWriter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+
+/**
+ * Merge the captures of several devices into one capture in time order, each row tagged with
+ * the id of its device (see {@link CsvRowEncoder#encode(HistoryRecord, String)}).
+ *
+ * Times of every capture file are first read in the pool, to find the captures out of order
+ * (clock set back while recording). Those are sorted externally: cut in runs of at most
+ * <code>memoryRecords</code> rows, each sorted in memory and spilled to a temporary binary log.
+ * Then captures in order and runs are merged in one streaming pass: a k-way merge on corrected
+ * times, rows of the same time kept in device order.
+ * Captures are read by chunks of whole lines, {@link #CHUNK_BYTES} at a time, parsed by a pool of
+ * threads up to <code>threads + 1</code> chunks ahead of the merge for each capture, so parsing runs
+ * on every core whatever the number of devices.
+ * The output is written to a temporary file, renamed once complete.
+ */
+public class CaptureMerger {
+    public static final int DEFAULT_MEMORY_RECORDS = 1_000_000;
+    static final int CHUNK_BYTES = 128 * 1_024; // About 1_500 rows
+    private static final int OUTPUT_CHUNK = 64 * 1_024;
+
+    private static final Comparator<HistoryRecord> BY_TIME = new Comparator<HistoryRecord>() {
+        @Override
+        public int compare(HistoryRecord a, HistoryRecord b) {
+            return a.timeMillis < b.timeMillis ? -1 : a.timeMillis == b.timeMillis ? 0 : 1;
+        }
+    };
+
+    private static final Comparator<Input> MERGE_ORDER = new Comparator<Input>() {
+        @Override
+        public int compare(Input a, Input b) {
+            int order = BY_TIME.compare(a.record, b.record);
+            return order != 0 ? order : a.order - b.order;
+        }
+    };
+
+    private final List<DeviceCapture> captures;
+    private final File tempDirectory;
+    private final int memoryRecords;
+    private final int threads;
+    private final byte separator;
+    private long records;
+    private long malformedLines;
+    private int sortedCaptures;
+    private int runs;
+
+    public CaptureMerger(List<DeviceCapture> captures, File tempDirectory) {
+        this(captures, tempDirectory, DEFAULT_MEMORY_RECORDS, Runtime.getRuntime().availableProcessors(), CsvRowEncoder.DEFAULT_SEPARATOR);
+    }
+
+    /**
+     * @param captures captures to merge, one per device, ties between devices are kept in this order
+     * @param tempDirectory directory of the runs of captures sorted externally
+     * @param memoryRecords maximum number of rows sorted in memory
+     * @param threads number of parsing threads
+     * @param separator field separator of captures
+     */
+    public CaptureMerger(List<DeviceCapture> captures, File tempDirectory, int memoryRecords, int threads, byte separator) {
+        this.captures = new ArrayList<>(captures);
+        this.tempDirectory = tempDirectory;
+        this.memoryRecords = memoryRecords;
+        this.threads = threads;
+        this.separator = separator;
+    }
+
+    /**
+     * Merge captures
+     * @param output merged capture to create (replaced if it exists)
+     * @param timeZone time zone used to print merged timestamps
+     * @return number of merged rows
+     * @throws IOException if a capture can't be read or output can't be written
+     */
+    public long merge(File output, TimeZone timeZone) throws IOException {
+        this.records = 0;
+        this.malformedLines = 0;
+        this.sortedCaptures = 0;
+        this.runs = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CaptureParser");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<List<File>> runFiles = new ArrayList<>(this.captures.size()); // By capture, null if in order
+        File tmp = new File(output.getPath() + ".tmp");
+        try {
+            boolean[] unsorted = checkOrder(pool);
+            for (int i = 0; i < unsorted.length; i++) {
+                runFiles.add(unsorted[i] ? new ArrayList<File>() : null);
+                if (unsorted[i]) {
+                    sort(pool, i, runFiles.get(i));
+                    this.sortedCaptures++;
+                }
+            }
+            mergeAll(pool, runFiles, tmp, timeZone);
+            if (!tmp.renameTo(output)) {
+                output.delete(); // Some file systems don't replace on rename
+                if (!tmp.renameTo(output)) {
+                    throw new IOException("Can't replace " + output);
+                }
+            }
+            return this.records;
+        } finally {
+            pool.shutdownNow();
+            tmp.delete();
+            for (List<File> files : runFiles) {
+                if (files != null) {
+                    for (File run : files) {
+                        run.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of rows of last merge
+     */
+    public long getRecords() {
+        return this.records;
+    }
+
+    /**
+     * @return number of lines skipped by last merge
+     */
+    public long getMalformedLines() {
+        return this.malformedLines;
+    }
+
+    /**
+     * @return number of captures found out of order and sorted externally by last merge
+     */
+    public int getSortedCaptures() {
+        return this.sortedCaptures;
+    }
+
+    /**
+     * @return number of sorted runs written by last merge
+     */
+    public int getRuns() {
+        return this.runs;
+    }
+
+    /**
+     * Read the times of every file of every capture in the pool
+     * @return by capture, true if found out of order (within a file or from one file to the next)
+     */
+    private boolean[] checkOrder(ExecutorService pool) throws IOException {
+        List<List<Future<FileOrder>>> orders = new ArrayList<>(this.captures.size());
+        for (DeviceCapture capture : this.captures) {
+            List<Future<FileOrder>> files = new ArrayList<>(capture.getFiles().size());
+            for (int f = 0; f < capture.getFiles().size(); f++) {
+                files.add(checkOrder(pool, capture, f));
+            }
+            orders.add(files);
+        }
+        boolean[] unsorted = new boolean[this.captures.size()];
+        for (int i = 0; i < unsorted.length; i++) {
+            long last = Long.MIN_VALUE;
+            for (Future<FileOrder> future : orders.get(i)) {
+                FileOrder order = await(future);
+                if (!order.sorted || order.first < last) {
+                    unsorted[i] = true;
+                }
+                last = Math.max(last, order.last);
+            }
+        }
+        return unsorted;
+    }
+
+    private Future<FileOrder> checkOrder(ExecutorService pool, final DeviceCapture capture, final int file) {
+        final byte separator = this.separator;
+        return pool.submit(new Callable<FileOrder>() {
+            @Override
+            public FileOrder call() throws IOException {
+                CsvHistoryReader reader = new CsvHistoryReader(capture.open(file), separator, capture.getTimeZone());
+                try {
+                    FileOrder order = new FileOrder();
+                    long time;
+                    while ((time = reader.nextTime()) != Long.MIN_VALUE) {
+                        if (time < order.last) {
+                            order.sorted = false;
+                            break;
+                        }
+                        if (order.last == Long.MIN_VALUE) {
+                            order.first = time;
+                        }
+                        order.last = time;
+                    }
+                    return order;
+                } finally {
+                    reader.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Merge captures in order and runs of captures sorted externally
+     * @param runFiles by capture, runs of the capture, null to read the capture itself
+     */
+    private void mergeAll(ExecutorService pool, List<List<File>> runFiles, File output, TimeZone timeZone) throws IOException {
+        List<Input> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < this.captures.size(); i++) {
+                DeviceCapture capture = this.captures.get(i);
+                if (runFiles.get(i) == null) {
+                    inputs.add(new CsvInput(inputs.size(), capture, pool, this.separator, this.threads + 1));
+                } else {
+                    for (File run : runFiles.get(i)) {
+                        inputs.add(new RunInput(inputs.size(), capture.getDevice(), run));
+                    }
+                }
+            }
+            for (Input input : inputs) {
+                input.start(); // Every capture parsed in the pool before waiting for the first one
+            }
+            PriorityQueue<Input> queue = new PriorityQueue<>(Math.max(1, inputs.size()), MERGE_ORDER);
+            for (Input input : inputs) {
+                if (input.advance()) {
+                    queue.add(input);
+                }
+            }
+            CsvRowEncoder encoder = new CsvRowEncoder(this.separator, timeZone, OUTPUT_CHUNK + 1_024);
+            OutputStream out = new FileOutputStream(output);
+            try {
+                while (!queue.isEmpty()) {
+                    Input input = queue.poll();
+                    encoder.encode(input.record, input.device);
+                    this.records++;
+                    if (encoder.size() >= OUTPUT_CHUNK) {
+                        encoder.writeTo(out);
+                    }
+                    if (input.advance()) {
+                        queue.add(input);
+                    }
+                }
+                encoder.writeTo(out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            for (Input input : inputs) {
+                input.close();
+                this.malformedLines += input.getMalformedLines();
+            }
+        }
+    }
+
+    /**
+     * Sort a capture in runs of at most memoryRecords rows
+     * @param files run files, filled as runs are written
+     */
+    private void sort(ExecutorService pool, int capture, List<File> files) throws IOException {
+        DeviceCapture deviceCapture = this.captures.get(capture);
+        CsvInput input = new CsvInput(-1, deviceCapture, pool, this.separator, this.threads + 1);
+        try {
+            input.start();
+            HistoryRecord[] buffer = new HistoryRecord[Math.min(this.memoryRecords, 64 * 1_024)];
+            int size = 0;
+            while (input.advance()) {
+                if (size == buffer.length) {
+                    if (size >= this.memoryRecords) {
+                        files.add(writeRun(buffer, size));
+                        size = 0;
+                    } else {
+                        buffer = Arrays.copyOf(buffer, Math.min(this.memoryRecords, size * 2));
+                    }
+                }
+                if (buffer[size] == null) {
+                    buffer[size] = new HistoryRecord();
+                }
+                buffer[size++].copyFrom(input.record);
+            }
+            if (size > 0 || files.isEmpty()) {
+                files.add(writeRun(buffer, size));
+            }
+        } finally {
+            input.close();
+            this.malformedLines += input.getMalformedLines();
+        }
+    }
+
+    private File writeRun(HistoryRecord[] buffer, int size) throws IOException {
+        Arrays.sort(buffer, 0, size, BY_TIME); // Stable: rows of a scan stay together
+        File run = File.createTempFile("merge_", ".run", this.tempDirectory);
+        BinaryLogWriter writer = new BinaryLogWriter(new BufferedOutputStream(new FileOutputStream(run), OUTPUT_CHUNK), 0);
+        try {
+            for (int i = 0; i < size; i++) {
+                HistoryRecord record = buffer[i];
+                writer.write(record.ssid, record.bssid, record.capabilities, record.timeMillis, record.level, record.frequency, record.channelWidth);
+            }
+        } finally {
+            writer.close();
+        }
+        this.runs++;
+        return run;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Merge interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Time range of a capture file
+     */
+    private static class FileOrder {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        boolean sorted = true;
+    }
+
+    /**
+     * Rows of one source of the merge, in time order
+     */
+    private abstract static class Input {
+        final int order; // Merge order of rows with the same time
+        final String device;
+        HistoryRecord record; // Current row
+
+        Input(int order, String device) {
+            this.order = order;
+            this.device = device;
+        }
+
+        /**
+         * Start reading ahead, before the first {@link #advance()}
+         */
+        void start() throws IOException {
+        }
+
+        /**
+         * @return False at end of input
+         */
+        abstract boolean advance() throws IOException;
+
+        long getMalformedLines() {
+            return 0;
+        }
+
+        abstract void close() throws IOException;
+    }
+
+    /**
+     * Rows of a capture in order, read by chunks of whole lines and parsed in the pool.
+     * Several chunks are parsed at once while the current one is merged, so even a single
+     * capture keeps every thread busy. Files are read on the merge thread, parsing is the slow part.
+     */
+    private static class CsvInput extends Input {
+        private final DeviceCapture deviceCapture;
+        private final ExecutorService pool;
+        private final byte separator;
+        private final int chunksAhead;
+        private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>(); // In capture order
+        private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+        private Chunk current;
+        private int position;
+        private long malformedLines;
+        // Reading state, only used by merge thread
+        private int nextFile;
+        private InputStream in;
+        private boolean eof;
+        private byte[] carry = new byte[CHUNK_BYTES]; // Start of a line cut by the end of last chunk
+        private int carryLength;
+
+        /**
+         * @param chunksAhead max number of chunks read and not merged yet
+         */
+        CsvInput(int order, DeviceCapture deviceCapture, ExecutorService pool, byte separator, int chunksAhead) {
+            super(order, deviceCapture.getDevice());
+            this.deviceCapture = deviceCapture;
+            this.pool = pool;
+            this.separator = separator;
+            this.chunksAhead = chunksAhead;
+        }
+
+        @Override
+        void start() throws IOException {
+            readAhead();
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            while (true) {
+                if (this.current != null) {
+                    if (++this.position < this.current.size) {
+                        this.record = this.current.records[this.position];
+                        return true;
+                    }
+                    this.free.add(this.current);
+                    this.current = null;
+                }
+                readAhead();
+                Future<Chunk> next = this.pending.poll();
+                if (next == null) {
+                    return false;
+                }
+                this.current = await(next);
+                this.malformedLines += this.current.malformedLines;
+                this.position = -1;
+            }
+        }
+
+        @Override
+        long getMalformedLines() {
+            return this.malformedLines;
+        }
+
+        @Override
+        void close() throws IOException {
+            for (Future<Chunk> future : this.pending) {
+                future.cancel(true);
+            }
+            this.pending.clear();
+            if (this.in != null) {
+                this.in.close();
+            }
+        }
+
+        private void readAhead() throws IOException {
+            while (!this.eof && this.pending.size() < this.chunksAhead) {
+                final Chunk chunk = this.free.isEmpty() ? new Chunk() : this.free.poll();
+                if (!read(chunk)) {
+                    this.eof = true;
+                    this.free.add(chunk);
+                    return;
+                }
+                final long offset = this.deviceCapture.getClockOffset();
+                this.pending.add(this.pool.submit(new Callable<Chunk>() {
+                    @Override
+                    public Chunk call() throws IOException {
+                        chunk.parse(CsvInput.this.separator, CsvInput.this.deviceCapture.getTimeZone(), offset);
+                        return chunk;
+                    }
+                }));
+            }
+        }
+
+        /**
+         * Read next lines of the capture, a chunk never holds lines of two files
+         * @return False at end of capture
+         */
+        private boolean read(Chunk chunk) throws IOException {
+            if (this.in == null) {
+                if (this.nextFile == this.deviceCapture.getFiles().size()) {
+                    return false;
+                }
+                this.in = this.deviceCapture.open(this.nextFile++);
+            }
+            if (chunk.data.length < this.carryLength) {
+                chunk.data = new byte[this.carry.length];
+            }
+            int length = this.carryLength;
+            System.arraycopy(this.carry, 0, chunk.data, 0, length);
+            this.carryLength = 0;
+            while (true) {
+                if (length == chunk.data.length) {
+                    int end = length - 1;
+                    while (end >= 0 && chunk.data[end] != '\n') {
+                        end--;
+                    }
+                    if (end >= 0) {
+                        this.carryLength = length - end - 1;
+                        if (this.carry.length < this.carryLength) {
+                            this.carry = new byte[chunk.data.length];
+                        }
+                        System.arraycopy(chunk.data, end + 1, this.carry, 0, this.carryLength);
+                        chunk.length = end + 1;
+                        return true;
+                    }
+                    chunk.data = Arrays.copyOf(chunk.data, length * 2); // Line longer than a chunk
+                }
+                int n = this.in.read(chunk.data, length, chunk.data.length - length);
+                if (n < 0) { // Last line of file may have no line end
+                    this.in.close();
+                    this.in = null;
+                    chunk.length = length;
+                    return true;
+                }
+                length += n;
+            }
+        }
+    }
+
+    private static class Chunk {
+        byte[] data = new byte[CHUNK_BYTES];
+        int length;
+        HistoryRecord[] records = new HistoryRecord[CHUNK_BYTES / 64];
+        int size;
+        long malformedLines;
+
+        /**
+         * Parse data, called in the pool
+         */
+        void parse(byte separator, TimeZone timeZone, long clockOffset) throws IOException {
+            CsvHistoryReader reader = new CsvHistoryReader(new ByteArrayInputStream(this.data, 0, this.length), separator, timeZone);
+            this.size = 0;
+            while (true) {
+                if (this.size == this.records.length) {
+                    this.records = Arrays.copyOf(this.records, this.size * 2);
+                }
+                HistoryRecord record = this.records[this.size];
+                if (record == null) {
+                    record = new HistoryRecord();
+                    this.records[this.size] = record;
+                }
+                if (!reader.next(record)) {
+                    break;
+                }
+                record.timeMillis += clockOffset;
+                this.size++;
+            }
+            this.malformedLines = reader.getMalformedLines();
+        }
+    }
+
+    /**
+     * Rows of a sorted run
+     */
+    private static class RunInput extends Input {
+        private final BinaryLogReader reader;
+        private final BinaryLogReader.Cursor cursor;
+
+        RunInput(int order, String device, File run) throws IOException {
+            super(order, device);
+            this.reader = new BinaryLogReader(run);
+            this.cursor = this.reader.cursor();
+            this.record = new HistoryRecord();
+        }
+
+        @Override
+        boolean advance() {
+            if (!this.cursor.next()) {
+                return false;
+            }
+            this.cursor.read(this.record);
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            this.reader.close();
+        }
+    }
+}
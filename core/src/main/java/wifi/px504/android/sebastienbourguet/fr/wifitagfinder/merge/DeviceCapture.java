@@ -0,0 +1,81 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.merge;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.SegmentManifest;
+
+/**
+ * Captures recorded by one device, to be merged with those of other devices by {@link CaptureMerger}.
+ *
+ * Timestamps are read in the time zone of the device, then corrected by its clock offset:
+ * <code>reference time = device time + clockOffset</code>.
+ */
+public class DeviceCapture {
+    private final String device;
+    private final List<File> files;
+    private final long clockOffset;
+    private final TimeZone timeZone;
+
+    /**
+     * @param device device id written on each merged row (no separator, no line end)
+     * @param files captures of the device, in time order, gzipped segments included
+     * @param clockOffset correction added to device times (in ms)
+     * @param timeZone time zone of the device
+     */
+    public DeviceCapture(String device, List<File> files, long clockOffset, TimeZone timeZone) {
+        for (int i = 0; i < device.length(); i++) {
+            char c = device.charAt(i);
+            if (c == '\n' || c == '\r' || c == ';' || c == ',' || c == '\t') {
+                throw new IllegalArgumentException("Invalid device id: " + device);
+            }
+        }
+        this.device = device;
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+        this.clockOffset = clockOffset;
+        this.timeZone = timeZone;
+    }
+
+    public String getDevice() {
+        return this.device;
+    }
+
+    public List<File> getFiles() {
+        return this.files;
+    }
+
+    public long getClockOffset() {
+        return this.clockOffset;
+    }
+
+    public TimeZone getTimeZone() {
+        return this.timeZone;
+    }
+
+    /**
+     * @param index file index
+     * @return stream of file, uncompressed on the fly for <code>.gz</code> segments
+     * @throws IOException if file can't be opened
+     */
+    InputStream open(int index) throws IOException {
+        File file = this.files.get(index);
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(SegmentManifest.GZIP_SUFFIX)) {
+            return new GZIPInputStream(in, 64 * 1_024);
+        }
+        return new BufferedInputStream(in, 64 * 1_024);
+    }
+
+    @Override
+    public String toString() {
+        return this.device + " (" + this.files.size() + " files, " + this.clockOffset + " ms)";
+    }
+}
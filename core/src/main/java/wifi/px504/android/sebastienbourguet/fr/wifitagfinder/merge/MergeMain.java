@@ -0,0 +1,86 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.merge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+
+import static java.lang.String.format;
+
+/**
+ * Merge captures of several devices on a desktop JVM
+ *
+ * Usage: <code>MergeMain -o merged.csv [-timezone id] [-memory rows] [-threads n]
+ * -device id [-offset ms] [-tz id] capture... -device id ...</code>
+ *
+ * <code>-offset</code> and <code>-tz</code> apply to the current device: clock correction
+ * added to its times and time zone of its captures. <code>-timezone</code> is the time zone
+ * of the merged capture.
+ */
+public final class MergeMain {
+    private static final String USAGE = "Usage: MergeMain -o merged.csv [-timezone id] [-memory rows] [-threads n] -device id [-offset ms] [-tz id] capture... -device id ...";
+
+    private MergeMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File output = null;
+        TimeZone timeZone = TimeZone.getDefault();
+        int memoryRecords = CaptureMerger.DEFAULT_MEMORY_RECORDS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<DeviceCapture> captures = new ArrayList<>();
+        String device = null;
+        long offset = 0;
+        TimeZone deviceTimeZone = TimeZone.getDefault();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                output = new File(args[++i]);
+            } else if (args[i].equals("-timezone") && i + 1 < args.length) {
+                timeZone = TimeZone.getTimeZone(args[++i]);
+            } else if (args[i].equals("-memory") && i + 1 < args.length) {
+                memoryRecords = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-device") && i + 1 < args.length) {
+                if (device != null) {
+                    captures.add(new DeviceCapture(device, files, offset, deviceTimeZone));
+                }
+                device = args[++i];
+                offset = 0;
+                deviceTimeZone = TimeZone.getDefault();
+                files.clear();
+            } else if (args[i].equals("-offset") && i + 1 < args.length) {
+                offset = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-tz") && i + 1 < args.length) {
+                deviceTimeZone = TimeZone.getTimeZone(args[++i]);
+            } else if (device != null) {
+                files.add(new File(args[i]));
+            } else {
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+        }
+        if (device != null) {
+            captures.add(new DeviceCapture(device, files, offset, deviceTimeZone));
+        }
+        if (output == null || captures.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        File tempDirectory = output.getAbsoluteFile().getParentFile();
+        CaptureMerger merger = new CaptureMerger(captures, tempDirectory, memoryRecords, threads, CsvRowEncoder.DEFAULT_SEPARATOR);
+        long start = System.currentTimeMillis();
+        long records = merger.merge(output, timeZone);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println(format("Merged %d devices: %d records (%d malformed lines) in %d ms, %.0f records/s",
+                captures.size(), records, merger.getMalformedLines(), elapsed, records * 1_000d / elapsed));
+        if (merger.getSortedCaptures() > 0) {
+            System.out.println(format("%d captures out of order, sorted in %d runs", merger.getSortedCaptures(), merger.getRuns()));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distribution in fixed power of two buckets, recorded without lock from any thread.
+ *
+ * Bucket 0 counts durations under 1 us, bucket i durations in [2^(i-1), 2^i) us, the last
+ * bucket everything above. Finding the bucket is a leading zeros count, recording is a few
+ * atomic increments, there is no allocation.
+ * Percentiles are the upper bound of the bucket holding them, so at most twice the exact value.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 32; // Last bucket starts at 2^30 us, about 18 minutes
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong(); // in ns
+    private final AtomicLong max = new AtomicLong(); // in ns
+
+    /**
+     * @param nanos duration (in ns), negative durations count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.counts.incrementAndGet(bucket(nanos));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(nanos);
+        long current = this.max.get();
+        while (nanos > current && !this.max.compareAndSet(current, nanos)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * @param nanos duration (in ns)
+     * @return index of bucket counting this duration
+     */
+    public static int bucket(long nanos) {
+        long micros = nanos / 1_000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return shortest duration of this bucket (in ns)
+     */
+    public static long lowerBound(int bucket) {
+        return bucket == 0 ? 0 : TimeUnit.MICROSECONDS.toNanos(1L << (bucket - 1));
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return first duration after this bucket (in ns), {@link Long#MAX_VALUE} for the last one
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(1L << bucket);
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return sum of recorded durations (in ns)
+     */
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    /**
+     * @return longest recorded duration (in ns)
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return number of durations recorded in this bucket
+     */
+    public long getCount(int bucket) {
+        return this.counts.get(bucket);
+    }
+
+    /**
+     * Copy bucket counts, while other threads may still be recording
+     * @param destination array of at least {@link #BUCKETS} counts
+     */
+    public void copyCounts(long[] destination) {
+        for (int i = 0; i < BUCKETS; i++) {
+            destination[i] = this.counts.get(i);
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+}
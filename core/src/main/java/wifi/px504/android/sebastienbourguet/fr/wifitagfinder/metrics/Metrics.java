@@ -0,0 +1,146 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of processing stages and event counters, shared between threads.
+ *
+ * Stages and counters are fixed at construction and addressed by index, so recording is an
+ * array access. Disabled metrics cost one volatile read: {@link #start()} doesn't read the
+ * clock and every recording method returns immediately.
+ * <pre>
+ *     long start = metrics.start();
+ *     ...
+ *     metrics.stop(STAGE, start);
+ * </pre>
+ */
+public class Metrics {
+    /**
+     * Start time returned while disabled, ignored by {@link #stop(int, long)}
+     */
+    public static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final String[] stages;
+    private final String[] counters;
+    private final LatencyHistogram[] histograms;
+    private final AtomicLongArray counts;
+    private volatile boolean enabled;
+
+    /**
+     * @param stages name of each stage, in index order
+     * @param counters name of each counter, in index order
+     */
+    public Metrics(String[] stages, String[] counters) {
+        this.stages = stages.clone();
+        this.counters = counters.clone();
+        this.histograms = new LatencyHistogram[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            this.histograms[i] = new LatencyHistogram();
+        }
+        this.counts = new AtomicLongArray(counters.length);
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Start or stop recording, values recorded before are kept
+     * @param enabled True to record
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return current time (in ns), {@link #NOT_STARTED} if disabled
+     */
+    public long start() {
+        return this.enabled ? System.nanoTime() : NOT_STARTED;
+    }
+
+    /**
+     * Record time elapsed since given start
+     * @param stage stage index
+     * @param start value returned by {@link #start()}
+     */
+    public void stop(int stage, long start) {
+        if (start != NOT_STARTED && this.enabled) {
+            this.histograms[stage].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param stage stage index
+     * @param nanos duration measured by the caller (in ns)
+     */
+    public void record(int stage, long nanos) {
+        if (this.enabled) {
+            this.histograms[stage].record(nanos);
+        }
+    }
+
+    /**
+     * @param counter counter index
+     */
+    public void increment(int counter) {
+        if (this.enabled) {
+            this.counts.incrementAndGet(counter);
+        }
+    }
+
+    /**
+     * @param counter counter index
+     * @param delta value added
+     */
+    public void add(int counter, long delta) {
+        if (this.enabled) {
+            this.counts.addAndGet(counter, delta);
+        }
+    }
+
+    public int getStageCount() {
+        return this.stages.length;
+    }
+
+    public String getStageName(int stage) {
+        return this.stages[stage];
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return this.histograms[stage];
+    }
+
+    public int getCounterCount() {
+        return this.counters.length;
+    }
+
+    public String getCounterName(int counter) {
+        return this.counters[counter];
+    }
+
+    public long getCounter(int counter) {
+        return this.counts.get(counter);
+    }
+
+    /**
+     * Copy every value, while other threads may still be recording
+     * @param timeMillis time of snapshot (in ms since epoch)
+     * @return values at this time
+     */
+    public MetricsSnapshot snapshot(long timeMillis) {
+        return new MetricsSnapshot(this, timeMillis);
+    }
+
+    /**
+     * Clear every histogram and counter
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : this.histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < this.counters.length; i++) {
+            this.counts.set(i, 0);
+        }
+    }
+}
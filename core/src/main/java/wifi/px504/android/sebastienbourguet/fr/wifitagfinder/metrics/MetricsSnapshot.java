@@ -0,0 +1,149 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static java.lang.String.format;
+
+/**
+ * Values of a {@link Metrics} at a given time, immutable.
+ * The count of a stage is the sum of its buckets, so percentiles stay consistent even when the
+ * snapshot was taken while recording.
+ */
+public class MetricsSnapshot {
+    private final long time;
+    private final String[] stages;
+    private final String[] counters;
+    private final long[][] buckets; // By stage
+    private final long[] counts;
+    private final long[] sums;
+    private final long[] maxs;
+    private final long[] counterValues;
+
+    MetricsSnapshot(Metrics metrics, long timeMillis) {
+        this.time = timeMillis;
+        int nbStages = metrics.getStageCount();
+        this.stages = new String[nbStages];
+        this.buckets = new long[nbStages][LatencyHistogram.BUCKETS];
+        this.counts = new long[nbStages];
+        this.sums = new long[nbStages];
+        this.maxs = new long[nbStages];
+        for (int s = 0; s < nbStages; s++) {
+            LatencyHistogram histogram = metrics.getHistogram(s);
+            this.stages[s] = metrics.getStageName(s);
+            histogram.copyCounts(this.buckets[s]);
+            for (long count : this.buckets[s]) {
+                this.counts[s] += count;
+            }
+            this.sums[s] = histogram.getSum();
+            this.maxs[s] = histogram.getMax();
+        }
+        this.counters = new String[metrics.getCounterCount()];
+        this.counterValues = new long[this.counters.length];
+        for (int c = 0; c < this.counters.length; c++) {
+            this.counters[c] = metrics.getCounterName(c);
+            this.counterValues[c] = metrics.getCounter(c);
+        }
+    }
+
+    /**
+     * @return time of snapshot (in ms since epoch)
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    public int getStageCount() {
+        return this.stages.length;
+    }
+
+    public String getStageName(int stage) {
+        return this.stages[stage];
+    }
+
+    /**
+     * @param stage stage index
+     * @return number of recorded durations
+     */
+    public long getCount(int stage) {
+        return this.counts[stage];
+    }
+
+    /**
+     * @param stage stage index
+     * @return mean duration (in ns), 0 if none recorded
+     */
+    public double getMean(int stage) {
+        return this.counts[stage] == 0 ? 0 : this.sums[stage] / (double) this.counts[stage];
+    }
+
+    /**
+     * @param stage stage index
+     * @return longest duration (in ns)
+     */
+    public long getMax(int stage) {
+        return this.maxs[stage];
+    }
+
+    /**
+     * @param stage stage index
+     * @param bucket bucket index, see {@link LatencyHistogram}
+     * @return number of durations recorded in bucket
+     */
+    public long getBucketCount(int stage, int bucket) {
+        return this.buckets[stage][bucket];
+    }
+
+    /**
+     * @param stage stage index
+     * @param percentile between 0 and 1
+     * @return upper bound of bucket holding the percentile, capped to max (in ns), 0 if none recorded
+     */
+    public long getPercentile(int stage, double percentile) {
+        long count = this.counts[stage];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int b = 0; b < LatencyHistogram.BUCKETS; b++) {
+            seen += this.buckets[stage][b];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.upperBound(b), this.maxs[stage]);
+            }
+        }
+        return this.maxs[stage];
+    }
+
+    public int getCounterCount() {
+        return this.counters.length;
+    }
+
+    public String getCounterName(int counter) {
+        return this.counters[counter];
+    }
+
+    public long getCounter(int counter) {
+        return this.counterValues[counter];
+    }
+
+    /**
+     * @return one line per stage with count, mean, p50, p90, p99 and max in ms, then one line of counters
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        text.append(dateFormat.format(new Date(this.time))).append('\n');
+        for (int s = 0; s < this.stages.length; s++) {
+            text.append(format(Locale.US, "%-10s n=%-6d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f ms\n",
+                    this.stages[s], this.counts[s], getMean(s) / 1e6, getPercentile(s, 0.5) / 1e6,
+                    getPercentile(s, 0.9) / 1e6, getPercentile(s, 0.99) / 1e6, this.maxs[s] / 1e6));
+        }
+        for (int c = 0; c < this.counters.length; c++) {
+            text.append(c == 0 ? "" : ", ").append(this.counters[c]).append('=').append(this.counterValues[c]);
+        }
+        return text.append('\n').toString();
+    }
+}
@@ -0,0 +1,131 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.AnomalyDetector;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.FingerprintLocator;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.Location;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryWriter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.ScanScheduler;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking.LevelHistory;
+
+/**
+ * Processing of live scans on the scanning thread: pipeline, history file and scan scheduling.
+ *
+ * The engine is confined to the scanning thread: every method but {@link #getSnapshot()} must be
+ * called from it. After each scan and each selection change, an immutable {@link ScanSnapshot} is
+ * published for the UI, which never reads the pipeline itself. The listener is called on the
+ * scanning thread, other threads get the latest snapshot with {@link #getSnapshot()}.
+ */
+public class ScanEngine {
+    /**
+     * Receiver of published snapshots, called on the scanning thread
+     */
+    public interface Listener {
+        void onSnapshot(ScanSnapshot snapshot);
+    }
+
+    private final ScanPipeline pipeline;
+    private final ScanScheduler scheduler;
+    private final HistoryWriter historyWriter;
+    private final long[] windows;
+    private final LevelHistory.Buckets buckets;
+    private volatile ScanSnapshot snapshot;
+    private Listener listener;
+    private FingerprintLocator locator;
+    private AnomalyDetector detector;
+    private Location location;
+    private long sequence;
+
+    /**
+     * @param pipeline scan processing
+     * @param scheduler scheduler told of each scan results
+     * @param historyWriter writer of scans to history, null when history is not recorded
+     * @param windows history windows of snapshots (in ms)
+     * @param points maximum number of history points of each window
+     */
+    public ScanEngine(ScanPipeline pipeline, ScanScheduler scheduler, HistoryWriter historyWriter, long[] windows, int points) {
+        this.pipeline = pipeline;
+        this.scheduler = scheduler;
+        this.historyWriter = historyWriter;
+        this.windows = windows.clone();
+        this.buckets = new LevelHistory.Buckets(points);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Locate the device in a radio map on each scan, location is published with snapshots
+     * @param locator locator, null to stop locating
+     */
+    public void setLocator(FingerprintLocator locator) {
+        this.locator = locator;
+        this.location = null;
+    }
+
+    /**
+     * Check every access point of each scan for rogue access points and anomalies
+     * @param detector detector, its listener is called on the scanning thread; null to stop checking
+     */
+    public void setDetector(AnomalyDetector detector) {
+        this.detector = detector;
+    }
+
+    /**
+     * Process scan results, requested or not, and publish a snapshot
+     * @param batch scan, may be reused once the method returns
+     * @return scan index slot of selected access point, -1 if not in scan
+     */
+    public int onResults(ScanBatch batch) {
+        int selectedSlot = this.pipeline.process(batch);
+        if (this.historyWriter != null) { // Whole scan is copied, rows are written later by writer thread
+            this.historyWriter.append(batch);
+        }
+        this.scheduler.onResults(selectedSlot < 0 ? ScanScheduler.NO_LEVEL : this.pipeline.getScanIndex().getLevel(selectedSlot));
+        if (this.locator != null) {
+            this.location = this.locator.locate(batch);
+        }
+        if (this.detector != null) {
+            this.detector.process(batch);
+        }
+        publish(batch.getTimeMillis());
+        return selectedSlot;
+    }
+
+    /**
+     * Select the followed access point and publish a snapshot with its history
+     * @param mac packed BSSID, {@link wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress#INVALID} for none
+     * @param timeMillis current time, end of history windows (in ms since epoch)
+     */
+    public void select(long mac, long timeMillis) {
+        if (mac == this.pipeline.getSelectedMac()) {
+            return;
+        }
+        this.pipeline.select(mac);
+        publish(timeMillis);
+    }
+
+    /**
+     * @return last published snapshot, null before the first scan; may be called from any thread
+     */
+    public ScanSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    public ScanPipeline getPipeline() {
+        return this.pipeline;
+    }
+
+    public ScanScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    private void publish(long timeMillis) {
+        ScanSnapshot published = new ScanSnapshot(this.pipeline, ++this.sequence, timeMillis, this.windows, this.buckets, this.location);
+        this.snapshot = published;
+        if (this.listener != null) {
+            this.listener.onSnapshot(published);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel.ChannelOccupancy;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.KalmanFilter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.PathLossModel;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter.ProximityEstimator;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking.LevelHistory;
+
+/**
+ * Processing of each scan, shared by live scans and replayed captures:
+ * BSSID index, channel occupancy, level histories of the last selected access points
+ * and proximity of the selected one.
+ */
+public class ScanPipeline {
+    public static final int DEFAULT_HISTORY_SIZE = 6 * 60 * 60; // 6 hours at one scan per second
+    public static final int DEFAULT_HISTORIES = 4;
+    public static final float DEFAULT_LEVEL_CHANGE_NOISE = 0.5f; // Variance (dB^2) of level change between two scans, walking
+    public static final float DEFAULT_LEVEL_NOISE = 16; // Variance (dB^2) of a measured level
+
+    private final ScanIndex scanIndex = new ScanIndex();
+    private final ChannelOccupancy channelOccupancy = new ChannelOccupancy();
+    private final ProximityEstimator proximity; // Selected access point only, id 0
+    private final int historySize;
+    // Histories of last selected access points
+    private final long[] historyMacs;
+    private final LevelHistory[] histories;
+    private int nextHistory;
+    private LevelHistory selectedHistory;
+    private long selectedMac = MacAddress.INVALID;
+    private int selectedSlot = -1;
+    private long scans;
+
+    public ScanPipeline() {
+        this(DEFAULT_HISTORY_SIZE, DEFAULT_HISTORIES,
+                new ProximityEstimator(new KalmanFilter(1, DEFAULT_LEVEL_CHANGE_NOISE, DEFAULT_LEVEL_NOISE), new PathLossModel()));
+    }
+
+    /**
+     * @param historySize levels kept by access point
+     * @param histories number of access points followed in history (last selected ones)
+     * @param proximity proximity estimator of selected access point (id 0 only is used)
+     */
+    public ScanPipeline(int historySize, int histories, ProximityEstimator proximity) {
+        if (histories <= 0) {
+            throw new IllegalArgumentException("histories must be positive");
+        }
+        this.historySize = historySize;
+        this.historyMacs = new long[histories];
+        this.histories = new LevelHistory[histories];
+        this.proximity = proximity;
+    }
+
+    /**
+     * Process a whole scan
+     * @param batch scan
+     * @return scan index slot of selected access point, -1 if not in scan
+     */
+    public int process(ScanBatch batch) {
+        this.scans++;
+        this.scanIndex.update(batch);
+        this.channelOccupancy.update(batch);
+        long time = batch.getTimeMillis();
+        for (int i = 0; i < this.histories.length; i++) {
+            if (this.histories[i] == null) {
+                continue;
+            }
+            int slot = this.scanIndex.find(this.historyMacs[i]);
+            if (slot >= 0) {
+                this.histories[i].append(time, this.scanIndex.getLevel(slot));
+            }
+        }
+        this.selectedSlot = this.selectedMac == MacAddress.INVALID ? -1 : this.scanIndex.find(this.selectedMac);
+        if (this.selectedSlot >= 0) {
+            this.proximity.update(0, this.scanIndex.getLevel(this.selectedSlot), this.scanIndex.getFrequency(this.selectedSlot));
+        }
+        return this.selectedSlot;
+    }
+
+    /**
+     * Select the followed access point, its history is kept if it was selected recently.
+     * Its proximity starts from its level in last scan, if it was in it.
+     * @param mac packed BSSID, {@link MacAddress#INVALID} for none
+     */
+    public void select(long mac) {
+        if (mac == this.selectedMac) {
+            return;
+        }
+        this.selectedMac = mac;
+        this.selectedHistory = mac == MacAddress.INVALID ? null : historyOf(mac);
+        this.selectedSlot = mac == MacAddress.INVALID ? -1 : this.scanIndex.find(mac);
+        this.proximity.reset(0);
+        if (this.selectedSlot >= 0) { // In last scan: level known right away, not after next scan
+            this.proximity.update(0, this.scanIndex.getLevel(this.selectedSlot), this.scanIndex.getFrequency(this.selectedSlot));
+        }
+    }
+
+    /**
+     * Get history of an access point, start following it if needed
+     * The history of the access point selected the longest time ago is reused.
+     * @param mac packed BSSID
+     * @return history of the access point
+     */
+    private LevelHistory historyOf(long mac) {
+        for (int i = 0; i < this.histories.length; i++) {
+            if (this.histories[i] != null && this.historyMacs[i] == mac) {
+                return this.histories[i];
+            }
+        }
+        int i = this.nextHistory;
+        this.nextHistory = (this.nextHistory + 1) % this.histories.length;
+        if (this.histories[i] == null) {
+            this.histories[i] = new LevelHistory(this.historySize);
+        }
+        this.histories[i].clear();
+        this.historyMacs[i] = mac;
+        return this.histories[i];
+    }
+
+    public ScanIndex getScanIndex() {
+        return this.scanIndex;
+    }
+
+    public ChannelOccupancy getChannelOccupancy() {
+        return this.channelOccupancy;
+    }
+
+    public long getSelectedMac() {
+        return this.selectedMac;
+    }
+
+    /**
+     * @return scan index slot of selected access point in last scan, -1 if not in scan
+     */
+    public int getSelectedSlot() {
+        return this.selectedSlot;
+    }
+
+    /**
+     * @return level history of selected access point, null if none is selected
+     */
+    public LevelHistory getSelectedHistory() {
+        return this.selectedHistory;
+    }
+
+    /**
+     * @return filtered level of selected access point in dBm, NaN if not seen since selection
+     */
+    public float getSelectedLevel() {
+        return this.proximity.getLevel(0);
+    }
+
+    /**
+     * @return estimated distance of selected access point (in m), 0 if not seen since selection
+     */
+    public float getSelectedDistance() {
+        return this.proximity.getDistance(0);
+    }
+
+    /**
+     * @return number of processed scans
+     */
+    public long getScans() {
+        return this.scans;
+    }
+}
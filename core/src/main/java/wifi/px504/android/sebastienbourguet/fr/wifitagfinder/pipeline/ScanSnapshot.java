@@ -0,0 +1,260 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline;
+
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel.ChannelOccupancy;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.Location;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking.LevelHistory;
+
+/**
+ * Immutable state of the pipeline after a scan, built by {@link ScanEngine} on the scanning thread
+ * and rendered by the UI thread.
+ *
+ * Holds copies of the access points of the scan (by index, with their stable scan index slot),
+ * channel levels and congestion, the selected access point and its level history downsampled
+ * over each displayed time window, and the location of the device when a radio map is loaded.
+ */
+public final class ScanSnapshot {
+    private final long sequence;
+    private final long timeMillis;
+    private final int[] slots;
+    private final long[] macs;
+    private final String[] ssids;
+    private final String[] bssids;
+    private final String[] capabilities;
+    private final int[] levels;
+    private final int[] frequencies;
+    private final int[] channelWidths;
+    private final int[] overlapLevels; // By channel
+    private final float[] congestions; // By channel
+    private final long selectedMac;
+    private final int selectedIndex;
+    private final float selectedLevel;
+    private final float selectedDistance;
+    private final long[] windows;
+    private final long[][] historyTimes; // By window, then bucket
+    private final float[][] historyMeans;
+    private final Location location;
+
+    /**
+     * Copy state of a pipeline
+     * @param pipeline pipeline, after the scan
+     * @param sequence snapshot number
+     * @param timeMillis snapshot time, end of history windows (in ms since epoch)
+     * @param windows history windows (in ms)
+     * @param buckets downsampling buffer, its capacity gives the number of points of each window
+     * @param location location of last scan in radio map, null if unknown
+     */
+    ScanSnapshot(ScanPipeline pipeline, long sequence, long timeMillis, long[] windows, LevelHistory.Buckets buckets, Location location) {
+        this.sequence = sequence;
+        this.timeMillis = timeMillis;
+        ScanIndex index = pipeline.getScanIndex();
+        int size = index.size();
+        this.slots = new int[size];
+        this.macs = new long[size];
+        this.ssids = new String[size];
+        this.bssids = new String[size];
+        this.capabilities = new String[size];
+        this.levels = new int[size];
+        this.frequencies = new int[size];
+        this.channelWidths = new int[size];
+        int selectedIndex = -1;
+        for (int i = 0; i < size; i++) {
+            int slot = index.getSlot(i);
+            this.slots[i] = slot;
+            this.macs[i] = index.getMac(slot);
+            this.ssids[i] = index.getSsid(slot);
+            this.bssids[i] = index.getBssid(slot);
+            this.capabilities[i] = index.getCapabilities(slot);
+            this.levels[i] = index.getLevel(slot);
+            this.frequencies[i] = index.getFrequency(slot);
+            this.channelWidths[i] = index.getChannelWidth(slot);
+            if (slot == pipeline.getSelectedSlot()) {
+                selectedIndex = i;
+            }
+        }
+        ChannelOccupancy occupancy = pipeline.getChannelOccupancy();
+        this.overlapLevels = new int[ChannelOccupancy.MAX_CHANNEL + 1];
+        this.congestions = new float[ChannelOccupancy.MAX_CHANNEL + 1];
+        Arrays.fill(this.overlapLevels, ChannelOccupancy.NO_SIGNAL);
+        copyChannels(occupancy, WifiChannels.CHANNELS_2GHZ);
+        copyChannels(occupancy, WifiChannels.CHANNELS_5GHZ);
+        this.selectedMac = pipeline.getSelectedMac();
+        this.selectedIndex = selectedIndex;
+        this.selectedLevel = pipeline.getSelectedLevel();
+        this.selectedDistance = pipeline.getSelectedDistance();
+        this.location = location;
+        this.windows = windows.clone();
+        this.historyTimes = new long[windows.length][];
+        this.historyMeans = new float[windows.length][];
+        LevelHistory history = pipeline.getSelectedHistory();
+        for (int w = 0; w < windows.length; w++) {
+            if (history != null) {
+                history.downsample(timeMillis - windows[w], timeMillis + 1, buckets);
+            }
+            int points = history == null ? 0 : buckets.size();
+            this.historyTimes[w] = new long[points];
+            this.historyMeans[w] = new float[points];
+            for (int i = 0; i < points; i++) {
+                this.historyTimes[w][i] = buckets.getTime(i);
+                this.historyMeans[w][i] = buckets.getMean(i);
+            }
+        }
+    }
+
+    private void copyChannels(ChannelOccupancy occupancy, int[] channels) {
+        for (int channel : channels) {
+            this.overlapLevels[channel] = occupancy.getOverlapLevel(channel);
+            this.congestions[channel] = occupancy.getCongestion(channel);
+        }
+    }
+
+    /**
+     * @return snapshot number, increasing by one with each published snapshot
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public long getTimeMillis() {
+        return this.timeMillis;
+    }
+
+    /**
+     * @return number of access points in scan
+     */
+    public int size() {
+        return this.slots.length;
+    }
+
+    /**
+     * @param i access point index
+     * @return scan index slot of access point, the same as long as it stays in range
+     */
+    public int getSlot(int i) {
+        return this.slots[i];
+    }
+
+    public long getMac(int i) {
+        return this.macs[i];
+    }
+
+    public String getSsid(int i) {
+        return this.ssids[i];
+    }
+
+    public String getBssid(int i) {
+        return this.bssids[i];
+    }
+
+    public String getCapabilities(int i) {
+        return this.capabilities[i];
+    }
+
+    public int getLevel(int i) {
+        return this.levels[i];
+    }
+
+    public int getFrequency(int i) {
+        return this.frequencies[i];
+    }
+
+    public int getChannelWidth(int i) {
+        return this.channelWidths[i];
+    }
+
+    /**
+     * @param channel channel number
+     * @return level received on channel (in dBm), see {@link ChannelOccupancy#getOverlapLevel(int)}
+     */
+    public int getOverlapLevel(int channel) {
+        return this.overlapLevels[channel];
+    }
+
+    /**
+     * @param channel channel number
+     * @return congestion score of channel, see {@link ChannelOccupancy#getCongestion(int)}
+     */
+    public float getCongestion(int channel) {
+        return this.congestions[channel];
+    }
+
+    /**
+     * @return packed BSSID of selected access point, {@link MacAddress#INVALID} for none
+     */
+    public long getSelectedMac() {
+        return this.selectedMac;
+    }
+
+    /**
+     * @return index of selected access point in scan, -1 if not in scan
+     */
+    public int getSelectedIndex() {
+        return this.selectedIndex;
+    }
+
+    /**
+     * @return filtered level of selected access point in dBm, NaN if not seen since selection
+     */
+    public float getSelectedLevel() {
+        return this.selectedLevel;
+    }
+
+    /**
+     * @return estimated distance of selected access point (in m)
+     */
+    public float getSelectedDistance() {
+        return this.selectedDistance;
+    }
+
+    /**
+     * @return location of the device at last scan, null without radio map or if no access point matched
+     */
+    public Location getLocation() {
+        return this.location;
+    }
+
+    /**
+     * @return number of history windows
+     */
+    public int getWindowCount() {
+        return this.windows.length;
+    }
+
+    /**
+     * @param window window index
+     * @return window duration (in ms), ending at snapshot time
+     */
+    public long getWindow(int window) {
+        return this.windows[window];
+    }
+
+    /**
+     * @param window window index
+     * @return number of history points of selected access point in window
+     */
+    public int getHistorySize(int window) {
+        return this.historyTimes[window].length;
+    }
+
+    /**
+     * @param window window index
+     * @param i point index
+     * @return start of point bucket (in ms since epoch)
+     */
+    public long getHistoryTime(int window, int i) {
+        return this.historyTimes[window][i];
+    }
+
+    /**
+     * @param window window index
+     * @param i point index
+     * @return mean level of point bucket (in dBm)
+     */
+    public float getHistoryMean(int window, int i) {
+        return this.historyMeans[window][i];
+    }
+}
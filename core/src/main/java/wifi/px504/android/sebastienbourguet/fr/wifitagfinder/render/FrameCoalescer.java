@@ -0,0 +1,151 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.render;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics.Metrics;
+
+/**
+ * Merge of display changes into at most one render per frame, with frame time measurement.
+ *
+ * Changes are flagged as dirty parts with {@link #invalidate(int)}, which tells when a frame
+ * callback must be requested: only one is pending whatever the number of changes. On the frame
+ * callback, {@link #doFrame(long)} returns every part changed since last render and clears them.
+ *
+ * After a render, one more frame is requested to measure it: the time between both vsyncs covers
+ * data update, layout and draw of the rendered frame. It is recorded in a metrics stage, frames
+ * later than one vsync period are counted as dropped. Not thread safe, used on main thread.
+ * <pre>
+ *     if (coalescer.invalidate(PART)) {
+ *         choreographer.postFrameCallback(callback);
+ *     }
+ *     ...
+ *     public void doFrame(long frameTimeNanos) {
+ *         int parts = coalescer.doFrame(frameTimeNanos);
+ *         ... // Render parts
+ *         if (coalescer.isFrameRequested()) {
+ *             choreographer.postFrameCallback(this);
+ *         }
+ *     }
+ * </pre>
+ */
+public class FrameCoalescer {
+    public static final long FRAME_NANOS = 1_000_000_000L / 60; // Vsync period at 60 fps
+    private static final long NO_FRAME = Long.MIN_VALUE;
+
+    private final long frameNanos;
+    private int dirty;
+    private boolean frameRequested;
+    private long renderedFrame = NO_FRAME; // Vsync time of last render, until measured
+    private long invalidations;
+    private long renders;
+    private long droppedFrames;
+    private Metrics metrics;
+    private int frameStage;
+    private int framesCounter;
+    private int droppedCounter;
+
+    public FrameCoalescer() {
+        this(FRAME_NANOS);
+    }
+
+    /**
+     * @param frameNanos vsync period (in ns)
+     */
+    public FrameCoalescer(long frameNanos) {
+        this.frameNanos = frameNanos;
+    }
+
+    /**
+     * Record frame times in a metrics stage and count rendered and dropped frames
+     * @param metrics metrics, null to stop recording
+     * @param stage stage index of frame times
+     * @param framesCounter counter index of rendered frames
+     * @param droppedCounter counter index of dropped frames
+     */
+    public void setMetrics(Metrics metrics, int stage, int framesCounter, int droppedCounter) {
+        this.frameStage = stage;
+        this.framesCounter = framesCounter;
+        this.droppedCounter = droppedCounter;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Flag parts of the display as changed
+     * @param parts bit mask of changed parts
+     * @return True if a frame callback must be requested, False if one is already pending
+     */
+    public boolean invalidate(int parts) {
+        this.dirty |= parts;
+        this.invalidations++;
+        if (this.frameRequested) {
+            return false;
+        }
+        this.frameRequested = true;
+        return true;
+    }
+
+    /**
+     * Frame callback: measure last rendered frame and take changed parts
+     * @param frameTimeNanos vsync time of this frame (in ns, {@link System#nanoTime()} time base)
+     * @return bit mask of parts to render in this frame, 0 for none
+     */
+    public int doFrame(long frameTimeNanos) {
+        this.frameRequested = false;
+        if (this.renderedFrame != NO_FRAME) {
+            long frameTime = frameTimeNanos - this.renderedFrame;
+            long dropped = Math.max(0, (frameTime + this.frameNanos / 2) / this.frameNanos - 1);
+            this.droppedFrames += dropped;
+            if (this.metrics != null) {
+                this.metrics.record(this.frameStage, frameTime);
+                this.metrics.add(this.droppedCounter, dropped);
+            }
+            this.renderedFrame = NO_FRAME;
+        }
+        int parts = this.dirty;
+        this.dirty = 0;
+        if (parts != 0) {
+            this.renders++;
+            if (this.metrics != null) {
+                this.metrics.increment(this.framesCounter);
+            }
+            this.renderedFrame = frameTimeNanos;
+            this.frameRequested = true; // Next vsync ends this frame
+        }
+        return parts;
+    }
+
+    /**
+     * @return True if a frame callback is pending or must be requested again after {@link #doFrame(long)}
+     */
+    public boolean isFrameRequested() {
+        return this.frameRequested;
+    }
+
+    /**
+     * Forget pending changes and measurement, when frame callback is removed
+     */
+    public void cancel() {
+        this.dirty = 0;
+        this.frameRequested = false;
+        this.renderedFrame = NO_FRAME;
+    }
+
+    /**
+     * @return number of {@link #invalidate(int)} calls
+     */
+    public long getInvalidations() {
+        return this.invalidations;
+    }
+
+    /**
+     * @return number of frames where something was rendered
+     */
+    public long getRenders() {
+        return this.renders;
+    }
+
+    /**
+     * @return number of vsyncs missed by rendered frames
+     */
+    public long getDroppedFrames() {
+        return this.droppedFrames;
+    }
+}
@@ -0,0 +1,148 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.SegmentManifest;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+/**
+ * Scans of one or several <code>HISTO_*.csv</code> captures, read one after the other.
+ *
+ * Rows are streamed, one row ahead of the returned scan. Consecutive rows with the same
+ * timestamp make one scan, a BSSID seen twice in the same second starts a new scan, and so does
+ * a change of device in merged captures.
+ * Legacy rows have no channel width nor capabilities, they are replayed as 20 MHz
+ * access points without capabilities.
+ */
+public class CsvScanSource implements ScanSource {
+    private final List<InputStream> inputs;
+    private final byte separator;
+    private final TimeZone timeZone;
+    private int nextInput;
+    private CsvHistoryReader reader;
+    private final HistoryRecord record = new HistoryRecord();
+    private boolean hasRecord; // record is read but not returned yet
+    private final LongIntHashMap lastScanByMac = new LongIntHashMap(1_024, -1); // Detect two scans in the same second
+    private int scans;
+    private long records;
+    private long malformedLines;
+
+    /**
+     * @param inputs captures streams, in time order, closed with the source
+     * @param separator field separator
+     * @param timeZone time zone of the device which recorded the captures
+     */
+    public CsvScanSource(List<InputStream> inputs, byte separator, TimeZone timeZone) {
+        this.inputs = inputs;
+        this.separator = separator;
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Open capture files, gzipped segments (<code>.gz</code>) are uncompressed on the fly
+     * @param files captures, in time order
+     * @param separator field separator
+     * @param timeZone time zone of the device which recorded the captures
+     * @return source of files scans
+     * @throws IOException if a file can't be opened
+     */
+    public static CsvScanSource open(List<File> files, byte separator, TimeZone timeZone) throws IOException {
+        List<InputStream> inputs = new ArrayList<>(files.size());
+        try {
+            for (File file : files) {
+                InputStream in = new FileInputStream(file);
+                if (file.getName().endsWith(SegmentManifest.GZIP_SUFFIX)) {
+                    inputs.add(new GZIPInputStream(in, 64 * 1_024));
+                } else {
+                    inputs.add(new BufferedInputStream(in, 64 * 1_024));
+                }
+            }
+        } catch (IOException e) {
+            for (InputStream in : inputs) {
+                in.close();
+            }
+            throw e;
+        }
+        return new CsvScanSource(inputs, separator, timeZone);
+    }
+
+    private boolean readRecord() throws IOException {
+        while (true) {
+            if (this.reader == null) {
+                if (this.nextInput == this.inputs.size()) {
+                    return false;
+                }
+                this.reader = new CsvHistoryReader(this.inputs.get(this.nextInput++), this.separator, this.timeZone);
+            }
+            if (this.reader.next(this.record)) {
+                this.records++;
+                return true;
+            }
+            this.malformedLines += this.reader.getMalformedLines();
+            this.reader.close();
+            this.reader = null;
+        }
+    }
+
+    @Override
+    public boolean next(ScanBatch batch) throws IOException {
+        if (!this.hasRecord && !readRecord()) {
+            return false;
+        }
+        this.scans++;
+        long time = this.record.timeMillis;
+        String device = this.record.device;
+        batch.clear(time);
+        do {
+            long mac = ScanIndex.keyOf(this.record.bssid);
+            if (this.lastScanByMac.put(mac, this.scans) == this.scans) {
+                this.hasRecord = true; // Second scan of the same second
+                return true;
+            }
+            batch.add(this.record.ssid, this.record.bssid, this.record.capabilities == null ? "" : this.record.capabilities,
+                    this.record.level, this.record.frequency,
+                    this.record.channelWidth == HistoryRecord.UNKNOWN_WIDTH ? WifiChannels.WIDTH_20MHZ : this.record.channelWidth);
+            this.hasRecord = readRecord();
+        } while (this.hasRecord && this.record.timeMillis == time
+                && (device == null ? this.record.device == null : device.equals(this.record.device)));
+        return true;
+    }
+
+    /**
+     * @return number of rows read
+     */
+    public long getRecords() {
+        return this.records;
+    }
+
+    /**
+     * @return number of rows skipped in finished captures
+     */
+    public long getMalformedLines() {
+        return this.malformedLines + (this.reader == null ? 0 : this.reader.getMalformedLines());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.reader != null) {
+            this.reader.close();
+            this.reader = null;
+        }
+        while (this.nextInput < this.inputs.size()) {
+            this.inputs.get(this.nextInput++).close();
+        }
+    }
+}
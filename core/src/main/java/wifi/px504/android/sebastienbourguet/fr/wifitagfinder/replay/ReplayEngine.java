@@ -0,0 +1,134 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay;
+
+import java.io.IOException;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+
+/**
+ * Play recorded scans back to a listener, at capture speed times a factor or as fast as possible
+ *
+ * Gaps longer than maxGap in the capture (device off, several captures in a row) are shortened
+ * to maxGap. One {@link ScanBatch} is reused for the whole replay.
+ */
+public class ReplayEngine {
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    public static final long DEFAULT_MAX_GAP = 60_000;
+
+    /**
+     * Receive replayed scans
+     */
+    public interface Listener {
+        /**
+         * @param batch scan, only valid during the call
+         */
+        void onScan(ScanBatch batch);
+    }
+
+    private final ScanSource source;
+    private final double speed;
+    private final Clock clock;
+    private long maxGap = DEFAULT_MAX_GAP;
+    private volatile boolean stopped;
+    private long scans;
+    private long records;
+    private long elapsed;
+
+    /**
+     * @param source recorded scans
+     * @param speed speed factor (1 for real time), {@link #AS_FAST_AS_POSSIBLE} to never wait
+     * @param clock time source
+     */
+    public ReplayEngine(ScanSource source, double speed, Clock clock) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed can't be negative");
+        }
+        this.source = source;
+        this.speed = speed;
+        this.clock = clock;
+    }
+
+    /**
+     * @param maxGap longest wait between two scans, in capture time (ms)
+     */
+    public void setMaxGap(long maxGap) {
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Replay every scan of the source, in calling thread
+     * @param listener scans receiver
+     * @return number of replayed scans
+     * @throws IOException if source failed
+     * @throws InterruptedException if thread was interrupted while waiting
+     */
+    public long run(Listener listener) throws IOException, InterruptedException {
+        ScanBatch batch = new ScanBatch();
+        long start = this.clock.now();
+        long captureTime = 0; // Capture time elapsed since first scan, gaps shortened
+        long lastTime = 0;
+        try {
+            while (!this.stopped && this.source.next(batch)) {
+                long time = batch.getTimeMillis();
+                if (this.scans > 0) {
+                    captureTime += Math.max(0, Math.min(this.maxGap, time - lastTime)); // Clock may go back between captures
+                }
+                lastTime = time;
+                if (this.speed != AS_FAST_AS_POSSIBLE) {
+                    long wait = start + (long) (captureTime / this.speed) - this.clock.now();
+                    if (wait > 0) {
+                        sleep(wait);
+                    }
+                }
+                listener.onScan(batch);
+                this.scans++;
+                this.records += batch.size();
+            }
+        } finally {
+            this.elapsed = this.clock.now() - start;
+        }
+        return this.scans;
+    }
+
+    /**
+     * Wait before next scan
+     * @param millis time to wait (in ms)
+     * @throws InterruptedException if thread was interrupted
+     */
+    protected void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    /**
+     * Stop replay after current scan, can be called from any thread
+     */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    public long getScans() {
+        return this.scans;
+    }
+
+    /**
+     * @return number of access points rows replayed
+     */
+    public long getRecords() {
+        return this.records;
+    }
+
+    /**
+     * @return duration of last run (in ms)
+     */
+    public long getElapsed() {
+        return this.elapsed;
+    }
+
+    public double getRecordsPerSecond() {
+        return this.records * 1_000d / Math.max(1, this.elapsed);
+    }
+
+    public double getScansPerSecond() {
+        return this.scans * 1_000d / Math.max(1, this.elapsed);
+    }
+}
@@ -0,0 +1,128 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.Alert;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.AnomalyDetector;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel.ChannelOccupancy;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanPipeline;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking.LevelHistory;
+
+import static java.lang.String.format;
+
+/**
+ * Replay captures through the scan pipeline on a desktop JVM
+ *
+ * Usage: <code>ReplayMain [-speed factor|max] [-select bssid] [-detect] [-separator c] [-timezone id] capture...</code>
+ *
+ * <code>-detect</code> prints the alerts of an {@link AnomalyDetector} as they are raised.
+ */
+public final class ReplayMain {
+    private static final long PROGRESS_PERIOD = 5_000; // Time between two progress lines (in ms)
+
+    private ReplayMain() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double speed = ReplayEngine.AS_FAST_AS_POSSIBLE;
+        String selected = null;
+        boolean detect = false;
+        byte separator = CsvRowEncoder.DEFAULT_SEPARATOR;
+        TimeZone timeZone = TimeZone.getDefault();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-speed") && i + 1 < args.length) {
+                String value = args[++i];
+                speed = value.equals("max") ? ReplayEngine.AS_FAST_AS_POSSIBLE : Double.parseDouble(value);
+            } else if (args[i].equals("-select") && i + 1 < args.length) {
+                selected = args[++i];
+            } else if (args[i].equals("-detect")) {
+                detect = true;
+            } else if (args[i].equals("-separator") && i + 1 < args.length) {
+                separator = (byte) args[++i].charAt(0);
+            } else if (args[i].equals("-timezone") && i + 1 < args.length) {
+                timeZone = TimeZone.getTimeZone(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: ReplayMain [-speed factor|max] [-select bssid] [-detect] [-separator c] [-timezone id] capture...");
+            System.exit(1);
+        }
+
+        final ScanPipeline pipeline = new ScanPipeline();
+        if (selected != null) {
+            pipeline.select(MacAddress.pack(selected));
+        }
+        final AnomalyDetector detector = detect ? new AnomalyDetector() : null;
+        if (detector != null) {
+            detector.setListener(new AnomalyDetector.Listener() {
+                @Override
+                public void onAlert(Alert alert) {
+                    System.out.println(format("%tF %<tT %s", alert.getTimeMillis(), alert));
+                }
+            });
+        }
+        final CsvScanSource source = CsvScanSource.open(files, separator, timeZone);
+        final ReplayEngine engine = new ReplayEngine(source, speed, Clock.SYSTEM);
+        final long start = Clock.SYSTEM.now();
+        try {
+            engine.run(new ReplayEngine.Listener() {
+                private long lastProgress = start;
+
+                @Override
+                public void onScan(ScanBatch batch) {
+                    pipeline.process(batch);
+                    if (detector != null) {
+                        detector.process(batch);
+                    }
+                    long now = Clock.SYSTEM.now();
+                    if (now - this.lastProgress >= PROGRESS_PERIOD) {
+                        this.lastProgress = now;
+                        System.out.println(format("%d scans, %d records, %.0f records/s",
+                                pipeline.getScans(), source.getRecords(), source.getRecords() * 1_000d / (now - start)));
+                    }
+                }
+            });
+        } finally {
+            source.close();
+        }
+
+        System.out.println(format("Replayed %d scans, %d records (%d malformed lines) in %d ms: %.0f records/s, %.0f scans/s",
+                engine.getScans(), engine.getRecords(), source.getMalformedLines(), engine.getElapsed(),
+                engine.getRecordsPerSecond(), engine.getScansPerSecond()));
+        System.out.println(format("Last scan: %d access points", pipeline.getScanIndex().size()));
+        printChannels(pipeline.getChannelOccupancy(), WifiChannels.CHANNELS_2GHZ);
+        printChannels(pipeline.getChannelOccupancy(), WifiChannels.CHANNELS_5GHZ);
+        if (detector != null) {
+            System.out.println(format("Alerts: %d new BSSID, %d security downgrade, %d level jump, %d channel hop; %d access points tracked, %d evicted",
+                    detector.getAlertCount(Alert.NEW_BSSID), detector.getAlertCount(Alert.SECURITY_DOWNGRADE), detector.getAlertCount(Alert.LEVEL_JUMP),
+                    detector.getAlertCount(Alert.CHANNEL_HOP), detector.getTrackedAccessPoints(), detector.getEvictedAccessPoints()));
+        }
+        LevelHistory history = pipeline.getSelectedHistory();
+        if (history != null) {
+            System.out.println(format("%s: %d levels, last filtered level %.1f dBm, ~%.1f m",
+                    selected, history.size(), pipeline.getSelectedLevel(), pipeline.getSelectedDistance()));
+        }
+    }
+
+    private static void printChannels(ChannelOccupancy occupancy, int[] channels) {
+        StringBuilder line = new StringBuilder("Congestion:");
+        for (int channel : channels) {
+            if (occupancy.getOverlapCount(channel) > 0) {
+                line.append(format(" %d=%.0f%%", channel, 100 * occupancy.getCongestion(channel)));
+            }
+        }
+        System.out.println(line);
+    }
+}
@@ -0,0 +1,19 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+/**
+ * Source of recorded scans, in time order
+ */
+public interface ScanSource extends Closeable {
+    /**
+     * Read next scan
+     * @param batch scan filled with next scan rows
+     * @return False at end of source
+     * @throws IOException if reading failed
+     */
+    boolean next(ScanBatch batch) throws IOException;
+}
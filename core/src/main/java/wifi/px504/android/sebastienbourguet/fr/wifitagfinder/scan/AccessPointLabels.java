@@ -0,0 +1,29 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan;
+
+/**
+ * Labels of access points in the selector: <code>SSID (BSSID)</code>
+ */
+public final class AccessPointLabels {
+    private AccessPointLabels() {
+    }
+
+    /**
+     * @param ssid SSID of access point
+     * @param bssid BSSID of access point
+     * @return displayed label
+     */
+    public static String format(String ssid, String bssid) {
+        return ssid + " (" + bssid + ")";
+    }
+
+    /**
+     * Extract BSSID of a label, the SSID may itself contain parentheses
+     * @param label label built by {@link #format(String, String)}
+     * @return BSSID, null if label has no BSSID
+     */
+    public static String parseBssid(String label) {
+        int end = label.lastIndexOf(')');
+        int start = end < 0 ? -1 : label.lastIndexOf('(', end);
+        return start < 0 ? null : label.substring(start + 1, end);
+    }
+}
@@ -0,0 +1,166 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to int values, without boxing.
+ *
+ * Linear probing, removal by backward shift (no tombstones).
+ * {@link Long#MIN_VALUE} is reserved and can't be used as key.
+ */
+public class LongIntHashMap {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int missingValue;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    /**
+     * @param capacity expected number of keys
+     * @param missingValue value returned by get when key is absent
+     */
+    public LongIntHashMap(int capacity, int missingValue) {
+        this.missingValue = missingValue;
+        allocate(tableSize(capacity));
+    }
+
+    private static int tableSize(int capacity) {
+        int size = 16;
+        while (size * LOAD_FACTOR < capacity) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private void allocate(int tableSize) {
+        this.keys = new long[tableSize];
+        this.values = new int[tableSize];
+        Arrays.fill(this.keys, EMPTY);
+        this.mask = tableSize - 1;
+        this.resizeAt = (int) (tableSize * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing, spreads MAC addresses well
+        return (int) (h ^ (h >>> 32)) & this.mask;
+    }
+
+    public int get(long key) {
+        for (int i = slot(key); ; i = (i + 1) & this.mask) {
+            long k = this.keys[i];
+            if (k == key) {
+                return this.values[i];
+            }
+            if (k == EMPTY) {
+                return this.missingValue;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        for (int i = slot(key); ; i = (i + 1) & this.mask) {
+            long k = this.keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return previous value, missing value if key was absent
+     */
+    public int put(long key, int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Reserved key");
+        }
+        for (int i = slot(key); ; i = (i + 1) & this.mask) {
+            long k = this.keys[i];
+            if (k == key) {
+                int previous = this.values[i];
+                this.values[i] = value;
+                return previous;
+            }
+            if (k == EMPTY) {
+                this.keys[i] = key;
+                this.values[i] = value;
+                if (++this.size > this.resizeAt) {
+                    rehash(this.keys.length * 2);
+                }
+                return this.missingValue;
+            }
+        }
+    }
+
+    /**
+     * @return removed value, missing value if key was absent
+     */
+    public int remove(long key) {
+        for (int i = slot(key); ; i = (i + 1) & this.mask) {
+            long k = this.keys[i];
+            if (k == EMPTY) {
+                return this.missingValue;
+            }
+            if (k == key) {
+                int previous = this.values[i];
+                shiftBack(i);
+                this.size--;
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Fill the hole at given slot with following entries of the same probe chain
+     */
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & this.mask;
+            long k = this.keys[i];
+            if (k == EMPTY) {
+                break;
+            }
+            int home = slot(k);
+            // Move entry if its home slot is not between the hole and its current slot (cyclically)
+            if (((i - home) & this.mask) >= ((i - hole) & this.mask)) {
+                this.keys[hole] = k;
+                this.values[hole] = this.values[i];
+                hole = i;
+            }
+        }
+        this.keys[hole] = EMPTY;
+    }
+
+    private void rehash(int tableSize) {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        allocate(tableSize);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != EMPTY) {
+                int j = slot(k);
+                while (this.keys[j] != EMPTY) {
+                    j = (j + 1) & this.mask;
+                }
+                this.keys[j] = k;
+                this.values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public void clear() {
+        Arrays.fill(this.keys, EMPTY);
+        this.size = 0;
+    }
+}
@@ -0,0 +1,74 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan;
+
+import java.util.Arrays;
+
+/**
+ * MAC addresses (BSSID) packed in the 48 low bits of a long
+ */
+public final class MacAddress {
+    public static final long INVALID = -1L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] DIGITS = new byte[128]; // Value of hexadecimal digits by char, -1 if not a digit
+
+    static {
+        Arrays.fill(DIGITS, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            DIGITS['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DIGITS['a' + i] = (byte) (10 + i);
+            DIGITS['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private MacAddress() {
+    }
+
+    /**
+     * Pack a "xx:xx:xx:xx:xx:xx" address, without allocation
+     * @param bssid MAC address, upper or lower case, ':' or '-' separated
+     * @return packed address, {@link #INVALID} if malformed
+     */
+    public static long pack(String bssid) {
+        if (bssid == null || bssid.length() != 17) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i += 3) { // One byte, two digits, per step
+            char high = bssid.charAt(i);
+            char low = bssid.charAt(i + 1);
+            if ((high | low) >= DIGITS.length) {
+                return INVALID;
+            }
+            int b = DIGITS[high] << 4 | DIGITS[low]; // Negative if either char is not a digit
+            if (b < 0) {
+                return INVALID;
+            }
+            if (i < 15) {
+                char separator = bssid.charAt(i + 2);
+                if (separator != ':' && separator != '-') {
+                    return INVALID;
+                }
+            }
+            value = value << 8 | b;
+        }
+        return value;
+    }
+
+    /**
+     * @param mac packed address
+     * @return "xx:xx:xx:xx:xx:xx" lower case address, as given by Android
+     */
+    public static String toString(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >>> (40 - 8 * i)) & 0xFF;
+            chars[3 * i] = HEX[b >> 4];
+            chars[3 * i + 1] = HEX[b & 0xF];
+            if (i < 5) {
+                chars[3 * i + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,174 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan;
+
+import java.util.Arrays;
+
+/**
+ * All access points seen by one scan, stored column by column.
+ *
+ * A batch is meant to be reused from one scan to the next: {@link #clear(long)} keeps
+ * the arrays, they only grow when a scan contains more access points than before.
+ * Strings are the ones given by the scan result, nothing is copied or created per field.
+ * The BSSID is packed once when added, so consumers of the scan look access points up by MAC
+ * address without parsing the string again.
+ */
+public class ScanBatch {
+    private long timeMillis;
+    private int size;
+    private String[] ssids;
+    private String[] bssids;
+    private long[] macs; // Packed BSSID, MacAddress.INVALID if malformed
+    private String[] capabilities;
+    private int[] levels;
+    private int[] frequencies;
+    private int[] channelWidths;
+
+    public ScanBatch() {
+        this(64);
+    }
+
+    /**
+     * @param capacity initial number of access points
+     */
+    public ScanBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.ssids = new String[capacity];
+        this.bssids = new String[capacity];
+        this.macs = new long[capacity];
+        this.capabilities = new String[capacity];
+        this.levels = new int[capacity];
+        this.frequencies = new int[capacity];
+        this.channelWidths = new int[capacity];
+    }
+
+    /**
+     * Prepare batch for a new scan
+     * @param timeMillis scan time (epoch, in ms)
+     */
+    public void clear(long timeMillis) {
+        // Release references so old scan results can be collected
+        for (int i = 0; i < this.size; i++) {
+            this.ssids[i] = null;
+            this.bssids[i] = null;
+            this.capabilities[i] = null;
+        }
+        this.size = 0;
+        this.timeMillis = timeMillis;
+    }
+
+    /**
+     * Add an access point to the batch
+     * @param ssid network name
+     * @param bssid access point MAC address
+     * @param capabilities security capabilities
+     * @param level signal level in dB
+     * @param frequency frequency in MHz
+     * @param channelWidth channel width code (see {@link WifiChannels})
+     */
+    public void add(String ssid, String bssid, String capabilities, int level, int frequency, int channelWidth) {
+        if (this.size == this.ssids.length) {
+            grow(this.size * 2);
+        }
+        int i = this.size++;
+        this.ssids[i] = ssid;
+        this.bssids[i] = bssid;
+        this.macs[i] = MacAddress.pack(bssid);
+        this.capabilities[i] = capabilities;
+        this.levels[i] = level;
+        this.frequencies[i] = frequency;
+        this.channelWidths[i] = channelWidth;
+    }
+
+    private void grow(int capacity) {
+        this.ssids = copyOf(this.ssids, capacity);
+        this.bssids = copyOf(this.bssids, capacity);
+        this.macs = Arrays.copyOf(this.macs, capacity);
+        this.capabilities = copyOf(this.capabilities, capacity);
+        this.levels = copyOf(this.levels, capacity);
+        this.frequencies = copyOf(this.frequencies, capacity);
+        this.channelWidths = copyOf(this.channelWidths, capacity);
+    }
+
+    private static String[] copyOf(String[] arr, int capacity) {
+        String[] copy = new String[capacity];
+        System.arraycopy(arr, 0, copy, 0, arr.length);
+        return copy;
+    }
+
+    private static int[] copyOf(int[] arr, int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(arr, 0, copy, 0, arr.length);
+        return copy;
+    }
+
+    public long getTimeMillis() {
+        return this.timeMillis;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public String getSsid(int i) {
+        return this.ssids[i];
+    }
+
+    public String getBssid(int i) {
+        return this.bssids[i];
+    }
+
+    /**
+     * @param i access point index
+     * @return packed BSSID, {@link MacAddress#INVALID} if malformed
+     */
+    public long getMac(int i) {
+        return this.macs[i];
+    }
+
+    public String getCapabilities(int i) {
+        return this.capabilities[i];
+    }
+
+    public int getLevel(int i) {
+        return this.levels[i];
+    }
+
+    public int getFrequency(int i) {
+        return this.frequencies[i];
+    }
+
+    public int getChannelWidth(int i) {
+        return this.channelWidths[i];
+    }
+
+    /*
+     * Direct access to columns, used for bulk copies. Only the first size() elements are valid.
+     */
+
+    public String[] ssids() {
+        return this.ssids;
+    }
+
+    public String[] bssids() {
+        return this.bssids;
+    }
+
+    public long[] macs() {
+        return this.macs;
+    }
+
+    public String[] capabilities() {
+        return this.capabilities;
+    }
+
+    public int[] levels() {
+        return this.levels;
+    }
+
+    public int[] frequencies() {
+        return this.frequencies;
+    }
+
+    public int[] channelWidths() {
+        return this.channelWidths;
+    }
+}
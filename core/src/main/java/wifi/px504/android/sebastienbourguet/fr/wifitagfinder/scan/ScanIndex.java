@@ -0,0 +1,303 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan;
+
+import java.util.Arrays;
+
+/**
+ * State of the access points seen by the last scan, indexed by BSSID.
+ *
+ * Each access point gets a slot which stays the same as long as it is seen by consecutive scans.
+ * {@link #update(ScanBatch)} compares a new scan with the previous one and lists slots of
+ * added, updated (level, frequency, width, SSID or capabilities changed) and removed access points,
+ * so the UI only has to apply changes. Removed slots stay readable until next update.
+ * Lookups by BSSID are O(1), on the MAC address packed in a long.
+ */
+public class ScanIndex {
+    private static final int NONE = -1;
+    private static final long HASHED_KEY = 1L << 48; // Keys of BSSID which are not MAC addresses
+
+    private final LongIntHashMap slotsByMac = new LongIntHashMap(256, NONE);
+
+    // Access point columns, by slot
+    private long[] macs;
+    private String[] bssids;
+    private String[] ssids;
+    private String[] capabilities;
+    private int[] levels;
+    private int[] frequencies;
+    private int[] channelWidths;
+    private int[] positions; // Index in last scan batch
+    private int[] lastScan; // Last scan where access point was seen
+    private long[] firstSeen;
+    private int slotCount; // Slots used at least once
+    private int[] freeSlots;
+    private int freeCount;
+
+    private int scan;
+    private int[] present = new int[64]; // Slots seen by last scan
+    private int presentCount;
+    private int[] previous = new int[64];
+
+    // Diff with previous scan
+    private int[] added = new int[64];
+    private int addedCount;
+    private int[] updated = new int[64];
+    private int updatedCount;
+    private int[] removed = new int[64];
+    private int removedCount;
+
+    public ScanIndex() {
+        this(64);
+    }
+
+    /**
+     * @param capacity expected number of access points
+     */
+    public ScanIndex(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.macs = new long[capacity];
+        this.bssids = new String[capacity];
+        this.ssids = new String[capacity];
+        this.capabilities = new String[capacity];
+        this.levels = new int[capacity];
+        this.frequencies = new int[capacity];
+        this.channelWidths = new int[capacity];
+        this.positions = new int[capacity];
+        this.lastScan = new int[capacity];
+        this.firstSeen = new long[capacity];
+        this.freeSlots = new int[capacity];
+    }
+
+    /**
+     * @param bssid BSSID as given by scan result
+     * @return key used in index
+     */
+    public static long keyOf(String bssid) {
+        return keyOf(MacAddress.pack(bssid), bssid);
+    }
+
+    /**
+     * @param mac packed BSSID, as given by {@link ScanBatch#getMac(int)}
+     * @param bssid BSSID as given by scan result
+     * @return key used in index
+     */
+    public static long keyOf(long mac, String bssid) {
+        if (mac == MacAddress.INVALID) { // Should not happen, but don't lose the access point
+            mac = HASHED_KEY | (bssid == null ? 0 : bssid.hashCode() & 0xFFFFFFFFL);
+        }
+        return mac;
+    }
+
+    /**
+     * Replace indexed scan with given one and compute differences
+     * @param batch new scan
+     */
+    public void update(ScanBatch batch) {
+        releaseRemoved();
+        this.scan++;
+        this.addedCount = 0;
+        this.updatedCount = 0;
+
+        int[] swap = this.previous;
+        this.previous = this.present;
+        int previousCount = this.presentCount;
+        this.present = ensure(swap, batch.size());
+        this.presentCount = 0;
+
+        for (int i = 0; i < batch.size(); i++) {
+            long mac = keyOf(batch.getMac(i), batch.getBssid(i));
+            int slot = this.slotsByMac.get(mac);
+            if (slot == NONE) {
+                slot = allocate();
+                this.slotsByMac.put(mac, slot);
+                this.macs[slot] = mac;
+                this.bssids[slot] = batch.getBssid(i);
+                this.firstSeen[slot] = batch.getTimeMillis();
+                set(slot, batch, i);
+                this.added = push(this.added, this.addedCount++, slot);
+            } else if (this.lastScan[slot] == this.scan) {
+                continue; // Same BSSID twice in one scan, keep first
+            } else {
+                if (changed(slot, batch, i)) {
+                    this.updated = push(this.updated, this.updatedCount++, slot);
+                }
+                set(slot, batch, i);
+            }
+            this.lastScan[slot] = this.scan;
+            this.positions[slot] = i;
+            this.present[this.presentCount++] = slot;
+        }
+
+        this.removedCount = 0;
+        for (int i = 0; i < previousCount; i++) {
+            int slot = this.previous[i];
+            if (this.lastScan[slot] != this.scan) {
+                this.removed = push(this.removed, this.removedCount++, slot);
+                this.positions[slot] = NONE;
+            }
+        }
+    }
+
+    private boolean changed(int slot, ScanBatch batch, int i) {
+        return this.levels[slot] != batch.getLevel(i)
+                || this.frequencies[slot] != batch.getFrequency(i)
+                || this.channelWidths[slot] != batch.getChannelWidth(i)
+                || !same(this.ssids[slot], batch.getSsid(i))
+                || !same(this.capabilities[slot], batch.getCapabilities(i));
+    }
+
+    private static boolean same(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    private void set(int slot, ScanBatch batch, int i) {
+        this.ssids[slot] = batch.getSsid(i);
+        this.capabilities[slot] = batch.getCapabilities(i);
+        this.levels[slot] = batch.getLevel(i);
+        this.frequencies[slot] = batch.getFrequency(i);
+        this.channelWidths[slot] = batch.getChannelWidth(i);
+    }
+
+    /**
+     * Free slots removed by previous update
+     */
+    private void releaseRemoved() {
+        for (int i = 0; i < this.removedCount; i++) {
+            int slot = this.removed[i];
+            this.slotsByMac.remove(this.macs[slot]);
+            this.bssids[slot] = null;
+            this.ssids[slot] = null;
+            this.capabilities[slot] = null;
+            this.freeSlots[this.freeCount++] = slot;
+        }
+        this.removedCount = 0;
+    }
+
+    private int allocate() {
+        if (this.freeCount > 0) {
+            return this.freeSlots[--this.freeCount];
+        }
+        if (this.slotCount == this.macs.length) {
+            int capacity = this.slotCount * 2;
+            this.macs = Arrays.copyOf(this.macs, capacity);
+            this.bssids = Arrays.copyOf(this.bssids, capacity);
+            this.ssids = Arrays.copyOf(this.ssids, capacity);
+            this.capabilities = Arrays.copyOf(this.capabilities, capacity);
+            this.levels = Arrays.copyOf(this.levels, capacity);
+            this.frequencies = Arrays.copyOf(this.frequencies, capacity);
+            this.channelWidths = Arrays.copyOf(this.channelWidths, capacity);
+            this.positions = Arrays.copyOf(this.positions, capacity);
+            this.lastScan = Arrays.copyOf(this.lastScan, capacity);
+            this.firstSeen = Arrays.copyOf(this.firstSeen, capacity);
+            this.freeSlots = Arrays.copyOf(this.freeSlots, capacity);
+        }
+        return this.slotCount++;
+    }
+
+    private static int[] ensure(int[] arr, int size) {
+        return arr.length >= size ? arr : new int[Math.max(size, arr.length * 2)];
+    }
+
+    private static int[] push(int[] arr, int index, int value) {
+        if (index == arr.length) {
+            arr = Arrays.copyOf(arr, arr.length * 2);
+        }
+        arr[index] = value;
+        return arr;
+    }
+
+    /**
+     * @param bssid searched BSSID
+     * @return slot of access point in last scan, -1 if not seen
+     */
+    public int find(String bssid) {
+        return find(keyOf(bssid));
+    }
+
+    /**
+     * @param mac packed MAC address (see {@link #keyOf(String)})
+     * @return slot of access point in last scan, -1 if not seen
+     */
+    public int find(long mac) {
+        int slot = this.slotsByMac.get(mac);
+        return slot != NONE && this.positions[slot] != NONE ? slot : NONE;
+    }
+
+    /**
+     * @return number of access points in last scan
+     */
+    public int size() {
+        return this.presentCount;
+    }
+
+    /**
+     * @param i index, from 0 to size()
+     * @return slot of i-th access point of last scan
+     */
+    public int getSlot(int i) {
+        return this.present[i];
+    }
+
+    public int getAddedCount() {
+        return this.addedCount;
+    }
+
+    public int getAdded(int i) {
+        return this.added[i];
+    }
+
+    public int getUpdatedCount() {
+        return this.updatedCount;
+    }
+
+    public int getUpdated(int i) {
+        return this.updated[i];
+    }
+
+    public int getRemovedCount() {
+        return this.removedCount;
+    }
+
+    public int getRemoved(int i) {
+        return this.removed[i];
+    }
+
+    public long getMac(int slot) {
+        return this.macs[slot];
+    }
+
+    public String getBssid(int slot) {
+        return this.bssids[slot];
+    }
+
+    public String getSsid(int slot) {
+        return this.ssids[slot];
+    }
+
+    public String getCapabilities(int slot) {
+        return this.capabilities[slot];
+    }
+
+    public int getLevel(int slot) {
+        return this.levels[slot];
+    }
+
+    public int getFrequency(int slot) {
+        return this.frequencies[slot];
+    }
+
+    public int getChannelWidth(int slot) {
+        return this.channelWidths[slot];
+    }
+
+    public long getFirstSeen(int slot) {
+        return this.firstSeen[slot];
+    }
+
+    /**
+     * @param slot access point slot
+     * @return index of access point in last scan batch, -1 if removed
+     */
+    public int getPosition(int slot) {
+        return this.positions[slot];
+    }
+}
@@ -0,0 +1,52 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan;
+
+/**
+ * Wi-Fi channel helpers
+ */
+public final class WifiChannels {
+    // Channel width codes, same values as ScanResult.CHANNEL_WIDTH_*
+    public static final int WIDTH_20MHZ = 0;
+    public static final int WIDTH_40MHZ = 1;
+    public static final int WIDTH_80MHZ = 2;
+    public static final int WIDTH_160MHZ = 3;
+    public static final int WIDTH_80MHZ_PLUS_80MHZ = 4;
+    // Channels displayed by band
+    public static final int[] CHANNELS_2GHZ = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    public static final int[] CHANNELS_5GHZ = {36, 40, 44, 48, 52, 56, 60, 64, 100, 104, 108, 112, 116, 120, 124, 128, 132, 136, 140};
+
+    private WifiChannels() {
+    }
+
+    /**
+     * Return channel number for given frequency
+     * @param freq frequency of signal
+     * @return corresponding channel (0 if frequency is unknown)
+     */
+    public static int frequencyToChannel(int freq) {
+        int resp = 0;
+        if (freq == 2484) {
+            resp = 14; // Japan only, not on the 5 MHz grid
+        } else if (freq >= 2412 && freq < 2484) {
+            resp = (freq - 2412) / 5 + 1;
+        } else if (freq >= 5170 && freq <= 5825) {
+            resp = (freq - 5170) / 5 + 34;
+        }
+        return resp;
+    }
+
+    /**
+     * Return center frequency of given channel
+     * @param channel channel number (2.4 GHz or 5 GHz band)
+     * @return frequency in MHz (0 if channel is unknown)
+     */
+    public static int channelToFrequency(int channel) {
+        if (channel == 14) {
+            return 2484;
+        } else if (channel >= 1 && channel < 14) {
+            return 2407 + 5 * channel;
+        } else if (channel >= 34 && channel <= 165) {
+            return 5000 + 5 * channel;
+        }
+        return 0;
+    }
+}
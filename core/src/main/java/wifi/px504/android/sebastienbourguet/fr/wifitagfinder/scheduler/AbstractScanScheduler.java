@@ -0,0 +1,138 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+/**
+ * Scan bookkeeping shared by schedulers: pending scan, timeout, throttling budget and statistics.
+ * Subclasses only give the wanted period between two scans.
+ */
+public abstract class AbstractScanScheduler implements ScanScheduler {
+    public static final long DEFAULT_TIMEOUT = 10_000;
+
+    protected final Clock clock;
+    private final ScanStats stats = new ScanStats();
+    private long timeout = DEFAULT_TIMEOUT;
+    private boolean pending;
+    private long lastRequest;
+    private long lastResults;
+    private boolean started; // At least one scan requested or received
+    // Throttling, start times of last scans in a ring
+    private long[] starts = new long[0];
+    private int startHead;
+    private long throttleWindow;
+
+    /**
+     * @param clock time source
+     */
+    protected AbstractScanScheduler(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return wanted time between two scans (in ms)
+     */
+    protected abstract long period();
+
+    /**
+     * Called with each scan results
+     * @param level level of tracked access point in dBm, {@link #NO_LEVEL} if none
+     */
+    protected void onLevel(int level) {
+    }
+
+    /**
+     * Max time to wait for results of a started scan, it is counted as dropped after
+     * @param timeout delay in ms
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Never start more than maxScans scans in any window of given duration
+     * (Android 9 allows 4 scans each 2 minutes to a foreground application)
+     * @param maxScans max number of scans in window, 0 to disable
+     * @param window window duration (in ms)
+     */
+    public void setThrottle(int maxScans, long window) {
+        this.starts = new long[maxScans];
+        this.startHead = 0;
+        this.throttleWindow = window;
+        for (int i = 0; i < maxScans; i++) {
+            this.starts[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    public boolean isPending() {
+        return this.pending;
+    }
+
+    @Override
+    public long nextDelay() {
+        long now = this.clock.now();
+        if (this.pending) { // Wake up to detect a lost scan
+            return Math.max(0, this.lastRequest + this.timeout - now);
+        }
+        if (!this.started) {
+            return 0;
+        }
+        long next = this.lastRequest + period();
+        if (this.starts.length > 0) {
+            next = Math.max(next, this.starts[this.startHead] + this.throttleWindow);
+        }
+        return Math.max(0, next - now);
+    }
+
+    @Override
+    public boolean onTimer() {
+        long now = this.clock.now();
+        if (this.pending) {
+            if (now - this.lastRequest < this.timeout) {
+                this.stats.coalesced++;
+                return false;
+            }
+            this.pending = false; // Results never came
+            this.stats.dropped++;
+        }
+        if (this.starts.length > 0 && now < this.starts[this.startHead] + this.throttleWindow) {
+            this.stats.throttled++;
+            return false;
+        }
+        if (this.starts.length > 0) {
+            this.starts[this.startHead] = now;
+            this.startHead = (this.startHead + 1) % this.starts.length;
+        }
+        this.pending = true;
+        this.started = true;
+        this.lastRequest = now;
+        this.stats.requested++;
+        return true;
+    }
+
+    @Override
+    public void onScanFailed() {
+        this.pending = false;
+        this.stats.dropped++;
+    }
+
+    @Override
+    public void onResults(int level) {
+        long now = this.clock.now();
+        if (this.pending) {
+            this.pending = false;
+        } else { // Scan of another application, serves as our next scan
+            this.stats.coalesced++;
+            this.lastRequest = now;
+        }
+        if (this.stats.completed > 0) {
+            this.stats.recordInterval(now - this.lastResults);
+        }
+        this.started = true;
+        this.lastResults = now;
+        this.stats.completed++;
+        onLevel(level);
+    }
+
+    @Override
+    public ScanStats getStats() {
+        return this.stats;
+    }
+}
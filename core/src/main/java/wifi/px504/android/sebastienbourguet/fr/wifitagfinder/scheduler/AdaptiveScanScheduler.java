@@ -0,0 +1,73 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+/**
+ * Scan faster while tracked level changes, back off while it is stable
+ *
+ * The variation is an exponential average of level changes between two scans. Above the
+ * threshold the period is halved, under it the period grows by a quarter, between minPeriod
+ * and maxPeriod. Without tracked access point in the scan the period also grows.
+ */
+public class AdaptiveScanScheduler extends AbstractScanScheduler {
+    private static final float ALPHA = 0.5f; // Weight of last change in variation
+
+    private final long minPeriod;
+    private final long maxPeriod;
+    private final float threshold;
+    private long period;
+    private int lastLevel = NO_LEVEL;
+    private float variation;
+
+    /**
+     * @param clock time source
+     * @param minPeriod shortest time between two scans (in ms)
+     * @param maxPeriod longest time between two scans (in ms)
+     * @param threshold level variation considered as a move (in dB)
+     */
+    public AdaptiveScanScheduler(Clock clock, long minPeriod, long maxPeriod, float threshold) {
+        super(clock);
+        if (minPeriod <= 0 || maxPeriod < minPeriod) {
+            throw new IllegalArgumentException("Invalid periods " + minPeriod + ", " + maxPeriod);
+        }
+        this.minPeriod = minPeriod;
+        this.maxPeriod = maxPeriod;
+        this.threshold = threshold;
+        this.period = minPeriod;
+    }
+
+    @Override
+    protected void onLevel(int level) {
+        if (level == NO_LEVEL) {
+            backOff();
+        } else {
+            if (this.lastLevel != NO_LEVEL) {
+                this.variation += ALPHA * (Math.abs(level - this.lastLevel) - this.variation);
+                if (this.variation >= this.threshold) {
+                    this.period = Math.max(this.minPeriod, this.period / 2);
+                } else {
+                    backOff();
+                }
+            }
+        }
+        this.lastLevel = level;
+    }
+
+    private void backOff() {
+        this.period = Math.min(this.maxPeriod, this.period + this.period / 4);
+    }
+
+    @Override
+    protected long period() {
+        return this.period;
+    }
+
+    /**
+     * @return current variation of tracked level (in dB)
+     */
+    public float getVariation() {
+        return this.variation;
+    }
+
+    public long getPeriod() {
+        return this.period;
+    }
+}
@@ -0,0 +1,37 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+/**
+ * Scan by bursts: burstSize scans close to each other, then a long idle period
+ */
+public class BurstScanScheduler extends AbstractScanScheduler {
+    private final int burstSize;
+    private final long burstPeriod;
+    private final long idlePeriod;
+    private int burstScans; // Results received in current burst
+
+    /**
+     * @param clock time source
+     * @param burstSize number of scans in a burst
+     * @param burstPeriod time between two scans of a burst (in ms)
+     * @param idlePeriod time between two bursts (in ms)
+     */
+    public BurstScanScheduler(Clock clock, int burstSize, long burstPeriod, long idlePeriod) {
+        super(clock);
+        if (burstSize <= 0) {
+            throw new IllegalArgumentException("burstSize must be positive");
+        }
+        this.burstSize = burstSize;
+        this.burstPeriod = burstPeriod;
+        this.idlePeriod = idlePeriod;
+    }
+
+    @Override
+    protected void onLevel(int level) {
+        this.burstScans = (this.burstScans + 1) % this.burstSize;
+    }
+
+    @Override
+    protected long period() {
+        return this.burstScans == 0 ? this.idlePeriod : this.burstPeriod;
+    }
+}
@@ -0,0 +1,21 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+/**
+ * Source of time of the schedulers, replaced by a manual clock to simulate them
+ */
+public interface Clock {
+    /**
+     * Monotonic clock based on {@link System#nanoTime()}
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long now() {
+            return System.nanoTime() / 1_000_000;
+        }
+    };
+
+    /**
+     * @return current time (in ms), only differences between two calls are meaningful
+     */
+    long now();
+}
@@ -0,0 +1,22 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+/**
+ * Start a scan every period
+ */
+public class FixedRateScanScheduler extends AbstractScanScheduler {
+    private final long period;
+
+    /**
+     * @param clock time source
+     * @param period time between two scans starts (in ms)
+     */
+    public FixedRateScanScheduler(Clock clock, long period) {
+        super(clock);
+        this.period = period;
+    }
+
+    @Override
+    protected long period() {
+        return this.period;
+    }
+}
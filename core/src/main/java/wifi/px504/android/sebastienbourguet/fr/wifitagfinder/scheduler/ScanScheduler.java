@@ -0,0 +1,42 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+/**
+ * Decide when Wi-Fi scans are started
+ *
+ * The caller owns the timer: it waits {@link #nextDelay()}, calls {@link #onTimer()} and starts
+ * a scan only if it returns true, then reports the outcome with {@link #onScanFailed()} or
+ * {@link #onResults(int)} and waits again.
+ */
+public interface ScanScheduler {
+    /**
+     * Level given to {@link #onResults(int)} when tracked access point is not in the scan
+     */
+    int NO_LEVEL = Integer.MIN_VALUE;
+
+    /**
+     * @return time to wait before next call to {@link #onTimer()} (in ms)
+     */
+    long nextDelay();
+
+    /**
+     * Timer expired
+     * @return True if a scan must be started, false if it is coalesced with a pending scan or throttled
+     */
+    boolean onTimer();
+
+    /**
+     * Scan could not be started (radio busy or scan throttled by system)
+     */
+    void onScanFailed();
+
+    /**
+     * Scan results received, requested or not
+     * @param level level of tracked access point in dBm, {@link #NO_LEVEL} if none
+     */
+    void onResults(int level);
+
+    /**
+     * @return counters and achieved scan interval
+     */
+    ScanStats getStats();
+}
@@ -0,0 +1,88 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+import static java.lang.String.format;
+
+/**
+ * Counters of a {@link ScanScheduler}, and achieved interval between two scan results
+ */
+public class ScanStats {
+    long requested;
+    long completed;
+    long dropped;
+    long coalesced;
+    long throttled;
+    private long intervals;
+    private long intervalSum;
+    private long minInterval = Long.MAX_VALUE;
+    private long maxInterval;
+    private long lastInterval;
+
+    void recordInterval(long interval) {
+        this.intervals++;
+        this.intervalSum += interval;
+        this.minInterval = Math.min(this.minInterval, interval);
+        this.maxInterval = Math.max(this.maxInterval, interval);
+        this.lastInterval = interval;
+    }
+
+    /**
+     * @return number of scans started
+     */
+    public long getRequested() {
+        return this.requested;
+    }
+
+    /**
+     * @return number of scan results received
+     */
+    public long getCompleted() {
+        return this.completed;
+    }
+
+    /**
+     * @return number of scans which failed to start or never returned results
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * @return number of scans not started because a scan was pending, or served by results of another application
+     */
+    public long getCoalesced() {
+        return this.coalesced;
+    }
+
+    /**
+     * @return number of scans delayed to stay in the throttling budget
+     */
+    public long getThrottled() {
+        return this.throttled;
+    }
+
+    public long getMinInterval() {
+        return this.intervals == 0 ? 0 : this.minInterval;
+    }
+
+    public long getMaxInterval() {
+        return this.maxInterval;
+    }
+
+    public long getLastInterval() {
+        return this.lastInterval;
+    }
+
+    /**
+     * @return mean time between two scan results (in ms), 0 before the second result
+     */
+    public double getMeanInterval() {
+        return this.intervals == 0 ? 0 : this.intervalSum / (double) this.intervals;
+    }
+
+    @Override
+    public String toString() {
+        return format("%d requested, %d completed, %d dropped, %d coalesced, %d throttled, interval %d/%.0f/%d ms",
+                this.requested, this.completed, this.dropped, this.coalesced, this.throttled,
+                getMinInterval(), getMeanInterval(), this.maxInterval);
+    }
+}
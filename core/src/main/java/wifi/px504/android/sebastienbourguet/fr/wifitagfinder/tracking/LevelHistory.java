@@ -0,0 +1,206 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking;
+
+/**
+ * Signal level history of one access point, in a fixed size ring of primitive arrays.
+ *
+ * Samples are appended in time order, the oldest ones are overwritten when the ring is full.
+ * {@link #downsample(long, long, Buckets)} reduces any time window to a fixed number of
+ * buckets (min, max and mean level), so the graph gets the same number of points whatever
+ * the zoom level and the length of the capture. Nothing is allocated after construction.
+ */
+public class LevelHistory {
+    private final long[] times;
+    private final short[] levels;
+    private int head; // Next write position
+    private int size;
+
+    /**
+     * @param capacity max number of samples kept
+     */
+    public LevelHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.times = new long[capacity];
+        this.levels = new short[capacity];
+    }
+
+    /**
+     * Add a sample, older than none of the samples already added
+     * @param timeMillis sample time (in ms)
+     * @param level level in dB
+     */
+    public void append(long timeMillis, int level) {
+        if (this.size > 0 && timeMillis < getTime(this.size - 1)) {
+            timeMillis = getTime(this.size - 1); // Clock went back, keep history sorted
+        }
+        this.times[this.head] = timeMillis;
+        this.levels[this.head] = (short) level;
+        this.head = this.head + 1 == this.times.length ? 0 : this.head + 1;
+        if (this.size < this.times.length) {
+            this.size++;
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int capacity() {
+        return this.times.length;
+    }
+
+    public void clear() {
+        this.head = 0;
+        this.size = 0;
+    }
+
+    /**
+     * @param i sample index, 0 is the oldest
+     * @return sample time (in ms)
+     */
+    public long getTime(int i) {
+        return this.times[position(i)];
+    }
+
+    /**
+     * @param i sample index, 0 is the oldest
+     * @return sample level in dB
+     */
+    public int getLevel(int i) {
+        return this.levels[position(i)];
+    }
+
+    private int position(int i) {
+        int pos = this.head - this.size + i;
+        return pos < 0 ? pos + this.times.length : pos;
+    }
+
+    /**
+     * @param timeMillis searched time
+     * @return index of first sample at or after given time (size() if none)
+     */
+    public int indexOf(long timeMillis) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.times[position(mid)] < timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Split [from, to) in buckets of same duration and compute level statistics of each one.
+     * Empty buckets are skipped, so out may contain less buckets than its capacity.
+     * @param from window start (in ms, included)
+     * @param to window end (in ms, excluded)
+     * @param out result, its capacity gives the number of buckets
+     */
+    public void downsample(long from, long to, Buckets out) {
+        out.count = 0;
+        int n = out.capacity();
+        if (to <= from || this.size == 0) {
+            return;
+        }
+        long span = to - from;
+        int bucket = -1;
+        int min = 0;
+        int max = 0;
+        long sum = 0;
+        int samples = 0;
+        for (int i = indexOf(from); i < this.size; i++) {
+            int pos = position(i);
+            long time = this.times[pos];
+            if (time >= to) {
+                break;
+            }
+            int b = (int) ((time - from) * n / span);
+            if (b != bucket) {
+                if (samples > 0) {
+                    out.add(from + span * bucket / n, (short) min, (short) max, (float) sum / samples, samples);
+                }
+                bucket = b;
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
+                sum = 0;
+                samples = 0;
+            }
+            int level = this.levels[pos];
+            min = Math.min(min, level);
+            max = Math.max(max, level);
+            sum += level;
+            samples++;
+        }
+        if (samples > 0) {
+            out.add(from + span * bucket / n, (short) min, (short) max, (float) sum / samples, samples);
+        }
+    }
+
+    /**
+     * Result of a downsampling, reused from one call to the next
+     */
+    public static class Buckets {
+        private final long[] times; // Bucket start
+        private final short[] min;
+        private final short[] max;
+        private final float[] mean;
+        private final int[] samples;
+        private int count;
+
+        /**
+         * @param capacity number of buckets
+         */
+        public Buckets(int capacity) {
+            this.times = new long[capacity];
+            this.min = new short[capacity];
+            this.max = new short[capacity];
+            this.mean = new float[capacity];
+            this.samples = new int[capacity];
+        }
+
+        private void add(long time, short min, short max, float mean, int samples) {
+            this.times[this.count] = time;
+            this.min[this.count] = min;
+            this.max[this.count] = max;
+            this.mean[this.count] = mean;
+            this.samples[this.count] = samples;
+            this.count++;
+        }
+
+        public int capacity() {
+            return this.times.length;
+        }
+
+        /**
+         * @return number of non empty buckets
+         */
+        public int size() {
+            return this.count;
+        }
+
+        public long getTime(int i) {
+            return this.times[i];
+        }
+
+        public int getMin(int i) {
+            return this.min[i];
+        }
+
+        public int getMax(int i) {
+            return this.max[i];
+        }
+
+        public float getMean(int i) {
+            return this.mean[i];
+        }
+
+        public int getSamples(int i) {
+            return this.samples[i];
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking;
+
+import java.util.Arrays;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.LongIntHashMap;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+/**
+ * Follow several tagged access points (BSSID) at the same time.
+ *
+ * Each tag has a ring buffer of its last <code>historySize</code> levels, its last seen time,
+ * frequency and channel. All memory is allocated by the constructor: tags histories are slices
+ * of two flat arrays, so the budget is <code>maxTags * historySize * 10</code> bytes whatever
+ * the length of the capture.
+ * A scan is processed in one pass, with one O(1) lookup per access point.
+ */
+public class TagTracker {
+    public static final int NO_TAG = -1;
+
+    private final int maxTags;
+    private final int historySize;
+    private final LongIntHashMap tagsByMac;
+
+    // Tag columns
+    private final long[] macs;
+    private final String[] bssids;
+    private final boolean[] used;
+    private final long[] lastSeen;
+    private final int[] lastLevel;
+    private final int[] frequency;
+    private final int[] channel;
+    private final int[] lastScan; // Scan counter when tag was last seen
+    private final int[] head; // Next write position in ring
+    private final int[] count; // Samples in ring
+    private final int[] freeTags;
+    private int freeCount;
+    private int tagCount;
+
+    // Histories, tag i uses [i * historySize, (i + 1) * historySize)
+    private final long[] times;
+    private final short[] levels;
+
+    private int scans;
+
+    /**
+     * @param maxTags max number of tags followed together
+     * @param historySize number of levels kept by tag
+     */
+    public TagTracker(int maxTags, int historySize) {
+        if (maxTags <= 0 || historySize <= 0) {
+            throw new IllegalArgumentException("maxTags and historySize must be positive");
+        }
+        this.maxTags = maxTags;
+        this.historySize = historySize;
+        this.tagsByMac = new LongIntHashMap(maxTags, NO_TAG);
+        this.macs = new long[maxTags];
+        this.bssids = new String[maxTags];
+        this.used = new boolean[maxTags];
+        this.lastSeen = new long[maxTags];
+        this.lastLevel = new int[maxTags];
+        this.frequency = new int[maxTags];
+        this.channel = new int[maxTags];
+        this.lastScan = new int[maxTags];
+        this.head = new int[maxTags];
+        this.count = new int[maxTags];
+        this.freeTags = new int[maxTags];
+        for (int i = 0; i < maxTags; i++) {
+            this.freeTags[i] = maxTags - 1 - i; // Lowest ids first
+        }
+        this.freeCount = maxTags;
+        this.times = new long[maxTags * historySize];
+        this.levels = new short[maxTags * historySize];
+    }
+
+    /**
+     * Start following an access point
+     * @param bssid BSSID of the tag
+     * @return tag id, {@link #NO_TAG} if max number of tags is reached
+     */
+    public int track(String bssid) {
+        long mac = ScanIndex.keyOf(bssid);
+        int tag = this.tagsByMac.get(mac);
+        if (tag != NO_TAG) {
+            return tag;
+        }
+        if (this.freeCount == 0) {
+            return NO_TAG;
+        }
+        tag = this.freeTags[--this.freeCount];
+        this.tagsByMac.put(mac, tag);
+        this.macs[tag] = mac;
+        this.bssids[tag] = bssid;
+        this.used[tag] = true;
+        this.lastSeen[tag] = 0;
+        this.lastLevel[tag] = 0;
+        this.frequency[tag] = 0;
+        this.channel[tag] = 0;
+        this.lastScan[tag] = -1;
+        this.head[tag] = 0;
+        this.count[tag] = 0;
+        this.tagCount++;
+        return tag;
+    }
+
+    /**
+     * Stop following an access point, its history is dropped
+     * @param bssid BSSID of the tag
+     * @return False if access point was not followed
+     */
+    public boolean untrack(String bssid) {
+        int tag = this.tagsByMac.remove(ScanIndex.keyOf(bssid));
+        if (tag == NO_TAG) {
+            return false;
+        }
+        this.used[tag] = false;
+        this.bssids[tag] = null;
+        this.freeTags[this.freeCount++] = tag;
+        this.tagCount--;
+        return true;
+    }
+
+    /**
+     * @param bssid BSSID of the tag
+     * @return tag id, {@link #NO_TAG} if not followed
+     */
+    public int find(String bssid) {
+        return this.tagsByMac.get(ScanIndex.keyOf(bssid));
+    }
+
+    /**
+     * Record levels of every followed access point present in scan
+     * @param batch scan
+     * @return number of tags seen by this scan
+     */
+    public int update(ScanBatch batch) {
+        this.scans++;
+        if (this.tagCount == 0) {
+            return 0;
+        }
+        long time = batch.getTimeMillis();
+        int seen = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int tag = this.tagsByMac.get(ScanIndex.keyOf(batch.getMac(i), batch.getBssid(i)));
+            if (tag == NO_TAG || this.lastScan[tag] == this.scans) {
+                continue; // Not a tag, or already seen in this scan
+            }
+            record(tag, time, batch.getLevel(i), batch.getFrequency(i));
+            seen++;
+        }
+        return seen;
+    }
+
+    private void record(int tag, long time, int level, int freq) {
+        int index = tag * this.historySize + this.head[tag];
+        this.times[index] = time;
+        this.levels[index] = (short) level;
+        this.head[tag] = this.head[tag] + 1 == this.historySize ? 0 : this.head[tag] + 1;
+        if (this.count[tag] < this.historySize) {
+            this.count[tag]++;
+        }
+        this.lastScan[tag] = this.scans;
+        this.lastSeen[tag] = time;
+        this.lastLevel[tag] = level;
+        if (this.frequency[tag] != freq) {
+            this.frequency[tag] = freq;
+            this.channel[tag] = WifiChannels.frequencyToChannel(freq);
+        }
+    }
+
+    public int getMaxTags() {
+        return this.maxTags;
+    }
+
+    public int getHistorySize() {
+        return this.historySize;
+    }
+
+    /**
+     * @return number of followed tags
+     */
+    public int size() {
+        return this.tagCount;
+    }
+
+    /**
+     * @param tag tag id
+     * @return True if tag id is used
+     */
+    public boolean isTracked(int tag) {
+        return tag >= 0 && tag < this.maxTags && this.used[tag];
+    }
+
+    public String getBssid(int tag) {
+        return this.bssids[tag];
+    }
+
+    public long getMac(int tag) {
+        return this.macs[tag];
+    }
+
+    /**
+     * @return last time tag was seen (epoch, in ms), 0 if never seen
+     */
+    public long getLastSeen(int tag) {
+        return this.lastSeen[tag];
+    }
+
+    public int getLastLevel(int tag) {
+        return this.lastLevel[tag];
+    }
+
+    public int getFrequency(int tag) {
+        return this.frequency[tag];
+    }
+
+    public int getChannel(int tag) {
+        return this.channel[tag];
+    }
+
+    /**
+     * @return number of scans since tag was last seen (0 if seen by last scan)
+     */
+    public int getMissedScans(int tag) {
+        return this.lastScan[tag] < 0 ? this.scans : this.scans - this.lastScan[tag];
+    }
+
+    /**
+     * @return number of levels in tag history
+     */
+    public int getSampleCount(int tag) {
+        return this.count[tag];
+    }
+
+    /**
+     * @param tag tag id
+     * @param i sample index, 0 is the oldest sample kept
+     * @return sample time (epoch, in ms)
+     */
+    public long getTime(int tag, int i) {
+        return this.times[sampleIndex(tag, i)];
+    }
+
+    /**
+     * @param tag tag id
+     * @param i sample index, 0 is the oldest sample kept
+     * @return sample level in dB
+     */
+    public int getLevel(int tag, int i) {
+        return this.levels[sampleIndex(tag, i)];
+    }
+
+    private int sampleIndex(int tag, int i) {
+        if (i < 0 || i >= this.count[tag]) {
+            throw new IndexOutOfBoundsException("Sample " + i + " of " + this.count[tag]);
+        }
+        int start = this.head[tag] - this.count[tag];
+        int pos = start + i;
+        if (pos < 0) {
+            pos += this.historySize;
+        } else if (pos >= this.historySize) {
+            pos -= this.historySize;
+        }
+        return tag * this.historySize + pos;
+    }
+
+    /**
+     * Copy tag history, oldest first
+     * @param tag tag id
+     * @param times destination of times, at least getSampleCount(tag) long
+     * @param levels destination of levels, at least getSampleCount(tag) long
+     * @return number of copied samples
+     */
+    public int copyHistory(int tag, long[] times, short[] levels) {
+        int n = this.count[tag];
+        int base = tag * this.historySize;
+        int start = this.head[tag] - n;
+        if (start < 0) { // Wrapped, copy end of ring then beginning
+            int first = -start;
+            System.arraycopy(this.times, base + this.historySize - first, times, 0, first);
+            System.arraycopy(this.levels, base + this.historySize - first, levels, 0, first);
+            System.arraycopy(this.times, base, times, first, n - first);
+            System.arraycopy(this.levels, base, levels, first, n - first);
+        } else {
+            System.arraycopy(this.times, base + start, times, 0, n);
+            System.arraycopy(this.levels, base + start, levels, 0, n);
+        }
+        return n;
+    }
+
+    /**
+     * Drop every history, tags stay followed
+     */
+    public void clearHistories() {
+        Arrays.fill(this.head, 0);
+        Arrays.fill(this.count, 0);
+    }
+}
@@ -0,0 +1,241 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.analytics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Batch analytics of captures: same statistics as a naive sequential pass, whatever the
+ * splits and threads, and throughput from 1 to N threads.
+ */
+public class CaptureAnalyticsTest {
+    private static final long T0 = 1_511_568_000_000L; // 2017-11-25
+    private static final long DAY = 86_400_000L;
+    private static final TimeZone PARIS = TimeZone.getTimeZone("Europe/Paris");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("analytics").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static String bssid(int i) {
+        return format("02:00:00:00:%02x:%02x", i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    /**
+     * One capture per day, scans every period ms, the third of access points changing channel
+     * now and then, some heard only by day
+     */
+    private List<File> writeCaptures(int days, long period, int nbAps, long seed) throws IOException {
+        Random random = new Random(seed);
+        int[] channels = new int[nbAps];
+        for (int ap = 0; ap < nbAps; ap++) {
+            channels[ap] = WifiChannels.CHANNELS_2GHZ[random.nextInt(WifiChannels.CHANNELS_2GHZ.length)];
+        }
+        List<File> captures = new ArrayList<>();
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, PARIS, 64 * 1_024);
+        for (int d = 0; d < days; d++) {
+            boolean compressed = d % 2 == 1;
+            File capture = new File(directory, format("HISTO_1711%02d.csv%s", 25 + d, compressed ? ".gz" : ""));
+            OutputStream out = new FileOutputStream(capture);
+            if (compressed) {
+                out = new GZIPOutputStream(out, 64 * 1_024);
+            }
+            for (long time = T0 + d * DAY; time < T0 + (d + 1) * DAY; time += period) {
+                int hour = (int) (time / 3_600_000 % 24);
+                for (int ap = 0; ap < nbAps; ap++) {
+                    if (ap % 3 == 0 && random.nextInt(2_000) == 0) {
+                        channels[ap] = WifiChannels.CHANNELS_2GHZ[random.nextInt(WifiChannels.CHANNELS_2GHZ.length)];
+                    }
+                    boolean heard = ap % 4 == 0 ? hour >= 8 && hour < 19 && random.nextInt(4) != 0 : random.nextInt(3) != 0;
+                    if (heard) {
+                        encoder.encode("AP-" + ap, bssid(ap), time, -30 - random.nextInt(ap % 60 + 1), channels[ap], WifiChannels.channelToFrequency(channels[ap]));
+                    }
+                }
+                if (encoder.size() > 32 * 1_024) {
+                    encoder.writeTo(out);
+                }
+            }
+            encoder.writeTo(out);
+            if (d == 0) {
+                out.write("garbage line\n\r".getBytes("US-ASCII"));
+            }
+            out.close();
+            captures.add(capture);
+        }
+        return captures;
+    }
+
+    /**
+     * Statistics of an access point, computed the obvious way
+     */
+    private static class Naive {
+        long rows;
+        int channel;
+        int channelChanges;
+        final List<Integer> levels = new ArrayList<>();
+        final Set<Long> minutes = new HashSet<>();
+        final long[] hours = new long[24];
+
+        int quantile(double q) {
+            Collections.sort(this.levels);
+            return this.levels.get((int) Math.max(0, Math.ceil(q * this.levels.size()) - 1));
+        }
+    }
+
+    private static Map<String, Naive> naive(List<File> captures, Set<Long> allMinutes) throws IOException {
+        Map<String, Naive> byBssid = new HashMap<>();
+        Calendar calendar = Calendar.getInstance(PARIS);
+        for (File capture : captures) {
+            InputStream in = new BufferedInputStream(new FileInputStream(capture));
+            if (capture.getName().endsWith(".gz")) {
+                in = new GZIPInputStream(in);
+            }
+            CsvHistoryReader reader = new CsvHistoryReader(in, CsvRowEncoder.DEFAULT_SEPARATOR, PARIS);
+            HistoryRecord record = new HistoryRecord();
+            while (reader.next(record)) {
+                Naive naive = byBssid.get(record.bssid);
+                if (naive == null) {
+                    naive = new Naive();
+                    byBssid.put(record.bssid, naive);
+                } else if (naive.channel != record.channel) {
+                    naive.channelChanges++;
+                }
+                naive.rows++;
+                naive.channel = record.channel;
+                naive.levels.add(record.level);
+                naive.minutes.add(record.timeMillis / 60_000);
+                allMinutes.add(record.timeMillis / 60_000);
+                calendar.setTimeInMillis(record.timeMillis);
+                naive.hours[calendar.get(Calendar.HOUR_OF_DAY)]++;
+            }
+            reader.close();
+        }
+        return byBssid;
+    }
+
+    @Test
+    public void run_matchesNaivePass() throws IOException {
+        List<File> captures = writeCaptures(3, 20_000, 40, 1);
+        CaptureAnalytics analytics = new CaptureAnalytics(3, 64 * 1_024, CsvRowEncoder.DEFAULT_SEPARATOR, PARIS);
+        CaptureAggregate aggregate = analytics.run(captures);
+        assertTrue(analytics.getSplits() > 10);
+
+        Set<Long> allMinutes = new HashSet<>();
+        Map<String, Naive> expected = naive(captures, allMinutes);
+        assertEquals(expected.size(), aggregate.getAccessPoints().size());
+        assertEquals(allMinutes.size(), aggregate.getMinutes().size());
+        assertEquals(1, aggregate.getMalformedLines());
+        long rows = 0;
+        int changes = 0;
+        for (Map.Entry<String, Naive> entry : expected.entrySet()) {
+            Naive naive = entry.getValue();
+            AccessPointAggregate accessPoint = aggregate.getAccessPoint(entry.getKey());
+            String message = entry.getKey();
+            assertEquals(message, naive.rows, accessPoint.getRows());
+            assertEquals(message, naive.channel, accessPoint.getChannel());
+            assertEquals(message, naive.channelChanges, accessPoint.getChannelChanges());
+            assertEquals(message, naive.minutes.size(), accessPoint.getMinutes().size());
+            for (double q : new double[]{0, 0.1, 0.5, 0.9, 1}) {
+                assertEquals(message + " " + q, naive.quantile(q), accessPoint.getLevels().getQuantile(q));
+            }
+            for (int h = 0; h < 24; h++) {
+                assertEquals(message + " " + h, naive.hours[h], accessPoint.getRowsAt(h));
+            }
+            assertEquals(message, naive.minutes.size() / (double) allMinutes.size(), aggregate.getUptime(accessPoint), 1e-9);
+            rows += naive.rows;
+            changes += naive.channelChanges;
+        }
+        assertEquals(rows, aggregate.getRows());
+        assertTrue(changes > 0);
+
+        AccessPointAggregate dayOnly = aggregate.getAccessPoint(bssid(4));
+        int busiest = dayOnly.getBusiestHour();
+        assertTrue("Busiest hour " + busiest, busiest >= 9 && busiest < 20); // 8 to 19 UTC is 9 to 20 in Paris
+        assertTrue(aggregate.getUptime(dayOnly) < 0.5);
+        assertEquals("AP-4", dayOnly.getSsid());
+
+        long channelRows = 0;
+        for (ChannelAggregate channel : aggregate.getChannels()) {
+            channelRows += channel.getRows();
+            assertEquals(channel.getRows(), channel.getLevels().getCount());
+        }
+        assertEquals(rows, channelRows);
+    }
+
+    @Test
+    public void run_sameResultWhateverSplitsAndThreads() throws IOException {
+        List<File> captures = writeCaptures(2, 30_000, 20, 2);
+        CaptureAggregate whole = new CaptureAnalytics(1, Long.MAX_VALUE, CsvRowEncoder.DEFAULT_SEPARATOR, PARIS).run(captures);
+        CaptureAnalytics analytics = new CaptureAnalytics(4, 10_000, CsvRowEncoder.DEFAULT_SEPARATOR, PARIS);
+        CaptureAggregate split = analytics.run(captures);
+        assertTrue(analytics.getSplits() > 20);
+        assertEquals(whole.getRows(), split.getRows());
+        assertEquals(whole.getMalformedLines(), split.getMalformedLines());
+        assertEquals(whole.getAccessPoints().size(), split.getAccessPoints().size());
+        for (AccessPointAggregate expected : whole.getAccessPoints()) {
+            AccessPointAggregate actual = split.getAccessPoint(expected.getBssid());
+            assertEquals(expected.getRows(), actual.getRows());
+            assertEquals(expected.getFirstTime(), actual.getFirstTime());
+            assertEquals(expected.getLastTime(), actual.getLastTime());
+            assertEquals(expected.getChannelChanges(), actual.getChannelChanges());
+            assertEquals(expected.getLevels().getMean(), actual.getLevels().getMean(), 1e-9);
+            assertEquals(expected.getMinutes().size(), actual.getMinutes().size());
+        }
+    }
+
+    @Test
+    public void listCaptures_keepsCapturesByName() throws IOException {
+        writeCaptures(2, 600_000, 2, 3);
+        new File(directory, "notes.txt").createNewFile();
+        List<File> captures = CaptureAnalytics.listCaptures(directory);
+        assertEquals(Arrays.asList(new File(directory, "HISTO_171125.csv"), new File(directory, "HISTO_171126.csv.gz")), captures);
+    }
+
+    @Test(expected = IOException.class)
+    public void run_missingCaptureFails() throws IOException {
+        List<File> captures = writeCaptures(2, 600_000, 2, 4);
+        captures.add(new File(directory, "HISTO_missing.csv"));
+        new CaptureAnalytics(2, 1_024, CsvRowEncoder.DEFAULT_SEPARATOR, PARIS).run(captures);
+    }
+}
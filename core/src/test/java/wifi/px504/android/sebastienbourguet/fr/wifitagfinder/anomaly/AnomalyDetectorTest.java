@@ -0,0 +1,254 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.CsvScanSource;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.ReplayEngine;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Rogue access point and anomaly detection: alerts on a replayed trace, bounded state,
+ * accuracy of the sketches and throughput on dense deployments.
+ */
+public class AnomalyDetectorTest {
+    private static final long T0 = 1_511_568_000_000L; // 2017-11-25
+    private static final long PERIOD = 4_000;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final String WPA2 = "[WPA2-PSK-CCMP][ESS]";
+
+    private static String bssid(int i) {
+        return format("02:00:00:%02x:%02x:%02x", i >> 16 & 0xFF, i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    private static class Recorder implements AnomalyDetector.Listener {
+        final List<Alert> alerts = new ArrayList<>();
+
+        @Override
+        public void onAlert(Alert alert) {
+            this.alerts.add(alert);
+        }
+    }
+
+    /**
+     * A home network with one access point, an office with 10 and an open cafe with 2. An evil
+     * twin of the home network shows up at scan 100, a new office access point at 120, a cafe
+     * access point moves from channel 6 to 11 at 150 and the home access point jumps 30 dB at 200.
+     */
+    private static List<ScanBatch> trace() {
+        Random random = new Random(3);
+        List<ScanBatch> scans = new ArrayList<>();
+        for (int s = 0; s < 240; s++) { // Less than the cooldown after the evil twin
+            ScanBatch batch = new ScanBatch();
+            batch.clear(T0 + s * PERIOD);
+            batch.add("Home", bssid(1), WPA2, (s >= 200 ? -35 : -65) + random.nextInt(5), 2437, 0);
+            for (int ap = 0; ap < (s >= 120 ? 11 : 10); ap++) {
+                batch.add("Office", bssid(100 + ap), "[WPA2-EAP-CCMP][ESS]", -70 - random.nextInt(15), 5180 + 20 * (ap % 4), 1);
+            }
+            batch.add("Cafe", bssid(200), "[ESS]", -75 - random.nextInt(5), s >= 150 ? 2462 : 2437, 0);
+            batch.add("Cafe", bssid(201), "[ESS]", -80 - random.nextInt(5), 2412, 0);
+            batch.add("", bssid(300), WPA2, -85, 2412, 0); // Hidden network
+            if (s >= 100) {
+                batch.add("Home", bssid(666), "[ESS]", -60 - random.nextInt(5), 2412, 0);
+            }
+            scans.add(batch);
+        }
+        return scans;
+    }
+
+    @Test
+    public void replayedTrace_raisesExpectedAlerts() throws IOException, InterruptedException {
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 64 * 1_024);
+        for (ScanBatch batch : trace()) {
+            encoder.encode(batch);
+        }
+        List<InputStream> inputs = Collections.<InputStream>singletonList(new ByteArrayInputStream(encoder.toByteArray()));
+        CsvScanSource source = new CsvScanSource(inputs, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        final AnomalyDetector detector = new AnomalyDetector();
+        Recorder recorder = new Recorder();
+        detector.setListener(recorder);
+        new ReplayEngine(source, ReplayEngine.AS_FAST_AS_POSSIBLE, Clock.SYSTEM).run(new ReplayEngine.Listener() {
+            @Override
+            public void onScan(ScanBatch batch) {
+                detector.process(batch);
+            }
+        });
+        source.close();
+
+        assertEquals(240, detector.getScans());
+        assertEquals(recorder.alerts.toString(), 4, recorder.alerts.size());
+        Alert twin = recorder.alerts.get(0);
+        assertEquals(Alert.NEW_BSSID, twin.getType());
+        assertEquals(bssid(666), twin.getBssid());
+        assertEquals("Home", twin.getSsid());
+        assertEquals(T0 + 100 * PERIOD, twin.getTimeMillis());
+        Alert downgrade = recorder.alerts.get(1);
+        assertEquals(Alert.SECURITY_DOWNGRADE, downgrade.getType());
+        assertEquals(bssid(666), downgrade.getBssid());
+        assertEquals("open instead of WPA2", downgrade.getDetail());
+        Alert hop = recorder.alerts.get(2); // New office access point isn't reported, large deployment
+        assertEquals(Alert.CHANNEL_HOP, hop.getType());
+        assertEquals(bssid(200), hop.getBssid());
+        assertEquals(11, hop.getChannel());
+        Alert jump = recorder.alerts.get(3);
+        assertEquals(Alert.LEVEL_JUMP, jump.getType());
+        assertEquals(bssid(1), jump.getBssid());
+        assertEquals(T0 + 200 * PERIOD, jump.getTimeMillis());
+
+        assertEquals(2, detector.getDistinctBssids("Home"));
+        assertEquals(11, detector.getDistinctBssids("Office"));
+    }
+
+    @Test
+    public void cooldown_limitsRepeatedAlerts() {
+        AnomalyDetector detector = new AnomalyDetector(64, 16, 20, 60_000);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < 100; s++) {
+            batch.clear(T0 + s * PERIOD);
+            batch.add("Flappy", bssid(1), WPA2, -50, s % 2 == 0 ? 2412 : 2437, 0); // Hops every scan
+            detector.process(batch);
+        }
+        // One alert per 60 s, 15 scans, from second scan
+        assertEquals(7, detector.getAlertCount(Alert.CHANNEL_HOP));
+    }
+
+    @Test
+    public void unknownChannel_isNotAHop() {
+        assertEquals(0, WifiChannels.frequencyToChannel(0));
+        AnomalyDetector detector = new AnomalyDetector(64, 16, 20, 60_000);
+        Recorder recorder = new Recorder();
+        detector.setListener(recorder);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < 40; s++) {
+            batch.clear(T0 + s * PERIOD);
+            batch.add("Home", bssid(1), WPA2, -50, s < 5 ? 0 : s < 30 ? 2412 : 2437, 0); // No frequency on first scans
+            detector.process(batch);
+        }
+        assertEquals(recorder.alerts.toString(), 1, recorder.alerts.size()); // Only the hop at scan 30
+        assertEquals("channel 1 to 6", recorder.alerts.get(0).getDetail());
+    }
+
+    @Test
+    public void evictedAccessPoint_isNotNew() {
+        AnomalyDetector detector = new AnomalyDetector(64, 16, 20, 60_000);
+        Recorder recorder = new Recorder();
+        detector.setListener(recorder);
+        ScanBatch batch = new ScanBatch();
+        int next = 1_000;
+        for (int s = 0; s < 200; s++) {
+            batch.clear(T0 + s * PERIOD);
+            if (s < 20 || s >= 150) {
+                batch.add("Home", bssid(1), WPA2, -50, 2412, 0);
+            }
+            if (s >= 10) {
+                batch.add("Home", bssid(2), WPA2, -60, 2412, 0); // Keeps network established
+            }
+            for (int ap = 0; ap < 20; ap++) { // Passers-by, hidden
+                batch.add("", bssid(next++), "[ESS]", -80, 2412, 0);
+            }
+            detector.process(batch);
+        }
+        assertEquals(64, detector.getTrackedAccessPoints());
+        assertTrue(detector.getEvictedAccessPoints() > 3_000);
+        assertEquals(recorder.alerts.toString(), 1, recorder.alerts.size()); // Second access point at scan 10 only
+        assertEquals(bssid(2), recorder.alerts.get(0).getBssid());
+    }
+
+    @Test
+    public void security_ranksCapabilities() {
+        assertEquals(AnomalyDetector.UNKNOWN_SECURITY, AnomalyDetector.security(null));
+        assertEquals(0, AnomalyDetector.security("[ESS]"));
+        assertEquals(1, AnomalyDetector.security("[WEP][ESS]"));
+        assertEquals(2, AnomalyDetector.security("[WPA-PSK-TKIP][ESS]"));
+        assertEquals(3, AnomalyDetector.security("[WPA-PSK-TKIP+CCMP][WPA2-PSK-TKIP+CCMP][ESS]"));
+        assertEquals(3, AnomalyDetector.security("[RSN-PSK-CCMP][ESS]"));
+        assertEquals(4, AnomalyDetector.security("[RSN-SAE-CCMP][ESS]"));
+    }
+
+    @Test
+    public void hyperLogLog_estimatesDistinctCounts() {
+        HyperLogLog small = new HyperLogLog(1, 6);
+        for (int n = 1; n <= 8; n++) {
+            small.add(0, HyperLogLog.mix(n));
+            small.add(0, HyperLogLog.mix(n)); // Duplicates don't count
+            assertEquals(n, small.estimate(0), 1);
+        }
+        HyperLogLog large = new HyperLogLog(2, 10);
+        for (int n = 0; n < 100_000; n++) {
+            large.add(1, HyperLogLog.mix(n));
+        }
+        assertEquals(0, large.estimate(0));
+        assertEquals(100_000, large.estimate(1), 100_000 * 3 * 1.04 / 32); // 3 standard errors
+        large.clear(1);
+        assertEquals(0, large.estimate(1));
+    }
+
+    @Test
+    public void countMin_neverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(1_024, 4);
+        Random random = new Random(5);
+        int[] counts = new int[5_000];
+        for (int i = 0; i < 50_000; i++) {
+            int key = (int) Math.min(counts.length - 1, Math.abs(random.nextGaussian()) * 500); // Skewed keys
+            counts[key]++;
+            sketch.add(key, 1);
+        }
+        int exact = 0;
+        for (int key = 0; key < counts.length; key++) {
+            int estimate = sketch.estimate(key);
+            assertTrue(estimate >= counts[key]);
+            assertTrue(estimate - counts[key] <= Math.E * 50_000 / 1_024 * 2);
+            if (estimate == counts[key]) {
+                exact++;
+            }
+        }
+        assertTrue("Exact " + exact, exact > counts.length / 2);
+        sketch.halve();
+        assertTrue(sketch.getTotal() < 26_000);
+        assertTrue(sketch.estimate(0) >= counts[0] / 2);
+    }
+
+    /**
+     * Walking through a dense deployment: more access points than tracked, state stays bounded
+     * and evicted access points are not mistaken for level jumps or channel hops.
+     */
+    @Test
+    public void process_denseDeploymentBounded() {
+        Random random = new Random(11);
+        int nbAps = 2_000;
+        int scans = 300;
+        ScanBatch[] batches = new ScanBatch[64];
+        for (int b = 0; b < batches.length; b++) {
+            batches[b] = new ScanBatch(nbAps);
+        }
+        AnomalyDetector detector = new AnomalyDetector();
+        for (int s = 0; s < scans; s++) {
+            ScanBatch batch = batches[s % batches.length];
+            batch.clear(T0 + s * PERIOD);
+            int first = s * 20; // Walking: 20 access points lost and 20 found each scan
+            for (int ap = first; ap < first + nbAps; ap++) {
+                batch.add("Net-" + ap / 8, bssid(ap), WPA2, -60 - random.nextInt(10), 2412 + 5 * (ap % 11), 0);
+            }
+            detector.process(batch);
+        }
+        assertTrue(detector.getTrackedAccessPoints() <= AnomalyDetector.DEFAULT_MAX_ACCESS_POINTS);
+        assertTrue(detector.getTrackedNetworks() <= AnomalyDetector.DEFAULT_MAX_NETWORKS);
+        assertTrue(detector.getEvictedAccessPoints() > 0);
+        assertEquals(0, detector.getAlertCount(Alert.LEVEL_JUMP));
+        assertEquals(0, detector.getAlertCount(Alert.CHANNEL_HOP));
+    }
+}
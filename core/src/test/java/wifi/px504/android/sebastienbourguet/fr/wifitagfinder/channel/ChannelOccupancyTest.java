@@ -0,0 +1,120 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+import static org.junit.Assert.*;
+
+/**
+ * Channel occupancy aggregation tests, and per-scan cost with dense scans.
+ */
+public class ChannelOccupancyTest {
+    private static final long T0 = 1_511_568_000_000L;
+
+    @Test
+    public void powerConversions() {
+        assertEquals(1e-5, ChannelOccupancy.toMilliwatts(-50), 1e-12);
+        assertEquals(Math.pow(10, -13.5), ChannelOccupancy.toMilliwatts(-135), 1e-20); // Out of table
+        assertEquals(-50, ChannelOccupancy.toDbm(1e-5));
+        assertEquals(-47, ChannelOccupancy.toDbm(2e-5));
+        assertEquals(ChannelOccupancy.NO_SIGNAL, ChannelOccupancy.toDbm(0));
+        assertEquals(14, WifiChannels.frequencyToChannel(2484));
+        for (int ch = 1; ch <= 165; ch++) {
+            int f = WifiChannels.channelToFrequency(ch);
+            assertTrue(f == 0 || WifiChannels.frequencyToChannel(f) == ch);
+        }
+    }
+
+    @Test
+    public void add_2GHzOverlap() {
+        ChannelOccupancy occupancy = new ChannelOccupancy();
+        assertTrue(occupancy.add(-50, 2437, WifiChannels.WIDTH_20MHZ)); // Channel 6
+        assertTrue(occupancy.add(-60, 2437, WifiChannels.WIDTH_20MHZ));
+        assertFalse(occupancy.add(-60, 3000, WifiChannels.WIDTH_20MHZ));
+        assertEquals(2, occupancy.size());
+        assertEquals(2, occupancy.getCount(6));
+        assertEquals(-50, occupancy.getMaxLevel(6));
+        assertEquals(1.1e-5, occupancy.getSumPower(6), 1e-12);
+        for (int ch = 2; ch <= 10; ch++) { // 22 MHz signal leaks on 4 channels on each side
+            assertEquals(2, occupancy.getOverlapCount(ch));
+        }
+        assertEquals(0, occupancy.getOverlapCount(1));
+        assertEquals(0, occupancy.getOverlapCount(11));
+        assertEquals(1.1e-5 * 17 / 22, occupancy.getOverlapPower(5), 1e-12);
+        assertEquals(1.1e-5 * 2 / 22, occupancy.getOverlapPower(10), 1e-12);
+        assertEquals(0, occupancy.getCount(5));
+
+        occupancy.clear();
+        occupancy.add(-50, 2412, WifiChannels.WIDTH_40MHZ); // Channel 1, secondary above
+        occupancy.add(-50, 2462, WifiChannels.WIDTH_40MHZ); // Channel 11, secondary below
+        int[] expected = {0, 1, 1, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 0}; // 40 MHz signals cover 1-9 and 3-13
+        for (int ch = 1; ch <= 14; ch++) {
+            assertEquals(expected[ch], occupancy.getOverlapCount(ch));
+        }
+    }
+
+    @Test
+    public void add_5GHzBonding() {
+        ChannelOccupancy occupancy = new ChannelOccupancy();
+        occupancy.add(-60, 5220, WifiChannels.WIDTH_80MHZ); // Channel 44, group 36-48
+        occupancy.add(-70, 5745, WifiChannels.WIDTH_40MHZ); // Channel 149, group 149-153
+        occupancy.add(-70, 5300, WifiChannels.WIDTH_160MHZ); // Channel 60, group 36-64
+        occupancy.add(-80, 5500, WifiChannels.WIDTH_20MHZ); // Channel 100
+        assertEquals(1, occupancy.getCount(44));
+        for (int ch = 36; ch <= 48; ch += 4) {
+            assertEquals(2, occupancy.getOverlapCount(ch));
+        }
+        for (int ch = 52; ch <= 64; ch += 4) {
+            assertEquals(1, occupancy.getOverlapCount(ch));
+        }
+        assertEquals(0, occupancy.getOverlapCount(68));
+        assertEquals(1, occupancy.getOverlapCount(149));
+        assertEquals(1, occupancy.getOverlapCount(153));
+        assertEquals(0, occupancy.getOverlapCount(157));
+        assertEquals(1, occupancy.getOverlapCount(100));
+        assertEquals(0, occupancy.getOverlapCount(104));
+        assertEquals(-60, occupancy.getOverlapLevel(40));
+    }
+
+    @Test
+    public void congestion_growsWithStrongNeighbours() {
+        ChannelOccupancy occupancy = new ChannelOccupancy();
+        assertEquals(0, occupancy.getCongestion(6), 0);
+        occupancy.add(-40, 5180, WifiChannels.WIDTH_20MHZ);
+        assertEquals(0.5, occupancy.getCongestion(36), 1e-6);
+        occupancy.add(-92, 5200, WifiChannels.WIDTH_20MHZ); // 10 dB below carrier sense threshold
+        assertEquals(0.1 / 1.1, occupancy.getCongestion(40), 1e-6);
+        occupancy.add(-40, 5180, WifiChannels.WIDTH_20MHZ);
+        occupancy.add(-40, 5180, WifiChannels.WIDTH_20MHZ);
+        assertEquals(0.75, occupancy.getCongestion(36), 1e-6);
+    }
+
+    @Test
+    public void update_matchesAdd() {
+        Random random = new Random(5);
+        ScanBatch batch = new ScanBatch();
+        batch.clear(T0);
+        ChannelOccupancy expected = new ChannelOccupancy();
+        for (int i = 0; i < 300; i++) {
+            int channel = random.nextBoolean() ? 1 + random.nextInt(13) : WifiChannels.CHANNELS_5GHZ[random.nextInt(WifiChannels.CHANNELS_5GHZ.length)];
+            int width = channel < 14 ? random.nextInt(2) : random.nextInt(5);
+            int level = -30 - random.nextInt(70);
+            batch.add("AP", "00:00:00:00:00:00", "", level, WifiChannels.channelToFrequency(channel), width);
+            expected.add(level, WifiChannels.channelToFrequency(channel), width);
+        }
+        ChannelOccupancy occupancy = new ChannelOccupancy();
+        occupancy.add(-20, 2412, 0); // Dropped by update
+        occupancy.update(batch);
+        assertEquals(300, occupancy.size());
+        for (int ch = 0; ch <= ChannelOccupancy.MAX_CHANNEL; ch++) {
+            assertEquals(expected.getCount(ch), occupancy.getCount(ch));
+            assertEquals(expected.getOverlapCount(ch), occupancy.getOverlapCount(ch));
+            assertEquals(expected.getOverlapPower(ch), occupancy.getOverlapPower(ch), 0);
+            assertEquals(expected.getCongestion(ch), occupancy.getCongestion(ch), 0);
+        }
+    }
+}
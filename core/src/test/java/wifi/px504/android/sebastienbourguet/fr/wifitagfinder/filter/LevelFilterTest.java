@@ -0,0 +1,157 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.filter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+
+import static org.junit.Assert.*;
+
+/**
+ * Level filters and path loss model tests, on a capture of a walk towards a tag, and filters throughput.
+ */
+public class LevelFilterTest {
+    /**
+     * Capture of a 2.4 GHz tag, one scan per second: walk from 20 m to 1 m in 120 s, then
+     * 60 s standing at 1 m. Levels follow the default path loss model with a 4 dB noise and
+     * a few 8 to 15 dB fades.
+     */
+    private static final String TRACE = "/trace_walk_2ghz.csv";
+
+    private static float traceDistance(int i) {
+        return Math.max(1, 20 - i * 19 / 120f);
+    }
+
+    private static int[] readTrace() throws IOException {
+        InputStream in = LevelFilterTest.class.getResourceAsStream(TRACE);
+        assertNotNull(in);
+        List<Integer> levels = new ArrayList<>();
+        try (CsvHistoryReader reader = new CsvHistoryReader(in, (byte) ';', TimeZone.getTimeZone("UTC"))) {
+            HistoryRecord record = new HistoryRecord();
+            while (reader.next(record)) {
+                assertEquals(2437, record.frequency);
+                levels.add(record.level);
+            }
+        }
+        int[] result = new int[levels.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = levels.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return root mean square error of levels filtered by given filter (raw levels if null)
+     */
+    private static double rmsError(int[] levels, LevelFilter filter, PathLossModel model) {
+        double sum = 0;
+        for (int i = 0; i < levels.length; i++) {
+            float level = filter == null ? levels[i] : filter.update(0, levels[i]);
+            double expected = model.getReference(2437) - 10 * model.getExponent(2437) * Math.log10(traceDistance(i));
+            sum += (level - expected) * (level - expected);
+        }
+        return Math.sqrt(sum / levels.length);
+    }
+
+    @Test
+    public void median_matchesSortedWindow() {
+        Random random = new Random(4);
+        int window = 7;
+        MedianFilter filter = new MedianFilter(3, window);
+        List<Float> last = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            float level = -30 - random.nextInt(60);
+            if (i == 1_000) {
+                filter.reset(1);
+                last.clear();
+            }
+            float median = filter.update(1, level);
+            filter.update(2, 0); // Other access points don't interfere
+            last.add(level);
+            if (last.size() > window) {
+                last.remove(0);
+            }
+            float[] sorted = new float[last.size()];
+            for (int j = 0; j < sorted.length; j++) {
+                sorted[j] = last.get(j);
+            }
+            Arrays.sort(sorted);
+            int n = sorted.length;
+            float expected = n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+            assertEquals(expected, median, 0);
+        }
+        assertTrue(Float.isNaN(filter.getValue(0)));
+        assertEquals(filter.getValue(1), filter.update(1, Float.NaN), 0);
+    }
+
+    @Test
+    public void emaAndKalman_convergeToStep() {
+        EmaFilter ema = new EmaFilter(1, 0.25f);
+        KalmanFilter kalman = new KalmanFilter(1, 1, 16);
+        assertEquals(-50, ema.update(0, -50), 0);
+        assertEquals(-50, kalman.update(0, -50), 0);
+        assertEquals(-47.5, ema.update(0, -40), 1e-6);
+        float error = kalman.getError(0);
+        assertTrue(kalman.update(0, -40) > -50);
+        assertTrue(kalman.getError(0) < error + 1);
+        for (int i = 0; i < 100; i++) {
+            ema.update(0, -40);
+            kalman.update(0, -40);
+        }
+        assertEquals(-40, ema.getValue(0), 1e-3);
+        assertEquals(-40, kalman.getValue(0), 1e-3);
+        kalman.reset(0);
+        assertTrue(Float.isNaN(kalman.getValue(0)));
+    }
+
+    @Test
+    public void pathLoss_calibration() {
+        PathLossModel model = new PathLossModel();
+        assertEquals(1, model.distance(PathLossModel.DEFAULT_REFERENCE_2GHZ, 2437), 1e-4);
+        assertEquals(10, model.distance(PathLossModel.DEFAULT_REFERENCE_2GHZ - 27, 2437), 1e-3);
+        assertEquals(-47, model.getReference(5500), 0.1); // Free space loss is 7 dB higher
+        assertEquals(model.getReference(5500) - 20 * Math.log10(5180 / 5500.0), model.getReference(5180), 1e-4);
+        model.calibrateAt(5180, -70, 4);
+        assertEquals(4, model.distance(-70, 5180), 1e-3);
+        assertEquals(1, model.distance(PathLossModel.DEFAULT_REFERENCE_2GHZ, 2412), 0.1); // Other band unchanged
+    }
+
+    @Test
+    public void trace_filtersReduceError() throws IOException {
+        int[] levels = readTrace();
+        assertEquals(180, levels.length);
+        PathLossModel model = new PathLossModel();
+        double raw = rmsError(levels, null, model);
+        LevelFilter[] filters = {new EmaFilter(1, 0.3f), new KalmanFilter(1, 0.5f, 16), new MedianFilter(1, 5)};
+        for (LevelFilter filter : filters) {
+            double filtered = rmsError(levels, filter, model);
+            assertTrue(filter.getClass().getSimpleName() + " " + filtered + " dB", filtered < raw);
+        }
+    }
+
+    @Test
+    public void trace_distanceEstimate() throws IOException {
+        int[] levels = readTrace();
+        ProximityEstimator estimator = new ProximityEstimator(new KalmanFilter(1, 0.5f, 16), new PathLossModel());
+        float[] distances = new float[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            distances[i] = estimator.update(0, levels[i], 2437);
+        }
+        assertEquals(distances[levels.length - 1], estimator.getDistance(0), 0);
+        float[] standing = Arrays.copyOfRange(distances, 150, 180);
+        Arrays.sort(standing);
+        assertEquals(1, standing[standing.length / 2], 0.5); // Median of estimates at 1 m
+        float[] far = Arrays.copyOfRange(distances, 10, 30);
+        Arrays.sort(far);
+        float median = far[far.length / 2];
+        assertTrue("Far estimate " + median, median > 9 && median < 36);
+    }
+}
@@ -0,0 +1,277 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Radio map and k-NN localisation on synthetic buildings: dense fingerprints, file format,
+ * exact search against brute force, accuracy and search time with 100k reference points.
+ */
+public class FingerprintTest {
+    private static final float ROOM = 10; // Rooms are 10 m squares
+
+    /**
+     * Building of given size with access points at random positions, levels from a log-distance
+     * path loss model with wall attenuation growing with distance and random shadowing on each scan:
+     * an access point is heard up to about 30 m
+     */
+    private static class Building {
+        final float width;
+        final float height;
+        final float[] apX;
+        final float[] apY;
+        final String[] bssids;
+
+        Building(float width, float height, int nbAps, long seed) {
+            this.width = width;
+            this.height = height;
+            Random random = new Random(seed);
+            this.apX = new float[nbAps];
+            this.apY = new float[nbAps];
+            this.bssids = new String[nbAps];
+            for (int ap = 0; ap < nbAps; ap++) {
+                this.apX[ap] = random.nextFloat() * width;
+                this.apY[ap] = random.nextFloat() * height;
+                this.bssids[ap] = format("02:00:00:00:%02x:%02x", ap >> 8 & 0xFF, ap & 0xFF);
+            }
+        }
+
+        ScanBatch scan(ScanBatch batch, float x, float y, double noise, Random random) {
+            batch.clear(0);
+            for (int ap = 0; ap < this.bssids.length; ap++) {
+                double distance = Math.max(1, Math.hypot(x - this.apX[ap], y - this.apY[ap]));
+                int level = (int) Math.round(-30 - 35 * Math.log10(distance) - 0.3 * distance + noise * random.nextGaussian());
+                if (level > -90) {
+                    batch.add("AP-" + ap, this.bssids[ap], "[ESS]", level, 2437, 0);
+                }
+            }
+            return batch;
+        }
+
+        static String room(float x, float y) {
+            return "room-" + (int) (x / ROOM) + "-" + (int) (y / ROOM);
+        }
+
+        /**
+         * Survey on a grid, several scans at each position
+         */
+        RadioMap survey(float step, int scansPerPoint, double noise, long seed) {
+            Random random = new Random(seed);
+            RadioMapBuilder builder = new RadioMapBuilder();
+            ScanBatch batch = new ScanBatch();
+            for (float x = step / 2; x < this.width; x += step) {
+                for (float y = step / 2; y < this.height; y += step) {
+                    for (int s = 0; s < scansPerPoint; s++) {
+                        builder.add(room(x, y), x, y, scan(batch, x, y, noise, random));
+                    }
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Reference points at random positions, one scan each
+         */
+        RadioMap randomMap(int points, double noise, long seed) {
+            Random random = new Random(seed);
+            RadioMapBuilder builder = new RadioMapBuilder();
+            ScanBatch batch = new ScanBatch();
+            while (builder.size() < points) {
+                float x = random.nextFloat() * this.width;
+                float y = random.nextFloat() * this.height;
+                builder.add(room(x, y), x, y, scan(batch, x, y, noise, random));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * @return query fingerprint of a scan over radio map vocabulary
+     */
+    private static float[] fingerprint(RadioMap map, ScanBatch scan) {
+        float[] query = new float[map.getDimensions()];
+        Arrays.fill(query, RadioMap.NO_SIGNAL);
+        for (int i = 0; i < scan.size(); i++) {
+            int dimension = map.getVocabulary().indexOf(MacAddress.pack(scan.getBssid(i)));
+            if (dimension >= 0) {
+                query[dimension] = Math.max(RadioMap.NO_SIGNAL, scan.getLevel(i));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return sorted distances of every reference point, computed on dense vectors
+     */
+    private static double[] bruteForce(RadioMap map, float[] query) {
+        double[] distances = new double[map.size()];
+        for (int p = 0; p < map.size(); p++) {
+            double sum = 0;
+            for (int d = 0; d < map.getDimensions(); d++) {
+                double delta = map.getLevel(p, d) - query[d];
+                sum += delta * delta;
+            }
+            distances[p] = Math.sqrt(sum);
+        }
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    @Test
+    public void builder_densifiesFingerprints() {
+        RadioMapBuilder builder = new RadioMapBuilder();
+        ScanBatch batch = new ScanBatch();
+        batch.clear(0);
+        batch.add("a", "02:00:00:00:00:01", "[ESS]", -40, 2412, 0);
+        batch.add("b", "02:00:00:00:00:02", "[ESS]", -120, 2412, 0); // Below floor
+        batch.add("a", "02:00:00:00:00:01", "[ESS]", -35, 5180, 0); // Same BSSID, strongest kept
+        batch.add("bad", "not a bssid", "[ESS]", -50, 2412, 0);
+        assertEquals(0, builder.add("kitchen", 1, 2, batch));
+        batch.clear(1);
+        batch.add("c", "02:00:00:00:00:03", "[ESS]", -60, 2412, 0);
+        assertEquals(1, builder.add("hall", 5, 6, batch));
+        batch.clear(2);
+        assertEquals(-1, builder.add("hall", 5, 6, batch)); // Nothing heard
+        batch.add("a", "02:00:00:00:00:01", "[ESS]", -70, 2412, 0);
+        assertEquals(2, builder.add("kitchen", 1, 2.5f, batch));
+
+        RadioMap map = builder.build();
+        assertEquals(3, map.size());
+        assertEquals(3, map.getDimensions());
+        assertEquals(2, map.getLabelCount());
+        int a = map.getVocabulary().indexOf(MacAddress.pack("02:00:00:00:00:01"));
+        int c = map.getVocabulary().indexOf(MacAddress.pack("02:00:00:00:00:03"));
+        assertEquals(-1, map.getVocabulary().indexOf(MacAddress.pack("02:00:00:00:00:04")));
+        assertEquals(-35, map.getLevel(0, a), 0);
+        assertEquals(RadioMap.NO_SIGNAL, map.getLevel(0, c), 0);
+        assertEquals(RadioMap.NO_SIGNAL, map.getLevel(0, map.getVocabulary().indexOf(MacAddress.pack("02:00:00:00:00:02"))), 0);
+        assertEquals(-60, map.getLevel(1, c), 0);
+        assertEquals(RadioMap.NO_SIGNAL, map.getLevel(1, a), 0);
+        assertEquals("kitchen", map.getLabel(2));
+        assertEquals(map.getLabelIndex(0), map.getLabelIndex(2));
+        assertEquals(2.5f, map.getY(2), 0);
+    }
+
+    @Test
+    public void radioMap_writeRead() throws IOException {
+        RadioMap map = new Building(40, 30, 20, 1).survey(5, 2, 3, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.write(out);
+        RadioMap read = RadioMap.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(map.size(), read.size());
+        assertEquals(map.getDimensions(), read.getDimensions());
+        assertEquals(map.getLabelCount(), read.getLabelCount());
+        for (int d = 0; d < map.getDimensions(); d++) {
+            assertEquals(map.getVocabulary().getMac(d), read.getVocabulary().getMac(d));
+        }
+        for (int p = 0; p < map.size(); p++) {
+            assertEquals(map.getLabel(p), read.getLabel(p));
+            assertEquals(map.getX(p), read.getX(p), 0);
+            assertEquals(map.getY(p), read.getY(p), 0);
+            for (int d = 0; d < map.getDimensions(); d++) {
+                assertEquals(map.getLevel(p, d), read.getLevel(p, d), 0);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void radioMap_rejectsOtherFiles() throws IOException {
+        RadioMap.read(new ByteArrayInputStream(new byte[]{'x', 'y', 'z', 't', 1}));
+    }
+
+    /**
+     * Inverted lists search, on 4 shards, finds the same nearest distances as brute force
+     */
+    @Test
+    public void search_matchesBruteForce() {
+        Building building = new Building(120, 60, 60, 3);
+        RadioMap map = building.randomMap(5_000, 4, 4);
+        FingerprintIndex index = new FingerprintIndex(map, 4);
+        assertEquals(4, index.getShards());
+        Random random = new Random(5);
+        ScanBatch batch = new ScanBatch();
+        int k = 8;
+        try {
+            for (int q = 0; q < 200; q++) {
+                float[] query = fingerprint(map, building.scan(batch, random.nextFloat() * 120, random.nextFloat() * 60, 4, random));
+                FingerprintIndex.Neighbours neighbours = index.search(query, k);
+                double[] expected = bruteForce(map, query);
+                assertEquals(k, neighbours.size());
+                for (int n = 0; n < k; n++) {
+                    assertEquals(expected[n], neighbours.getDistance(n), 1e-3 * expected[n] + 1e-3);
+                    double distance = 0;
+                    for (int d = 0; d < map.getDimensions(); d++) { // Point matches its distance
+                        double delta = map.getLevel(neighbours.getPoint(n), d) - query[d];
+                        distance += delta * delta;
+                    }
+                    assertEquals(Math.sqrt(distance), neighbours.getDistance(n), 1e-3 * expected[n] + 1e-3);
+                }
+            }
+            float[] corner = new float[map.getDimensions()]; // Weak access point: most neighbours share nothing with it
+            Arrays.fill(corner, RadioMap.NO_SIGNAL);
+            corner[0] = -89;
+            FingerprintIndex.Neighbours neighbours = index.search(corner, k);
+            double[] expected = bruteForce(map, corner);
+            for (int n = 0; n < k; n++) {
+                assertEquals(expected[n], neighbours.getDistance(n), 1e-3 * expected[n] + 1e-3);
+            }
+            FingerprintIndex.Neighbours all = index.search(fingerprint(map, batch), 10_000); // More than the map
+            assertEquals(map.size(), all.size());
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Survey every 2 m, 5 scans per position, then locate scans at random positions
+     */
+    @Test
+    public void locate_accuracy() {
+        Building building = new Building(60, 40, 25, 6);
+        RadioMap map = building.survey(2, 5, 4, 7);
+        FingerprintIndex index = new FingerprintIndex(map, 2);
+        FingerprintLocator locator = new FingerprintLocator(index, FingerprintLocator.DEFAULT_K);
+        Random random = new Random(8);
+        ScanBatch batch = new ScanBatch();
+        int queries = 500;
+        double[] errors = new double[queries];
+        int rightRooms = 0;
+        int borderQueries = 0;
+        for (int q = 0; q < queries; q++) {
+            float x = random.nextFloat() * 60;
+            float y = random.nextFloat() * 40;
+            Location location = locator.locate(building.scan(batch, x, y, 4, random));
+            assertNotNull(location);
+            assertEquals(FingerprintLocator.DEFAULT_K, location.getNeighbours());
+            errors[q] = Math.hypot(location.getX() - x, location.getY() - y);
+            if (x % ROOM < 1 || x % ROOM > ROOM - 1 || y % ROOM < 1 || y % ROOM > ROOM - 1) {
+                borderQueries++; // Within 1 m of a wall, either room is fair
+            } else if (location.getLabel().equals(Building.room(x, y))) {
+                rightRooms++;
+            }
+        }
+        index.close();
+        Arrays.sort(errors);
+        double median = errors[queries / 2];
+        double p90 = errors[queries * 9 / 10];
+        double roomAccuracy = rightRooms / (double) (queries - borderQueries);
+        assertTrue("Median error " + median, median < 2.5);
+        assertTrue("90% error " + p90, p90 < 5);
+        assertTrue("Room accuracy " + roomAccuracy, roomAccuracy > 0.8);
+
+        batch.clear(0);
+        batch.add("other", "02:00:00:00:ff:ff", "[ESS]", -40, 2412, 0);
+        assertNull(locator.locate(batch)); // No access point of the map
+    }
+}
@@ -0,0 +1,174 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Binary log format, memory mapped reader and CSV conversion tests.
+ */
+public class BinaryLogTest {
+    private static final long T0 = 1_511_568_000_000L; // 2017-11-25
+    private static final TimeZone TZ = TimeZone.getTimeZone("Europe/Paris");
+
+    private File bin;
+
+    @Before
+    public void setUp() throws Exception {
+        bin = File.createTempFile("HISTO_", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        bin.delete();
+    }
+
+    private static String bssid(int i) {
+        return String.format("00:11:22:33:%02x:%02x", i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    /**
+     * 1000 records, 20 access points, 123 ms between scans
+     */
+    private void writeSample() throws Exception {
+        BinaryLogWriter writer = new BinaryLogWriter(new FileOutputStream(bin), T0);
+        for (int i = 0; i < 1_000; i++) {
+            int ap = i % 20;
+            writer.write("AP-" + ap, bssid(ap), ap == 3 ? null : "[WPA2-PSK-CCMP][ESS]", T0 + (i / 20) * 123L, -30 - (i % 70), ap % 2 == 0 ? 2412 + 5 * (ap % 11) : 5180, ap == 3 ? -1 : ap % 4);
+        }
+        writer.close();
+        assertEquals(20, writer.getDictionarySize());
+    }
+
+    @Test
+    public void reader_sequentialMatchesWritten() throws Exception {
+        writeSample();
+        BinaryLogReader reader = new BinaryLogReader(bin);
+        assertEquals(1_000, reader.getRecordCount());
+        assertEquals(T0, reader.getCreationTime());
+        BinaryLogReader.Cursor cursor = reader.cursor();
+        int i = 0;
+        while (cursor.next()) {
+            int ap = i % 20;
+            assertEquals(i, cursor.getIndex());
+            assertEquals(T0 + (i / 20) * 123L, cursor.getTimeMillis());
+            assertEquals("AP-" + ap, cursor.getSsid());
+            assertEquals(bssid(ap), cursor.getBssid());
+            assertEquals(ap == 3 ? null : "[WPA2-PSK-CCMP][ESS]", cursor.getCapabilities());
+            assertEquals(-30 - (i % 70), cursor.getLevel());
+            assertEquals(ap % 2 == 0 ? 2412 + 5 * (ap % 11) : 5180, cursor.getFrequency());
+            assertEquals(ap == 3 ? -1 : ap % 4, cursor.getChannelWidth());
+            i++;
+        }
+        assertEquals(1_000, i);
+        reader.close();
+    }
+
+    @Test
+    public void reader_randomAccess() throws Exception {
+        writeSample();
+        BinaryLogReader reader = new BinaryLogReader(bin);
+        HistoryRecord record = new HistoryRecord();
+        for (int i : new int[]{999, 0, 255, 256, 512, 17}) {
+            reader.read(i, record);
+            assertEquals(bssid(i % 20), record.bssid);
+            assertEquals(-30 - (i % 70), record.level);
+            assertEquals(T0 + (i / 20) * 123L, record.timeMillis);
+        }
+        assertEquals(500, reader.indexOfTime(T0 + 25 * 123L));
+        assertEquals(520, reader.indexOfTime(T0 + 25 * 123L + 1));
+        assertEquals(0, reader.indexOfTime(0));
+        assertEquals(1_000, reader.indexOfTime(Long.MAX_VALUE));
+        reader.close();
+    }
+
+    @Test
+    public void reader_readsTruncatedFile() throws Exception {
+        writeSample();
+        RandomAccessFile raf = new RandomAccessFile(bin, "rw");
+        raf.setLength(raf.length() - 5); // Crash in the middle of last block
+        raf.close();
+        BinaryLogReader reader = new BinaryLogReader(bin);
+        assertEquals(768, reader.getRecordCount()); // 3 complete blocks of 256
+        reader.close();
+    }
+
+    @Test
+    public void writer_newBlockWhenLevelOrTimeDontFit() throws Exception {
+        BinaryLogWriter writer = new BinaryLogWriter(new FileOutputStream(bin), T0);
+        writer.write("a", bssid(1), "", T0, -100, 2412, 0);
+        writer.write("a", bssid(1), "", T0 + 3_000_000_000L, 100, 2412, 0);
+        writer.write("a", bssid(1), "", T0 - 1, -100, 2412, 0);
+        writer.close();
+        BinaryLogReader reader = new BinaryLogReader(bin);
+        BinaryLogReader.Cursor cursor = reader.cursor();
+        assertTrue(cursor.next());
+        assertEquals(T0, cursor.getTimeMillis());
+        assertEquals(-100, cursor.getLevel());
+        assertTrue(cursor.next());
+        assertEquals(T0 + 3_000_000_000L, cursor.getTimeMillis());
+        assertEquals(100, cursor.getLevel());
+        assertTrue(cursor.next());
+        assertEquals(T0 - 1, cursor.getTimeMillis());
+        assertFalse(cursor.next());
+        reader.close();
+    }
+
+    @Test
+    public void converter_csvRoundTrip() throws Exception {
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, TZ, 1_024);
+        for (int i = 0; i < 2_000; i++) {
+            long time = T0 + i * 1_000L;
+            if (i % 3 == 0) { // Legacy row
+                encoder.encode("Tag (" + i % 7 + ")", bssid(i % 50), time, -20 - i % 80, 6, 2437);
+            } else {
+                encoder.encode("Caf\u00e9;" + i % 7, bssid(i % 50), time, -20 - i % 80, 5180 + 20 * (i % 4), i % 5, "[WPA2-PSK-CCMP][ESS]");
+            }
+        }
+        byte[] csv = encoder.toByteArray();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        assertEquals(2_000, CaptureConverter.csvToBinary(new ByteArrayInputStream(csv), binary, T0, TZ));
+        FileOutputStream out = new FileOutputStream(bin);
+        out.write(binary.toByteArray());
+        out.close();
+        assertTrue(CaptureConverter.isBinary(bin));
+
+        ByteArrayOutputStream back = new ByteArrayOutputStream();
+        assertEquals(2_000, CaptureConverter.binaryToCsv(bin, back, TZ));
+        assertEquals(new String(csv, "UTF-8"), new String(back.toByteArray(), "UTF-8"));
+        assertTrue(binary.size() < csv.length / 2);
+    }
+
+    @Test
+    public void csvReader_skipsMalformedLines() throws Exception {
+        String csv = "tag(aa:bb:cc:dd:ee:ff);171125010000;-50;6;2437\n\r"
+                + "garbage\n\r"
+                + "tag(aa:bb:cc:dd:ee:ff);171125010001;x;6;2437\n\r"
+                + "tag(aa:bb:cc:dd:ee:ff);171125010002;-51;6;2437;1;[ESS]";
+        CsvHistoryReader reader = new CsvHistoryReader(new ByteArrayInputStream(csv.getBytes("UTF-8")), (byte) ';', TZ);
+        HistoryRecord record = new HistoryRecord();
+        assertTrue(reader.next(record));
+        assertEquals(-50, record.level);
+        assertFalse(record.isFullScan());
+        assertEquals(0, reader.getLineOffset());
+        assertTrue(reader.next(record));
+        assertEquals(-51, record.level);
+        assertEquals("[ESS]", record.capabilities);
+        Calendar calendar = Calendar.getInstance(TZ);
+        calendar.clear();
+        calendar.set(2017, Calendar.NOVEMBER, 25, 1, 0, 2);
+        assertEquals(calendar.getTimeInMillis(), record.timeMillis);
+        assertFalse(reader.next(record));
+        assertEquals(2, reader.getMalformedLines());
+    }
+}
@@ -0,0 +1,218 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Sparse capture index tests: queries match a full scan on plain, gzipped, truncated and
+ * out of order captures, and query time compared to a full scan.
+ */
+public class HistoryIndexTest {
+    private static final long T0 = 1_511_568_000_000L; // 2017-11-25
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("index").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static String bssid(int i) {
+        return format("02:00:00:00:%02x:%02x", i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    /**
+     * Scan s at T0 + 4 s * s (one hour back after backInTime scans), 2/3 of nbAps access points each
+     */
+    private static ScanBatch scan(ScanBatch batch, Random random, int s, int nbAps, int backInTime) {
+        long time = T0 + s * 4_000L - (s >= backInTime ? 3_600_000 : 0);
+        batch.clear(time);
+        for (int ap = 0; ap < nbAps; ap++) {
+            if (random.nextInt(3) != 0) {
+                batch.add("AP-" + ap, bssid(ap), "[WPA2-PSK-CCMP][ESS]", -30 - random.nextInt(60), ap % 2 == 0 ? 2437 : 5180, ap % 3);
+            }
+        }
+        return batch;
+    }
+
+    private File writeCapture(int scans, int nbAps, int backInTime) throws IOException {
+        File capture = new File(directory, "HISTO_capture.csv");
+        OutputStream out = new FileOutputStream(capture);
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 64 * 1_024);
+        Random random = new Random(11);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < scans; s++) {
+            encoder.encode(scan(batch, random, s, nbAps, backInTime));
+            if (encoder.size() > 32 * 1_024) {
+                encoder.writeTo(out);
+            }
+        }
+        encoder.writeTo(out);
+        out.close();
+        return capture;
+    }
+
+    private static String row(HistoryRecord record) {
+        return record.timeMillis + " " + record.bssid + " " + record.level;
+    }
+
+    private static List<String> fullScan(InputStream in, String bssid, long from, long to) throws IOException {
+        List<String> rows = new ArrayList<>();
+        CsvHistoryReader reader = new CsvHistoryReader(in, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        HistoryRecord record = new HistoryRecord();
+        while (reader.next(record)) {
+            if (record.timeMillis >= from && record.timeMillis < to && (bssid == null || bssid.equals(record.bssid))) {
+                rows.add(row(record));
+            }
+        }
+        reader.close();
+        return rows;
+    }
+
+    private static List<String> query(IndexedHistoryReader reader, String bssid, long from, long to) throws IOException {
+        List<String> rows = new ArrayList<>();
+        IndexedHistoryReader.Query query = reader.query(bssid, from, to);
+        HistoryRecord record = new HistoryRecord();
+        while (query.next(record)) {
+            rows.add(row(record));
+        }
+        return rows;
+    }
+
+    /**
+     * Random queries of one access point, or all of them, on random ranges
+     */
+    private static void assertQueriesMatch(IndexedHistoryReader reader, File capture, boolean gzip, int nbAps, long span) throws IOException {
+        Random random = new Random(3);
+        for (int q = 0; q < 30; q++) {
+            String bssid = q % 10 == 0 ? null : bssid(random.nextInt(nbAps + 2)); // Some unknown
+            long from = T0 - 3_600_000 + (long) (random.nextDouble() * (span + 3_600_000));
+            long to = from + random.nextInt(600_000);
+            InputStream in = new BufferedInputStream(new FileInputStream(capture));
+            List<String> expected = fullScan(gzip ? new GZIPInputStream(in) : in, bssid, from, to);
+            assertEquals(bssid + " " + from, expected, query(reader, bssid, from, to));
+        }
+    }
+
+    @Test
+    public void build_queriesMatchFullScan() throws IOException {
+        File capture = writeCapture(3_000, 40, 2_000); // Clock back one hour after 2000 scans
+        HistoryIndex index = HistoryIndex.build(capture, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        assertTrue(HistoryIndex.sidecar(capture).exists());
+        assertEquals(40, index.getAccessPointCount());
+        assertTrue(index.getBlockCount() > 10);
+        assertEquals(capture.length(), index.getEnd());
+        long rows = 0;
+        for (int b = 0; b < index.getBlockCount(); b++) {
+            rows += index.getRows(b);
+            assertTrue(b == 0 || index.getOffset(b) == index.getOffset(b - 1) + index.getLength(b - 1));
+        }
+        IndexedHistoryReader reader = new IndexedHistoryReader(capture, index, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        assertEquals(rows, query(reader, null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertQueriesMatch(reader, capture, false, 40, 3_000 * 4_000L);
+        assertEquals(0, index.find(bssid(99), Long.MIN_VALUE, Long.MAX_VALUE).length);
+        reader.close();
+    }
+
+    @Test
+    public void truncatedIndex_readsTail() throws IOException {
+        File capture = writeCapture(1_000, 40, Integer.MAX_VALUE);
+        HistoryIndex.build(capture, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        File sidecar = HistoryIndex.sidecar(capture);
+        RandomAccessFile file = new RandomAccessFile(sidecar, "rw");
+        file.setLength(file.length() * 2 / 3 + 3); // Cut in the middle of an entry, as by a crash
+        file.close();
+        HistoryIndex index = HistoryIndex.load(sidecar);
+        assertTrue(index.getEnd() < capture.length());
+        IndexedHistoryReader reader = new IndexedHistoryReader(capture, index, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        assertQueriesMatch(reader, capture, false, 40, 1_000 * 4_000L);
+        reader.close();
+    }
+
+    @Test
+    public void rollingSegments_indexedAndGzipped() throws IOException {
+        File manifestFile = new File(directory, "HISTO_manifest.txt");
+        RollingHistoryOutput output = new RollingHistoryOutput(manifestFile, "'HISTO_'yyyy_MM_dd'T'HH_mm_ss'.csv'", Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        HistoryWriter writer = new HistoryWriter(output, new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 1_024), 200_000, 4_096, 60_000);
+        Random random = new Random(11);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < 2_000; s++) {
+            assertTrue(writer.append(scan(batch, random, s, 40, Integer.MAX_VALUE)));
+        }
+        writer.close();
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertEquals(1, manifest.size());
+        File segment = manifest.getFile(manifest.get(0));
+        assertTrue(segment.getName().endsWith(SegmentManifest.GZIP_SUFFIX));
+        HistoryIndex index = HistoryIndex.load(HistoryIndex.sidecar(segment));
+        assertTrue(index.isGzipMembers());
+        assertEquals(segment.length(), index.getEnd());
+        IndexedHistoryReader reader = new IndexedHistoryReader(segment, index, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        assertQueriesMatch(reader, segment, true, 40, 2_000 * 4_000L);
+        reader.close();
+    }
+
+    /**
+     * Scans taken 500 ms after the second are written with whole seconds: a query ending
+     * before the scan millisecond but after its second still finds its rows.
+     */
+    @Test
+    public void subSecondScans_foundByQueriesOfTheirSecond() throws IOException {
+        File manifestFile = new File(directory, "HISTO_manifest.txt");
+        RollingHistoryOutput output = new RollingHistoryOutput(manifestFile, "'HISTO_'yyyy_MM_dd'T'HH_mm_ss'.csv'", Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        HistoryWriter writer = new HistoryWriter(output, new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 1_024), 10_000, 256, 60_000);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < 1_000; s++) {
+            batch.clear(T0 + s * 4_000L + 500);
+            batch.add("AP", bssid(1), "[ESS]", -50, 2437, 0);
+            assertTrue(writer.append(batch));
+        }
+        writer.close();
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertEquals(T0, manifest.get(0).getFirstTime());
+        assertEquals(T0 + 999 * 4_000L + 999, manifest.get(0).getLastTime());
+        assertEquals(1, manifest.find(T0, T0 + 300).size());
+        File segment = manifest.getFile(manifest.get(0));
+        HistoryIndex index = HistoryIndex.load(HistoryIndex.sidecar(segment));
+        assertTrue(index.getBlockCount() > 10);
+        IndexedHistoryReader reader = new IndexedHistoryReader(segment, index, CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        for (int s = 0; s < 1_000; s += 37) {
+            long from = T0 + s * 4_000L;
+            List<String> rows = query(reader, bssid(1), from, from + 300);
+            assertEquals(Collections.singletonList(from + " " + bssid(1) + " -50"), rows);
+            assertEquals(rows, fullScan(new GZIPInputStream(new FileInputStream(segment)), bssid(1), from, from + 300));
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,199 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * History writer tests, throughput is measured in HistoryWriteBenchmark.
+ */
+public class HistoryWriterTest {
+    private static final long T0 = 1_511_568_000_000L; // 2017-11-25
+
+    /**
+     * Historical implementation from MainActivity.updateUi
+     */
+    private static ScanBatch scan(long time, int size) {
+        ScanBatch batch = new ScanBatch(size);
+        batch.clear(time);
+        for (int i = 0; i < size; i++) {
+            batch.add("Livebox-" + i, format("00:11:22:33:%02x:%02x", i >> 8 & 0xFF, i & 0xFF), "[WPA2-PSK-CCMP][ESS]", -40 - i % 50, i % 2 == 0 ? 2437 : 5180, i % 4);
+        }
+        return batch;
+    }
+
+    private static String legacyLine(SimpleDateFormat simpleFormat, String ssid, String bssid, long time, int level, int channel, int frequency) {
+        String separator = ";";
+        return format("%s(%s)%s%s%s%d%s%d%s%d\n\r", ssid, bssid, separator, simpleFormat.format(new Date(time)), separator, level, separator, channel, separator, frequency);
+    }
+
+    @Test
+    public void encoder_matchesLegacyFormat() throws Exception {
+        SimpleDateFormat simpleFormat = new SimpleDateFormat("yyMMddHHmmss");
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, TimeZone.getDefault(), 16);
+        StringBuilder expected = new StringBuilder();
+        String[] ssids = {"Livebox-12AB", "", "Caf\u00e9 Wi-Fi", "\ud83d\udcf6 tag", null};
+        for (int i = 0; i < 50; i++) {
+            String ssid = ssids[i % ssids.length];
+            long time = T0 + i * 777L;
+            int level = -30 - i;
+            expected.append(legacyLine(simpleFormat, ssid, "00:11:22:33:44:" + (10 + i), time, level, i % 14, 2412 + i));
+            encoder.encode(ssid, "00:11:22:33:44:" + (10 + i), time, level, i % 14, 2412 + i);
+        }
+        assertEquals(expected.toString(), new String(encoder.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void encoder_fullScanRowsExtendLegacyColumns() throws Exception {
+        CsvRowEncoder encoder = new CsvRowEncoder();
+        ScanBatch batch = new ScanBatch(1);
+        batch.clear(T0);
+        batch.add("tag", "aa:bb:cc:dd:ee:ff", "[WPA2-PSK-CCMP][ESS]", -61, 2437, 1);
+        batch.add("tag5", "aa:bb:cc:dd:ee:00", "[ESS]", -70, 5180, 2);
+        encoder.encode(batch);
+        String ts = new SimpleDateFormat("yyMMddHHmmss").format(new Date(T0));
+        assertEquals("tag(aa:bb:cc:dd:ee:ff);" + ts + ";-61;6;2437;1;[WPA2-PSK-CCMP][ESS]\n\r"
+                + "tag5(aa:bb:cc:dd:ee:00);" + ts + ";-70;36;5180;2;[ESS]\n\r", new String(encoder.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void writer_flushesEverythingOnClose() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryWriter writer = new HistoryWriter(out, new CsvRowEncoder(), 64, 1 << 20, 60_000);
+        ScanBatch batch = scan(T0, 10);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (writer.append(batch)) {
+                accepted++;
+            } else {
+                Thread.sleep(1);
+            }
+        }
+        writer.close();
+        String content = new String(out.toByteArray(), "UTF-8");
+        assertEquals(accepted * 10, content.split("\n\r", -1).length - 1);
+        assertEquals(accepted * 10, writer.getWrittenRows());
+        assertEquals(100 - accepted, writer.getDroppedScans());
+        assertEquals((100 - accepted) * 10, writer.getDroppedRows());
+        assertFalse(writer.append(batch));
+    }
+
+    @Test
+    public void writer_keepsScansWhole() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Queue size not multiple of scan size, scans wrap around the end of the ring
+        HistoryWriter writer = new HistoryWriter(out, new CsvRowEncoder(), 1_000, 64, 60_000);
+        ScanBatch batch = scan(T0, 300);
+        CsvRowEncoder expected = new CsvRowEncoder();
+        for (int i = 0; i < 20; i++) {
+            while (!writer.append(batch)) {
+                Thread.sleep(1);
+            }
+            expected.encode(batch);
+        }
+        writer.close();
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertEquals(20, writer.getWrites()); // One write per scan, as each scan is larger than flushBytes
+    }
+
+    /**
+     * Stream recording the batches announced before each write
+     */
+    private static class ListeningStream extends ByteArrayOutputStream implements HistoryBatchListener {
+        private int batches;
+        private int rows;
+        private int announcedSize = -1; // Stream size when last batch was announced
+
+        @Override
+        public void startBatch(HistoryBlock batch) {
+            assertEquals("Previous batch not written", -1, this.announcedSize);
+            this.batches++;
+            this.rows += batch.getRows();
+            this.announcedSize = size();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            assertTrue("Write not announced", this.announcedSize >= 0);
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            this.announcedSize = -1;
+        }
+    }
+
+    @Test
+    public void writer_announcesBatchesToListeningStream() throws Exception {
+        ListeningStream out = new ListeningStream();
+        HistoryWriter writer = new HistoryWriter(out, new CsvRowEncoder(), 1_000, 64, 60_000);
+        ScanBatch batch = scan(T0, 300);
+        for (int i = 0; i < 20; i++) {
+            while (!writer.append(batch)) {
+                Thread.sleep(1);
+            }
+        }
+        writer.close();
+        assertEquals(writer.getWrites(), out.batches);
+        assertEquals(20 * 300, out.rows);
+    }
+
+    @Test
+    public void writer_flushesOnInterval() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryWriter writer = new HistoryWriter(out, new CsvRowEncoder(), 64, 1 << 20, 50);
+        writer.append(scan(T0, 1));
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (out.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Row not flushed before close", out.size() > 0);
+        writer.close();
+    }
+
+    @Test
+    public void writer_batchesWrites() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryWriter writer = new HistoryWriter(out, new CsvRowEncoder(), 10_000, 64 * 1_024, 60_000);
+        ScanBatch batch = scan(T0, 1);
+        for (int i = 0; i < 5_000; i++) {
+            batch.clear(T0 + i);
+            batch.add("ssid", "aa:bb:cc:dd:ee:ff", "[ESS]", -50, 2437, 0);
+            writer.append(batch);
+        }
+        writer.close();
+        assertEquals(5_000, writer.getWrittenRows());
+        assertTrue("Too many writes: " + writer.getWrites(), writer.getWrites() < 10);
+    }
+
+    @Test
+    public void writer_reportsStreamError() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        HistoryWriter writer = new HistoryWriter(failing, new CsvRowEncoder(), 16, 1, 60_000);
+        writer.append(scan(T0, 1));
+        try {
+            writer.close();
+            fail("Error not reported");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        assertEquals(0, writer.getWrittenRows());
+        assertEquals(1, writer.getDroppedRows());
+    }
+}
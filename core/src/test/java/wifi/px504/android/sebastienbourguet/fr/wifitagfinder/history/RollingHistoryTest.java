@@ -0,0 +1,245 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.CsvScanSource;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Rolling history tests: rotation on scan boundaries, compression, disk budget, manifest and recovery.
+ */
+public class RollingHistoryTest {
+    private static final long T0 = 1_511_568_000_000L; // 2017-11-25
+    private static final String PATTERN = "'HISTO_'yyyy_MM_dd'T'HH_mm_ss'.csv'";
+    private static final int APS = 20;
+
+    private File directory;
+    private File manifestFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("histo").toFile();
+        manifestFile = new File(directory, "HISTO_manifest.txt");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static ScanBatch scan(ScanBatch batch, long time) {
+        batch.clear(time);
+        for (int i = 0; i < APS; i++) {
+            batch.add("AP-" + i, format("02:00:00:00:00:%02x", i), "[WPA2-PSK-CCMP][ESS]", -40 - (int) (time / 1_000 + i) % 50, i % 2 == 0 ? 2437 : 5180, i % 3);
+        }
+        return batch;
+    }
+
+    /**
+     * One scan per second through a history writer flushing every 2 KB
+     */
+    private RollingHistoryOutput capture(long from, int scans, long maxSegmentBytes, long maxSegmentMillis, long diskBudget) throws IOException {
+        return capture(new RollingHistoryOutput(manifestFile, PATTERN, maxSegmentBytes, maxSegmentMillis, diskBudget), from, scans);
+    }
+
+    private RollingHistoryOutput capture(RollingHistoryOutput output, long from, int scans) throws IOException {
+        HistoryWriter writer = new HistoryWriter(output, new CsvRowEncoder(), scans * APS, 2_048, 60_000);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < scans; s++) {
+            assertTrue(writer.append(scan(batch, from + s * 1_000L)));
+        }
+        writer.close();
+        assertNull(writer.getLastError());
+        return output;
+    }
+
+    private List<File> files(SegmentManifest manifest, List<SegmentManifest.Segment> segments) {
+        List<File> files = new ArrayList<>();
+        for (SegmentManifest.Segment segment : segments) {
+            files.add(manifest.getFile(segment));
+        }
+        return files;
+    }
+
+    @Test
+    public void rotation_bySizeAndTime() throws IOException {
+        RollingHistoryOutput output = capture(T0, 600, 32 * 1_024, 120_000, Long.MAX_VALUE);
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertEquals(output.getSegments(), manifest.size());
+        assertTrue(manifest.size() > 5);
+        long rows = 0;
+        for (int i = 0; i < manifest.size(); i++) {
+            SegmentManifest.Segment segment = manifest.get(i);
+            assertTrue(segment.isCompressed());
+            assertEquals(manifest.getFile(segment).length(), segment.getBytes());
+            assertTrue(segment.getLastTime() - segment.getFirstTime() < 120_000);
+            assertEquals(0, segment.getRows() % APS); // Scans are never split
+            if (i > 0) {
+                assertTrue(manifest.get(i - 1).getLastTime() < segment.getFirstTime());
+            }
+            rows += segment.getRows();
+        }
+        assertEquals(600 * APS, rows);
+        assertEquals(T0, manifest.get(0).getFirstTime());
+        assertEquals(T0 + 599_999, manifest.get(manifest.size() - 1).getLastTime()); // End of second of last row
+        assertTrue(output.getCompressionRatio() < 0.3);
+
+        CsvScanSource source = CsvScanSource.open(files(manifest, manifest.find(Long.MIN_VALUE, Long.MAX_VALUE)), CsvRowEncoder.DEFAULT_SEPARATOR, TimeZone.getDefault());
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < 600; s++) {
+            assertTrue(source.next(batch));
+            assertEquals(APS, batch.size());
+            assertEquals(T0 + s * 1_000L, batch.getTimeMillis());
+        }
+        assertFalse(source.next(batch));
+        source.close();
+    }
+
+    @Test
+    public void find_opensOnlyRangeSegments() throws IOException {
+        capture(T0, 600, Long.MAX_VALUE, 60_000, Long.MAX_VALUE);
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertEquals(10, manifest.size());
+        List<SegmentManifest.Segment> found = manifest.find(T0 + 150_000, T0 + 190_000);
+        assertEquals(2, found.size());
+        assertEquals(T0 + 120_000, found.get(0).getFirstTime());
+        assertEquals(1, manifest.find(T0 + 599_000, T0 + 700_000).size());
+        assertEquals(0, manifest.find(T0 + 600_000, T0 + 700_000).size());
+
+        InputStream in = manifest.open(found.get(1));
+        CsvHistoryReader reader = new CsvHistoryReader(in);
+        HistoryRecord record = new HistoryRecord();
+        assertTrue(reader.next(record));
+        assertEquals(T0 + 180_000, record.timeMillis);
+        reader.close();
+    }
+
+    @Test
+    public void budget_deletesOldestSegments() throws IOException {
+        RollingHistoryOutput output = capture(T0, 600, 16 * 1_024, Long.MAX_VALUE, 8 * 1_024);
+        assertTrue(output.getDeletedSegments() > 0);
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertTrue(manifest.getTotalBytes() <= 8 * 1_024);
+        assertTrue(manifest.get(0).getFirstTime() > T0);
+        assertEquals(T0 + 599_999, manifest.get(manifest.size() - 1).getLastTime()); // End of second of last row
+        Set<String> expected = new HashSet<>(Arrays.asList(manifestFile.getName()));
+        for (int i = 0; i < manifest.size(); i++) {
+            expected.add(manifest.get(i).getName());
+            expected.add(manifest.get(i).getName() + HistoryIndex.SUFFIX);
+        }
+        assertEquals(expected, new HashSet<>(Arrays.asList(directory.list()))); // Nothing else left on disk
+    }
+
+    /**
+     * The first segment is removed from manifest by the budget while the compression thread is
+     * about to read it: it must be deleted once compression gives up, without error.
+     */
+    @Test
+    public void budget_removesSegmentBeingCompressed() throws IOException {
+        final AtomicBoolean paused = new AtomicBoolean();
+        RollingHistoryOutput output = new RollingHistoryOutput(manifestFile, PATTERN, 16 * 1_024, Long.MAX_VALUE, 8 * 1_024) {
+            @Override
+            void beforeCompress(SegmentManifest.Segment segment) {
+                if (paused.getAndSet(true)) {
+                    return;
+                }
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (true) { // Wait for the budget to remove it
+                    synchronized (getManifest()) {
+                        if (getManifest().indexOf(segment.getName()) < 0) {
+                            return;
+                        }
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IllegalStateException("Segment never removed");
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        capture(output, T0, 600); // Closing throws the errors of compression
+        assertTrue(paused.get());
+        assertNull(output.getLastError());
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertTrue(manifest.get(0).getFirstTime() > T0);
+        Set<String> expected = new HashSet<>(Arrays.asList(manifestFile.getName()));
+        for (int i = 0; i < manifest.size(); i++) {
+            assertTrue(manifest.get(i).isCompressed());
+            expected.add(manifest.get(i).getName());
+            expected.add(manifest.get(i).getName() + HistoryIndex.SUFFIX);
+        }
+        assertEquals(expected, new HashSet<>(Arrays.asList(directory.list())));
+    }
+
+    @Test
+    public void restart_keepsAndRecoversSegments() throws IOException {
+        capture(T0, 60, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        // Capture killed before close: segment is listed in manifest but neither compressed nor complete
+        RollingHistoryOutput killed = new RollingHistoryOutput(manifestFile, PATTERN, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        CsvRowEncoder encoder = new CsvRowEncoder();
+        ScanBatch batch = new ScanBatch();
+        HistoryBlock block = new HistoryBlock();
+        for (int s = 0; s < 30; s++) {
+            encoder.encode(scan(batch, T0 + 3_600_000 + s * 1_000L));
+            block.clear();
+            for (int i = 0; i < batch.size(); i++) {
+                block.add(batch.getTimeMillis(), batch.getBssid(i));
+            }
+            killed.startBatch(block);
+            encoder.writeTo(killed);
+        }
+        killed.flush();
+        assertEquals(2, SegmentManifest.load(manifestFile).size());
+
+        capture(T0 + 7_200_000, 60, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertEquals(3, manifest.size());
+        SegmentManifest.Segment recovered = manifest.get(1);
+        assertTrue(recovered.isCompressed());
+        assertEquals(30 * APS, recovered.getRows());
+        assertEquals(T0 + 3_600_000, recovered.getFirstTime());
+        assertEquals(T0 + 3_629_999, recovered.getLastTime());
+        assertEquals(T0 + 7_200_000, manifest.get(2).getFirstTime());
+        IndexedHistoryReader reader = IndexedHistoryReader.open(manifest.getFile(recovered)); // Indexed again
+        assertEquals(30 * APS, reader.getIndex().getRows(0));
+        reader.close();
+    }
+
+    @Test
+    public void manifest_ignoresMissingAndDamagedLines() throws IOException {
+        new File(directory, "a.csv.gz").createNewFile();
+        FileOutputStream out = new FileOutputStream(manifestFile);
+        out.write(("# name;first;last;rows;bytes\n"
+                + "a.csv.gz;1000;2000;10;0\n"
+                + "missing.csv.gz;3000;4000;10;0\n"
+                + "a.csv.gz;x;4000;10;0\n").getBytes("UTF-8"));
+        out.close();
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        assertEquals(1, manifest.size());
+        assertEquals(0, manifest.indexOf("a.csv.gz"));
+        assertTrue(manifest.get(0).overlaps(2000, 2001));
+        assertFalse(manifest.get(0).overlaps(2001, 3000));
+    }
+}
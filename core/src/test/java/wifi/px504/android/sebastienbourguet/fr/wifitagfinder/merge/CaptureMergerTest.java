@@ -0,0 +1,219 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.merge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvHistoryReader;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryRecord;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay.CsvScanSource;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.WifiChannels;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Merge of multi-device captures: clock correction, time order, device tags, external sort
+ * of captures out of order and parsing throughput.
+ */
+public class CaptureMergerTest {
+    private static final long T0 = 1_511_568_000_000L; // 2017-11-25
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("merge").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static String bssid(int i) {
+        return format("02:00:00:00:%02x:%02x", i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    /**
+     * Write scans every 4 s of true time, with device clock late by clockOffset
+     * @param backAt scan after which the device clock goes back one hour, -1 for never
+     */
+    private File writeCapture(String name, TimeZone timeZone, long clockOffset, int scans, int nbAps, int backAt, boolean legacy, long seed) throws IOException {
+        File capture = new File(directory, "HISTO_" + name + ".csv");
+        OutputStream out = new FileOutputStream(capture);
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, timeZone, 64 * 1_024);
+        Random random = new Random(seed);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < scans; s++) {
+            long time = T0 + s * 4_000L - clockOffset - (backAt >= 0 && s > backAt ? 3_600_000 : 0);
+            batch.clear(time);
+            for (int ap = 0; ap < nbAps; ap++) {
+                if (random.nextInt(3) != 0) {
+                    batch.add("AP-" + ap, bssid(ap), "[WPA2-PSK-CCMP][ESS]", -30 - random.nextInt(60), ap % 2 == 0 ? 2437 : 5180, ap % 3);
+                }
+            }
+            if (legacy) {
+                for (int i = 0; i < batch.size(); i++) {
+                    encoder.encode(batch.getSsid(i), batch.getBssid(i), time, batch.getLevel(i), WifiChannels.frequencyToChannel(batch.getFrequency(i)), batch.getFrequency(i));
+                }
+            } else {
+                encoder.encode(batch);
+            }
+            if (encoder.size() > 32 * 1_024) {
+                encoder.writeTo(out);
+            }
+        }
+        encoder.writeTo(out);
+        out.close();
+        return capture;
+    }
+
+    private static String row(HistoryRecord record) {
+        return record.timeMillis + " " + record.bssid + " " + record.level + " " + record.channel + " " + record.channelWidth + " " + record.capabilities;
+    }
+
+    /**
+     * Rows of a device capture with corrected times, stable sorted by time
+     */
+    private static List<String> expectedRows(DeviceCapture capture) throws IOException {
+        final List<HistoryRecord> records = new ArrayList<>();
+        for (File file : capture.getFiles()) {
+            CsvHistoryReader reader = new CsvHistoryReader(new BufferedInputStream(new FileInputStream(file)), CsvRowEncoder.DEFAULT_SEPARATOR, capture.getTimeZone());
+            HistoryRecord record = new HistoryRecord();
+            while (reader.next(record)) {
+                HistoryRecord copy = new HistoryRecord();
+                copy.copyFrom(record);
+                copy.timeMillis += capture.getClockOffset();
+                records.add(copy);
+            }
+            reader.close();
+        }
+        Collections.sort(records, new Comparator<HistoryRecord>() {
+            @Override
+            public int compare(HistoryRecord a, HistoryRecord b) {
+                return Long.compare(a.timeMillis, b.timeMillis);
+            }
+        });
+        List<String> rows = new ArrayList<>(records.size());
+        for (HistoryRecord record : records) {
+            rows.add(row(record));
+        }
+        return rows;
+    }
+
+    /**
+     * Check merged capture is in time order and holds the rows of each device in the same order
+     */
+    private static void assertMerged(File merged, List<DeviceCapture> captures) throws IOException {
+        Map<String, List<String>> rows = new HashMap<>();
+        CsvHistoryReader reader = new CsvHistoryReader(new BufferedInputStream(new FileInputStream(merged)), CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        HistoryRecord record = new HistoryRecord();
+        long last = Long.MIN_VALUE;
+        while (reader.next(record)) {
+            assertTrue(record.timeMillis >= last);
+            last = record.timeMillis;
+            assertNotNull(record.device);
+            if (!rows.containsKey(record.device)) {
+                rows.put(record.device, new ArrayList<String>());
+            }
+            rows.get(record.device).add(row(record));
+        }
+        assertEquals(0, reader.getMalformedLines());
+        reader.close();
+        assertEquals(captures.size(), rows.size());
+        for (DeviceCapture capture : captures) {
+            assertEquals(capture.getDevice(), expectedRows(capture), rows.get(capture.getDevice()));
+        }
+    }
+
+    @Test
+    public void merge_correctsClocksAndTagsDevices() throws IOException {
+        TimeZone paris = TimeZone.getTimeZone("Europe/Paris");
+        TimeZone tokyo = TimeZone.getTimeZone("Asia/Tokyo");
+        List<DeviceCapture> captures = Arrays.asList(
+                new DeviceCapture("pixel", Arrays.asList(writeCapture("pixel_1", paris, 0, 300, 20, -1, false, 1), writeCapture("pixel_2", paris, -1_200_000, 300, 20, -1, false, 2)), 0, paris),
+                new DeviceCapture("galaxy", Collections.singletonList(writeCapture("galaxy", tokyo, 7_000, 500, 30, -1, false, 3)), 7_000, tokyo),
+                new DeviceCapture("nexus", Collections.singletonList(writeCapture("nexus", UTC, -2_000, 400, 10, -1, true, 4)), -2_000, UTC));
+        File merged = new File(directory, "merged.csv");
+        CaptureMerger merger = new CaptureMerger(captures, directory, 1_000, 2, CsvRowEncoder.DEFAULT_SEPARATOR);
+        long records = merger.merge(merged, UTC);
+        assertEquals(0, merger.getSortedCaptures());
+        assertEquals(0, merger.getRuns());
+        assertFalse(new File(directory, "merged.csv.tmp").exists());
+        assertMerged(merged, captures);
+
+        // Devices scanning in the same second replay as separate scans
+        CsvScanSource source = CsvScanSource.open(Collections.singletonList(merged), CsvRowEncoder.DEFAULT_SEPARATOR, UTC);
+        ScanBatch batch = new ScanBatch();
+        int scans = 0;
+        while (source.next(batch)) {
+            scans++;
+        }
+        source.close();
+        assertEquals(records, source.getRecords());
+        assertEquals(300 + 300 + 500 + 400, scans);
+    }
+
+    @Test
+    public void merge_sortsCapturesOutOfOrder() throws IOException {
+        List<DeviceCapture> captures = Arrays.asList(
+                new DeviceCapture("a", Collections.singletonList(writeCapture("a", UTC, 0, 800, 20, -1, false, 1)), 0, UTC),
+                new DeviceCapture("b", Collections.singletonList(writeCapture("b", UTC, 0, 800, 20, 500, false, 2)), 0, UTC), // Clock back after 500 scans
+                new DeviceCapture("c", Collections.singletonList(writeCapture("c", UTC, 3_000, 800, 20, 100, true, 3)), 3_000, UTC));
+        File merged = new File(directory, "merged.csv");
+        CaptureMerger merger = new CaptureMerger(captures, directory, 1_000, 4, CsvRowEncoder.DEFAULT_SEPARATOR);
+        merger.merge(merged, UTC);
+        assertEquals(2, merger.getSortedCaptures());
+        assertTrue(merger.getRuns() > 2 * 8);
+        assertMerged(merged, captures);
+        assertEquals(1 + captures.size(), directory.listFiles().length); // Runs are deleted
+    }
+
+    @Test
+    public void merge_sortsCaptureWithFilesOutOfOrder() throws IOException {
+        File late = writeCapture("a_2", UTC, 3_600_000, 300, 20, -1, false, 2); // Each file in order, but before the first one
+        OutputStream out = new FileOutputStream(late, true);
+        out.write("truncated row\n".getBytes("US-ASCII"));
+        out.close();
+        List<DeviceCapture> captures = Arrays.asList(
+                new DeviceCapture("a", Arrays.asList(writeCapture("a_1", UTC, 0, 300, 20, -1, false, 1), late), 0, UTC),
+                new DeviceCapture("b", Collections.singletonList(writeCapture("b", UTC, 0, 800, 20, -1, false, 3)), 0, UTC));
+        File merged = new File(directory, "merged.csv");
+        CaptureMerger merger = new CaptureMerger(captures, directory, 100_000, 3, CsvRowEncoder.DEFAULT_SEPARATOR);
+        long records = merger.merge(merged, UTC);
+        assertEquals(1, merger.getSortedCaptures());
+        assertEquals(1, merger.getRuns());
+        assertEquals(1, merger.getMalformedLines()); // Counted while sorting
+        assertMerged(merged, captures);
+        assertEquals(expectedRows(captures.get(0)).size() + expectedRows(captures.get(1)).size(), records);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deviceCapture_rejectsSeparator() {
+        new DeviceCapture("a;b", Collections.<File>emptyList(), 0, UTC);
+    }
+}
@@ -0,0 +1,147 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.HistoryWriter;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency histograms and metrics tests: buckets, percentiles, concurrent recording and cost.
+ */
+public class MetricsTest {
+    private static final int STAGE = 0;
+    private static final int OTHER = 1;
+    private static final int COUNTER = 0;
+
+    private static Metrics newMetrics() {
+        return new Metrics(new String[]{"stage", "other"}, new String[]{"events"});
+    }
+
+    @Test
+    public void histogram_buckets() {
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(0, LatencyHistogram.bucket(999));
+        assertEquals(1, LatencyHistogram.bucket(1_000));
+        assertEquals(2, LatencyHistogram.bucket(2_000));
+        assertEquals(2, LatencyHistogram.bucket(3_999));
+        assertEquals(11, LatencyHistogram.bucket(1_500_000)); // 1.5 ms in [1024, 2048) us
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+        for (int b = 1; b < LatencyHistogram.BUCKETS - 1; b++) {
+            assertEquals(b, LatencyHistogram.bucket(LatencyHistogram.lowerBound(b)));
+            assertEquals(b, LatencyHistogram.bucket(LatencyHistogram.upperBound(b) - 1));
+            assertEquals(b + 1, LatencyHistogram.bucket(LatencyHistogram.upperBound(b)));
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(1_500_000);
+        assertEquals(2, histogram.getCount());
+        assertEquals(1, histogram.getCount(0));
+        assertEquals(1, histogram.getCount(11));
+        assertEquals(1_500_000, histogram.getMax());
+        histogram.reset();
+        assertEquals(0, histogram.getCount(11));
+        assertEquals(0, histogram.getSum());
+    }
+
+    @Test
+    public void snapshot_percentiles() {
+        Metrics metrics = newMetrics();
+        metrics.setEnabled(true);
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(STAGE, i * 100_000L); // 0.1 to 10 ms
+        }
+        metrics.increment(COUNTER);
+        metrics.add(COUNTER, 4);
+        MetricsSnapshot snapshot = metrics.snapshot(0);
+        assertEquals(100, snapshot.getCount(STAGE));
+        assertEquals(0, snapshot.getCount(OTHER));
+        assertEquals(5_050_000, snapshot.getMean(STAGE), 1e-6);
+        assertEquals(10_000_000, snapshot.getMax(STAGE));
+        long[] exact = {5_000_000, 9_000_000, 9_900_000};
+        double[] percentiles = {0.5, 0.9, 0.99};
+        for (int i = 0; i < exact.length; i++) {
+            long estimate = snapshot.getPercentile(STAGE, percentiles[i]);
+            assertTrue(estimate >= exact[i] && estimate <= 2 * exact[i]);
+        }
+        assertEquals(10_000_000, snapshot.getPercentile(STAGE, 1)); // Capped to max
+        assertEquals(0, snapshot.getPercentile(OTHER, 0.5));
+        assertEquals(5, snapshot.getCounter(COUNTER));
+
+        metrics.record(STAGE, 1); // Snapshot is a copy
+        assertEquals(100, snapshot.getCount(STAGE));
+        String text = snapshot.toString();
+        assertTrue(text, text.contains("stage      n=100"));
+        assertTrue(text, text.contains("events=5"));
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        Metrics metrics = newMetrics();
+        long start = metrics.start();
+        assertEquals(Metrics.NOT_STARTED, start);
+        metrics.stop(STAGE, start);
+        metrics.record(STAGE, 1_000);
+        metrics.increment(COUNTER);
+        assertEquals(0, metrics.getHistogram(STAGE).getCount());
+        assertEquals(0, metrics.getCounter(COUNTER));
+
+        metrics.setEnabled(true);
+        start = metrics.start();
+        metrics.setEnabled(false); // Stage started before disabling is dropped
+        metrics.stop(STAGE, start);
+        assertEquals(0, metrics.getHistogram(STAGE).getCount());
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws InterruptedException {
+        final Metrics metrics = newMetrics();
+        metrics.setEnabled(true);
+        final int perThread = 200_000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long duration = (t + 1) * 1_000_000L;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        metrics.record(STAGE, duration);
+                        metrics.increment(COUNTER);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram histogram = metrics.getHistogram(STAGE);
+        assertEquals(threads.length * perThread, histogram.getCount());
+        assertEquals(perThread * (1 + 2 + 3 + 4) * 1_000_000L, histogram.getSum());
+        assertEquals(4_000_000, histogram.getMax());
+        assertEquals(threads.length * perThread, metrics.getCounter(COUNTER));
+        metrics.reset();
+        assertEquals(0, metrics.snapshot(0).getCount(STAGE));
+        assertEquals(0, metrics.getCounter(COUNTER));
+    }
+
+    @Test
+    public void historyWriter_recordsWrites() throws IOException {
+        Metrics metrics = newMetrics();
+        metrics.setEnabled(true);
+        HistoryWriter writer = new HistoryWriter(new ByteArrayOutputStream());
+        writer.setMetrics(metrics, OTHER);
+        ScanBatch batch = new ScanBatch();
+        batch.clear(1_511_568_000_000L);
+        batch.add("AP", "02:00:00:00:00:01", "", -50, 2412, 0);
+        writer.append(batch);
+        writer.close();
+        assertEquals(writer.getWrites(), metrics.getHistogram(OTHER).getCount());
+        assertEquals(1, writer.getWrites());
+    }
+}
@@ -0,0 +1,253 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.Alert;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.anomaly.AnomalyDetector;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.channel.ChannelOccupancy;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.FingerprintIndex;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.FingerprintLocator;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.fingerprint.RadioMapBuilder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.FixedRateScanScheduler;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Scanning engine: snapshots are copies unaffected by later scans, selection publishes history,
+ * readers on another thread only see consistent snapshots, and snapshot cost.
+ */
+public class ScanEngineTest {
+    private static final long T0 = 1_511_568_000_000L;
+    private static final long[] WINDOWS = {30_000, 5 * 60_000};
+
+    private static final String[] SSIDS = new String[500];
+    private static final String[] BSSIDS = new String[500];
+
+    static {
+        for (int i = 0; i < BSSIDS.length; i++) {
+            SSIDS[i] = "AP-" + i;
+            BSSIDS[i] = format("02:00:00:00:%02x:%02x", i >> 8 & 0xFF, i & 0xFF);
+        }
+    }
+
+    private static String bssid(int i) {
+        return BSSIDS[i];
+    }
+
+    /**
+     * Scan of nbAps access points, all at the same level
+     */
+    private static ScanBatch scan(ScanBatch batch, long time, int nbAps, int level) {
+        batch.clear(time);
+        for (int ap = 0; ap < nbAps; ap++) {
+            batch.add(SSIDS[ap], BSSIDS[ap], "[WPA2-PSK-CCMP][ESS]", level, ap % 2 == 0 ? 2412 + 5 * (ap % 13) : 5180, 0);
+        }
+        return batch;
+    }
+
+    private static ScanEngine newEngine() {
+        return new ScanEngine(new ScanPipeline(), new FixedRateScanScheduler(Clock.SYSTEM, 1_000), null, WINDOWS, 120);
+    }
+
+    @Test
+    public void snapshot_copiesPipelineState() {
+        ScanEngine engine = newEngine();
+        assertNull(engine.getSnapshot());
+        ScanBatch batch = new ScanBatch();
+        engine.onResults(scan(batch, T0, 10, -50));
+        ScanSnapshot first = engine.getSnapshot();
+        assertEquals(1, first.getSequence());
+        assertEquals(10, first.size());
+        ChannelOccupancy occupancy = engine.getPipeline().getChannelOccupancy();
+        assertEquals(occupancy.getOverlapLevel(1), first.getOverlapLevel(1));
+        assertEquals(occupancy.getCongestion(36), first.getCongestion(36), 0);
+
+        engine.onResults(scan(batch, T0 + 1_000, 5, -70)); // Batch reused, fewer and weaker access points
+        ScanSnapshot second = engine.getSnapshot();
+        assertEquals(2, second.getSequence());
+        assertEquals(5, second.size());
+        assertEquals(10, first.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(-50, first.getLevel(i));
+            assertEquals(bssid(i), first.getBssid(i));
+            assertEquals(MacAddress.pack(bssid(i)), first.getMac(i));
+        }
+        assertEquals(first.getSlot(3), second.getSlot(3)); // Still in range, same slot
+        assertNotEquals(first.getOverlapLevel(1), second.getOverlapLevel(1));
+        assertEquals(-1, second.getSelectedIndex());
+        assertEquals(0, second.getHistorySize(0));
+    }
+
+    @Test
+    public void select_publishesSelectedHistory() {
+        ScanEngine engine = newEngine();
+        final AtomicReference<ScanSnapshot> published = new AtomicReference<>();
+        engine.setListener(new ScanEngine.Listener() {
+            @Override
+            public void onSnapshot(ScanSnapshot snapshot) {
+                published.set(snapshot);
+            }
+        });
+        ScanBatch batch = new ScanBatch();
+        engine.onResults(scan(batch, T0, 10, -50));
+        long mac = MacAddress.pack(bssid(4));
+        engine.select(mac, T0 + 500);
+        ScanSnapshot selected = published.get();
+        assertEquals(2, selected.getSequence());
+        assertEquals(mac, selected.getSelectedMac());
+        assertEquals(bssid(4), selected.getBssid(selected.getSelectedIndex()));
+        engine.select(mac, T0 + 600); // Same selection, nothing published
+        assertSame(selected, published.get());
+
+        for (int s = 1; s <= 60; s++) {
+            engine.onResults(scan(batch, T0 + s * 1_000L, 10, -40 - s % 10));
+        }
+        ScanSnapshot last = engine.getSnapshot();
+        assertSame(last, published.get());
+        assertEquals(mac, last.getSelectedMac());
+        assertFalse(Float.isNaN(last.getSelectedLevel()));
+        assertEquals(30, last.getHistorySize(0), 1); // 30 s window at one scan per second
+        assertEquals(24, last.getHistorySize(1), 1); // 5 min window in 120 buckets of 2.5 s
+        for (int i = 0; i < last.getHistorySize(1); i++) {
+            assertTrue(last.getHistoryTime(1, i) >= last.getTimeMillis() - WINDOWS[1]);
+            assertTrue(last.getHistoryMean(1, i) <= -40 && last.getHistoryMean(1, i) >= -49);
+        }
+        engine.select(MacAddress.INVALID, T0 + 61_000);
+        assertEquals(0, engine.getSnapshot().getHistorySize(1));
+    }
+
+    @Test
+    public void select_publishesLevelOfLastScan() {
+        ScanEngine engine = newEngine();
+        ScanBatch batch = new ScanBatch();
+        engine.onResults(scan(batch, T0, 10, -50));
+        engine.select(MacAddress.pack(bssid(4)), T0 + 500);
+        ScanSnapshot selected = engine.getSnapshot();
+        assertTrue(selected.getSelectedIndex() >= 0);
+        assertFalse(Float.isNaN(selected.getSelectedLevel()));
+        assertEquals(-50, selected.getSelectedLevel(), 0.5);
+        assertTrue(selected.getSelectedDistance() > 0);
+
+        engine.select(MacAddress.pack(bssid(42)), T0 + 600); // Not in last scan, no level yet
+        selected = engine.getSnapshot();
+        assertEquals(-1, selected.getSelectedIndex());
+        assertTrue(Float.isNaN(selected.getSelectedLevel()));
+    }
+
+    @Test
+    public void onResults_publishesLocation() {
+        RadioMapBuilder builder = new RadioMapBuilder();
+        ScanBatch batch = new ScanBatch();
+        builder.add("lab", 1, 2, scan(batch, T0, 10, -45));
+        builder.add("hall", 20, 2, scan(batch, T0, 10, -85));
+        FingerprintIndex index = new FingerprintIndex(builder.build(), 1);
+        ScanEngine engine = newEngine();
+        engine.onResults(scan(batch, T0, 10, -50));
+        assertNull(engine.getSnapshot().getLocation());
+        engine.setLocator(new FingerprintLocator(index, 1));
+        engine.onResults(scan(batch, T0 + 1_000, 10, -50));
+        assertEquals("lab", engine.getSnapshot().getLocation().getLabel());
+        assertEquals(10, engine.getSnapshot().getLocation().getMatchedAccessPoints());
+        engine.onResults(scan(batch, T0 + 2_000, 10, -80));
+        assertEquals("hall", engine.getSnapshot().getLocation().getLabel());
+        assertEquals(20, engine.getSnapshot().getLocation().getX(), 0);
+        engine.select(MacAddress.pack(bssid(1)), T0 + 2_500); // Location kept until next scan
+        assertEquals("hall", engine.getSnapshot().getLocation().getLabel());
+        index.close();
+    }
+
+    @Test
+    public void onResults_checksAnomalies() {
+        final AtomicReference<Alert> last = new AtomicReference<>();
+        AnomalyDetector detector = new AnomalyDetector();
+        detector.setListener(new AnomalyDetector.Listener() {
+            @Override
+            public void onAlert(Alert alert) {
+                last.set(alert);
+            }
+        });
+        ScanEngine engine = newEngine();
+        engine.setDetector(detector);
+        ScanBatch batch = new ScanBatch();
+        for (int s = 0; s < 5; s++) {
+            engine.onResults(scan(batch, T0 + s * 1_000, 10, -50));
+        }
+        engine.onResults(scan(batch, T0 + 5_000, 10, -90));
+        assertEquals(6, detector.getScans());
+        assertEquals(10, detector.getAlertCount(Alert.LEVEL_JUMP));
+        assertEquals(-90, last.get().getLevel());
+        engine.setDetector(null);
+        engine.onResults(scan(batch, T0 + 6_000, 10, -50));
+        assertEquals(6, detector.getScans());
+    }
+
+    /**
+     * Scans are processed by a scanning thread while another thread renders the last snapshot:
+     * each snapshot must be internally consistent, and snapshots are seen in order.
+     */
+    @Test
+    public void snapshots_consistentAcrossThreads() throws Exception {
+        final ScanEngine engine = newEngine();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger rendered = new AtomicInteger();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread renderer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long lastSequence = 0;
+                while (!done.get()) {
+                    ScanSnapshot snapshot = engine.getSnapshot();
+                    if (snapshot == null || snapshot.getSequence() == lastSequence) {
+                        continue;
+                    }
+                    if (snapshot.getSequence() < lastSequence) {
+                        failure.set("Sequence went back to " + snapshot.getSequence());
+                    }
+                    lastSequence = snapshot.getSequence();
+                    int expectedSize = (int) (snapshot.getSequence() % 50) + 1; // As built by scanning thread
+                    int expectedLevel = -30 - (int) (snapshot.getSequence() % 60);
+                    if (snapshot.size() != expectedSize) {
+                        failure.set(format("Snapshot %d: %d access points", snapshot.getSequence(), snapshot.size()));
+                    }
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        if (snapshot.getLevel(i) != expectedLevel) {
+                            failure.set(format("Snapshot %d: level %d", snapshot.getSequence(), snapshot.getLevel(i)));
+                        }
+                    }
+                    rendered.incrementAndGet();
+                }
+            }
+        });
+        renderer.start();
+        ExecutorService scanning = Executors.newSingleThreadExecutor();
+        for (int s = 1; s <= 5_000; s++) {
+            final int sequence = s;
+            scanning.execute(new Runnable() {
+                private final ScanBatch batch = new ScanBatch();
+
+                @Override
+                public void run() {
+                    engine.onResults(scan(this.batch, T0 + sequence * 1_000L, sequence % 50 + 1, -30 - sequence % 60));
+                }
+            });
+        }
+        scanning.shutdown();
+        assertTrue(scanning.awaitTermination(30, TimeUnit.SECONDS));
+        done.set(true);
+        renderer.join();
+        assertNull(failure.get(), failure.get());
+        assertEquals(5_000, engine.getSnapshot().getSequence());
+        assertTrue(rendered.get() > 0);
+    }
+}
@@ -0,0 +1,121 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.render;
+
+import org.junit.Test;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.metrics.Metrics;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame coalescing: changes merged into one render per frame, measurement frame, dropped frames,
+ * and snapshots published faster than the display. Frame cost is measured in ScanEngineBenchmark.
+ */
+public class FrameCoalescerTest {
+    private static final long F = FrameCoalescer.FRAME_NANOS;
+    private static final long T0 = 1_000_000_000L;
+    private static final int SELECTOR = 1;
+    private static final int CHANNELS = 2;
+    private static final int LEVEL = 4;
+    private static final int STAGE_FRAME = 0;
+    private static final int COUNTER_FRAMES = 0;
+    private static final int COUNTER_DROPPED = 1;
+
+    private static Metrics newMetrics() {
+        Metrics metrics = new Metrics(new String[]{"frame"}, new String[]{"frames", "dropped frames"});
+        metrics.setEnabled(true);
+        return metrics;
+    }
+
+    @Test
+    public void invalidate_mergesChangesInOneFrame() {
+        FrameCoalescer coalescer = new FrameCoalescer();
+        Metrics metrics = newMetrics();
+        coalescer.setMetrics(metrics, STAGE_FRAME, COUNTER_FRAMES, COUNTER_DROPPED);
+        assertFalse(coalescer.isFrameRequested());
+        assertTrue(coalescer.invalidate(SELECTOR));
+        assertFalse(coalescer.invalidate(CHANNELS)); // Callback already pending
+        assertFalse(coalescer.invalidate(SELECTOR | CHANNELS));
+        assertEquals(SELECTOR | CHANNELS, coalescer.doFrame(T0));
+        assertTrue(coalescer.isFrameRequested()); // Next vsync measures this frame
+
+        assertEquals(0, coalescer.doFrame(T0 + F));
+        assertFalse(coalescer.isFrameRequested());
+        assertEquals(1, metrics.getHistogram(STAGE_FRAME).getCount());
+        assertEquals(F, metrics.getHistogram(STAGE_FRAME).getMax());
+        assertEquals(1, metrics.getCounter(COUNTER_FRAMES));
+        assertEquals(0, metrics.getCounter(COUNTER_DROPPED));
+        assertEquals(3, coalescer.getInvalidations());
+        assertEquals(1, coalescer.getRenders());
+
+        assertTrue(coalescer.invalidate(LEVEL)); // Idle again, new callback needed
+        assertEquals(LEVEL, coalescer.doFrame(T0 + 10 * F));
+    }
+
+    @Test
+    public void doFrame_countsDroppedFrames() {
+        FrameCoalescer coalescer = new FrameCoalescer();
+        Metrics metrics = newMetrics();
+        coalescer.setMetrics(metrics, STAGE_FRAME, COUNTER_FRAMES, COUNTER_DROPPED);
+        coalescer.invalidate(CHANNELS);
+        coalescer.doFrame(T0);
+        assertFalse(coalescer.invalidate(LEVEL)); // Change during measured frame, rendered by measurement frame
+        assertEquals(LEVEL, coalescer.doFrame(T0 + 3 * F + 1_000)); // Two vsyncs missed
+        assertEquals(2, coalescer.getDroppedFrames());
+        assertTrue(coalescer.isFrameRequested());
+        coalescer.doFrame(T0 + 4 * F - 500); // Vsync jitter is not a drop
+        assertEquals(2, coalescer.getDroppedFrames());
+        assertEquals(2, metrics.getCounter(COUNTER_FRAMES));
+        assertEquals(2, metrics.getCounter(COUNTER_DROPPED));
+        assertEquals(2, metrics.getHistogram(STAGE_FRAME).getCount());
+
+        coalescer.invalidate(SELECTOR);
+        coalescer.cancel(); // Callback removed with the activity
+        assertFalse(coalescer.isFrameRequested());
+        assertTrue(coalescer.invalidate(LEVEL));
+        assertEquals(LEVEL, coalescer.doFrame(T0 + 20 * F));
+    }
+
+    /**
+     * Snapshots published every 4 ms while the display runs at 60 fps, frame callbacks posted as
+     * the Choreographer would: one callback per vsync at most, every vsync renders the latest
+     * changes, each render is measured and none is dropped. Render cost of a 500 access points
+     * snapshot is measured in ScanEngineBenchmark.renderSnapshot.
+     */
+    @Test
+    public void doFrame_coalescesSnapshotsPerVsync() {
+        FrameCoalescer coalescer = new FrameCoalescer();
+        Metrics metrics = newMetrics();
+        coalescer.setMetrics(metrics, STAGE_FRAME, COUNTER_FRAMES, COUNTER_DROPPED);
+        int seconds = 10;
+        long vsync = T0;
+        int vsyncs = 0;
+        int callbacks = 0;
+        boolean posted = false;
+        for (long time = 0; time < seconds * 1_000_000_000L; time += 4_000_000) {
+            while (vsync <= T0 + time) {
+                vsyncs++;
+                if (posted) {
+                    callbacks++;
+                    posted = false;
+                    coalescer.doFrame(vsync);
+                    posted = coalescer.isFrameRequested();
+                }
+                vsync += F;
+            }
+            if (coalescer.invalidate(SELECTOR | CHANNELS | LEVEL)) {
+                assertFalse(posted);
+                posted = true;
+            }
+        }
+        assertEquals(seconds * 250, coalescer.getInvalidations());
+        assertEquals(seconds * 60, vsyncs, 1);
+        assertEquals(vsyncs, callbacks, 1); // Display busy on each vsync, but once only
+        assertEquals(callbacks, coalescer.getRenders(), 1);
+        assertTrue(coalescer.getInvalidations() >= 4 * coalescer.getRenders());
+        assertEquals(coalescer.getRenders(), metrics.getCounter(COUNTER_FRAMES));
+        assertEquals(coalescer.getRenders() - 1, metrics.getHistogram(STAGE_FRAME).getCount(), 1);
+        assertEquals(F, metrics.getHistogram(STAGE_FRAME).getMax());
+        assertEquals(0, coalescer.getDroppedFrames());
+        assertEquals(0, metrics.getCounter(COUNTER_DROPPED));
+    }
+}
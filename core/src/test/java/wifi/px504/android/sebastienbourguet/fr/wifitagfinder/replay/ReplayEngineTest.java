@@ -0,0 +1,172 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.replay;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.history.CsvRowEncoder;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.pipeline.ScanPipeline;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.MacAddress;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler.Clock;
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking.LevelHistory;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Capture replay tests: scans grouping, pacing, same results as live processing, and throughput.
+ */
+public class ReplayEngineTest {
+    private static final long T0 = 1_511_568_000_000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static class ManualClock implements Clock {
+        long time;
+
+        @Override
+        public long now() {
+            return this.time;
+        }
+    }
+
+    private static String bssid(int i) {
+        return format("02:00:00:%02x:%02x:%02x", i >> 16 & 0xFF, i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Random scans of a capture, nbAps access points with 2/3 of them in each scan
+     */
+    private static List<ScanBatch> scans(int count, int nbAps, long period) {
+        Random random = new Random(8);
+        List<ScanBatch> scans = new ArrayList<>();
+        for (int s = 0; s < count; s++) {
+            ScanBatch batch = new ScanBatch();
+            batch.clear(T0 + s * period);
+            for (int ap = 0; ap < nbAps; ap++) {
+                if (random.nextInt(3) != 0) {
+                    batch.add("AP-" + ap, bssid(ap), "[WPA2-PSK-CCMP][ESS]", -30 - random.nextInt(60), ap % 2 == 0 ? 2412 + 5 * (ap % 11) : 5180, ap % 3);
+                }
+            }
+            scans.add(batch);
+        }
+        return scans;
+    }
+
+    private static byte[] encode(List<ScanBatch> scans) {
+        CsvRowEncoder encoder = new CsvRowEncoder(CsvRowEncoder.DEFAULT_SEPARATOR, UTC, 1_024);
+        for (ScanBatch batch : scans) {
+            encoder.encode(batch);
+        }
+        return encoder.toByteArray();
+    }
+
+    @Test
+    public void csvSource_groupsRowsInScans() throws IOException {
+        String first = "A(02:00:00:00:00:01);171125000000;-50;1;2412\n\r"
+                + "B(02:00:00:00:00:02);171125000000;-60;6;2437;1;[ESS]\n\r"
+                + "A(02:00:00:00:00:01);171125000000;-51;1;2412\n\r" // Second scan of the same second
+                + "garbage\n\r"
+                + "A(02:00:00:00:00:01);171125000004;-52;1;2412\n\r";
+        String second = "C(02:00:00:00:00:03);171125000004;-70;36;5180;2;[WPA2]\n\r" // Same time, other file
+                + "C(02:00:00:00:00:03);171125000008;-71;36;5180;2;[WPA2]\n\r";
+        CsvScanSource source = new CsvScanSource(Arrays.asList(stream(first), stream(second)), (byte) ';', UTC);
+        ScanBatch batch = new ScanBatch();
+        int[] sizes = {2, 1, 2, 1};
+        long[] times = {0, 0, 4_000, 8_000};
+        for (int s = 0; s < sizes.length; s++) {
+            assertTrue(source.next(batch));
+            assertEquals(sizes[s], batch.size());
+            assertEquals(T0 + times[s], batch.getTimeMillis());
+        }
+        assertFalse(source.next(batch));
+        assertEquals(6, source.getRecords());
+        assertEquals(1, source.getMalformedLines());
+        source.close();
+
+        source = new CsvScanSource(Arrays.asList(stream(first)), (byte) ';', UTC);
+        source.next(batch);
+        assertEquals("", batch.getCapabilities(0)); // Legacy row
+        assertEquals(0, batch.getChannelWidth(0));
+        assertEquals("[ESS]", batch.getCapabilities(1));
+        assertEquals(1, batch.getChannelWidth(1));
+        source.close();
+    }
+
+    @Test
+    public void engine_pacesScans() throws IOException, InterruptedException {
+        final ManualClock clock = new ManualClock();
+        final List<Long> replayTimes = new ArrayList<>();
+        List<ScanBatch> scans = scans(10, 3, 4_000);
+        scans.get(9).clear(T0 + 3_600_000); // One hour gap
+        scans.get(9).add("AP", bssid(1), "", -50, 2412, 0);
+        CsvScanSource source = new CsvScanSource(Arrays.asList(stream(new String(encode(scans), "UTF-8"))), (byte) ';', UTC);
+        ReplayEngine engine = new ReplayEngine(source, 10, clock) {
+            @Override
+            protected void sleep(long millis) {
+                clock.time += millis;
+            }
+        };
+        engine.setMaxGap(20_000);
+        engine.run(new ReplayEngine.Listener() {
+            @Override
+            public void onScan(ScanBatch batch) {
+                replayTimes.add(clock.time);
+                clock.time += 100; // Processing time
+            }
+        });
+        assertEquals(10, engine.getScans());
+        for (int s = 1; s < 9; s++) {
+            assertEquals(400 * s, (long) replayTimes.get(s));
+        }
+        assertEquals(3_200 + 2_000, (long) replayTimes.get(9)); // Gap shortened to 20 s
+        assertEquals(5_300, engine.getElapsed());
+    }
+
+    @Test
+    public void replay_matchesLiveProcessing() throws IOException, InterruptedException {
+        List<ScanBatch> scans = scans(200, 40, 1_000);
+        long selected = MacAddress.pack(bssid(7));
+        ScanPipeline live = new ScanPipeline();
+        live.select(selected);
+        for (ScanBatch batch : scans) {
+            live.process(batch);
+        }
+
+        final ScanPipeline replayed = new ScanPipeline();
+        replayed.select(selected);
+        CsvScanSource source = new CsvScanSource(Arrays.asList(stream(new String(encode(scans), "UTF-8"))), (byte) ';', UTC);
+        ReplayEngine engine = new ReplayEngine(source, ReplayEngine.AS_FAST_AS_POSSIBLE, Clock.SYSTEM);
+        engine.run(new ReplayEngine.Listener() {
+            @Override
+            public void onScan(ScanBatch batch) {
+                replayed.process(batch);
+            }
+        });
+        assertEquals(200, replayed.getScans());
+        LevelHistory expected = live.getSelectedHistory();
+        LevelHistory actual = replayed.getSelectedHistory();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTime(i), actual.getTime(i));
+            assertEquals(expected.getLevel(i), actual.getLevel(i));
+        }
+        assertEquals(live.getSelectedDistance(), replayed.getSelectedDistance(), 0);
+        for (int channel = 1; channel <= 165; channel++) {
+            assertEquals(live.getChannelOccupancy().getOverlapPower(channel), replayed.getChannelOccupancy().getOverlapPower(channel), 0);
+        }
+        assertEquals(live.getScanIndex().size(), replayed.getScanIndex().size());
+    }
+}
@@ -0,0 +1,150 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * BSSID index tests, and per-scan cost compared with the linear findAP / adapter rebuild.
+ */
+public class ScanIndexTest {
+    private static final long T0 = 1_511_568_000_000L;
+
+    private static String bssid(int i) {
+        return format("00:11:22:%02x:%02x:%02x", i >> 16 & 0xFF, i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    private static void fill(ScanBatch batch, long time, int[] aps, int level) {
+        batch.clear(time);
+        for (int ap : aps) {
+            batch.add("AP-" + ap, bssid(ap), "[ESS]", level, 2412, 0);
+        }
+    }
+
+    @Test
+    public void macAddress_packAndFormat() {
+        long mac = MacAddress.pack("A0:b1:C2:d3:E4:f5");
+        assertEquals(0xA0B1C2D3E4F5L, mac);
+        assertEquals("a0:b1:c2:d3:e4:f5", MacAddress.toString(mac));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("a0:b1:c2:d3:e4"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("a0:b1:c2:d3:e4:fg"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack(null));
+        assertEquals(mac, MacAddress.pack("a0-b1-c2-d3-e4-f5"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("a0:b1:c2:d3:e4;f5"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("a0:b1:c2:d3:e4:f\u0665")); // Unicode digit
+        assertEquals(MacAddress.INVALID, MacAddress.pack("g0:b1:c2:d3:e4:f5"));
+
+        ScanBatch batch = new ScanBatch(1);
+        batch.add("AP", "A0:b1:C2:d3:E4:f5", "[ESS]", -50, 2412, 0);
+        batch.add("AP", "not a mac", "[ESS]", -50, 2412, 0); // Grows the batch
+        assertEquals(mac, batch.getMac(0));
+        assertEquals(MacAddress.INVALID, batch.getMac(1));
+    }
+
+    @Test
+    public void accessPointLabels_formatAndParse() {
+        String label = AccessPointLabels.format("Box (2nd floor)", "a0:b1:c2:d3:e4:f5");
+        assertEquals("Box (2nd floor) (a0:b1:c2:d3:e4:f5)", label);
+        assertEquals("a0:b1:c2:d3:e4:f5", AccessPointLabels.parseBssid(label));
+        assertNull(AccessPointLabels.parseBssid("no bssid"));
+    }
+
+    @Test
+    public void longIntHashMap_matchesHashMap() {
+        LongIntHashMap map = new LongIntHashMap(4, -1);
+        HashMap<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextInt(2_000) * 0x10000L; // Many collisions on low bits
+            if (random.nextInt(3) == 0) {
+                Integer removed = expected.remove(key);
+                assertEquals(removed == null ? -1 : removed, map.remove(key));
+            } else {
+                Integer previous = expected.put(key, i);
+                assertEquals(previous == null ? -1 : previous, map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 2_000; key++) {
+            Integer value = expected.get(key * 0x10000L);
+            assertEquals(value == null ? -1 : value, map.get(key * 0x10000L));
+        }
+    }
+
+    @Test
+    public void update_computesDiff() {
+        ScanIndex index = new ScanIndex(2);
+        ScanBatch batch = new ScanBatch();
+        fill(batch, T0, new int[]{1, 2, 3}, -50);
+        index.update(batch);
+        assertEquals(3, index.getAddedCount());
+        assertEquals(0, index.getRemovedCount());
+        int slot2 = index.find(bssid(2));
+        assertEquals(1, index.getPosition(slot2));
+
+        fill(batch, T0 + 1, new int[]{4, 2, 3}, -50);
+        batch.add("AP-3", bssid(3), "[ESS]", -10, 2412, 0); // Duplicate ignored
+        index.update(batch);
+        assertEquals(1, index.getAddedCount());
+        assertEquals(bssid(4), index.getBssid(index.getAdded(0)));
+        assertEquals(0, index.getUpdatedCount());
+        assertEquals(1, index.getRemovedCount());
+        int removed = index.getRemoved(0);
+        assertEquals(bssid(1), index.getBssid(removed)); // Still readable
+        assertEquals(-1, index.find(bssid(1)));
+        assertEquals(slot2, index.find(bssid(2))); // Slot is stable
+        assertEquals(0, index.getPosition(index.find(bssid(4))));
+        assertEquals(3, index.size());
+
+        batch.clear(T0 + 2);
+        batch.add("AP-2", bssid(2), "[ESS]", -60, 2412, 0);
+        batch.add("renamed", bssid(3), "[ESS]", -50, 2412, 0);
+        batch.add("AP-4", bssid(4), "[ESS]", -50, 2412, 0);
+        index.update(batch);
+        assertEquals(0, index.getAddedCount());
+        assertEquals(2, index.getUpdatedCount());
+        assertEquals(-60, index.getLevel(slot2));
+        assertEquals("renamed", index.getSsid(index.find(bssid(3))));
+        assertEquals(T0, index.getFirstSeen(slot2));
+
+        fill(batch, T0 + 3, new int[]{1}, -50);
+        index.update(batch);
+        assertEquals(1, index.getAddedCount());
+        assertEquals(3, index.getRemovedCount());
+        assertEquals(1, index.size());
+        assertEquals(index.getAdded(0), index.find(bssid(1)));
+    }
+
+    @Test
+    public void update_randomScans() {
+        ScanIndex index = new ScanIndex();
+        ScanBatch batch = new ScanBatch();
+        Random random = new Random(7);
+        boolean[] previous = new boolean[500];
+        for (int scan = 0; scan < 200; scan++) {
+            boolean[] current = new boolean[500];
+            batch.clear(T0 + scan);
+            for (int ap = 0; ap < 500; ap++) {
+                if (random.nextInt(4) != 0) {
+                    current[ap] = true;
+                    batch.add("AP", bssid(ap), "[ESS]", -50, 2412, 0);
+                }
+            }
+            index.update(batch);
+            int added = 0;
+            int removed = 0;
+            for (int ap = 0; ap < 500; ap++) {
+                added += current[ap] && !previous[ap] ? 1 : 0;
+                removed += !current[ap] && previous[ap] ? 1 : 0;
+                assertEquals(current[ap], index.find(bssid(ap)) >= 0);
+            }
+            assertEquals(added, index.getAddedCount());
+            assertEquals(removed, index.getRemovedCount());
+            previous = current;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scheduler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scheduling policies simulated with a manual clock and a radio answering after a fixed latency.
+ */
+public class ScanSchedulerTest {
+    private static final long LATENCY = 1_500; // Time taken by a scan
+
+    private static class ManualClock implements Clock {
+        long time;
+
+        @Override
+        public long now() {
+            return this.time;
+        }
+    }
+
+    /**
+     * Level seen by the simulated radio
+     */
+    private interface Signal {
+        int levelAt(long time);
+    }
+
+    private static final Signal STABLE = new Signal() {
+        @Override
+        public int levelAt(long time) {
+            return -60;
+        }
+    };
+
+    private static final Signal MOVING = new Signal() {
+        @Override
+        public int levelAt(long time) {
+            return -40 - (int) (time / 1_000 % 2) * 20; // 20 dB jump each second
+        }
+    };
+
+    /**
+     * Run timer / radio loop until duration is reached
+     */
+    private static void simulate(ScanScheduler scheduler, ManualClock clock, long duration, Signal signal) {
+        long timer = clock.time + scheduler.nextDelay();
+        long results = Long.MAX_VALUE;
+        while (Math.min(timer, results) < duration) {
+            if (results <= timer) {
+                clock.time = results;
+                scheduler.onResults(signal.levelAt(clock.time));
+                results = Long.MAX_VALUE;
+            } else {
+                clock.time = timer;
+                if (scheduler.onTimer()) {
+                    results = clock.time + LATENCY;
+                }
+            }
+            timer = clock.time + scheduler.nextDelay();
+        }
+    }
+
+    @Test
+    public void fixedRate_keepsPeriod() {
+        ManualClock clock = new ManualClock();
+        FixedRateScanScheduler scheduler = new FixedRateScanScheduler(clock, 4_000);
+        simulate(scheduler, clock, 60_000, STABLE);
+        ScanStats stats = scheduler.getStats();
+        assertEquals(15, stats.getRequested());
+        assertEquals(15, stats.getCompleted());
+        assertEquals(4_000, stats.getMinInterval());
+        assertEquals(4_000, stats.getMaxInterval());
+        assertEquals(0, stats.getDropped());
+    }
+
+    @Test
+    public void fixedRate_coalescesWhilePending() {
+        ManualClock clock = new ManualClock();
+        FixedRateScanScheduler scheduler = new FixedRateScanScheduler(clock, 500);
+        simulate(scheduler, clock, 60_000, STABLE);
+        ScanStats stats = scheduler.getStats();
+        assertEquals(LATENCY, stats.getMinInterval()); // Radio is the limit, no back-to-back requests
+        assertEquals(stats.getRequested() - 1, stats.getCompleted());
+
+        clock.time = 100_000;
+        assertTrue(scheduler.onTimer() || scheduler.isPending());
+        long coalesced = stats.getCoalesced();
+        assertFalse(scheduler.onTimer());
+        assertEquals(coalesced + 1, stats.getCoalesced());
+        scheduler.onResults(-50);
+        clock.time += 100;
+        scheduler.onResults(-50); // Scan of another application
+        assertEquals(coalesced + 2, stats.getCoalesced());
+        assertEquals(500, scheduler.nextDelay());
+    }
+
+    @Test
+    public void timeoutAndFailure_countDropped() {
+        ManualClock clock = new ManualClock();
+        FixedRateScanScheduler scheduler = new FixedRateScanScheduler(clock, 1_000);
+        scheduler.setTimeout(5_000);
+        assertEquals(0, scheduler.nextDelay());
+        assertTrue(scheduler.onTimer());
+        clock.time = 1_000;
+        assertEquals(4_000, scheduler.nextDelay());
+        clock.time = 5_000;
+        assertTrue(scheduler.onTimer()); // Lost scan dropped, new one started
+        scheduler.onScanFailed();
+        assertEquals(2, scheduler.getStats().getDropped());
+        assertEquals(1_000, scheduler.nextDelay());
+    }
+
+    @Test
+    public void adaptive_followsSignalChanges() {
+        ManualClock clock = new ManualClock();
+        AdaptiveScanScheduler stable = new AdaptiveScanScheduler(clock, 1_000, 16_000, 3);
+        simulate(stable, clock, 600_000, STABLE);
+        assertEquals(16_000, stable.getPeriod());
+
+        clock = new ManualClock();
+        AdaptiveScanScheduler moving = new AdaptiveScanScheduler(clock, 1_000, 16_000, 3);
+        simulate(moving, clock, 600_000, MOVING);
+        assertEquals(1_000, moving.getPeriod());
+        assertTrue(moving.getStats().getCompleted() > 8 * stable.getStats().getCompleted());
+
+        moving.onResults(ScanScheduler.NO_LEVEL); // Tag lost, back off
+        assertEquals(1_250, moving.getPeriod());
+    }
+
+    @Test
+    public void burst_alternatesBurstAndIdle() {
+        ManualClock clock = new ManualClock();
+        BurstScanScheduler scheduler = new BurstScanScheduler(clock, 3, 2_000, 30_000);
+        simulate(scheduler, clock, 3 * 34_000, STABLE);
+        ScanStats stats = scheduler.getStats();
+        assertEquals(9, stats.getCompleted());
+        assertEquals(2_000, stats.getMinInterval());
+        assertEquals(30_000, stats.getMaxInterval());
+    }
+
+    @Test
+    public void throttle_limitsScansInWindow() {
+        ManualClock clock = new ManualClock();
+        FixedRateScanScheduler scheduler = new FixedRateScanScheduler(clock, 2_000);
+        scheduler.setThrottle(4, 120_000);
+        simulate(scheduler, clock, 600_000, STABLE);
+        assertEquals(20, scheduler.getStats().getRequested());
+        assertEquals(114_000, scheduler.getStats().getMaxInterval());
+    }
+}
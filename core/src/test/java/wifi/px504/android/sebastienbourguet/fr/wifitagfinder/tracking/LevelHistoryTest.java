@@ -0,0 +1,113 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Level history ring and downsampling tests, with append / downsample throughput.
+ */
+public class LevelHistoryTest {
+    private static final long T0 = 1_511_568_000_000L;
+
+    @Test
+    public void append_overwritesOldest() {
+        LevelHistory history = new LevelHistory(4);
+        for (int i = 0; i < 10; i++) {
+            history.append(T0 + i * 1_000, -i);
+        }
+        assertEquals(4, history.size());
+        assertEquals(T0 + 6_000, history.getTime(0));
+        assertEquals(-9, history.getLevel(3));
+        assertEquals(2, history.indexOf(T0 + 7_500));
+        assertEquals(0, history.indexOf(0));
+        assertEquals(4, history.indexOf(T0 + 10_000));
+        history.append(T0, -1); // Clock went back
+        assertEquals(T0 + 9_000, history.getTime(3));
+    }
+
+    @Test
+    public void downsample_matchesNaiveComputation() {
+        Random random = new Random(3);
+        LevelHistory history = new LevelHistory(1_000);
+        long[] times = new long[3_000];
+        int[] levels = new int[3_000];
+        long time = T0;
+        for (int i = 0; i < times.length; i++) {
+            time += 1 + random.nextInt(4_000);
+            times[i] = time;
+            levels[i] = -30 - random.nextInt(60);
+            history.append(times[i], levels[i]);
+        }
+        long from = times[2_200];
+        long to = times[2_900];
+        int n = 50;
+        LevelHistory.Buckets buckets = new LevelHistory.Buckets(n);
+        history.downsample(from, to, buckets);
+
+        int b = 0;
+        for (int bucket = 0; bucket < n; bucket++) {
+            long start = from + (to - from) * bucket / n;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            long sum = 0;
+            int count = 0;
+            for (int i = 0; i < times.length; i++) {
+                if (times[i] >= from && times[i] < to && (int) ((times[i] - from) * n / (to - from)) == bucket) {
+                    min = Math.min(min, levels[i]);
+                    max = Math.max(max, levels[i]);
+                    sum += levels[i];
+                    count++;
+                }
+            }
+            if (count > 0) {
+                assertEquals(start, buckets.getTime(b));
+                assertEquals(min, buckets.getMin(b));
+                assertEquals(max, buckets.getMax(b));
+                assertEquals((float) sum / count, buckets.getMean(b), 1e-4);
+                assertEquals(count, buckets.getSamples(b));
+                b++;
+            }
+        }
+        assertEquals(b, buckets.size());
+    }
+
+    @Test
+    public void downsample_emptyWindow() {
+        LevelHistory history = new LevelHistory(10);
+        LevelHistory.Buckets buckets = new LevelHistory.Buckets(5);
+        history.downsample(T0, T0 + 1_000, buckets);
+        assertEquals(0, buckets.size());
+        history.append(T0 + 5_000, -50);
+        history.downsample(T0, T0 + 1_000, buckets);
+        assertEquals(0, buckets.size());
+        history.downsample(T0, T0 + 5_001, buckets);
+        assertEquals(1, buckets.size());
+        assertEquals(4, (buckets.getTime(0) - T0) / 1_000);
+    }
+
+    /**
+     * 24 hours at one sample per second, after wrapping around: a 200 points downsampling
+     * of the last 30 s, the last hour and the whole day.
+     */
+    @Test
+    public void downsample_wholeDay() {
+        int capacity = 24 * 3_600;
+        LevelHistory history = new LevelHistory(capacity);
+        for (int i = 0; i < 2 * capacity; i++) {
+            history.append(T0 + i * 1_000L, -40 - (i % 50));
+        }
+        assertEquals(capacity, history.size());
+        long end = history.getTime(capacity - 1) + 1;
+        assertEquals(T0 + 2 * capacity * 1_000L - 999, end);
+        LevelHistory.Buckets buckets = new LevelHistory.Buckets(200);
+        long[] windows = {30_000L, 3_600_000L, 24 * 3_600_000L};
+        for (long window : windows) {
+            history.downsample(end - window, end, buckets);
+            assertTrue(buckets.size() <= 200);
+        }
+        assertEquals(200, buckets.size());
+    }
+}
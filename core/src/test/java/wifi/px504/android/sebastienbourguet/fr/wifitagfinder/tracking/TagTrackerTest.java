@@ -0,0 +1,104 @@
+package wifi.px504.android.sebastienbourguet.fr.wifitagfinder.tracking;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import wifi.px504.android.sebastienbourguet.fr.wifitagfinder.scan.ScanBatch;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Multi-target tracking tests, and load test with synthetic dense scans.
+ */
+public class TagTrackerTest {
+    private static final long T0 = 1_511_568_000_000L;
+
+    private static String bssid(int i) {
+        return format("02:00:00:%02x:%02x:%02x", i >> 16 & 0xFF, i >> 8 & 0xFF, i & 0xFF);
+    }
+
+    @Test
+    public void track_limitsAndReusesIds() {
+        TagTracker tracker = new TagTracker(2, 4);
+        int a = tracker.track(bssid(1));
+        int b = tracker.track(bssid(2));
+        assertEquals(0, a);
+        assertEquals(1, b);
+        assertEquals(a, tracker.track(bssid(1).toUpperCase()));
+        assertEquals(TagTracker.NO_TAG, tracker.track(bssid(3)));
+        assertTrue(tracker.untrack(bssid(1)));
+        assertFalse(tracker.untrack(bssid(1)));
+        assertFalse(tracker.isTracked(a));
+        assertEquals(a, tracker.track(bssid(3)));
+        assertEquals(0, tracker.getSampleCount(a));
+        assertEquals(2, tracker.size());
+    }
+
+    @Test
+    public void update_recordsRingHistory() {
+        TagTracker tracker = new TagTracker(4, 3);
+        int tag = tracker.track(bssid(7));
+        int other = tracker.track(bssid(8));
+        ScanBatch batch = new ScanBatch();
+        for (int scan = 0; scan < 5; scan++) {
+            batch.clear(T0 + scan * 1_000);
+            batch.add("x", bssid(1), "", -80, 2412, 0);
+            batch.add("tag", bssid(7), "", -40 - scan, scan < 4 ? 2437 : 5180, 0);
+            batch.add("tag", bssid(7), "", 0, 2437, 0); // Duplicate ignored
+            assertEquals(1, tracker.update(batch));
+        }
+        assertEquals(3, tracker.getSampleCount(tag));
+        assertEquals(-42, tracker.getLevel(tag, 0));
+        assertEquals(-44, tracker.getLevel(tag, 2));
+        assertEquals(T0 + 4_000, tracker.getTime(tag, 2));
+        assertEquals(T0 + 4_000, tracker.getLastSeen(tag));
+        assertEquals(36, tracker.getChannel(tag));
+        assertEquals(0, tracker.getMissedScans(tag));
+        assertEquals(5, tracker.getMissedScans(other));
+
+        long[] times = new long[3];
+        short[] levels = new short[3];
+        assertEquals(3, tracker.copyHistory(tag, times, levels));
+        assertArrayEquals(new long[]{T0 + 2_000, T0 + 3_000, T0 + 4_000}, times);
+        assertArrayEquals(new short[]{-42, -43, -44}, levels);
+
+        batch.clear(T0 + 5_000);
+        tracker.update(batch);
+        assertEquals(1, tracker.getMissedScans(tag));
+    }
+
+    /**
+     * Thousands of access points per scan, hundreds of tags followed.
+     */
+    @Test
+    public void update_denseScans() {
+        int aps = 5_000;
+        int tags = 300;
+        int scans = 1_200;
+        TagTracker tracker = new TagTracker(tags, 512);
+        for (int t = 0; t < tags; t++) {
+            tracker.track(bssid(t * 13));
+        }
+        // Prepare a few different scans, each with about 2/3 of the access points
+        Random random = new Random(1);
+        ScanBatch[] batches = new ScanBatch[8];
+        int[] expectedSeen = new int[batches.length];
+        for (int b = 0; b < batches.length; b++) {
+            batches[b] = new ScanBatch(aps);
+            batches[b].clear(T0);
+            for (int ap = 0; ap < aps; ap++) {
+                if (random.nextInt(3) != 0) {
+                    batches[b].add("AP", bssid(ap), "[ESS]", -30 - random.nextInt(60), 2412, 0);
+                    expectedSeen[b] += ap % 13 == 0 && ap / 13 < tags ? 1 : 0;
+                }
+            }
+        }
+        for (int s = 0; s < scans; s++) {
+            int b = s % batches.length;
+            assertEquals(expectedSeen[b], tracker.update(batches[b]));
+        }
+        assertEquals(512, tracker.getSampleCount(0));
+    }
+}